@@ -0,0 +1,91 @@
+package org.spektom.spider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measured operation. Every measured thread calls {@link #run(int)} in a loop for the
+ * duration of an iteration, and the score is the number of operations per second
+ * summed over all threads, see {@link BenchmarkRunner}.
+ * <p>
+ * Results of the operation must be stored in a field (or returned through
+ * {@link #consume(long)}), so that JIT compiler can't drop the work.
+ */
+public abstract class Benchmark {
+
+	private String name;
+	private int threads;
+	private Map<String, String> params;
+	private long sink;
+
+	/**
+	 * @param name Name the results are reported under
+	 * @param threads Number of threads that run the operation concurrently
+	 */
+	public Benchmark(String name, int threads) {
+		this.name = name;
+		this.threads = threads;
+		params = new LinkedHashMap<String, String>();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return parameters of the benchmark, reported along with the results
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	protected void setParam(String name, Object value) {
+		params.put(name, String.valueOf(value));
+	}
+
+	/**
+	 * Prepares data once before all iterations
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Prepares state before every iteration, including warmup ones
+	 * @throws Exception
+	 */
+	public void setUpIteration() throws Exception {
+	}
+
+	/**
+	 * Releases data after all iterations, so that it doesn't stay in memory while
+	 * other benchmarks run
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {
+	}
+
+	/**
+	 * Runs operation once
+	 * @param thread Index of the calling thread
+	 * @return number of operations that were done, usually 1
+	 * @throws Exception
+	 */
+	public abstract int run(int thread) throws Exception;
+
+	/**
+	 * Keeps the value alive, so that computation of it isn't eliminated
+	 * @param value
+	 */
+	protected void consume(long value) {
+		sink += value;
+	}
+
+	long getSink() {
+		return sink;
+	}
+}
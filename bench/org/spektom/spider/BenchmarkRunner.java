@@ -0,0 +1,252 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Runs benchmarks of the hot paths, and writes results as JSON in the same layout as
+ * JMH does with <code>-rf json</code>, so that they can be compared between builds.
+ * <p>
+ * Usage: <code>java BenchmarkRunner [regex]</code>, where only benchmarks which names
+ * contain a match of the expression are run. System properties:
+ * <ul>
+ * <li>bench.warmup - number of warmup iterations (default: 3)</li>
+ * <li>bench.iterations - number of measured iterations (default: 5)</li>
+ * <li>bench.time - duration of every iteration in milliseconds (default: 1000)</li>
+ * <li>bench.output - file the JSON results are written to (default: bench-results.json)</li>
+ * <li>bench.corpus - directory with HTML pages that replace generated small pages</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+	private int warmupIterations;
+	private int iterations;
+	private long iterationTime;
+
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationTime) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationTime = iterationTime;
+	}
+
+	/**
+	 * @return all benchmarks of the project
+	 * @throws IOException if the pages corpus can't be read
+	 */
+	public static List<Benchmark> getBenchmarks() throws IOException {
+		String corpusDirectory = System.getProperty("bench.corpus");
+		PageCorpus corpus = corpusDirectory != null ? PageCorpus.load(new File(corpusDirectory)) : PageCorpus.generate();
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.TOKENIZER, "small", corpus.getSmallPages()));
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.ADAPTER, "small", corpus.getSmallPages()));
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.LEGACY, "small", corpus.getSmallPages()));
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.TOKENIZER, "large", corpus.getLargePages()));
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.ADAPTER, "large", corpus.getLargePages()));
+		benchmarks.add(new HTMLParserBenchmark(HTMLParserBenchmark.LEGACY, "large", corpus.getLargePages()));
+		benchmarks.add(new PageProcessorBenchmark("HTMLPageProcessor.process.small", corpus.getSmallPages()));
+		benchmarks.add(new PageProcessorBenchmark("HTMLPageProcessor.process.large", corpus.getLargePages()));
+		benchmarks.add(new ContentFingerprintBenchmark("ContentFingerprint.small", corpus.getSmallPages()));
+		benchmarks.add(new ContentFingerprintBenchmark("ContentFingerprint.large", corpus.getLargePages()));
+		benchmarks.add(new LinkResolutionBenchmark());
+		benchmarks.add(new LinkCanonicalizationBenchmark());
+		benchmarks.add(new FileMatcherBenchmark());
+		benchmarks.add(new URLFilterBenchmark());
+		benchmarks.add(new FrontierBenchmark(1, 1));
+		benchmarks.add(new FrontierBenchmark(4, 4));
+		benchmarks.add(new FrontierBenchmark(4, 4, true));
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.STRING, 10000000));
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.FINGERPRINT, 10000000));
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.FINGERPRINT_OFF_HEAP, 10000000));
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.BLOOM, 10000000));
+		// Fingerprints of 100M URLs take 2 GB, which only fits outside of the heap:
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.FINGERPRINT_OFF_HEAP, 100000000));
+		benchmarks.add(new SeenSetBenchmark(SeenSetBenchmark.BLOOM, 100000000));
+		benchmarks.add(new FetchModeBenchmark(FetchMode.BLOCKING, 500));
+		benchmarks.add(new FetchModeBenchmark(FetchMode.VIRTUAL, 500));
+		return benchmarks;
+	}
+
+	/**
+	 * Runs warmup and measured iterations of the benchmark
+	 * @param benchmark
+	 * @return operations per second of every measured iteration
+	 * @throws Exception
+	 */
+	public double[] run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; ++i) {
+				double score = runIteration(benchmark);
+				System.out.format("# Warmup iteration %d: %.3f ops/s\n", i + 1, score);
+			}
+			double[] scores = new double[iterations];
+			for (int i = 0; i < iterations; ++i) {
+				scores[i] = runIteration(benchmark);
+				System.out.format("Iteration %d: %.3f ops/s\n", i + 1, scores[i]);
+			}
+			return scores;
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private double runIteration(final Benchmark benchmark) throws Exception {
+		benchmark.setUpIteration();
+
+		final int threadsNumber = benchmark.getThreads();
+		final CyclicBarrier barrier = new CyclicBarrier(threadsNumber + 1);
+		final AtomicLong operations = new AtomicLong();
+		final Throwable[] error = new Throwable[1];
+		final long[] deadline = new long[1];
+		Thread[] threads = new Thread[threadsNumber];
+		for (int i = 0; i < threadsNumber; ++i) {
+			final int thread = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					long count = 0;
+					try {
+						barrier.await();
+						long end = deadline[0];
+						do {
+							// Reading the clock costs more than the cheapest operations:
+							for (int j = 0; j < 16; ++j) {
+								count += benchmark.run(thread);
+							}
+						} while (System.nanoTime() < end);
+					} catch (Throwable e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					}
+					operations.addAndGet(count);
+				}
+			}, "Benchmark #" + i);
+			threads[i].start();
+		}
+		long start = System.nanoTime();
+		deadline[0] = start + iterationTime * 1000000L;
+		barrier.await();
+		long end = 0;
+		for (int i = 0; i < threadsNumber; ++i) {
+			threads[i].join();
+			end = Math.max(end, System.nanoTime());
+		}
+		if (error[0] != null) {
+			throw new RuntimeException("Benchmark failed: " + benchmark.getName(), error[0]);
+		}
+		return operations.get() * 1e9 / (end - start);
+	}
+
+	/**
+	 * Appends result of the benchmark in JMH format
+	 */
+	private void appendResult(StringBuilder buf, Benchmark benchmark, double[] scores) {
+		double mean = 0;
+		for (int i = 0; i < scores.length; ++i) {
+			mean += scores[i];
+		}
+		mean /= scores.length;
+		double variance = 0;
+		for (int i = 0; i < scores.length; ++i) {
+			variance += (scores[i] - mean) * (scores[i] - mean);
+		}
+		double stdDev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+		buf.append("    {\n");
+		buf.append("        \"benchmark\" : \"").append(benchmark.getName()).append("\",\n");
+		buf.append("        \"mode\" : \"thrpt\",\n");
+		buf.append("        \"threads\" : ").append(benchmark.getThreads()).append(",\n");
+		buf.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+		buf.append("        \"warmupTime\" : \"").append(iterationTime).append(" ms\",\n");
+		buf.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+		buf.append("        \"measurementTime\" : \"").append(iterationTime).append(" ms\",\n");
+		if (!benchmark.getParams().isEmpty()) {
+			buf.append("        \"params\" : {\n");
+			Iterator<Map.Entry<String, String>> i = benchmark.getParams().entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<String, String> param = i.next();
+				buf.append("            \"").append(param.getKey()).append("\" : \"").append(param.getValue()).append('"');
+				buf.append(i.hasNext() ? ",\n" : "\n");
+			}
+			buf.append("        },\n");
+		}
+		buf.append("        \"primaryMetric\" : {\n");
+		buf.append("            \"score\" : ").append(mean).append(",\n");
+		buf.append("            \"scoreError\" : ").append(getError(stdDev, scores.length)).append(",\n");
+		buf.append("            \"scoreUnit\" : \"ops/s\",\n");
+		buf.append("            \"rawData\" : [\n                [\n");
+		for (int i = 0; i < scores.length; ++i) {
+			buf.append("                    ").append(scores[i]).append(i < scores.length - 1 ? ",\n" : "\n");
+		}
+		buf.append("                ]\n            ]\n        }\n    }");
+	}
+
+	/**
+	 * @return half-width of 99.9% confidence interval, like JMH reports
+	 */
+	private static double getError(double stdDev, int n) {
+		// Two-sided Student's t quantiles for 99.9% by degrees of freedom:
+		double[] t = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587 };
+		if (n < 2) {
+			return Double.NaN;
+		}
+		double quantile = n - 1 <= t.length ? t[n - 2] : 3.291;
+		return quantile * stdDev / Math.sqrt(n);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : "");
+		BenchmarkRunner runner = new BenchmarkRunner(Integer.getInteger("bench.warmup", 3), Integer.getInteger("bench.iterations", 5), Long.getLong("bench.time", 1000));
+		File output = new File(System.getProperty("bench.output", "bench-results.json"));
+
+		StringBuilder buf = new StringBuilder("[\n");
+		List<String> summary = new ArrayList<String>();
+		Iterator<Benchmark> i = getBenchmarks().iterator();
+		boolean first = true;
+		while (i.hasNext()) {
+			Benchmark benchmark = i.next();
+			if (!filter.matcher(benchmark.getName()).find()) {
+				continue;
+			}
+			System.out.format("# Benchmark: %s, threads: %d, params: %s\n", benchmark.getName(), benchmark.getThreads(), benchmark.getParams());
+			double[] scores = runner.run(benchmark);
+			if (!first) {
+				buf.append(",\n");
+			}
+			first = false;
+			runner.appendResult(buf, benchmark, scores);
+
+			double mean = 0;
+			for (int j = 0; j < scores.length; ++j) {
+				mean += scores[j] / scores.length;
+			}
+			summary.add(String.format("%-40s %3d %18.3f ops/s", benchmark.getName(), benchmark.getThreads(), mean));
+			System.out.println();
+		}
+		buf.append("\n]\n");
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8);
+		try {
+			writer.write(buf.toString());
+		} finally {
+			writer.close();
+		}
+		System.out.format("%-40s %3s %18s\n", "Benchmark", "Thr", "Score");
+		for (int j = 0; j < summary.size(); ++j) {
+			System.out.println(summary.get(j));
+		}
+		System.out.println("Results written to " + output);
+	}
+}
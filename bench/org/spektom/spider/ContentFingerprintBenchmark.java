@@ -0,0 +1,31 @@
+package org.spektom.spider;
+
+import java.util.List;
+
+/**
+ * Computes fingerprints of pages with {@link ContentFingerprint}, and checks them
+ * against {@link DuplicateIndex}, one page per operation
+ */
+public class ContentFingerprintBenchmark extends Benchmark {
+
+	private List<byte[]> pages;
+	private DuplicateIndex index;
+	private int next;
+
+	public ContentFingerprintBenchmark(String name, List<byte[]> pages) {
+		super(name, 1);
+		this.pages = pages;
+		setParam("pages", pages.size());
+	}
+
+	public void setUp() throws Exception {
+		index = new DuplicateIndex();
+	}
+
+	public int run(int thread) throws Exception {
+		byte[] page = pages.get(next);
+		next = (next + 1) % pages.size();
+		consume(index.add(ContentFingerprint.compute(page, 0, page.length)).ordinal());
+		return 1;
+	}
+}
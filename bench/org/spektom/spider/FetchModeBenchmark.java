@@ -0,0 +1,152 @@
+package org.spektom.spider;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Crawls a local server that answers every page after a delay, with as many
+ * concurrent downloads as pages, so that the crawl is bound by the number of
+ * downloads in flight. Blocking mode runs a platform thread per download, and virtual
+ * mode a virtual thread per download. Every operation is one retrieved page, and the
+ * peak resident set size of the process during the benchmark is reported as a
+ * parameter. RSS is read from <code>/proc/self/status</code>, so it's only reported on
+ * Linux, and it's comparable between modes only when each runs in its own JVM.
+ */
+public class FetchModeBenchmark extends Benchmark {
+
+	private static final int DELAY = 50;
+
+	private FetchMode fetchMode;
+	private int concurrency;
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private Thread rssSampler;
+	private volatile long peakRSS;
+
+	public FetchModeBenchmark(FetchMode fetchMode, int concurrency) {
+		super("Spider.crawl." + fetchMode.name().toLowerCase() + "." + concurrency, 1);
+		this.fetchMode = fetchMode;
+		this.concurrency = concurrency;
+		setParam("mode", fetchMode);
+		setParam("concurrency", concurrency);
+		setParam("delay", DELAY + " ms");
+	}
+
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), concurrency);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					String path = exchange.getRequestURI().getPath();
+					StringBuilder page = new StringBuilder("<html><body>");
+					if (path.equals("/")) {
+						for (int i = 0; i < concurrency; ++i) {
+							page.append("<a href=\"/p").append(i).append("\">page</a>");
+						}
+					} else {
+						try {
+							Thread.sleep(DELAY);
+						} catch (InterruptedException e) {
+						}
+						page.append(path);
+					}
+					byte[] body = page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/html");
+					exchange.sendResponseHeaders(path.equals("/robots.txt") ? 404 : 200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		final long baseline = readRSS();
+		peakRSS = baseline;
+		if (baseline > 0) {
+			rssSampler = new Thread("RSS sampler") {
+				public void run() {
+					while (!isInterrupted()) {
+						peakRSS = Math.max(peakRSS, readRSS());
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+			};
+			rssSampler.setDaemon(true);
+			rssSampler.start();
+			setParam("baselineRSS", baseline / 1024 + " MB");
+		}
+	}
+
+	public void tearDown() throws Exception {
+		if (rssSampler != null) {
+			rssSampler.interrupt();
+			rssSampler.join();
+			setParam("peakRSS", peakRSS / 1024 + " MB");
+			System.out.format("# Peak RSS: %d MB\n", peakRSS / 1024);
+		}
+		server.stop(0);
+		serverExecutor.shutdown();
+	}
+
+	public int run(int thread) throws Exception {
+		final int[] pages = new int[1];
+		Spider spider = new Spider(new URL("http://localhost:" + server.getAddress().getPort() + "/"));
+		spider.setFetchMode(fetchMode);
+		// Blocking mode needs a thread per download, virtual mode a connection per download:
+		spider.setThreadsNumber(fetchMode == FetchMode.BLOCKING ? concurrency : 4);
+		spider.setMaxConnections(concurrency);
+		spider.setHandler(new ISpiderHandler() {
+			public void handleContent(URL url, long lastModified, byte[] content) {
+				synchronized (pages) {
+					++pages[0];
+				}
+			}
+		});
+		spider.run();
+		synchronized (pages) {
+			return pages[0];
+		}
+	}
+
+	/**
+	 * @return resident set size of the process in kilobytes, or 0 if it's unknown
+	 */
+	private static long readRSS() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,42 @@
+package org.spektom.spider;
+
+/**
+ * Matches URLs against typical Glob patterns with {@link FileMatcher#matches(String, String)},
+ * one match per operation
+ */
+public class FileMatcherBenchmark extends Benchmark {
+
+	static final String[] PATTERNS = {
+		"http://www.example.com/*",
+		"*.html",
+		"http://*.example.org/path/*",
+		"*/archive/200[0-9]/*",
+		"*?id=*",
+		"*.jp?g",
+	};
+
+	static final String[] URLS = {
+		"http://www.example.com/articles/123.html",
+		"http://www.example.com/section/4/",
+		"http://www.example.com/news/2010/archive/2009/77/",
+		"http://www.example.com/news/2010/05/item.php?id=42&sort=date",
+		"http://other7.example.org/path/to/page-7",
+		"http://www.example.com/images/photo-5.jpg",
+		"http://cdn.example.net/lib.js",
+	};
+
+	private int next;
+
+	public FileMatcherBenchmark() {
+		super("FileMatcher.matches", 1);
+		setParam("patterns", PATTERNS.length);
+		setParam("urls", URLS.length);
+	}
+
+	public int run(int thread) {
+		int i = next;
+		next = (next + 1) % (PATTERNS.length * URLS.length);
+		consume(FileMatcher.matches(PATTERNS[i % PATTERNS.length], URLS[i / PATTERNS.length]) ? 1 : 0);
+		return 1;
+	}
+}
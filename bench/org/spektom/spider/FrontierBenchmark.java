@@ -0,0 +1,92 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+
+/**
+ * Producer threads put new URLs of many hosts into the queue through
+ * {@link Spider#queueURL(URL)}, which filters them and checks the seen set, while
+ * consumer threads take them from the frontier. The score is the number of URLs taken
+ * per second. Producers pause while the queue holds too many URLs, so that it
+ * doesn't grow without a bound. With journal, every queued URL is also appended to
+ * a {@link CrawlJournal} in a temporary directory, which shows its overhead.
+ */
+public class FrontierBenchmark extends Benchmark {
+
+	private static final int MAX_QUEUED = 10000;
+	private static final int HOSTS = 64;
+
+	private int producers;
+	private boolean journal;
+	private File journalDirectory;
+	private Spider spider;
+	private Frontier frontier;
+	private long[] counters;
+
+	public FrontierBenchmark(int producers, int consumers) {
+		this(producers, consumers, false);
+	}
+
+	public FrontierBenchmark(int producers, int consumers, boolean journal) {
+		super("Spider.queueURL+Frontier.poll." + producers + "x" + consumers + (journal ? ".journal" : ""), producers + consumers);
+		this.producers = producers;
+		this.journal = journal;
+		setParam("producers", producers);
+		setParam("consumers", consumers);
+		setParam("hosts", HOSTS);
+		setParam("journal", journal);
+	}
+
+	public void setUpIteration() throws Exception {
+		if (frontier != null) {
+			frontier.close();
+		}
+		if (spider != null && spider.getJournal() != null) {
+			spider.getJournal().close();
+			spider.getJournal().clear();
+		}
+		// New spider every iteration, so that the seen set starts empty:
+		spider = new Spider(new URL("http://host0.example.com/"));
+		spider.setFollowOtherDomains(true);
+		// Hosts don't exist, and only the queue is measured, not lookups of them:
+		spider.setPrefetch(false);
+		spider.setFollowRobots(false);
+		spider.getURLFilter().exclude("*.js");
+		if (journal) {
+			if (journalDirectory == null) {
+				journalDirectory = Files.createTempDirectory("spider-journal").toFile();
+				journalDirectory.deleteOnExit();
+			}
+			CrawlJournal crawlJournal = new CrawlJournal(journalDirectory);
+			crawlJournal.open();
+			spider.setJournal(crawlJournal);
+		}
+		frontier = spider.getFrontier();
+		// Frontier closes once no URLs are outstanding, which happens whenever consumers
+		// catch up with producers, so one URL is taken and never reported done:
+		frontier.add(new URL("http://sentinel.example.com/"));
+		frontier.poll();
+		// Counters are far apart, so that producers don't share cache lines:
+		counters = new long[producers * 16];
+	}
+
+	public int run(int thread) throws Exception {
+		if (thread < producers) {
+			if (frontier.size() >= MAX_QUEUED) {
+				Thread.yield();
+				return 0;
+			}
+			long n = counters[thread * 16]++;
+			spider.queueURL(new URL("http", "host" + (n % HOSTS) + ".example.com", "/p" + thread + "/page-" + n + ".html"));
+			return 0;
+		}
+		QueuedURL url = frontier.poll();
+		if (url == null) {
+			Thread.yield();
+			return 0;
+		}
+		frontier.done(url.getURL());
+		return 1;
+	}
+}
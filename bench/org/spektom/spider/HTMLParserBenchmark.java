@@ -0,0 +1,105 @@
+package org.spektom.spider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses pages with one of the parsers, one page per operation: {@link HTMLTokenizer}
+ * directly, {@link HTMLParser} adapter which builds attribute maps over it, or
+ * {@link LegacyHTMLParser} which reads the page one byte at a time. Once all iterations
+ * are done, the corpus is parsed once more in the calling thread, and its throughput
+ * in MB/s and bytes allocated per byte of input are reported as parameters. Allocated
+ * bytes are counted by {@link com.sun.management.ThreadMXBean}, so they're only
+ * reported on JVMs that support it.
+ */
+public class HTMLParserBenchmark extends Benchmark {
+
+	public static final String TOKENIZER = "tokenizer";
+	public static final String ADAPTER = "adapter";
+	public static final String LEGACY = "legacy";
+
+	private static final long MEASURE_TIME = 500;
+
+	private String type;
+	private List<byte[]> pages;
+	private long size;
+	private HTMLTokenizer tokenizer;
+	private HTMLParser parser;
+	private LegacyHTMLParser legacyParser;
+	private IHTMLTagHandler tagHandler;
+	private IHTMLParserCallback parserCallback;
+	private int next;
+
+	public HTMLParserBenchmark(String type, String corpus, List<byte[]> pages) {
+		super("HTMLParser." + type + "." + corpus, 1);
+		this.type = type;
+		this.pages = pages;
+		tokenizer = new HTMLTokenizer();
+		parser = new HTMLParser();
+		legacyParser = new LegacyHTMLParser();
+		tagHandler = new IHTMLTagHandler() {
+			public void handleTag(HTMLTag tag) {
+				consume(tag.getAttributesNumber());
+			}
+		};
+		parserCallback = new IHTMLParserCallback() {
+			public void handleTag(String tag, Map<String, String> attributes) {
+				consume(attributes.size());
+			}
+		};
+		for (int i = 0; i < pages.size(); ++i) {
+			size += pages.get(i).length;
+		}
+		setParam("parser", type);
+		setParam("pages", pages.size());
+		setParam("averageSize", size / pages.size());
+	}
+
+	public void tearDown() throws IOException {
+		com.sun.management.ThreadMXBean threadBean = null;
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		}
+		long allocatedBefore = threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : -1;
+		long start = System.nanoTime();
+		long end;
+		long parsed = 0;
+		do {
+			for (int i = 0; i < pages.size(); ++i) {
+				parse(pages.get(i));
+			}
+			parsed += size;
+			end = System.nanoTime();
+		} while (end - start < MEASURE_TIME * 1000000L);
+
+		double bytesPerSecond = parsed * 1e9 / (end - start);
+		setParam("MBPerSecond", String.format("%.1f", bytesPerSecond / (1 << 20)));
+		System.out.format("# Parsed %d MB: %.1f MB/s", parsed >> 20, bytesPerSecond / (1 << 20));
+		if (allocatedBefore >= 0) {
+			double allocatedPerByte = (double) (threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore) / parsed;
+			setParam("allocatedPerByte", String.format("%.2f", allocatedPerByte));
+			System.out.format(", %.2f bytes allocated per input byte", allocatedPerByte);
+		}
+		System.out.println();
+	}
+
+	public int run(int thread) throws IOException {
+		byte[] page = pages.get(next);
+		next = (next + 1) % pages.size();
+		parse(page);
+		return 1;
+	}
+
+	private void parse(byte[] page) throws IOException {
+		if (TOKENIZER.equals(type)) {
+			tokenizer.tokenize(page, tagHandler);
+		} else if (ADAPTER.equals(type)) {
+			parser.parse(page, parserCallback);
+		} else {
+			legacyParser.parse(new ByteArrayInputStream(page), parserCallback);
+		}
+	}
+}
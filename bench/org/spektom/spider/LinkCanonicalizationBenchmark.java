@@ -0,0 +1,38 @@
+package org.spektom.spider;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resolves links the way {@link HTMLPageProcessor} does, with
+ * {@link URLCanonicalizer}, one link per operation. Links are given as byte views of
+ * the page, like the parser passes them.
+ */
+public class LinkCanonicalizationBenchmark extends Benchmark {
+
+	private URLCanonicalizer canonicalizer;
+	private CanonicalURL base;
+	private ByteSequence[] hrefs;
+	private int next;
+
+	public LinkCanonicalizationBenchmark() {
+		super("URLCanonicalizer.canonicalize", 1);
+		setParam("links", LinkResolutionBenchmark.HREFS.length);
+	}
+
+	public void setUp() throws Exception {
+		canonicalizer = new URLCanonicalizer();
+		base = canonicalizer.canonicalize("http://www.example.com/news/2010/05/article.html");
+		hrefs = new ByteSequence[LinkResolutionBenchmark.HREFS.length];
+		for (int i = 0; i < hrefs.length; ++i) {
+			byte[] bytes = LinkResolutionBenchmark.HREFS[i].getBytes(StandardCharsets.ISO_8859_1);
+			hrefs[i] = new ByteSequence(bytes, 0, bytes.length);
+		}
+	}
+
+	public int run(int thread) throws Exception {
+		CanonicalURL link = canonicalizer.canonicalize(base, hrefs[next]);
+		next = (next + 1) % hrefs.length;
+		consume(link.toString().length());
+		return 1;
+	}
+}
@@ -0,0 +1,44 @@
+package org.spektom.spider;
+
+import java.net.URL;
+
+/**
+ * Resolves links the way {@link HTMLPageProcessor} does, with
+ * <code>new URL(base, href)</code>, one link per operation
+ */
+public class LinkResolutionBenchmark extends Benchmark {
+
+	static final String[] HREFS = {
+		"http://www.example.com/articles/123.html",
+		"/section/4/",
+		"../archive/2009/77/",
+		"item.php?id=42&sort=date",
+		"page-2.html",
+		"./images/photo.jpg",
+		"http://other7.example.org/path/to/page-7",
+		"?page=3",
+		"//cdn.example.net/lib.js",
+		"../../index.html",
+		"/tags/crawler",
+		"news/2010/06/",
+	};
+
+	private URL base;
+	private int next;
+
+	public LinkResolutionBenchmark() {
+		super("URL.resolve", 1);
+		setParam("links", HREFS.length);
+	}
+
+	public void setUp() throws Exception {
+		base = new URL("http://www.example.com/news/2010/05/article.html");
+	}
+
+	public int run(int thread) throws Exception {
+		URL link = new URL(base, HREFS[next]);
+		next = (next + 1) % HREFS.length;
+		consume(link.getFile().length());
+		return 1;
+	}
+}
@@ -0,0 +1,171 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Pages the parsing benchmarks run over. By default pages are generated, so that
+ * results are reproducible: they have the usual mix of head elements, scripts,
+ * comments, nested markup and links of every kind.
+ */
+public class PageCorpus {
+
+	private static final String[] WORDS = { "crawler", "page", "the", "of", "index", "search", "with", "links",
+		"document", "and", "server", "request", "a", "content", "to", "archive", "news", "in", "site", "map" };
+
+	private List<byte[]> smallPages;
+	private List<byte[]> largePages;
+
+	private PageCorpus(List<byte[]> smallPages, List<byte[]> largePages) {
+		this.smallPages = smallPages;
+		this.largePages = largePages;
+	}
+
+	/**
+	 * @return pages of tens of kilobytes, the typical size
+	 */
+	public List<byte[]> getSmallPages() {
+		return smallPages;
+	}
+
+	/**
+	 * @return pages of several megabytes
+	 */
+	public List<byte[]> getLargePages() {
+		return largePages;
+	}
+
+	/**
+	 * Generates 32 small pages and 2 large ones
+	 */
+	public static PageCorpus generate() {
+		Random random = new Random(42);
+		List<byte[]> smallPages = new ArrayList<byte[]>();
+		for (int i = 0; i < 32; ++i) {
+			smallPages.add(generatePage(random, 20 * 1024 + random.nextInt(40 * 1024)));
+		}
+		return new PageCorpus(smallPages, generateLargePages(random));
+	}
+
+	/**
+	 * Loads HTML files from the directory as small pages, large pages are generated
+	 * unless there are files larger than 1 MB
+	 * @param directory
+	 * @throws IOException
+	 */
+	public static PageCorpus load(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Can't read corpus directory: " + directory);
+		}
+		Arrays.sort(files);
+		List<byte[]> smallPages = new ArrayList<byte[]>();
+		List<byte[]> largePages = new ArrayList<byte[]>();
+		for (int i = 0; i < files.length; ++i) {
+			String name = files[i].getName().toLowerCase();
+			if (!files[i].isFile() || !(name.endsWith(".html") || name.endsWith(".htm"))) {
+				continue;
+			}
+			byte[] page = Files.readAllBytes(files[i].toPath());
+			(page.length > 1024 * 1024 ? largePages : smallPages).add(page);
+		}
+		if (smallPages.isEmpty()) {
+			throw new IOException("No HTML pages in corpus directory: " + directory);
+		}
+		if (largePages.isEmpty()) {
+			largePages = generateLargePages(new Random(42));
+		}
+		return new PageCorpus(smallPages, largePages);
+	}
+
+	private static List<byte[]> generateLargePages(Random random) {
+		List<byte[]> largePages = new ArrayList<byte[]>();
+		largePages.add(generatePage(random, 2 * 1024 * 1024));
+		largePages.add(generatePage(random, 6 * 1024 * 1024));
+		return largePages;
+	}
+
+	private static byte[] generatePage(Random random, int size) {
+		StringBuilder buf = new StringBuilder(size + 4096);
+		buf.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n");
+		buf.append("<meta charset=\"utf-8\">\n<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">\n");
+		buf.append("<meta name=\"robots\" content=\"index, follow\">\n<title>");
+		appendText(buf, random, 6);
+		buf.append("</title>\n<link rel=\"stylesheet\" href=\"/static/css/main.css?v=3\">\n");
+		buf.append("<link rel=\"canonical\" href=\"http://www.example.com/articles/page.html\">\n");
+		buf.append("<script type=\"text/javascript\">\nvar config = { base: '/api/', retries: 3 };\n");
+		buf.append("if (a < b && c > d) { document.write('<a href=\"/not-a-link\">x</a>'); }\n</script>\n");
+		buf.append("<style>\nbody > div.content { margin: 0 auto; }\n</style>\n</head>\n<body class=\"article\">\n");
+		buf.append("<!-- navigation <a href=\"/commented\"> -->\n<ul id=\"nav\">\n");
+		for (int i = 0; i < 12; ++i) {
+			buf.append("<li><a href=\"/section/").append(i).append("/\" class=\"nav-item\">");
+			appendText(buf, random, 2);
+			buf.append("</a></li>\n");
+		}
+		buf.append("</ul>\n");
+
+		int section = 0;
+		while (buf.length() < size) {
+			buf.append("<div class=\"section\" id=\"s").append(section++).append("\">\n<h2>");
+			appendText(buf, random, 4);
+			buf.append("</h2>\n");
+			for (int p = 0; p < 4; ++p) {
+				buf.append("<p>");
+				int sentences = 2 + random.nextInt(4);
+				for (int s = 0; s < sentences; ++s) {
+					appendText(buf, random, 8 + random.nextInt(12));
+					buf.append(". ");
+					appendLink(buf, random);
+					buf.append(" &amp; ");
+				}
+				buf.append("</p>\n");
+			}
+			buf.append("<img src=\"/images/photo-").append(random.nextInt(1000)).append(".jpg\" alt=\"");
+			appendText(buf, random, 3);
+			buf.append("\" width=640 height=480>\n</div>\n");
+		}
+		buf.append("<div id=\"footer\">&copy; Example <a href='mailto:info@example.com'>contact</a></div>\n</body>\n</html>\n");
+		return buf.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void appendLink(StringBuilder buf, Random random) {
+		int n = random.nextInt(1000);
+		switch (random.nextInt(6)) {
+			case 0:
+				buf.append("<a href=\"http://www.example.com/articles/").append(n).append(".html\">");
+				break;
+			case 1:
+				buf.append("<a href=\"../archive/2009/").append(n).append("/\" title=\"Archive\">");
+				break;
+			case 2:
+				buf.append("<a href=\"item.php?id=").append(n).append("&amp;sort=date#comments\">");
+				break;
+			case 3:
+				buf.append("<A HREF='/tags/").append(WORDS[n % WORDS.length]).append("' rel=nofollow>");
+				break;
+			case 4:
+				buf.append("<a href=\"http://other").append(n % 50).append(".example.org/path/to/page-").append(n).append("\">");
+				break;
+			default:
+				buf.append("<a class=\"more\" href=\"#top\">");
+				break;
+		}
+		appendText(buf, random, 2);
+		buf.append("</a>");
+	}
+
+	private static void appendText(StringBuilder buf, Random random, int words) {
+		for (int i = 0; i < words; ++i) {
+			if (i > 0) {
+				buf.append(' ');
+			}
+			buf.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+	}
+}
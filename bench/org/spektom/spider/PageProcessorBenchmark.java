@@ -0,0 +1,34 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Processes pages with {@link HTMLPageProcessor}, which finds tags and resolves links
+ * against the page URL, one page per operation
+ */
+public class PageProcessorBenchmark extends Benchmark {
+
+	private List<byte[]> pages;
+	private URL url;
+	private int next;
+
+	public PageProcessorBenchmark(String name, List<byte[]> pages) {
+		super(name, 1);
+		this.pages = pages;
+		setParam("pages", pages.size());
+	}
+
+	public void setUp() throws Exception {
+		url = new URL("http://www.example.com/news/2010/05/article.html");
+	}
+
+	public int run(int thread) throws Exception {
+		byte[] page = pages.get(next);
+		next = (next + 1) % pages.size();
+		HTMLPageProcessor processor = new HTMLPageProcessor(url);
+		processor.process(page);
+		consume(processor.getLinks().size());
+		return 1;
+	}
+}
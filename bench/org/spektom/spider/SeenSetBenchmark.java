@@ -0,0 +1,103 @@
+package org.spektom.spider;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Fills a seen set with the given number of URLs, and reports its memory per URL and
+ * the fill rate as parameters. Every measured operation then checks one URL that was
+ * added with {@link IURLSeenSet#add(String)}, and one that wasn't with
+ * {@link IURLSeenSet#contains(String)}, so that the set doesn't grow while it's
+ * measured.
+ */
+public class SeenSetBenchmark extends Benchmark {
+
+	public static final String FINGERPRINT = "fingerprint";
+	public static final String FINGERPRINT_OFF_HEAP = "fingerprint.offHeap";
+	public static final String BLOOM = "bloom";
+	public static final String STRING = "string";
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private String type;
+	private long size;
+	private IURLSeenSet seenSet;
+	private long[] counters;
+
+	public SeenSetBenchmark(String type, long size) {
+		super("SeenSet." + type + "." + getSizeName(size), 1);
+		this.type = type;
+		this.size = size;
+		setParam("type", type);
+		setParam("urls", size);
+	}
+
+	public void setUp() throws InterruptedException {
+		long before = getUsedMemory();
+		if (FINGERPRINT.equals(type)) {
+			seenSet = new FingerprintURLSeenSet(size, false);
+		} else if (FINGERPRINT_OFF_HEAP.equals(type)) {
+			seenSet = new FingerprintURLSeenSet(size, true);
+		} else if (BLOOM.equals(type)) {
+			seenSet = new BloomURLSeenSet(size, FALSE_POSITIVE_RATE);
+		} else {
+			seenSet = new StringURLSeenSet();
+		}
+		long start = System.nanoTime();
+		for (long i = 0; i < size; ++i) {
+			seenSet.add(getURL(i));
+		}
+		double fillRate = size * 1e9 / (System.nanoTime() - start);
+		double bytesPerURL = (double) (getUsedMemory() - before) / size;
+		setParam("bytesPerURL", String.format("%.1f", bytesPerURL));
+		setParam("fillRate", String.format("%.0f", fillRate));
+		System.out.format("# Filled %d URLs: %.1f bytes per URL, %.0f URLs/s\n", size, bytesPerURL, fillRate);
+		counters = new long[getThreads() * 16];
+	}
+
+	public void tearDown() {
+		seenSet = null;
+	}
+
+	public int run(int thread) {
+		long n = counters[thread * 16]++;
+		// Spread the lookups over the whole set, rather than its most recent part:
+		long seen = URLFingerprint.mix(n) & Long.MAX_VALUE;
+		consume(seenSet.add(getURL(seen % size)) ? 1 : 0);
+		consume(seenSet.contains(getURL(size + seen % size)) ? 1 : 0);
+		return 2;
+	}
+
+	private static String getURL(long n) {
+		return "http://host" + (n % 1000) + ".example.com/dir" + (n % 97) + "/page-" + n + ".html";
+	}
+
+	private static String getSizeName(long size) {
+		return size % 1000000 == 0 ? (size / 1000000) + "M" : String.valueOf(size);
+	}
+
+	/**
+	 * @return bytes used by the Java heap after garbage collection, and by direct buffers
+	 * @throws InterruptedException
+	 */
+	private static long getUsedMemory() throws InterruptedException {
+		// Direct buffers are freed some time after they're collected, so wait until
+		// the usage stops dropping:
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 20; ++i) {
+			System.gc();
+			Thread.sleep(50);
+			long current = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			List<BufferPoolMXBean> pools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+			for (int j = 0; j < pools.size(); ++j) {
+				current += pools.get(j).getMemoryUsed();
+			}
+			if (current >= used) {
+				break;
+			}
+			used = current;
+		}
+		return used;
+	}
+}
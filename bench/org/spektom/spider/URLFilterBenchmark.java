@@ -0,0 +1,31 @@
+package org.spektom.spider;
+
+/**
+ * Checks URLs against {@link URLFilter} with includes and excludes built from the same
+ * patterns as {@link FileMatcherBenchmark}, one URL per operation
+ */
+public class URLFilterBenchmark extends Benchmark {
+
+	private URLFilter filter;
+	private int next;
+
+	public URLFilterBenchmark() {
+		super("URLFilter.accepts", 1);
+		setParam("rules", FileMatcherBenchmark.PATTERNS.length + 1);
+	}
+
+	public void setUp() {
+		filter = new URLFilter();
+		for (int i = 0; i < FileMatcherBenchmark.PATTERNS.length; ++i) {
+			filter.include(FileMatcherBenchmark.PATTERNS[i]);
+		}
+		filter.exclude("*.js");
+	}
+
+	public int run(int thread) {
+		String url = FileMatcherBenchmark.URLS[next];
+		next = (next + 1) % FileMatcherBenchmark.URLS.length;
+		consume(filter.accepts(url) ? 1 : 0);
+		return 1;
+	}
+}
@@ -0,0 +1,22 @@
+package org.spektom.spider;
+
+/**
+ * Why retrieval of a response body was cut off, see {@link HTMLPageProcessor#getAbortReason()}
+ */
+public enum AbortReason {
+
+	/**
+	 * Contents are longer than the limit
+	 */
+	SIZE,
+
+	/**
+	 * Contents weren't received within the time limit
+	 */
+	TIME,
+
+	/**
+	 * Bytes for the contents weren't freed by other downloads in time
+	 */
+	BUDGET
+}
@@ -0,0 +1,481 @@
+package org.spektom.spider;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Retrieves single page using non-blocking HTTP client. Redirects, content type
+ * and response codes are treated the same way as {@link java.net.HttpURLConnection}
+ * does in the blocking mode.
+ */
+abstract class AsyncRequest {
+
+	private Spider spider;
+	private HttpClient httpClient;
+	private QueuedURL page;
+	private URL url;
+	private Executor executor;
+	private int redirects;
+	// Metadata from the previous crawl, for sending conditional request:
+	private FetchMetadata metadata;
+	// Time when the current request was sent:
+	private long sent;
+
+	/**
+	 * @param spider Spider that has queued the URL
+	 * @param httpClient Client used for sending requests
+	 * @param page Queued URL of the page
+	 * @param executor Executor that processes received pages
+	 */
+	public AsyncRequest(Spider spider, HttpClient httpClient, QueuedURL page, Executor executor) {
+		this.spider = spider;
+		this.httpClient = httpClient;
+		this.page = page;
+		this.url = page.getURL();
+		this.executor = executor;
+	}
+
+	/**
+	 * Sends request without waiting for response. {@link #completed()} is called
+	 * once the page is processed or request has failed.
+	 */
+	public void send() {
+		metadata = spider.getFetchMetadata(url);
+		send(url);
+	}
+
+	/**
+	 * Called exactly once, when there's nothing left to do with this request
+	 */
+	protected abstract void completed();
+
+	/**
+	 * Called for every received response, including redirects
+	 * @param response
+	 */
+	protected void responseReceived(HttpResponse<?> response) {
+	}
+
+	private void send(final URL location) {
+		HttpRequest request;
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(HttpConnectionPool.toURI(location)).GET();
+			if (spider.getTimeout() > 0) {
+				// Client has connect timeout only, this one limits waiting for the response:
+				builder.timeout(Duration.ofMillis(spider.getTimeout()));
+			}
+			if (spider.getUserAgent() != null) {
+				builder.header("User-Agent", spider.getUserAgent());
+			}
+			if (spider.getAcceptEncoding() != null) {
+				builder.header("Accept-Encoding", spider.getAcceptEncoding());
+			}
+			if (metadata != null) {
+				if (metadata.getLastModified() != 0) {
+					builder.header("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(metadata.getLastModified()).atZone(ZoneOffset.UTC)));
+				}
+				if (metadata.getETag() != null) {
+					builder.header("If-None-Match", metadata.getETag());
+				}
+			}
+			request = builder.build();
+		} catch (URISyntaxException e) {
+			System.err.println("Illegal URL: " + location);
+			completed();
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Illegal URL: " + location);
+			completed();
+			return;
+		}
+
+		spider.getMetrics().requestSent(location.getHost());
+		sent = System.nanoTime();
+		httpClient.sendAsync(request, new PageBodyHandler(location)).whenCompleteAsync(new BiConsumer<HttpResponse<HTMLPageProcessor>, Throwable>() {
+			public void accept(HttpResponse<HTMLPageProcessor> response, Throwable error) {
+				handleResponse(location, response, error);
+			}
+		}, executor);
+	}
+
+	private void handleResponse(URL location, HttpResponse<HTMLPageProcessor> response, Throwable error) {
+		boolean redirected = false;
+		try {
+			if (error != null) {
+				if (error instanceof CompletionException && error.getCause() != null) {
+					error = error.getCause();
+				}
+				spider.getMetrics().requestFailed(location.getHost());
+				spider.responseReceived(location, 0, true);
+				error.printStackTrace();
+				return;
+			}
+
+			responseReceived(response);
+			int status = response.statusCode();
+			URL redirectURL = getRedirectURL(location, status, response.headers());
+			if (redirectURL != null) {
+				++redirects;
+				send(redirectURL);
+				redirected = true;
+				return;
+			}
+			if (status == 304 && metadata != null) {
+				spider.pageNotModified(page);
+				return;
+			}
+			if (status >= 400) {
+				spider.getMetrics().requestFailed(location.getHost());
+			}
+			if (status == 404 || status == 410) {
+				if (spider.isVerbose()) {
+					System.out.println("Resource doesn't exist: " + url);
+				}
+				return;
+			}
+			if (status >= 400) {
+				System.err.format("Server returned HTTP response code: %d for URL: %s\n", status, location);
+				return;
+			}
+			if (response.body() == null) {
+				// Not an HTML page, the body was discarded
+				return;
+			}
+
+			// The page is already parsed while its body was received
+			if (response.body().isAborted()) {
+				spider.pageAborted(page, response.body());
+			} else {
+				spider.pageProcessed(page, getLastModified(response), response.headers().firstValue("ETag").orElse(null), response.body());
+			}
+		} finally {
+			if (response != null && response.body() != null) {
+				response.body().release();
+			}
+			if (!redirected) {
+				completed();
+			}
+		}
+	}
+
+	/**
+	 * Returns URL the request must be redirected to, unless it was redirected too many
+	 * times already
+	 */
+	private URL getRedirectURL(URL location, int status, HttpHeaders headers) {
+		if (redirects >= Spider.MAX_REDIRECTS) {
+			return null;
+		}
+		return Spider.getRedirectURL(location, status, headers.firstValue("Location").orElse(null));
+	}
+
+	private static long getLastModified(HttpResponse<?> response) {
+		return PooledResponse.parseDate(response.headers().firstValue("Last-Modified").orElse(null));
+	}
+
+	/**
+	 * Decides by the response headers whether the body must be read at all
+	 */
+	class PageBodyHandler implements BodyHandler<HTMLPageProcessor> {
+
+		private URL location;
+
+		public PageBodyHandler(URL location) {
+			this.location = location;
+		}
+
+		public BodySubscriber<HTMLPageProcessor> apply(ResponseInfo responseInfo) {
+			long latency = System.nanoTime() - sent;
+			spider.getMetrics().record(CrawlStage.FIRST_BYTE, latency);
+			spider.responseReceived(location, latency, Spider.isOverloaded(responseInfo.statusCode()));
+			if (getRedirectURL(location, responseInfo.statusCode(), responseInfo.headers()) != null || responseInfo.statusCode() == 304) {
+				return discard(responseInfo);
+			}
+			String contentType = responseInfo.headers().firstValue("Content-Type").orElse(null);
+			if (!spider.isHTML(location, contentType) || responseInfo.statusCode() >= 400) {
+				return discard(responseInfo);
+			}
+			String contentEncoding = responseInfo.headers().firstValue("Content-Encoding").orElse(null);
+			if (!spider.isDecodable(location, contentEncoding)) {
+				return discard(responseInfo);
+			}
+			HTMLPageProcessor htmlPageProcessor = new HTMLPageProcessor(location);
+			try {
+				spider.prepare(htmlPageProcessor, page, contentEncoding);
+			} catch (IOException e) {
+				// cannot happen, the encoding is checked above
+				return discard(responseInfo);
+			}
+			// Subscriber makes the processor not wait for the budget, which would block
+			// the client thread:
+			PageBodySubscriber subscriber = new PageBodySubscriber(htmlPageProcessor, spider.getMetrics(), executor);
+			htmlPageProcessor.setExpectedLength(responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+			return subscriber;
+		}
+
+		/**
+		 * Like {@link PooledResponse#close()}, reads short unwanted body, so that the
+		 * connection can be reused, and closes the connection instead of reading long
+		 * body or body of unknown length
+		 */
+		private BodySubscriber<HTMLPageProcessor> discard(ResponseInfo responseInfo) {
+			long contentLength = responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1);
+			if (contentLength >= 0 && contentLength <= PooledResponse.MAX_DRAIN) {
+				return BodySubscribers.replacing(null);
+			}
+			return new CancellingSubscriber();
+		}
+	}
+
+	/**
+	 * Cancels subscription to the body before anything is received, which closes the
+	 * connection
+	 */
+	static class CancellingSubscriber implements BodySubscriber<HTMLPageProcessor> {
+
+		private CompletableFuture<HTMLPageProcessor> result = new CompletableFuture<HTMLPageProcessor>();
+
+		public CompletionStage<HTMLPageProcessor> getBody() {
+			return result;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.cancel();
+			result.complete(null);
+		}
+
+		public void onNext(List<ByteBuffer> chunks) {
+		}
+
+		public void onError(Throwable error) {
+			result.complete(null);
+		}
+
+		public void onComplete() {
+			result.complete(null);
+		}
+	}
+
+	/**
+	 * Passes body chunks to the page processor as soon as they are received. Chunks
+	 * are requested one batch at a time, and while the processor waits for the budget,
+	 * received chunks are kept, and no more are requested. When the processor cuts the
+	 * contents off, the subscription is cancelled, which closes the connection, and the
+	 * processor is the result anyway. Time limits are also checked by timers, in case
+	 * chunks or released bytes stop arriving. Signals may come from timers, the budget
+	 * and the client concurrently, so they are synchronized.
+	 */
+	static class PageBodySubscriber implements BodySubscriber<HTMLPageProcessor> {
+
+		private HTMLPageProcessor htmlPageProcessor;
+		private CompletableFuture<HTMLPageProcessor> result;
+		private Flow.Subscription subscription;
+		private CrawlMetrics metrics;
+		private long start;
+		// Chunks that weren't written completely yet:
+		private ArrayDeque<ByteBuffer> pending;
+		private boolean received;
+		private boolean waiting;
+		// Incremented on every wait for the budget, so that stale timers are ignored:
+		private long waits;
+		private boolean done;
+
+		/**
+		 * @param htmlPageProcessor
+		 * @param metrics
+		 * @param executor Executor that writes pending chunks once the budget has bytes
+		 */
+		public PageBodySubscriber(HTMLPageProcessor htmlPageProcessor, CrawlMetrics metrics, final Executor executor) {
+			this.htmlPageProcessor = htmlPageProcessor;
+			this.metrics = metrics;
+			result = new CompletableFuture<HTMLPageProcessor>();
+			pending = new ArrayDeque<ByteBuffer>();
+			start = System.nanoTime();
+			if (htmlPageProcessor.getBudget() != null) {
+				htmlPageProcessor.setBudgetWaiter(new Runnable() {
+					public void run() {
+						try {
+							executor.execute(new Runnable() {
+								public void run() {
+									budgetReleased();
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// The crawl is over
+						}
+					}
+				});
+			}
+		}
+
+		public CompletionStage<HTMLPageProcessor> getBody() {
+			return result;
+		}
+
+		public synchronized void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (htmlPageProcessor.isAborted()) {
+				// Content-Length is over the limit
+				aborted();
+				return;
+			}
+			long timeLeft = htmlPageProcessor.getTimeLeft();
+			if (timeLeft != Long.MAX_VALUE) {
+				CompletableFuture.delayedExecutor(Math.max(timeLeft, 0), TimeUnit.NANOSECONDS).execute(new Runnable() {
+					public void run() {
+						timeout(AbortReason.TIME, -1);
+					}
+				});
+			}
+			subscription.request(1);
+		}
+
+		public synchronized void onNext(List<ByteBuffer> chunks) {
+			if (done) {
+				return;
+			}
+			pending.addAll(chunks);
+			writePending();
+		}
+
+		public synchronized void onError(Throwable error) {
+			if (done) {
+				return;
+			}
+			done = true;
+			htmlPageProcessor.release();
+			result.completeExceptionally(error);
+		}
+
+		public synchronized void onComplete() {
+			if (done) {
+				return;
+			}
+			received = true;
+			if (!waiting) {
+				writePending();
+			}
+		}
+
+		private synchronized void budgetReleased() {
+			if (done || !waiting) {
+				return;
+			}
+			waiting = false;
+			writePending();
+		}
+
+		private synchronized void timeout(AbortReason reason, long wait) {
+			if (done || (wait >= 0 && (!waiting || wait != waits))) {
+				return;
+			}
+			htmlPageProcessor.abort(reason);
+			aborted();
+		}
+
+		/**
+		 * Writes pending chunks, and requests more or finishes the page once they are
+		 * written
+		 */
+		private void writePending() {
+			try {
+				while (!pending.isEmpty()) {
+					htmlPageProcessor.write(pending.peek());
+					if (htmlPageProcessor.isAborted()) {
+						aborted();
+						return;
+					}
+					if (htmlPageProcessor.isWaitingForBudget()) {
+						waiting = true;
+						final long wait = ++waits;
+						CompletableFuture.delayedExecutor(htmlPageProcessor.getBudget().getMaxWait(), TimeUnit.MILLISECONDS).execute(new Runnable() {
+							public void run() {
+								timeout(AbortReason.BUDGET, wait);
+							}
+						});
+						return;
+					}
+					pending.poll();
+				}
+				if (received) {
+					completed();
+				} else {
+					subscription.request(1);
+				}
+			} catch (IOException e) {
+				failed(e);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+
+		private void completed() {
+			done = true;
+			try {
+				htmlPageProcessor.finish();
+				metrics.record(CrawlStage.DOWNLOAD, System.nanoTime() - start - htmlPageProcessor.getParseTime());
+				metrics.record(CrawlStage.PARSE, htmlPageProcessor.getParseTime());
+				result.complete(htmlPageProcessor);
+			} catch (IOException e) {
+				htmlPageProcessor.release();
+				result.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				htmlPageProcessor.release();
+				result.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Stops receiving the body, and completes with contents received so far
+		 */
+		private void aborted() {
+			done = true;
+			pending.clear();
+			subscription.cancel();
+			try {
+				if (htmlPageProcessor.isKeepTruncated()) {
+					htmlPageProcessor.finish();
+				}
+				result.complete(htmlPageProcessor);
+			} catch (IOException e) {
+				htmlPageProcessor.release();
+				result.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				htmlPageProcessor.release();
+				result.completeExceptionally(e);
+			}
+		}
+
+		private void failed(Throwable error) {
+			done = true;
+			pending.clear();
+			subscription.cancel();
+			htmlPageProcessor.release();
+			result.completeExceptionally(error);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.spektom.spider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bloom filter of URLs. Takes only a few bits per URL, but with configured
+ * probability reports an unseen URL as seen, so that such URL is never retrieved.
+ * Bits are set using atomic operations, and lookups take no locks. Concurrent adds
+ * of the same URL are serialized by a lock chosen by its hash, so that only one of
+ * them reports the URL as new.
+ */
+public class BloomURLSeenSet implements IURLSeenSet {
+
+	private static final int LOCK_BITS = 6;
+
+	private AtomicLongArray bits;
+	private Lock[] locks;
+	private long bitsNumber;
+	private int hashesNumber;
+	private AtomicLong size;
+
+	/**
+	 * @param expectedSize Expected number of URLs
+	 * @param falsePositiveRate Probability of reporting an unseen URL as seen, when
+	 * the set contains expected number of URLs
+	 */
+	public BloomURLSeenSet(long expectedSize, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+		}
+		expectedSize = Math.max(expectedSize, 1);
+		// Optimal parameters, see: http://en.wikipedia.org/wiki/Bloom_filter#Optimal_number_of_hash_functions
+		double ln2 = Math.log(2);
+		bitsNumber = Math.max(64, (long) Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (ln2 * ln2)));
+		hashesNumber = Math.max(1, (int) Math.round((double) bitsNumber / expectedSize * ln2));
+		bits = new AtomicLongArray((int) Math.min((bitsNumber + 63) / 64, Integer.MAX_VALUE - 8));
+		bitsNumber = bits.length() * 64L;
+		size = new AtomicLong();
+		locks = new Lock[1 << LOCK_BITS];
+		for (int i = 0; i < locks.length; ++i) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * @return number of hash functions used per URL
+	 */
+	public int getHashesNumber() {
+		return hashesNumber;
+	}
+
+	/**
+	 * @return size of the filter in bits
+	 */
+	public long getBitsNumber() {
+		return bitsNumber;
+	}
+
+	public boolean add(String url) {
+		long hash1 = URLFingerprint.fingerprint(url);
+		long hash2 = URLFingerprint.mix(hash1 + 0x9e3779b97f4a7c15L);
+
+		// Other URLs may share bits, so they're still set atomically:
+		Lock lock = locks[(int) (hash1 >>> (64 - LOCK_BITS))];
+		lock.lock();
+		try {
+			boolean changed = false;
+			for (int i = 0; i < hashesNumber; ++i) {
+				long bit = getBit(hash1, hash2, i);
+				int index = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long word;
+				while (((word = bits.get(index)) & mask) == 0) {
+					if (bits.compareAndSet(index, word, word | mask)) {
+						changed = true;
+						break;
+					}
+				}
+			}
+			if (changed) {
+				size.incrementAndGet();
+			}
+			return changed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean contains(String url) {
+		long hash1 = URLFingerprint.fingerprint(url);
+		long hash2 = URLFingerprint.mix(hash1 + 0x9e3779b97f4a7c15L);
+
+		for (int i = 0; i < hashesNumber; ++i) {
+			long bit = getBit(hash1, hash2, i);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return approximate number of URLs in the set
+	 */
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * Derives i-th hash function from two independent hashes, see:
+	 * Kirsch, Mitzenmacher "Less Hashing, Same Performance: Building a Better Bloom Filter"
+	 */
+	private long getBit(long hash1, long hash2, int i) {
+		long combined = hash1 + i * hash2;
+		return (combined & Long.MAX_VALUE) % bitsNumber;
+	}
+}
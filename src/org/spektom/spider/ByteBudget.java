@@ -0,0 +1,181 @@
+package org.spektom.spider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of bytes of page contents that all downloads hold in memory at
+ * once. Bytes are acquired as a buffer grows, and released when the page is
+ * processed, or when the handler is done with it, if the page waits for the handler
+ * in {@link WriteBehindStage}. A download waits for bytes that other downloads release,
+ * but not longer than {@link #getMaxWait()}, so a handler that is slower than
+ * retrieval makes downloads wait, and cuts them off eventually.
+ * <p>
+ * Downloads that hold parts of the budget and wait for more could block each other
+ * forever, so one download at a time may exceed the budget, until it releases its
+ * bytes. Total is therefore limited by the budget plus one page.
+ * <p>
+ * Downloads that must not block their thread use {@link #tryAcquire(Object, long, Runnable)},
+ * and are called back when bytes are released.
+ */
+public class ByteBudget {
+
+	private long capacity;
+	private long maxWait;
+	private long used;
+	// Download that may exceed the budget:
+	private Object overdraftOwner;
+	private long waits;
+	private List<Runnable> waiters;
+	private Lock lock;
+	private Condition released;
+
+	/**
+	 * @param capacity Max. number of bytes held at once
+	 * @param maxWait Max. time in milliseconds to wait for bytes to be released
+	 */
+	public ByteBudget(long capacity, long maxWait) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Illegal budget: " + capacity);
+		}
+		this.capacity = capacity;
+		this.maxWait = maxWait;
+		waiters = new ArrayList<Runnable>();
+		lock = new ReentrantLock();
+		released = lock.newCondition();
+	}
+
+	/**
+	 * Takes bytes from the budget, waiting until other downloads release them
+	 * @param owner Download that takes the bytes
+	 * @param bytes
+	 * @param timeLeft Time in nanoseconds the caller may wait at most, the wait is
+	 * also limited by {@link #getMaxWait()}
+	 * @return <code>false</code> if the bytes weren't released in time
+	 */
+	public boolean acquire(Object owner, long bytes, long timeLeft) {
+		long nanos = Math.min(timeLeft, TimeUnit.MILLISECONDS.toNanos(maxWait));
+		lock.lock();
+		try {
+			if (take(owner, bytes)) {
+				return true;
+			}
+			++waits;
+			do {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = released.awaitNanos(nanos);
+			} while (!take(owner, bytes));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes bytes from the budget without waiting
+	 * @param owner Download that takes the bytes
+	 * @param bytes
+	 * @param waiter Called once after some bytes are released, if these weren't
+	 * taken; it's called by the releasing thread, so it must not block
+	 * @return <code>false</code> if the bytes weren't taken
+	 */
+	public boolean tryAcquire(Object owner, long bytes, Runnable waiter) {
+		lock.lock();
+		try {
+			if (take(owner, bytes)) {
+				return true;
+			}
+			++waits;
+			waiters.add(waiter);
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns all bytes the download holds to the budget
+	 * @param owner Download that has taken the bytes
+	 * @param bytes
+	 */
+	public void release(Object owner, long bytes) {
+		List<Runnable> waiters = null;
+		lock.lock();
+		try {
+			used -= bytes;
+			if (overdraftOwner == owner) {
+				overdraftOwner = null;
+			}
+			released.signalAll();
+			if (!this.waiters.isEmpty()) {
+				waiters = this.waiters;
+				this.waiters = new ArrayList<Runnable>();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (waiters != null) {
+			for (int i = 0; i < waiters.size(); ++i) {
+				waiters.get(i).run();
+			}
+		}
+	}
+
+	private boolean take(Object owner, long bytes) {
+		if (used + bytes > capacity && overdraftOwner != owner) {
+			if (overdraftOwner != null) {
+				return false;
+			}
+			overdraftOwner = owner;
+		}
+		used += bytes;
+		return true;
+	}
+
+	/**
+	 * @return max. number of bytes held at once
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return max. time in milliseconds to wait for bytes to be released
+	 */
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * @return number of bytes held now
+	 */
+	public long getUsed() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of times downloads had to wait for bytes
+	 */
+	public long getWaits() {
+		lock.lock();
+		try {
+			return waits;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.spektom.spider;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Characters view of a byte array region, every byte is treated as ISO-8859-1
+ * character. The view doesn't copy the bytes, so it's only valid while the array
+ * isn't modified.
+ */
+public class ByteSequence implements CharSequence {
+
+	private byte[] data;
+	private int start;
+	private int end;
+
+	public ByteSequence() {
+	}
+
+	public ByteSequence(byte[] data, int start, int end) {
+		set(data, start, end);
+	}
+
+	/**
+	 * Points this view to another region
+	 * @param data
+	 * @param start Index of the first byte
+	 * @param end Index after the last byte
+	 */
+	public void set(byte[] data, int start, int end) {
+		this.data = data;
+		this.start = start;
+		this.end = end;
+	}
+
+	public int length() {
+		return end - start;
+	}
+
+	public char charAt(int index) {
+		return (char) (data[start + index] & 0xff);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return new ByteSequence(data, this.start + start, this.start + end);
+	}
+
+	/**
+	 * Compares to the string ignoring case of ASCII letters, without allocating memory
+	 * @param str
+	 * @return <code>true</code> if equal
+	 */
+	public boolean equalsIgnoreCase(String str) {
+		int length = end - start;
+		if (str.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (toLowerCase(data[start + i] & 0xff) != toLowerCase(str.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param ch
+	 * @return index of the first occurrence of the character, or -1
+	 */
+	public int indexOf(char ch) {
+		for (int i = start; i < end; ++i) {
+			if ((data[i] & 0xff) == ch) {
+				return i - start;
+			}
+		}
+		return -1;
+	}
+
+	public String toString() {
+		return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	static int toLowerCase(int ch) {
+		return ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+	}
+}
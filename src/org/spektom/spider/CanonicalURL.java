@@ -0,0 +1,140 @@
+package org.spektom.spider;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * HTTP URL in canonical form, see {@link URLCanonicalizer}. It's a single string
+ * with offsets of its parts, so it costs far less than {@link URL}, which is only
+ * created for URLs that are actually queued. Two URLs are equal if their canonical
+ * forms are equal.
+ */
+public class CanonicalURL {
+
+	private String spec;
+	// Index of ':' after the scheme:
+	private int schemeEnd;
+	private int hostStart;
+	private int hostEnd;
+	private int pathStart;
+	// Index of '?', or -1 if there's no query:
+	private int queryStart;
+
+	CanonicalURL(String spec, int schemeEnd, int hostStart, int hostEnd, int pathStart, int queryStart) {
+		this.spec = spec;
+		this.schemeEnd = schemeEnd;
+		this.hostStart = hostStart;
+		this.hostEnd = hostEnd;
+		this.pathStart = pathStart;
+		this.queryStart = queryStart;
+	}
+
+	/**
+	 * @return scheme in lower case
+	 */
+	public String getScheme() {
+		return spec.substring(0, schemeEnd);
+	}
+
+	/**
+	 * @return host in lower case
+	 */
+	public String getHost() {
+		return spec.substring(hostStart, hostEnd);
+	}
+
+	/**
+	 * Compares host of this URL to the given one ignoring case, without allocating memory
+	 * @param host
+	 * @return <code>true</code> if the hosts are the same
+	 */
+	public boolean hasHost(String host) {
+		return host.length() == hostEnd - hostStart && spec.regionMatches(true, hostStart, host, 0, host.length());
+	}
+
+	/**
+	 * @return port, or -1 if it's the default port of the scheme
+	 */
+	public int getPort() {
+		return hostEnd < pathStart && spec.charAt(hostEnd) == ':' ? Integer.parseInt(spec.substring(hostEnd + 1, pathStart)) : -1;
+	}
+
+	/**
+	 * @return path, which is never empty
+	 */
+	public String getPath() {
+		return spec.substring(pathStart, queryStart >= 0 ? queryStart : spec.length());
+	}
+
+	/**
+	 * @return query without '?', or <code>null</code> if there's no query
+	 */
+	public String getQuery() {
+		return queryStart >= 0 ? spec.substring(queryStart + 1) : null;
+	}
+
+	/**
+	 * @return path and query, as sent in HTTP request line
+	 */
+	public String getFile() {
+		return spec.substring(pathStart);
+	}
+
+	/**
+	 * @return 64-bit fingerprint of the canonical form
+	 * @see URLFingerprint#fingerprint(CharSequence)
+	 */
+	public long fingerprint() {
+		return URLFingerprint.fingerprint(spec);
+	}
+
+	/**
+	 * @return URL that can be retrieved
+	 * @throws MalformedURLException if the JVM doesn't support the scheme
+	 */
+	public URL toURL() throws MalformedURLException {
+		return new URL(spec);
+	}
+
+	int getSchemeEnd() {
+		return schemeEnd;
+	}
+
+	int getAuthorityStart() {
+		return schemeEnd + 3;
+	}
+
+	int getHostStart() {
+		return hostStart;
+	}
+
+	int getHostEnd() {
+		return hostEnd;
+	}
+
+	int getPathStart() {
+		return pathStart;
+	}
+
+	/**
+	 * @return index of '?', or -1 if there's no query
+	 */
+	int getQueryStart() {
+		return queryStart;
+	}
+
+	public boolean equals(Object obj) {
+		return obj instanceof CanonicalURL && spec.equals(((CanonicalURL) obj).spec);
+	}
+
+	public int hashCode() {
+		return spec.hashCode();
+	}
+
+	/**
+	 * @return canonical form
+	 */
+	public String toString() {
+		return spec;
+	}
+}
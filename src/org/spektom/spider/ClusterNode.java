@@ -0,0 +1,605 @@
+package org.spektom.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node of a crawl that runs in several JVMs. Every node owns a partition of hosts
+ * (see {@link HostPartitioner}), and keeps its own frontier, seen set and robots.txt
+ * cache for them. Links to hosts of other nodes are batched, and forwarded to their
+ * owners over TCP. All nodes must be given the same list of nodes and the same
+ * start URL.
+ * <p>
+ * Every node listens on its own address, and opens one connection to every other node.
+ * Messages are written with {@link DataOutputStream}, and start with a type byte:
+ * <ul>
+ * <li>'U' - batch of URLs: count, then URL, depth, score and parent URL (empty if none)
+ * of every URL</li>
+ * <li>'S' - status request from node 0, with round number</li>
+ * <li>'R' - status reply to node 0: node index, round number, whether the node is idle,
+ * number of URLs it has sent and received</li>
+ * <li>'T' - the crawl is complete</li>
+ * </ul>
+ * Completion is detected by node 0 without any other service, by counting messages:
+ * crawl is complete when all nodes are idle, all sent URLs were received, and the
+ * counters didn't change between two successive status rounds. Node that is idle can
+ * only become busy by receiving URLs, which changes the counters.
+ */
+public class ClusterNode {
+
+	private static final int BATCH_SIZE = 256;
+	private static final long FLUSH_INTERVAL = 50;
+	private static final long STATUS_INTERVAL = 200;
+	private static final long STATUS_TIMEOUT = 5000;
+	private static final long CONNECT_TIMEOUT = 60000;
+	// Longer strings may not fit into 64K bytes of DataOutputStream.writeUTF():
+	private static final int MAX_URL_LENGTH = 16384;
+
+	private static final byte URLS = 'U';
+	private static final byte STATUS_REQUEST = 'S';
+	private static final byte STATUS = 'R';
+	private static final byte TERMINATE = 'T';
+
+	private List<InetSocketAddress> nodes;
+	private int index;
+	private HostPartitioner partitioner;
+	private Peer[] peers;
+	private Spider spider;
+	private ServerSocket serverSocket;
+	private ScheduledExecutorService timer;
+	private volatile boolean ready;
+	private volatile boolean closed;
+	private AtomicLong sent;
+	private AtomicLong received;
+	// Number of URLs in batches that weren't sent yet:
+	private AtomicInteger pending;
+	private AtomicInteger readers;
+	// Status replies of the current round, on node 0:
+	private Lock statusLock;
+	private Condition statusReceived;
+	private long round;
+	private long[][] statuses;
+
+	/**
+	 * @param nodes Addresses of all nodes, in the same order on all nodes
+	 * @param index Index of this node in the list
+	 */
+	public ClusterNode(List<InetSocketAddress> nodes, int index) {
+		if (index < 0 || index >= nodes.size()) {
+			throw new IllegalArgumentException("Node index must be between 0 and " + (nodes.size() - 1));
+		}
+		this.nodes = new ArrayList<InetSocketAddress>(nodes);
+		this.index = index;
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < nodes.size(); ++i) {
+			names.add(nodes.get(i).getHostString() + ":" + nodes.get(i).getPort());
+		}
+		partitioner = new HostPartitioner(names);
+		peers = new Peer[nodes.size()];
+		for (int i = 0; i < peers.length; ++i) {
+			if (i != index) {
+				peers[i] = new Peer(nodes.get(i));
+			}
+		}
+		sent = new AtomicLong();
+		received = new AtomicLong();
+		pending = new AtomicInteger();
+		readers = new AtomicInteger();
+		statusLock = new ReentrantLock();
+		statusReceived = statusLock.newCondition();
+	}
+
+	/**
+	 * Parses list of nodes
+	 * @param str Comma separated list of host:port pairs
+	 * @return addresses
+	 * @throws IllegalArgumentException if the list is illegal
+	 */
+	public static List<InetSocketAddress> parseNodes(String str) {
+		List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+		String[] parts = str.split(",");
+		for (int i = 0; i < parts.length; ++i) {
+			int separator = parts[i].lastIndexOf(':');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Illegal node address: " + parts[i]);
+			}
+			try {
+				nodes.add(InetSocketAddress.createUnresolved(parts[i].substring(0, separator), Integer.parseInt(parts[i].substring(separator + 1))));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal node address: " + parts[i]);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return index of this node
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int getNodesNumber() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return number of URLs forwarded to other nodes
+	 */
+	public long getSentNumber() {
+		return sent.get();
+	}
+
+	/**
+	 * @return number of URLs received from other nodes
+	 */
+	public long getReceivedNumber() {
+		return received.get();
+	}
+
+	/**
+	 * @param host Host name in lower case
+	 * @return <code>true</code> if the host belongs to this node
+	 */
+	public boolean isLocal(String host) {
+		return partitioner.getOwner(host) == index;
+	}
+
+	/**
+	 * Starts accepting connections of other nodes. Node reports itself busy until
+	 * {@link #setReady()} is called, so that the crawl doesn't complete before the
+	 * start URL is queued.
+	 * @param spider Spider of this node
+	 * @throws IOException if the node address can't be listened on
+	 */
+	void start(Spider spider) throws IOException {
+		this.spider = spider;
+		InetSocketAddress address = nodes.get(index);
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(address.getHostString(), address.getPort()));
+		Thread listener = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "Spider Cluster Listener");
+		listener.setDaemon(true);
+		listener.start();
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Spider Cluster Timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushAll();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		if (index == 0) {
+			Thread coordinator = new Thread(new Runnable() {
+				public void run() {
+					detectCompletion();
+				}
+			}, "Spider Cluster Coordinator");
+			coordinator.setDaemon(true);
+			coordinator.start();
+		}
+	}
+
+	/**
+	 * Reports that the start URL is queued
+	 */
+	void setReady() {
+		ready = true;
+	}
+
+	/**
+	 * Puts URL into the batch of the node that owns its host
+	 * @param host Host name in lower case
+	 * @param url
+	 * @param depth
+	 * @param parent URL of the page where the link was found, or <code>null</code>
+	 * @param score
+	 */
+	void forward(String host, String url, int depth, String parent, double score) {
+		if (url.length() > MAX_URL_LENGTH) {
+			System.err.println("URL is too long to be forwarded: " + url.substring(0, 100));
+			return;
+		}
+		if (parent != null && parent.length() > MAX_URL_LENGTH) {
+			parent = null;
+		}
+		Peer peer = peers[partitioner.getOwner(host)];
+		peer.lock.lock();
+		try {
+			// Links to the same page are usually found many times in a row:
+			if (!peer.batchURLs.add(url)) {
+				return;
+			}
+			peer.batch.add(new ForwardedURL(url, depth, parent, score));
+			pending.incrementAndGet();
+			if (peer.batch.size() >= BATCH_SIZE) {
+				flush(peer);
+			}
+		} finally {
+			peer.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops listening, and closes connections to other nodes
+	 */
+	void close() {
+		closed = true;
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (int i = 0; i < peers.length; ++i) {
+			if (peers[i] != null) {
+				peers[i].lock.lock();
+				try {
+					peers[i].disconnect();
+				} finally {
+					peers[i].lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void flushAll() {
+		for (int i = 0; i < peers.length; ++i) {
+			if (peers[i] != null) {
+				peers[i].lock.lock();
+				try {
+					flush(peers[i]);
+				} finally {
+					peers[i].lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the batch of the peer. Caller must hold the peer lock. If the peer can't be
+	 * reached, URLs are kept until the next flush.
+	 */
+	private void flush(Peer peer) {
+		if (peer.batch.isEmpty() || closed) {
+			return;
+		}
+		try {
+			DataOutputStream out = peer.connect();
+			out.writeByte(URLS);
+			out.writeInt(peer.batch.size());
+			for (int i = 0; i < peer.batch.size(); ++i) {
+				ForwardedURL url = peer.batch.get(i);
+				out.writeUTF(url.url);
+				out.writeInt(url.depth);
+				out.writeDouble(url.score);
+				out.writeUTF(url.parent != null ? url.parent : "");
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.err.format("Can't forward URLs to cluster node %s: %s\n", peer.address, e.getMessage());
+			peer.disconnect();
+			return;
+		}
+		// Sent before pending, so that the URLs are always counted by status:
+		sent.addAndGet(peer.batch.size());
+		pending.addAndGet(-peer.batch.size());
+		peer.batch.clear();
+		peer.batchURLs.clear();
+	}
+
+	private void send(int node, byte type, long... values) throws IOException {
+		Peer peer = peers[node];
+		peer.lock.lock();
+		try {
+			DataOutputStream out = peer.connect();
+			out.writeByte(type);
+			for (int i = 0; i < values.length; ++i) {
+				out.writeLong(values[i]);
+			}
+			out.flush();
+		} catch (IOException e) {
+			peer.disconnect();
+			throw e;
+		} finally {
+			peer.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return node index, round, 1 if idle, sent and received URLs
+	 */
+	private long[] getStatus(long round) {
+		// Idleness is checked first, counters can only grow after that if the node is
+		// not idle anymore:
+		boolean idle = ready && spider.getFrontier().isIdle() && pending.get() == 0;
+		return new long[] { index, round, idle ? 1 : 0, sent.get(), received.get() };
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					read(socket);
+				}
+			}, "Spider Cluster Reader #" + readers.getAndIncrement());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	private void read(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (true) {
+				byte type = in.readByte();
+				if (type == URLS) {
+					int count = in.readInt();
+					for (int i = 0; i < count; ++i) {
+						String url = in.readUTF();
+						int depth = in.readInt();
+						double score = in.readDouble();
+						String parent = in.readUTF();
+						spider.queueForwardedURL(url, depth, parent.length() > 0 ? parent : null, score);
+					}
+					// Counted after the URLs are queued, so that the node isn't idle meanwhile:
+					received.addAndGet(count);
+				} else if (type == STATUS_REQUEST) {
+					send(0, STATUS, getStatus(in.readLong()));
+				} else if (type == STATUS) {
+					long[] status = new long[5];
+					for (int i = 0; i < status.length; ++i) {
+						status[i] = in.readLong();
+					}
+					statusReceived(status);
+				} else if (type == TERMINATE) {
+					spider.getFrontier().close();
+				} else {
+					throw new IOException("Illegal message type: " + type);
+				}
+			}
+		} catch (EOFException e) {
+			// Other node has closed the connection
+		} catch (SocketException e) {
+			// Connection is closed
+		} catch (IOException e) {
+			if (!closed) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void statusReceived(long[] status) {
+		statusLock.lock();
+		try {
+			if (status[1] == round && statuses != null) {
+				statuses[(int) status[0]] = status;
+				statusReceived.signalAll();
+			}
+		} finally {
+			statusLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs status rounds on node 0, until all nodes are idle, and the counters are the
+	 * same in two successive rounds
+	 */
+	private void detectCompletion() {
+		long[] previous = null;
+		while (!closed && !spider.getFrontier().isClosed()) {
+			try {
+				Thread.sleep(STATUS_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long[] counters = runStatusRound();
+			if (counters == null) {
+				previous = null;
+				continue;
+			}
+			if (previous != null && Arrays.equals(previous, counters)) {
+				terminate();
+				return;
+			}
+			previous = counters;
+		}
+	}
+
+	/**
+	 * @return sent and received counters of all nodes, or <code>null</code> if some node
+	 * is busy, didn't reply, or not all sent URLs were received
+	 */
+	private long[] runStatusRound() {
+		long currentRound;
+		statusLock.lock();
+		try {
+			currentRound = ++round;
+			statuses = new long[nodes.size()][];
+			statuses[index] = getStatus(currentRound);
+		} finally {
+			statusLock.unlock();
+		}
+		for (int i = 0; i < peers.length; ++i) {
+			if (peers[i] != null) {
+				try {
+					send(i, STATUS_REQUEST, currentRound);
+				} catch (IOException e) {
+					// Node isn't up yet
+					return null;
+				}
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STATUS_TIMEOUT);
+		statusLock.lock();
+		try {
+			long[] counters = new long[nodes.size() * 2];
+			long sentTotal = 0;
+			long receivedTotal = 0;
+			for (int i = 0; i < statuses.length; ++i) {
+				while (statuses[i] == null) {
+					long timeout = deadline - System.nanoTime();
+					if (timeout <= 0 || closed) {
+						return null;
+					}
+					statusReceived.awaitNanos(timeout);
+				}
+				if (statuses[i][2] == 0) {
+					return null;
+				}
+				counters[i * 2] = statuses[i][3];
+				counters[i * 2 + 1] = statuses[i][4];
+				sentTotal += statuses[i][3];
+				receivedTotal += statuses[i][4];
+			}
+			return sentTotal == receivedTotal ? counters : null;
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			statuses = null;
+			statusLock.unlock();
+		}
+	}
+
+	private void terminate() {
+		for (int i = 0; i < peers.length; ++i) {
+			if (peers[i] != null) {
+				try {
+					send(i, TERMINATE);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		spider.getFrontier().close();
+	}
+
+	static class ForwardedURL {
+
+		final String url;
+		final int depth;
+		final String parent;
+		final double score;
+
+		ForwardedURL(String url, int depth, String parent, double score) {
+			this.url = url;
+			this.depth = depth;
+			this.parent = parent;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * Connection to another node, and batch of URLs waiting to be sent to it
+	 */
+	class Peer {
+
+		final InetSocketAddress address;
+		final Lock lock;
+		final List<ForwardedURL> batch;
+		final Set<String> batchURLs;
+		private Socket socket;
+		private DataOutputStream out;
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+			lock = new ReentrantLock();
+			batch = new ArrayList<ForwardedURL>();
+			batchURLs = new HashSet<String>();
+		}
+
+		/**
+		 * Connects to the node, waiting for it to start. Caller must hold the lock.
+		 */
+		DataOutputStream connect() throws IOException {
+			if (out != null) {
+				return out;
+			}
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (true) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) CONNECT_TIMEOUT);
+					socket.setTcpNoDelay(true);
+					this.socket = socket;
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+					return out;
+				} catch (IOException e) {
+					socket.close();
+					if (closed || System.currentTimeMillis() >= deadline) {
+						throw e;
+					}
+				}
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while connecting to " + address);
+				}
+			}
+		}
+
+		void disconnect() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+			socket = null;
+			out = null;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package org.spektom.spider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adjusts number of concurrent downloads while the crawl runs, both in total and per
+ * host, using additive increase and multiplicative decrease. A limit grows by one after
+ * a window of as many successful responses as the limit is, as long as at least half of
+ * it is used; it doubles every window until the first overload. It's cut by a quarter,
+ * at most once per window, on overload: a timeout or another I/O error, 429 or 503
+ * status, or, for a host limit, time to first byte that exceeds the host's usual latency
+ * by the tolerance factor. Usual latency is a moving average, which slow responses move
+ * much less than normal ones, so that a host which stays slow is eventually treated as
+ * normal.
+ * <p>
+ * Total limit is enforced by {@link #acquire(String)}, host limits are enforced by
+ * the frontier, see {@link Frontier#setMaxHostConnections(java.net.URL, int)}.
+ */
+public class ConcurrencyController {
+
+	// Latency differences below this are jitter, not overload:
+	private static final long LATENCY_SLACK = 10000000L;
+
+	private Limit limit;
+	private ConcurrentMap<String, Limit> hosts;
+	private int initialLimit;
+	private int maxHostLimit;
+	private double tolerance;
+	private int inUse;
+	private Lock lock;
+	private Condition available;
+
+	/**
+	 * @param maxLimit Maximal number of concurrent downloads
+	 * @param maxHostLimit Maximal number of concurrent downloads from a single host
+	 */
+	public ConcurrencyController(int maxLimit, int maxHostLimit) {
+		initialLimit = Math.min(maxLimit, 4);
+		this.maxHostLimit = Math.min(maxHostLimit, maxLimit);
+		limit = new Limit(initialLimit, maxLimit);
+		hosts = new ConcurrentHashMap<String, Limit>();
+		tolerance = 2.0;
+		lock = new ReentrantLock();
+		available = lock.newCondition();
+	}
+
+	/**
+	 * Returns factor by which time to first byte must exceed usual latency of the host,
+	 * so that its limit is decreased
+	 * @return tolerance
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * Sets factor by which time to first byte must exceed usual latency of the host, so
+	 * that its limit is decreased (default: 2.0)
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Waits until fewer downloads than the total limit are in progress, and counts a
+	 * new one
+	 * @param host Host of the download
+	 */
+	public void acquire(String host) {
+		lock.lock();
+		try {
+			while (inUse >= limit.get()) {
+				available.awaitUninterruptibly();
+			}
+			++inUse;
+		} finally {
+			lock.unlock();
+		}
+		getLimit(host).inUse.incrementAndGet();
+	}
+
+	/**
+	 * Counts finished download
+	 * @param host Host of the download
+	 */
+	public void release(String host) {
+		getLimit(host).inUse.decrementAndGet();
+		lock.lock();
+		try {
+			--inUse;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adjusts limits by the response
+	 * @param host
+	 * @param latency Time to first byte in nanoseconds
+	 * @param overload <code>true</code> if the request has failed or the server asked to
+	 * slow down
+	 */
+	public void update(String host, long latency, boolean overload) {
+		Limit hostLimit = getLimit(host);
+		hostLimit.update(latency, overload, hostLimit.inUse.get(), tolerance);
+
+		int inUse;
+		lock.lock();
+		try {
+			inUse = this.inUse;
+		} finally {
+			lock.unlock();
+		}
+		// Latencies of different hosts can't be compared, so only failures count here:
+		if (limit.update(0, overload, inUse, 0)) {
+			lock.lock();
+			try {
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return current limit of concurrent downloads
+	 */
+	public int getLimit() {
+		return limit.get();
+	}
+
+	/**
+	 * @param host
+	 * @return current limit of concurrent downloads from the host
+	 */
+	public int getHostLimit(String host) {
+		return getLimit(host).get();
+	}
+
+	private Limit getLimit(String host) {
+		Limit hostLimit = hosts.get(host);
+		if (hostLimit == null) {
+			Limit newHostLimit = new Limit(Math.min(initialLimit, maxHostLimit), maxHostLimit);
+			hostLimit = hosts.putIfAbsent(host, newHostLimit);
+			if (hostLimit == null) {
+				hostLimit = newHostLimit;
+			}
+		}
+		return hostLimit;
+	}
+
+	static class Limit {
+
+		private double value;
+		private int max;
+		private boolean slowStart;
+		// Moving average of latency in nanoseconds:
+		private double latency;
+		private long responses;
+		private long lastDecrease;
+		private Lock lock;
+		final AtomicInteger inUse;
+
+		Limit(int initial, int max) {
+			value = Math.max(1, initial);
+			this.max = Math.max(1, max);
+			slowStart = true;
+			lock = new ReentrantLock();
+			inUse = new AtomicInteger();
+		}
+
+		int get() {
+			lock.lock();
+			try {
+				return (int) value;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the limit has grown
+		 */
+		boolean update(long sample, boolean overload, int inUse, double tolerance) {
+			lock.lock();
+			try {
+				++responses;
+				if (!overload && tolerance > 0) {
+					overload = latency > 0 && sample > latency * tolerance && sample - latency > LATENCY_SLACK;
+					// Slow responses move the average a little, or it would follow them up
+					// before the limit is decreased enough:
+					latency = latency == 0 ? sample : latency + (sample - latency) * (overload ? 0.005 : 0.05);
+				}
+				int previous = (int) value;
+				if (overload) {
+					if (responses - lastDecrease >= value) {
+						value = Math.max(1, value * 0.75);
+						lastDecrease = responses;
+						slowStart = false;
+					}
+				} else if (inUse >= value / 2) {
+					value = Math.min(max, value + (slowStart ? 1 : 1 / value));
+				}
+				return (int) value > previous;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
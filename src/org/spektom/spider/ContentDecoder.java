@@ -0,0 +1,270 @@
+package org.spektom.spider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses body which is sent with gzip or deflate Content-Encoding. Compressed
+ * chunks are pushed as they are received, and every decompressed piece is written to
+ * the page processor right away, so that the page is never held in both forms.
+ */
+public class ContentDecoder {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int MAX_HEADER = 64 * 1024;
+
+	private boolean gzip;
+	private Inflater inflater;
+	private CRC32 crc;
+	// Bytes of gzip header or trailer that are not complete yet, or the first bytes of
+	// deflate stream, which tell whether it has zlib wrapper:
+	private byte[] pending;
+	private int pendingLength;
+	private boolean headerDone;
+	private ByteBuffer output;
+	// Decompressed output the processor hasn't taken yet:
+	private boolean outputPending;
+	private HTMLPageProcessor target;
+
+	/**
+	 * @param contentEncoding Value of Content-Encoding header
+	 * @param target Processor that gets decompressed contents
+	 * @throws IOException if the encoding is not supported
+	 */
+	public ContentDecoder(String contentEncoding, HTMLPageProcessor target) throws IOException {
+		if (!isSupported(contentEncoding)) {
+			throw new IOException("Unsupported content encoding: " + contentEncoding);
+		}
+		String encoding = contentEncoding.trim().toLowerCase();
+		gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+		this.target = target;
+		pending = new byte[16];
+		output = ByteBuffer.allocate(16384);
+		if (gzip) {
+			crc = new CRC32();
+		}
+	}
+
+	/**
+	 * @param contentEncoding Value of Content-Encoding header
+	 * @return <code>true</code> if body with this encoding can be decompressed
+	 */
+	public static boolean isSupported(String contentEncoding) {
+		if (contentEncoding == null) {
+			return false;
+		}
+		String encoding = contentEncoding.trim().toLowerCase();
+		return encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate");
+	}
+
+	/**
+	 * @param contentEncoding Value of Content-Encoding header, may be <code>null</code>
+	 * @return <code>true</code> if the body is sent as is
+	 */
+	public static boolean isIdentity(String contentEncoding) {
+		return contentEncoding == null || contentEncoding.trim().length() == 0 || contentEncoding.trim().equalsIgnoreCase("identity");
+	}
+
+	/**
+	 * Decompresses next chunk of the body. When the processor can't take decompressed
+	 * output yet, the rest of the chunk is left unconsumed, and it must be written
+	 * again later.
+	 * @param chunk
+	 * @throws IOException if the body is corrupted
+	 */
+	public void write(ByteBuffer chunk) throws IOException {
+		if (outputPending) {
+			target.writeDecoded(output);
+			if (output.hasRemaining()) {
+				return;
+			}
+			outputPending = false;
+			// Inflater may hold more output of the input it already has:
+			if (!inflater.finished()) {
+				inflate(chunk);
+			}
+		}
+		// Nothing is decompressed once the page is cut off, or while the processor
+		// waits for the budget:
+		while (chunk.hasRemaining() && !outputPending && !target.isAborted()) {
+			if (!headerDone) {
+				if (!readHeader(chunk)) {
+					return;
+				}
+			} else if (!inflater.finished()) {
+				inflate(chunk);
+			} else if (gzip) {
+				// Trailer: CRC-32 and length of the decompressed data
+				append(chunk, 8 - pendingLength);
+				if (pendingLength == 8) {
+					if (getInt(pending, 0) != (int) crc.getValue() || getInt(pending, 4) != (int) inflater.getBytesWritten()) {
+						throw new IOException("Corrupted gzip body");
+					}
+				}
+				// Anything after the trailer is ignored:
+				return;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the whole body was received, and releases decompressor
+	 * @throws IOException if the body is truncated
+	 */
+	public void finish() throws IOException {
+		try {
+			if (inflater == null || !inflater.finished() || (gzip && pendingLength < 8)) {
+				throw new IOException("Truncated " + (gzip ? "gzip" : "deflate") + " body");
+			}
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Releases decompressor without checking that the whole body was received
+	 */
+	public void end() {
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+
+	private void inflate(ByteBuffer chunk) throws IOException {
+		inflater.setInput(chunk);
+		try {
+			while (true) {
+				output.clear();
+				int length = inflater.inflate(output);
+				if (length > 0) {
+					output.flip();
+					if (crc != null) {
+						crc.update(output.duplicate());
+					}
+					target.writeDecoded(output);
+					if (output.hasRemaining() || target.isAborted()) {
+						// Kept until the processor can take it, the rest of the input
+						// stays in the chunk:
+						outputPending = true;
+						break;
+					}
+				} else if (inflater.finished() || inflater.needsInput()) {
+					break;
+				} else if (inflater.needsDictionary()) {
+					throw new IOException("Compressed body requires preset dictionary");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted compressed body: " + e.getMessage());
+		}
+		// Inflater advances the chunk only up to the end of compressed data, so the rest
+		// of it is gzip trailer
+	}
+
+	/**
+	 * Consumes gzip header, or decides whether deflate stream is zlib-wrapped
+	 * @return <code>true</code> once the header is complete
+	 */
+	private boolean readHeader(ByteBuffer chunk) throws IOException {
+		if (!gzip) {
+			append(chunk, 2 - pendingLength);
+			if (pendingLength < 2) {
+				return false;
+			}
+			// Servers send both zlib-wrapped and raw deflate streams under this name:
+			int cmf = pending[0] & 0xff;
+			boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | (pending[1] & 0xff)) % 31 == 0;
+			inflater = new Inflater(!zlib);
+			headerDone = true;
+			// Pass the consumed bytes to the inflater:
+			inflate(ByteBuffer.wrap(pending, 0, 2));
+			pendingLength = 0;
+			return true;
+		}
+		while (chunk.hasRemaining()) {
+			append(chunk, 1);
+			int headerLength = getGzipHeaderLength();
+			if (headerLength > 0) {
+				inflater = new Inflater(true);
+				headerDone = true;
+				pendingLength = 0;
+				return true;
+			}
+			if (pendingLength > MAX_HEADER) {
+				throw new IOException("Gzip header is too long");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return length of the gzip header in pending bytes, or 0 if it's incomplete
+	 */
+	private int getGzipHeaderLength() throws IOException {
+		if (pendingLength < 10) {
+			return 0;
+		}
+		if (((pending[0] & 0xff) | ((pending[1] & 0xff) << 8)) != GZIP_MAGIC || pending[2] != 8) {
+			throw new IOException("Not in gzip format");
+		}
+		int flags = pending[3] & 0xff;
+		int position = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (pendingLength < position + 2) {
+				return 0;
+			}
+			position += 2 + ((pending[position] & 0xff) | ((pending[position + 1] & 0xff) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			position = skipZeroTerminated(position);
+		}
+		if ((flags & FCOMMENT) != 0 && position > 0) {
+			position = skipZeroTerminated(position);
+		}
+		if ((flags & FHCRC) != 0 && position > 0) {
+			position += 2;
+		}
+		return position > 0 && position <= pendingLength ? position : 0;
+	}
+
+	/**
+	 * @return position after the terminating zero, or 0 if it wasn't received yet
+	 */
+	private int skipZeroTerminated(int position) {
+		for (int i = position; i < pendingLength; ++i) {
+			if (pending[i] == 0) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Moves up to given number of bytes from the chunk to pending bytes
+	 */
+	private void append(ByteBuffer chunk, int count) {
+		count = Math.min(count, chunk.remaining());
+		if (pendingLength + count > pending.length) {
+			byte[] newPending = new byte[Math.max(pending.length * 2, pendingLength + count)];
+			System.arraycopy(pending, 0, newPending, 0, pendingLength);
+			pending = newPending;
+		}
+		chunk.get(pending, pendingLength, count);
+		pendingLength += count;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) | ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+	}
+}
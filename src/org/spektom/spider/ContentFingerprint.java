@@ -0,0 +1,221 @@
+package org.spektom.spider;
+
+/**
+ * Fingerprints of HTML page contents: exact hash of the bytes, and SimHash of the
+ * text, which differs in few bits for pages with almost the same text. Text is
+ * extracted by skipping tags, comments, scripts and styles, and SimHash features are
+ * its words, so that a word that is added or changed moves the SimHash least.
+ */
+public class ContentFingerprint {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	// Letters, digits and bytes of non-ASCII characters, lower-cased:
+	private static final byte[] WORD_CHARACTERS = new byte[256];
+	static {
+		for (int ch = 0; ch < 256; ++ch) {
+			if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') || ch >= 0x80) {
+				WORD_CHARACTERS[ch] = (byte) ch;
+			} else if (ch >= 'A' && ch <= 'Z') {
+				WORD_CHARACTERS[ch] = (byte) ByteSequence.toLowerCase(ch);
+			}
+		}
+	}
+
+	private long exactHash;
+	private long simHash;
+	private int wordsNumber;
+
+	/**
+	 * @param exactHash
+	 * @param simHash
+	 * @param wordsNumber Number of words in the text
+	 */
+	public ContentFingerprint(long exactHash, long simHash, int wordsNumber) {
+		this.exactHash = exactHash;
+		this.simHash = simHash;
+		this.wordsNumber = wordsNumber;
+	}
+
+	/**
+	 * @return 64-bit hash of the contents
+	 */
+	public long getExactHash() {
+		return exactHash;
+	}
+
+	/**
+	 * @return SimHash of the text
+	 */
+	public long getSimHash() {
+		return simHash;
+	}
+
+	/**
+	 * @return number of words in the text
+	 */
+	public int getWordsNumber() {
+		return wordsNumber;
+	}
+
+	/**
+	 * @param simHash1
+	 * @param simHash2
+	 * @return number of bits the hashes differ in
+	 */
+	public static int distance(long simHash1, long simHash2) {
+		return Long.bitCount(simHash1 ^ simHash2);
+	}
+
+	/**
+	 * Computes fingerprints of the page
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return fingerprints
+	 */
+	public static ContentFingerprint compute(byte[] data, int offset, int length) {
+		// Every bit of SimHash tells whether most feature hashes have it set:
+		BitCounter counter = new BitCounter();
+		int end = offset + length;
+		int wordsNumber = 0;
+		long word = FNV_OFFSET_BASIS;
+		boolean inWord = false;
+		int i = offset;
+		while (i <= end) {
+			int ch = i < end ? data[i] & 0xff : ' ';
+			int wordCharacter = WORD_CHARACTERS[ch] & 0xff;
+			if (wordCharacter != 0) {
+				word = (word ^ wordCharacter) * FNV_PRIME;
+				inWord = true;
+				++i;
+				continue;
+			}
+			if (inWord) {
+				counter.add(URLFingerprint.mix(word));
+				++wordsNumber;
+				word = FNV_OFFSET_BASIS;
+				inWord = false;
+			}
+			i = ch == '<' ? skipMarkup(data, i, end) : ch == '&' ? skipEntity(data, i, end) : i + 1;
+		}
+		return new ContentFingerprint(URLFingerprint.fingerprint(data, offset, length), counter.getMajority(), wordsNumber);
+	}
+
+	/**
+	 * @return position after the tag at the position, or after the script, style or
+	 * comment it starts
+	 */
+	private static int skipMarkup(byte[] data, int i, int end) {
+		if (startsWith(data, i, end, "<!--")) {
+			return skipPast(data, i + 4, end, "-->");
+		}
+		int tagEnd = skipPast(data, i + 1, end, ">");
+		if (startsWith(data, i, end, "<script") && isNameEnd(data, i + 7, end)) {
+			return skipPast(data, tagEnd, end, "</script");
+		}
+		if (startsWith(data, i, end, "<style") && isNameEnd(data, i + 6, end)) {
+			return skipPast(data, tagEnd, end, "</style");
+		}
+		return tagEnd;
+	}
+
+	/**
+	 * @return position after character reference, or after '&' if it isn't one
+	 */
+	private static int skipEntity(byte[] data, int i, int end) {
+		for (int j = i + 1; j < end && j < i + 10; ++j) {
+			if (data[j] == ';') {
+				return j + 1;
+			}
+			if (WORD_CHARACTERS[data[j] & 0xff] == 0 && data[j] != '#') {
+				break;
+			}
+		}
+		return i + 1;
+	}
+
+	private static boolean isNameEnd(byte[] data, int i, int end) {
+		return i >= end || data[i] == '>' || data[i] == '/' || (data[i] & 0xff) <= ' ';
+	}
+
+	/**
+	 * Compares ignoring case of ASCII letters
+	 */
+	private static boolean startsWith(byte[] data, int i, int end, String prefix) {
+		if (end - i < prefix.length()) {
+			return false;
+		}
+		for (int j = 0; j < prefix.length(); ++j) {
+			if (ByteSequence.toLowerCase(data[i + j] & 0xff) != prefix.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Counts how many of added values have every bit set. Counts are kept in bytes of
+	 * eight longs, so that all 64 bits of a value are counted in eight additions.
+	 */
+	private static class BitCounter {
+
+		private static final long LOW_BITS = 0x0101010101010101L;
+
+		// Byte j of lane k counts bit 8 * j + k:
+		private long[] lanes = new long[8];
+		private int[] counts = new int[64];
+		private int pending;
+		private int total;
+
+		void add(long value) {
+			for (int k = 0; k < 8; ++k) {
+				lanes[k] += (value >>> k) & LOW_BITS;
+			}
+			++total;
+			// Byte counters must not overflow:
+			if (++pending == 255) {
+				flush();
+			}
+		}
+
+		/**
+		 * @return value which bits are set if they are set in more than half of the
+		 * added values
+		 */
+		long getMajority() {
+			flush();
+			long majority = 0;
+			for (int bit = 0; bit < 64; ++bit) {
+				if (counts[bit] * 2 > total) {
+					majority |= 1L << bit;
+				}
+			}
+			return majority;
+		}
+
+		private void flush() {
+			for (int k = 0; k < 8; ++k) {
+				for (int j = 0; j < 8; ++j) {
+					counts[8 * j + k] += (int) ((lanes[k] >>> (8 * j)) & 0xff);
+				}
+				lanes[k] = 0;
+			}
+			pending = 0;
+		}
+	}
+
+	/**
+	 * @return position after the first occurrence of the string, or the end
+	 */
+	private static int skipPast(byte[] data, int i, int end, String str) {
+		// Strings start with characters that have no case:
+		byte first = (byte) str.charAt(0);
+		for (; i < end; ++i) {
+			if (data[i] == first && startsWith(data, i, end, str)) {
+				return i + str.length();
+			}
+		}
+		return end;
+	}
+}
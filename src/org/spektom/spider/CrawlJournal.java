@@ -0,0 +1,712 @@
+package org.spektom.spider;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the crawl, which lets a crawl that was killed resume without
+ * retrieving the pages it has already processed. Every URL put into the frontier and
+ * every processed URL is appended to the journal.
+ * <p>
+ * Records are appended to a buffer in memory, and a single writer thread writes the
+ * whole buffer and syncs the file every {@link #getSyncInterval()} milliseconds, so
+ * that crawling threads never wait for the disk, and many records share one sync. At
+ * most the records of the last interval are lost when the machine crashes, and such
+ * pages are retrieved again. Every write is a frame with length and checksum, so that
+ * a partially written frame at the end is detected and ignored.
+ * <p>
+ * Once the journal grows above {@link #getSnapshotSize()}, a new journal is started,
+ * and a background thread merges the previous snapshot and journals into a new
+ * snapshot, which keeps seen URLs once and only the pending URLs, and deletes them.
+ * Resuming reads the latest snapshot and journals written after it.
+ */
+public class CrawlJournal {
+
+	// Journal records:
+	private static final byte ENQUEUED = 'E';
+	private static final byte DONE = 'D';
+	// Snapshot records:
+	private static final byte SEEN = 'S';
+	private static final byte PENDING = 'P';
+
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final int FLUSH_SIZE = 1 << 20;
+	private static final int MAX_FRAME_SIZE = 1 << 30;
+
+	private File directory;
+	private long syncInterval;
+	private long snapshotSize;
+	private Lock lock;
+	private Condition flushNeeded;
+	private RecordBuffer buffer;
+	// Records are encoded by the calling thread, so that only copying is done under the lock:
+	private static final ThreadLocal<RecordBuffer> scratch = new ThreadLocal<RecordBuffer>() {
+		protected RecordBuffer initialValue() {
+			return new RecordBuffer(512);
+		}
+	};
+	// Number of the current journal file:
+	private int number;
+	private FileChannel channel;
+	private long journalSize;
+	private Thread writer;
+	private Thread compactor;
+	private volatile boolean closed;
+	private AtomicLong records;
+	private AtomicLong syncs;
+	private AtomicLong snapshots;
+
+	/**
+	 * @param directory Directory where journal and snapshot files are kept
+	 */
+	public CrawlJournal(File directory) {
+		this.directory = directory;
+		syncInterval = 100;
+		snapshotSize = 64 << 20;
+		lock = new ReentrantLock();
+		flushNeeded = lock.newCondition();
+		buffer = new RecordBuffer();
+		records = new AtomicLong();
+		syncs = new AtomicLong();
+		snapshots = new AtomicLong();
+	}
+
+	/**
+	 * @return directory where journal and snapshot files are kept
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns time between syncs of the journal to disk
+	 * @return syncInterval
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Sets time between syncs of the journal to disk in milliseconds, records of this
+	 * interval may be lost on crash (default: 100)
+	 * @param syncInterval
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = Math.max(1, syncInterval);
+	}
+
+	/**
+	 * Returns size of the journal after which a snapshot is written
+	 * @return snapshotSize
+	 */
+	public long getSnapshotSize() {
+		return snapshotSize;
+	}
+
+	/**
+	 * Sets size of the journal in bytes after which a snapshot is written, and the
+	 * journal is truncated (default: 64 MB)
+	 * @param snapshotSize
+	 */
+	public void setSnapshotSize(long snapshotSize) {
+		this.snapshotSize = snapshotSize;
+	}
+
+	/**
+	 * @return number of records appended since the journal was opened
+	 */
+	public long getRecordsNumber() {
+		return records.get();
+	}
+
+	/**
+	 * @return number of writes synced to disk
+	 */
+	public long getSyncsNumber() {
+		return syncs.get();
+	}
+
+	/**
+	 * @return number of snapshots written
+	 */
+	public long getSnapshotsNumber() {
+		return snapshots.get();
+	}
+
+	/**
+	 * Deletes journal and snapshot files, so that a new crawl is started
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; ++i) {
+			if (getNumber(files[i], JOURNAL_PREFIX) >= 0 || getNumber(files[i], SNAPSHOT_PREFIX) >= 0 || files[i].getName().endsWith(".tmp")) {
+				Files.delete(files[i].toPath());
+			}
+		}
+	}
+
+	/**
+	 * Reads the latest snapshot and journals written after it
+	 * @param seenSet Set where all URLs that were ever queued are added
+	 * @return URLs that were queued, but not processed, in the order they were queued
+	 * @throws IOException
+	 */
+	public List<QueuedURL> replay(final IURLSeenSet seenSet) throws IOException {
+		final Map<String, QueuedURL> pending = new LinkedHashMap<String, QueuedURL>();
+		readState(getLastSnapshot(Integer.MAX_VALUE), Integer.MAX_VALUE, new RecordHandler() {
+			public void seen(String url) {
+				seenSet.add(url);
+			}
+
+			public void pending(String url, int depth, double score, String parent) {
+				try {
+					pending.put(url, new QueuedURL(new URL(url), depth, parent != null ? new URL(parent) : null, score));
+				} catch (MalformedURLException e) {
+					System.err.println("Illegal URL in crawl journal: " + url);
+				}
+			}
+
+			public void done(String url) {
+				pending.remove(url);
+			}
+		});
+		return new ArrayList<QueuedURL>(pending.values());
+	}
+
+	/**
+	 * Starts a new journal file after the existing ones, and the writer thread
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create directory: " + directory);
+		}
+		number = 0;
+		File[] files = directory.listFiles();
+		for (int i = 0; i < files.length; ++i) {
+			number = Math.max(number, Math.max(getNumber(files[i], JOURNAL_PREFIX), getNumber(files[i], SNAPSHOT_PREFIX)) + 1);
+		}
+		openJournal();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "Spider Journal Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Appends record of URL put into the frontier
+	 * @param url
+	 */
+	public void enqueued(QueuedURL url) {
+		RecordBuffer record = scratch.get();
+		record.length = 0;
+		record.put(ENQUEUED, url.getURL().toString(), url.getDepth(), url.getScore(),
+			url.getParent() != null ? url.getParent().toString() : null);
+		lock.lock();
+		try {
+			buffer.put(record);
+			if (buffer.length >= FLUSH_SIZE) {
+				flushNeeded.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		records.incrementAndGet();
+	}
+
+	/**
+	 * Appends record of processed URL
+	 * @param url
+	 */
+	public void done(URL url) {
+		RecordBuffer record = scratch.get();
+		record.length = 0;
+		record.put(DONE, url.toString());
+		lock.lock();
+		try {
+			buffer.put(record);
+			if (buffer.length >= FLUSH_SIZE) {
+				flushNeeded.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		records.incrementAndGet();
+	}
+
+	/**
+	 * Writes and syncs remaining records, and waits for the snapshot being written
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			flushNeeded.signal();
+		} finally {
+			lock.unlock();
+		}
+		join(writer);
+		join(compactor);
+	}
+
+	private static void join(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writer thread: swaps the buffer for an empty one, writes it as a single frame,
+	 * and syncs the file
+	 */
+	private void write() {
+		RecordBuffer writing = new RecordBuffer();
+		while (true) {
+			boolean last;
+			lock.lock();
+			try {
+				if (!closed && buffer.length < FLUSH_SIZE) {
+					flushNeeded.await(syncInterval, TimeUnit.MILLISECONDS);
+				}
+				last = closed;
+				if (writing.length > 0) {
+					// Previous write has failed, new records go after its records:
+					writing.put(buffer);
+					buffer.length = 0;
+				} else {
+					RecordBuffer full = buffer;
+					buffer = writing;
+					writing = full;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				if (writing.length > 0) {
+					journalSize += writeFrame(channel, writing);
+					channel.force(false);
+					syncs.incrementAndGet();
+					writing.length = 0;
+				}
+				if (last) {
+					channel.close();
+					return;
+				}
+				if (journalSize >= snapshotSize && (compactor == null || !compactor.isAlive())) {
+					channel.close();
+					++number;
+					openJournal();
+					startCompaction(number);
+				}
+			} catch (IOException e) {
+				// Records are kept, and written with the next frame to a new journal, since
+				// reading stops at the partially written frame:
+				e.printStackTrace();
+				if (last) {
+					return;
+				}
+				try {
+					channel.close();
+					++number;
+					openJournal();
+				} catch (IOException e2) {
+					e2.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void openJournal() throws IOException {
+		channel = FileChannel.open(getFile(JOURNAL_PREFIX, number).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		journalSize = 0;
+	}
+
+	/**
+	 * Merges the previous snapshot and journals before the given one into a new
+	 * snapshot, in a separate thread
+	 */
+	private void startCompaction(final int snapshotNumber) {
+		compactor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					compact(snapshotNumber);
+				} catch (IOException e) {
+					// Files are kept, the next snapshot will include them
+					e.printStackTrace();
+				}
+			}
+		}, "Spider Journal Compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	private void compact(int snapshotNumber) throws IOException {
+		int previous = getLastSnapshot(snapshotNumber);
+		File tmpFile = new File(directory, SNAPSHOT_PREFIX + snapshotNumber + ".tmp");
+		final FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			final RecordBuffer frame = new RecordBuffer();
+			final Map<String, RecordBuffer> pending = new LinkedHashMap<String, RecordBuffer>();
+			final IOException[] error = new IOException[1];
+			readState(previous, snapshotNumber, new RecordHandler() {
+				public void seen(String url) {
+					frame.put(SEEN, url);
+					if (frame.length >= FLUSH_SIZE) {
+						try {
+							writeFrame(out, frame);
+						} catch (IOException e) {
+							error[0] = e;
+						}
+						frame.length = 0;
+					}
+				}
+
+				public void pending(String url, int depth, double score, String parent) {
+					RecordBuffer record = new RecordBuffer(url.length() + (parent != null ? parent.length() : 0) + 24);
+					record.put(PENDING, url, depth, score, parent);
+					pending.put(url, record);
+				}
+
+				public void done(String url) {
+					pending.remove(url);
+				}
+			});
+			if (error[0] != null) {
+				throw error[0];
+			}
+			Iterator<RecordBuffer> i = pending.values().iterator();
+			while (i.hasNext()) {
+				RecordBuffer record = i.next();
+				frame.put(record);
+				if (frame.length >= FLUSH_SIZE) {
+					writeFrame(out, frame);
+					frame.length = 0;
+				}
+			}
+			if (frame.length > 0) {
+				writeFrame(out, frame);
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), getFile(SNAPSHOT_PREFIX, snapshotNumber).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		snapshots.incrementAndGet();
+
+		// Snapshot replaces all files before it:
+		File[] files = directory.listFiles();
+		for (int j = 0; j < files.length; ++j) {
+			int fileNumber = Math.max(getNumber(files[j], JOURNAL_PREFIX), getNumber(files[j], SNAPSHOT_PREFIX));
+			if (fileNumber >= 0 && fileNumber < snapshotNumber) {
+				Files.delete(files[j].toPath());
+			}
+		}
+	}
+
+	/**
+	 * Reads the snapshot, and journals from its number up to the given one. Every
+	 * queued URL is reported as seen and pending, and processed ones as done.
+	 * @param snapshotNumber Number of snapshot, or -1 if there's none
+	 * @param endNumber Number of the first journal that isn't read
+	 */
+	private void readState(int snapshotNumber, int endNumber, RecordHandler handler) throws IOException {
+		if (snapshotNumber >= 0) {
+			readFile(getFile(SNAPSHOT_PREFIX, snapshotNumber), handler);
+		}
+		List<Integer> journals = new ArrayList<Integer>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; ++i) {
+			int fileNumber = getNumber(files[i], JOURNAL_PREFIX);
+			if (fileNumber >= Math.max(0, snapshotNumber) && fileNumber < endNumber) {
+				journals.add(fileNumber);
+			}
+		}
+		Collections.sort(journals);
+		for (int i = 0; i < journals.size(); ++i) {
+			readFile(getFile(JOURNAL_PREFIX, journals.get(i)), handler);
+		}
+	}
+
+	/**
+	 * Reads records of the file, up to the first incomplete or damaged frame
+	 */
+	private static void readFile(File file, RecordHandler handler) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			CRC32 crc = new CRC32();
+			byte[] data = new byte[0];
+			while (true) {
+				int length;
+				long checksum;
+				try {
+					length = in.readInt();
+					checksum = in.readInt() & 0xffffffffL;
+					if (length < 0 || length > MAX_FRAME_SIZE) {
+						return;
+					}
+					if (data.length < length) {
+						data = new byte[length];
+					}
+					in.readFully(data, 0, length);
+				} catch (EOFException e) {
+					return;
+				}
+				crc.reset();
+				crc.update(data, 0, length);
+				if (crc.getValue() != checksum) {
+					System.err.println("Damaged frame in crawl journal: " + file);
+					return;
+				}
+				readRecords(data, length, handler);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void readRecords(byte[] data, int length, RecordHandler handler) {
+		RecordReader reader = new RecordReader(data);
+		while (reader.position < length) {
+			byte type = data[reader.position++];
+			String url = reader.getString();
+			if (type == DONE) {
+				handler.done(url);
+			} else if (type == SEEN) {
+				handler.seen(url);
+			} else {
+				int depth = reader.getVarInt();
+				double score = Double.longBitsToDouble(reader.getLong());
+				String parent = reader.getString();
+				if (type == ENQUEUED) {
+					handler.seen(url);
+				}
+				handler.pending(url, depth, score, parent.length() > 0 ? parent : null);
+			}
+		}
+	}
+
+	private static long writeFrame(FileChannel channel, RecordBuffer records) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(records.data, 0, records.length);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(records.length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+		ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(records.data, 0, records.length) };
+		long written = 0;
+		while (buffers[1].hasRemaining()) {
+			written += channel.write(buffers);
+		}
+		return written;
+	}
+
+	/**
+	 * @return number of the latest snapshot before the given number, or -1
+	 */
+	private int getLastSnapshot(int before) {
+		int last = -1;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				int fileNumber = getNumber(files[i], SNAPSHOT_PREFIX);
+				if (fileNumber < before) {
+					last = Math.max(last, fileNumber);
+				}
+			}
+		}
+		return last;
+	}
+
+	private File getFile(String prefix, int fileNumber) {
+		return new File(directory, prefix + fileNumber);
+	}
+
+	/**
+	 * @return number of journal or snapshot file with the prefix, or -1 if it's
+	 * another file
+	 */
+	private static int getNumber(File file, String prefix) {
+		String name = file.getName();
+		if (!name.startsWith(prefix)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	interface RecordHandler {
+
+		void seen(String url);
+
+		void pending(String url, int depth, double score, String parent);
+
+		void done(String url);
+	}
+
+	/**
+	 * Growing array of encoded records. Strings are stored as variable-length
+	 * byte count followed by UTF-8 bytes.
+	 */
+	static class RecordBuffer {
+
+		byte[] data;
+		int length;
+
+		RecordBuffer() {
+			this(FLUSH_SIZE + 4096);
+		}
+
+		RecordBuffer(int capacity) {
+			data = new byte[capacity];
+		}
+
+		void put(byte type, String url) {
+			ensureCapacity(1 + 5 + url.length() * 3);
+			data[length++] = type;
+			putString(url);
+		}
+
+		void put(byte type, String url, int depth, double score, String parent) {
+			ensureCapacity(1 + 5 + url.length() * 3 + 5 + 8 + 5 + (parent != null ? parent.length() * 3 : 0));
+			data[length++] = type;
+			putString(url);
+			putVarInt(depth);
+			long bits = Double.doubleToRawLongBits(score);
+			for (int i = 56; i >= 0; i -= 8) {
+				data[length++] = (byte) (bits >>> i);
+			}
+			putString(parent != null ? parent : "");
+		}
+
+		void put(RecordBuffer record) {
+			ensureCapacity(record.length);
+			System.arraycopy(record.data, 0, data, length, record.length);
+			length += record.length;
+		}
+
+		private void putString(String str) {
+			int n = str.length();
+			int i = 0;
+			// URLs are usually ASCII, which is copied without encoding:
+			while (i < n && str.charAt(i) < 0x80) {
+				++i;
+			}
+			if (i == n) {
+				putVarInt(n);
+				for (i = 0; i < n; ++i) {
+					data[length++] = (byte) str.charAt(i);
+				}
+			} else {
+				byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+				putVarInt(bytes.length);
+				System.arraycopy(bytes, 0, data, length, bytes.length);
+				length += bytes.length;
+			}
+		}
+
+		private void putVarInt(int value) {
+			while ((value & ~0x7f) != 0) {
+				data[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+
+		private void ensureCapacity(int size) {
+			if (length + size > data.length) {
+				byte[] newData = new byte[Math.max(data.length * 2, length + size)];
+				System.arraycopy(data, 0, newData, 0, length);
+				data = newData;
+			}
+		}
+	}
+
+	static class RecordReader {
+
+		final byte[] data;
+		int position;
+
+		RecordReader(byte[] data) {
+			this.data = data;
+		}
+
+		String getString() {
+			int length = getVarInt();
+			String str = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return str;
+		}
+
+		int getVarInt() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data[position++];
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		}
+
+		long getLong() {
+			long value = 0;
+			for (int i = 0; i < 8; ++i) {
+				value = (value << 8) | (data[position++] & 0xff);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package org.spektom.spider;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of a crawl. Counters are striped, so that threads
+ * updating them don't contend, and histograms are lock-free, so that metrics can be
+ * always on. They are exposed through JMX while the crawl runs, and can be written
+ * periodically to a file, see {@link MetricsReporter}.
+ */
+public class CrawlMetrics implements CrawlMetricsMXBean {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private Map<CrawlStage, LatencyHistogram> latencies;
+	private LongAdder requests;
+	private LongAdder pages;
+	private LongAdder errors;
+	private LongAdder bytesReceived;
+	private LongAdder inFlight;
+	private LongAdder exactDuplicates;
+	private LongAdder nearDuplicates;
+	private Map<AbortReason, LongAdder> abortedResponses;
+	private ConcurrentMap<String, HostCounters> hosts;
+	private LongSupplier queueDepth;
+	private LongSupplier handlerQueueDepth;
+	private LongSupplier concurrencyLimit;
+	private long startTime;
+
+	public CrawlMetrics() {
+		latencies = new EnumMap<CrawlStage, LatencyHistogram>(CrawlStage.class);
+		CrawlStage[] stages = CrawlStage.values();
+		for (int i = 0; i < stages.length; ++i) {
+			latencies.put(stages[i], new LatencyHistogram());
+		}
+		requests = new LongAdder();
+		pages = new LongAdder();
+		errors = new LongAdder();
+		bytesReceived = new LongAdder();
+		inFlight = new LongAdder();
+		exactDuplicates = new LongAdder();
+		nearDuplicates = new LongAdder();
+		abortedResponses = new EnumMap<AbortReason, LongAdder>(AbortReason.class);
+		AbortReason[] reasons = AbortReason.values();
+		for (int i = 0; i < reasons.length; ++i) {
+			abortedResponses.put(reasons[i], new LongAdder());
+		}
+		hosts = new ConcurrentHashMap<String, HostCounters>();
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records latency of the stage
+	 * @param stage
+	 * @param nanos Latency in nanoseconds
+	 */
+	public void record(CrawlStage stage, long nanos) {
+		latencies.get(stage).record(nanos);
+	}
+
+	/**
+	 * @param stage
+	 * @return histogram of the stage latencies
+	 */
+	public LatencyHistogram getLatency(CrawlStage stage) {
+		return latencies.get(stage);
+	}
+
+	/**
+	 * Counts request sent to the host
+	 * @param host
+	 */
+	public void requestSent(String host) {
+		requests.increment();
+		getHostCounters(host).requests.increment();
+	}
+
+	/**
+	 * Counts failed request: an I/O error or HTTP error status
+	 * @param host
+	 */
+	public void requestFailed(String host) {
+		errors.increment();
+		getHostCounters(host).errors.increment();
+	}
+
+	/**
+	 * Counts retrieved page
+	 * @param bytes Number of bytes that were transferred
+	 */
+	public void pageReceived(long bytes) {
+		pages.increment();
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts retrieved page which contents are duplicate of another page
+	 * @param duplicate
+	 */
+	public void duplicateFound(DuplicateType duplicate) {
+		if (duplicate == DuplicateType.EXACT) {
+			exactDuplicates.increment();
+		} else if (duplicate == DuplicateType.NEAR) {
+			nearDuplicates.increment();
+		}
+	}
+
+	/**
+	 * Counts response which body was cut off
+	 * @param reason
+	 */
+	public void responseAborted(AbortReason reason) {
+		abortedResponses.get(reason).increment();
+	}
+
+	/**
+	 * Counts retrieval that has started
+	 */
+	public void fetchStarted() {
+		inFlight.increment();
+	}
+
+	/**
+	 * Counts retrieval that has finished
+	 */
+	public void fetchFinished() {
+		inFlight.decrement();
+	}
+
+	void setQueueDepthGauge(LongSupplier queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	void setHandlerQueueDepthGauge(LongSupplier handlerQueueDepth) {
+		this.handlerQueueDepth = handlerQueueDepth;
+	}
+
+	void setConcurrencyLimitGauge(LongSupplier concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+	}
+
+	public long getQueueDepth() {
+		return queueDepth != null ? queueDepth.getAsLong() : 0;
+	}
+
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	public long getHandlerQueueDepth() {
+		return handlerQueueDepth != null ? handlerQueueDepth.getAsLong() : 0;
+	}
+
+	public long getConcurrencyLimit() {
+		return concurrencyLimit != null ? concurrencyLimit.getAsLong() : 0;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getPages() {
+		return pages.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getExactDuplicates() {
+		return exactDuplicates.sum();
+	}
+
+	public long getNearDuplicates() {
+		return nearDuplicates.sum();
+	}
+
+	public long getAbortedResponses() {
+		long aborted = 0;
+		Iterator<LongAdder> i = abortedResponses.values().iterator();
+		while (i.hasNext()) {
+			aborted += i.next().sum();
+		}
+		return aborted;
+	}
+
+	/**
+	 * @param reason
+	 * @return number of responses cut off for the reason
+	 */
+	public long getAbortedResponses(AbortReason reason) {
+		return abortedResponses.get(reason).sum();
+	}
+
+	public double getDuplicateRatio() {
+		long pages = this.pages.sum();
+		return pages > 0 ? (exactDuplicates.sum() + nearDuplicates.sum()) / (double) pages : 0;
+	}
+
+	public double getBytesPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed > 0 ? bytesReceived.sum() * 1000.0 / elapsed : 0;
+	}
+
+	public Map<String, Long> getMedianLatencies() {
+		return getPercentiles(50);
+	}
+
+	public Map<String, Long> getP99Latencies() {
+		return getPercentiles(99);
+	}
+
+	public Map<String, Long> getHostErrors() {
+		Map<String, Long> hostErrors = new TreeMap<String, Long>();
+		Iterator<Map.Entry<String, HostCounters>> i = hosts.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, HostCounters> entry = i.next();
+			long errors = entry.getValue().errors.sum();
+			if (errors > 0) {
+				hostErrors.put(entry.getKey(), errors);
+			}
+		}
+		return hostErrors;
+	}
+
+	/**
+	 * Returns all metrics as a single-line JSON object. Latencies are in
+	 * microseconds.
+	 */
+	public String getSnapshot() {
+		StringBuilder buf = new StringBuilder(1024);
+		buf.append("{\"time\":").append(System.currentTimeMillis());
+		buf.append(",\"queueDepth\":").append(getQueueDepth());
+		buf.append(",\"inFlight\":").append(getInFlight());
+		buf.append(",\"handlerQueueDepth\":").append(getHandlerQueueDepth());
+		if (concurrencyLimit != null) {
+			buf.append(",\"concurrencyLimit\":").append(getConcurrencyLimit());
+		}
+		buf.append(",\"requests\":").append(getRequests());
+		buf.append(",\"pages\":").append(getPages());
+		buf.append(",\"errors\":").append(getErrors());
+		buf.append(",\"bytesReceived\":").append(getBytesReceived());
+		buf.append(",\"exactDuplicates\":").append(getExactDuplicates());
+		buf.append(",\"nearDuplicates\":").append(getNearDuplicates());
+		buf.append(",\"abortedResponses\":").append(getAbortedResponses());
+		buf.append(",\"duplicateRatio\":").append(Math.round(getDuplicateRatio() * 10000) / 10000.0);
+		buf.append(",\"bytesPerSecond\":").append(Math.round(getBytesPerSecond()));
+
+		buf.append(",\"latencies\":{");
+		Iterator<Map.Entry<CrawlStage, LatencyHistogram>> i = latencies.entrySet().iterator();
+		boolean first = true;
+		while (i.hasNext()) {
+			Map.Entry<CrawlStage, LatencyHistogram> entry = i.next();
+			LatencyHistogram histogram = entry.getValue();
+			if (histogram.getCount() == 0) {
+				continue;
+			}
+			if (!first) {
+				buf.append(',');
+			}
+			first = false;
+			buf.append('"').append(entry.getKey().name().toLowerCase()).append("\":{\"count\":").append(histogram.getCount());
+			buf.append(",\"mean\":").append(histogram.getSum() / histogram.getCount() / 1000);
+			for (int j = 0; j < PERCENTILES.length; ++j) {
+				buf.append(",\"p").append(PERCENTILES[j] == Math.rint(PERCENTILES[j]) ? Long.toString((long) PERCENTILES[j]) : Double.toString(PERCENTILES[j]).replace(".", "")).append("\":");
+				buf.append(histogram.getPercentile(PERCENTILES[j]) / 1000);
+			}
+			buf.append(",\"max\":").append(histogram.getMax() / 1000).append('}');
+		}
+		buf.append('}');
+
+		buf.append(",\"hosts\":{");
+		Iterator<Map.Entry<String, HostCounters>> j = new TreeMap<String, HostCounters>(hosts).entrySet().iterator();
+		first = true;
+		while (j.hasNext()) {
+			Map.Entry<String, HostCounters> entry = j.next();
+			if (!first) {
+				buf.append(',');
+			}
+			first = false;
+			appendString(buf, entry.getKey());
+			long requests = entry.getValue().requests.sum();
+			long errors = entry.getValue().errors.sum();
+			buf.append(":{\"requests\":").append(requests).append(",\"errors\":").append(errors);
+			buf.append(",\"errorRate\":").append(requests > 0 ? Math.round(errors * 10000.0 / requests) / 10000.0 : 0.0).append('}');
+		}
+		buf.append("}}");
+		return buf.toString();
+	}
+
+	private Map<String, Long> getPercentiles(double percentile) {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		Iterator<Map.Entry<CrawlStage, LatencyHistogram>> i = latencies.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<CrawlStage, LatencyHistogram> entry = i.next();
+			values.put(entry.getKey().name().toLowerCase(), entry.getValue().getPercentile(percentile) / 1000);
+		}
+		return values;
+	}
+
+	private HostCounters getHostCounters(String host) {
+		HostCounters counters = hosts.get(host);
+		if (counters == null) {
+			HostCounters newCounters = new HostCounters();
+			counters = hosts.putIfAbsent(host, newCounters);
+			if (counters == null) {
+				counters = newCounters;
+			}
+		}
+		return counters;
+	}
+
+	private static void appendString(StringBuilder buf, String str) {
+		buf.append('"');
+		for (int i = 0; i < str.length(); ++i) {
+			char ch = str.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				buf.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				buf.append(String.format("\\u%04x", (int) ch));
+			} else {
+				buf.append(ch);
+			}
+		}
+		buf.append('"');
+	}
+
+	static class HostCounters {
+		final LongAdder requests = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+}
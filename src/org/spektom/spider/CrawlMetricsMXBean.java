@@ -0,0 +1,70 @@
+package org.spektom.spider;
+
+import java.util.Map;
+
+/**
+ * Crawl metrics exposed through JMX, see {@link CrawlMetrics}
+ */
+public interface CrawlMetricsMXBean {
+
+	public long getQueueDepth();
+
+	public long getInFlight();
+
+	public long getHandlerQueueDepth();
+
+	/**
+	 * @return current limit of concurrent downloads, or 0 if concurrency is not adaptive
+	 */
+	public long getConcurrencyLimit();
+
+	public long getRequests();
+
+	public long getPages();
+
+	public long getErrors();
+
+	public long getBytesReceived();
+
+	/**
+	 * @return number of pages which contents are the same as contents of another page
+	 */
+	public long getExactDuplicates();
+
+	/**
+	 * @return number of pages which text is almost the same as text of another page
+	 */
+	public long getNearDuplicates();
+
+	/**
+	 * @return number of responses which bodies were cut off by size or time limits
+	 */
+	public long getAbortedResponses();
+
+	/**
+	 * @return share of exact and near duplicates among retrieved pages
+	 */
+	public double getDuplicateRatio();
+
+	public double getBytesPerSecond();
+
+	/**
+	 * @return median latency of every stage in microseconds
+	 */
+	public Map<String, Long> getMedianLatencies();
+
+	/**
+	 * @return 99th percentile latency of every stage in microseconds
+	 */
+	public Map<String, Long> getP99Latencies();
+
+	/**
+	 * @return number of failed requests per host
+	 */
+	public Map<String, Long> getHostErrors();
+
+	/**
+	 * @return all metrics as a JSON object
+	 */
+	public String getSnapshot();
+}
@@ -0,0 +1,47 @@
+package org.spektom.spider;
+
+/**
+ * Stages of page retrieval, which latencies are measured by {@link CrawlMetrics}
+ */
+public enum CrawlStage {
+
+	/**
+	 * Resolving host name of a new connection
+	 */
+	DNS,
+
+	/**
+	 * Establishing a new connection
+	 */
+	CONNECT,
+
+	/**
+	 * From sending request until response headers are received
+	 */
+	FIRST_BYTE,
+
+	/**
+	 * Receiving response body, not counting time spent parsing it
+	 */
+	DOWNLOAD,
+
+	/**
+	 * Finding links in the page
+	 */
+	PARSE,
+
+	/**
+	 * Computing fingerprints of the page, and looking up its duplicates
+	 */
+	FINGERPRINT,
+
+	/**
+	 * Waiting for robots.txt of the site
+	 */
+	ROBOTS,
+
+	/**
+	 * Passing a batch of pages to the handler
+	 */
+	HANDLER
+}
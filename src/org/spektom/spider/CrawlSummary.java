@@ -0,0 +1,99 @@
+package org.spektom.spider;
+
+/**
+ * Totals of a finished crawl, see {@link Spider#start()}
+ */
+public class CrawlSummary {
+
+	private long pages;
+	private long requests;
+	private long errors;
+	private long bytesReceived;
+	private long exactDuplicates;
+	private long nearDuplicates;
+	private long abortedResponses;
+	private long elapsedTime;
+	private boolean stopped;
+
+	CrawlSummary(CrawlMetrics metrics, long elapsedTime, boolean stopped) {
+		pages = metrics.getPages();
+		requests = metrics.getRequests();
+		errors = metrics.getErrors();
+		bytesReceived = metrics.getBytesReceived();
+		exactDuplicates = metrics.getExactDuplicates();
+		nearDuplicates = metrics.getNearDuplicates();
+		abortedResponses = metrics.getAbortedResponses();
+		this.elapsedTime = elapsedTime;
+		this.stopped = stopped;
+	}
+
+	/**
+	 * @return number of retrieved pages
+	 */
+	public long getPages() {
+		return pages;
+	}
+
+	/**
+	 * @return number of sent requests, including redirects
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return number of failed requests
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return number of transferred bytes of retrieved pages
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return number of pages which contents are the same as contents of another page
+	 */
+	public long getExactDuplicates() {
+		return exactDuplicates;
+	}
+
+	/**
+	 * @return number of pages which text is almost the same as text of another page
+	 */
+	public long getNearDuplicates() {
+		return nearDuplicates;
+	}
+
+	/**
+	 * @return number of responses which bodies were cut off by size or time limits
+	 */
+	public long getAbortedResponses() {
+		return abortedResponses;
+	}
+
+	/**
+	 * @return duration of the crawl in milliseconds
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	/**
+	 * @return <code>true</code> if the crawl was stopped before all queued URLs were
+	 * retrieved
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public String toString() {
+		String duplicates = exactDuplicates + nearDuplicates > 0 ? String.format(", duplicates: %d exact, %d near", exactDuplicates, nearDuplicates) : "";
+		String aborted = abortedResponses > 0 ? String.format(", aborted responses: %d", abortedResponses) : "";
+		return String.format("Pages: %d, requests: %d, errors: %d, bytes: %d%s%s, time: %d ms%s", pages, requests, errors, bytesReceived, duplicates, aborted, elapsedTime, stopped ? " (stopped)" : "");
+	}
+}
@@ -0,0 +1,245 @@
+package org.spektom.spider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps addresses of recently resolved hosts. Successful lookups are cached for the
+ * positive TTL and failed ones for the negative TTL, and least recently used hosts are
+ * evicted once there are too many of them. Concurrent lookups of the same host wait for
+ * a single resolution, and hosts can be resolved ahead of time in background threads,
+ * see {@link #prefetch(String)}. Prefetches wait in a bounded queue, and are dropped
+ * when it's full. A lookup of a host which prefetch is still queued resolves the host
+ * itself, instead of waiting behind the queue.
+ */
+public class DNSCache {
+
+	private static final int MAX_QUEUED_PREFETCHES = 1000;
+
+	private IHostResolver resolver;
+	private long ttl;
+	private long negativeTtl;
+	private Map<String, Entry> entries;
+	// Lock is held only while looking up the map, never during resolution:
+	private Lock lock;
+	private ThreadPoolExecutor executor;
+	private AtomicLong lookups;
+	private AtomicLong hits;
+	private AtomicLong droppedPrefetches;
+
+	/**
+	 * Creates cache that uses system resolver, keeps addresses for 5 minutes, failures
+	 * for 30 seconds, and at most 10000 hosts
+	 */
+	public DNSCache() {
+		this(new IHostResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				return InetAddress.getAllByName(host);
+			}
+		}, 5 * 60 * 1000L, 30 * 1000L, 10000);
+	}
+
+	/**
+	 * @param resolver Resolver used on cache misses
+	 * @param ttl Time in milliseconds successful lookup is cached
+	 * @param negativeTtl Time in milliseconds failed lookup is cached
+	 * @param maxHosts Maximal number of hosts kept
+	 */
+	public DNSCache(IHostResolver resolver, long ttl, long negativeTtl, final int maxHosts) {
+		this.resolver = resolver;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxHosts;
+			}
+		};
+		lock = new ReentrantLock();
+		lookups = new AtomicLong();
+		hits = new AtomicLong();
+		droppedPrefetches = new AtomicLong();
+		// Resolution blocks, so prefetching needs threads of its own:
+		executor = new ThreadPoolExecutor(8, 8, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES), new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Spider Resolver #" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns address of the host, resolving it unless it's cached
+	 * @param host
+	 * @return address
+	 * @throws UnknownHostException if the host can't be resolved
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException {
+		lookups.incrementAndGet();
+		Entry entry = getEntry(host);
+		// Queued prefetch is taken over:
+		if (entry.start(Entry.NEW) || entry.start(Entry.QUEUED)) {
+			load(host, entry);
+		} else if (entry.addresses.isDone()) {
+			hits.incrementAndGet();
+		}
+		try {
+			return entry.addresses.join()[0];
+		} catch (CompletionException e) {
+			throw new UnknownHostException(host);
+		}
+	}
+
+	/**
+	 * Starts resolving the host in background, unless it's cached or being resolved,
+	 * or too many hosts are waiting for resolution already
+	 * @param host
+	 * @return <code>true</code> if resolution was queued
+	 */
+	public boolean prefetch(final String host) {
+		final Entry entry = getEntry(host);
+		if (!entry.queue()) {
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					// Unless a lookup has taken it over:
+					if (entry.start(Entry.QUEUED)) {
+						load(host, entry);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			entry.unqueue();
+			droppedPrefetches.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of lookups
+	 */
+	public long getLookupsNumber() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return number of lookups that didn't wait for resolution
+	 */
+	public long getHitsNumber() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of prefetches dropped because the queue was full
+	 */
+	public long getDroppedPrefetchesNumber() {
+		return droppedPrefetches.get();
+	}
+
+	/**
+	 * @return number of hosts in the cache
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return cached entry of the host, or a new one if it's missing or expired
+	 */
+	private Entry getEntry(String host) {
+		String key = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			Entry entry = entries.get(key);
+			if (entry == null || entry.expires < now) {
+				entry = new Entry();
+				entries.put(key, entry);
+			}
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void load(String host, Entry entry) {
+		try {
+			InetAddress[] addresses = resolver.resolve(host);
+			if (addresses == null || addresses.length == 0) {
+				throw new UnknownHostException(host);
+			}
+			entry.expires = System.currentTimeMillis() + ttl;
+			entry.addresses.complete(addresses);
+		} catch (UnknownHostException e) {
+			entry.expires = System.currentTimeMillis() + negativeTtl;
+			entry.addresses.completeExceptionally(e);
+		} catch (RuntimeException e) {
+			entry.expires = System.currentTimeMillis() + negativeTtl;
+			entry.addresses.completeExceptionally(e);
+		}
+	}
+
+	static class Entry {
+
+		static final int NEW = 0;
+		static final int QUEUED = 1;
+		static final int STARTED = 2;
+
+		final CompletableFuture<InetAddress[]> addresses;
+		// Entry doesn't expire while it's being resolved:
+		volatile long expires;
+		private AtomicInteger state;
+
+		Entry() {
+			addresses = new CompletableFuture<InetAddress[]>();
+			expires = Long.MAX_VALUE;
+			state = new AtomicInteger(NEW);
+		}
+
+		/**
+		 * @param from State the entry must be in
+		 * @return <code>true</code> if the caller must resolve the host
+		 */
+		boolean start(int from) {
+			return state.compareAndSet(from, STARTED);
+		}
+
+		/**
+		 * @return <code>true</code> if the caller must queue prefetch of the host
+		 */
+		boolean queue() {
+			return state.compareAndSet(NEW, QUEUED);
+		}
+
+		/**
+		 * Returns entry which prefetch was dropped to the new state
+		 */
+		void unqueue() {
+			state.compareAndSet(QUEUED, NEW);
+		}
+	}
+}
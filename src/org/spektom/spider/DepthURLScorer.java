@@ -0,0 +1,15 @@
+package org.spektom.spider;
+
+/**
+ * Halves the score with every followed link, so that the site is crawled breadth-first
+ */
+public class DepthURLScorer implements IURLScorer {
+
+	public double score(CanonicalURL url, int depth, QueuedURL parent, int linksNumber) {
+		return Math.scalb(1.0, -depth);
+	}
+
+	public boolean needsLinksNumber() {
+		return false;
+	}
+}
@@ -0,0 +1,249 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FIFO queue of URLs kept in append-only segment files, which are mapped into memory.
+ * Every URL is stored as the length of the prefix it shares with the previous URL in the
+ * same segment, followed by the rest of its UTF-8 bytes, so that URLs of the same site
+ * take only a few bytes each. Segments are written and read sequentially, and deleted
+ * once they are read. Nothing is kept on the Java heap except for the last URL written
+ * and read.
+ */
+public class DiskURLQueue {
+
+	private static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+	// Maximal length of two variable-length integers preceding every entry:
+	private static final int MAX_HEADER_SIZE = 10;
+
+	private File directory;
+	private int segmentSize;
+	private Deque<Segment> segments;
+	private Lock lock;
+	private volatile long size;
+	private boolean closed;
+
+	public DiskURLQueue() {
+		this(null);
+	}
+
+	/**
+	 * @param directory Directory where segment files are created, or <code>null</code>
+	 * for the default temporary files directory
+	 */
+	public DiskURLQueue(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory Directory where segment files are created, or <code>null</code>
+	 * for the default temporary files directory
+	 * @param segmentSize Size of a single segment file in bytes
+	 */
+	public DiskURLQueue(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		segments = new ArrayDeque<Segment>();
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * Appends URL to the end of the queue
+	 * @param url
+	 * @throws IOException if a new segment file can't be created
+	 */
+	public void add(String url) throws IOException {
+		byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Queue is closed");
+			}
+			Segment segment = segments.peekLast();
+			if (segment == null || !segment.write(bytes)) {
+				segment = new Segment(Math.max(segmentSize, bytes.length + MAX_HEADER_SIZE));
+				segments.addLast(segment);
+				segment.write(bytes);
+			}
+			++size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes URLs from the head of the queue
+	 * @param urls Collection the URLs are added to
+	 * @param max Maximal number of URLs to remove
+	 * @return number of removed URLs
+	 */
+	public int poll(Collection<String> urls, int max) {
+		lock.lock();
+		try {
+			int count = 0;
+			while (count < max && size > 0) {
+				Segment segment = segments.peekFirst();
+				String url = segment.read();
+				if (url == null) {
+					// Fully read, and there are more segments after it:
+					segments.removeFirst().delete();
+					continue;
+				}
+				urls.add(url);
+				--size;
+				++count;
+			}
+			if (size == 0) {
+				// Reuse the last segment file instead of creating a new one
+				while (segments.size() > 1) {
+					segments.removeFirst().delete();
+				}
+				if (!segments.isEmpty()) {
+					segments.peekFirst().clear();
+				}
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of URLs in the queue
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Deletes all segment files. URLs can't be added after the queue is closed.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			while (!segments.isEmpty()) {
+				segments.removeFirst().delete();
+			}
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	class Segment {
+
+		private File file;
+		private ByteBuffer writeBuffer;
+		private ByteBuffer readBuffer;
+		private byte[] lastWritten;
+		private byte[] lastRead;
+
+		Segment(int capacity) throws IOException {
+			file = File.createTempFile("frontier", ".seg", directory);
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				writeBuffer = buffer;
+				readBuffer = buffer.duplicate();
+			} catch (IOException e) {
+				file.delete();
+				throw e;
+			} finally {
+				// Mapping stays valid after the channel is closed
+				randomAccessFile.close();
+			}
+			clear();
+		}
+
+		/**
+		 * @return <code>false</code> if there's no room left for the URL
+		 */
+		boolean write(byte[] bytes) {
+			int shared = 0;
+			if (lastWritten != null) {
+				int length = Math.min(lastWritten.length, bytes.length);
+				while (shared < length && lastWritten[shared] == bytes[shared]) {
+					++shared;
+				}
+			}
+			if (writeBuffer.remaining() < bytes.length - shared + MAX_HEADER_SIZE) {
+				return false;
+			}
+			putVarInt(shared);
+			putVarInt(bytes.length - shared);
+			writeBuffer.put(bytes, shared, bytes.length - shared);
+			lastWritten = bytes;
+			// Let the reader see what was written:
+			readBuffer.limit(writeBuffer.position());
+			return true;
+		}
+
+		/**
+		 * @return next URL, or <code>null</code> if everything written is already read
+		 */
+		String read() {
+			if (!readBuffer.hasRemaining()) {
+				return null;
+			}
+			int shared = getVarInt();
+			int length = getVarInt();
+			byte[] bytes = new byte[shared + length];
+			if (shared > 0) {
+				System.arraycopy(lastRead, 0, bytes, 0, shared);
+			}
+			readBuffer.get(bytes, shared, length);
+			lastRead = bytes;
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		void clear() {
+			writeBuffer.clear();
+			readBuffer.clear();
+			readBuffer.limit(0);
+			lastWritten = null;
+			lastRead = null;
+		}
+
+		void delete() {
+			// The file is unmapped once the buffers are garbage collected, on most
+			// systems it can be deleted while still mapped
+			writeBuffer = null;
+			readBuffer = null;
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+
+		private void putVarInt(int value) {
+			while ((value & ~0x7f) != 0) {
+				writeBuffer.put((byte) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			writeBuffer.put((byte) value);
+		}
+
+		private int getVarInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = readBuffer.get();
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
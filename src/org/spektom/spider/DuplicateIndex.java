@@ -0,0 +1,135 @@
+package org.spektom.spider;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds pages which contents are the same as, or almost the same as, contents of
+ * pages that were retrieved before, see {@link ContentFingerprint}. Text is almost the
+ * same if SimHashes differ in at most the configured number of bits.
+ * <p>
+ * SimHashes are split into one block more than that number, so at least one block
+ * of a near duplicate equals the same block of the original. Every block has a table
+ * of SimHashes chained by block value, and only SimHashes in chains of the page blocks
+ * are compared. Nothing is kept per page besides the hashes and chain links.
+ */
+public class DuplicateIndex {
+
+	// SimHash of shorter text is unreliable, such pages are only compared exactly:
+	private static final int MIN_WORDS = 16;
+
+	private int maxDistance;
+	private int[] blockShifts;
+	private long[] blockMasks;
+	private OffsetsTable exactHashes;
+	// Block value to index of the last SimHash with it, for every block:
+	private OffsetsTable[] heads;
+	// Index of the previous SimHash with the same block value, for every block:
+	private int[][] next;
+	private long[] simHashes;
+	private int count;
+	private Lock lock;
+
+	/**
+	 * Creates index of near duplicates that differ in at most 3 bits
+	 */
+	public DuplicateIndex() {
+		this(3);
+	}
+
+	/**
+	 * @param maxDistance Maximal number of bits SimHashes of near duplicates differ in,
+	 * 0 means text must be the same. Larger distances find more near duplicates, but
+	 * make lookups slower.
+	 */
+	public DuplicateIndex(int maxDistance) {
+		if (maxDistance < 0 || maxDistance > 15) {
+			throw new IllegalArgumentException("Distance must be between 0 and 15");
+		}
+		this.maxDistance = maxDistance;
+		int blocks = maxDistance + 1;
+		blockShifts = new int[blocks];
+		blockMasks = new long[blocks];
+		heads = new OffsetsTable[blocks];
+		next = new int[blocks][1024];
+		int shift = 0;
+		for (int i = 0; i < blocks; ++i) {
+			int bits = 64 / blocks + (i < 64 % blocks ? 1 : 0);
+			blockShifts[i] = shift;
+			blockMasks[i] = bits == 64 ? -1L : (1L << bits) - 1;
+			heads[i] = new OffsetsTable();
+			shift += bits;
+		}
+		simHashes = new long[1024];
+		exactHashes = new OffsetsTable();
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * @return maximal number of bits SimHashes of near duplicates differ in
+	 */
+	public int getMaxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * Checks whether the page is a duplicate of a page added before, and adds it
+	 * @param fingerprint Fingerprint of the page
+	 * @return how the page relates to pages added before
+	 */
+	public DuplicateType add(ContentFingerprint fingerprint) {
+		long simHash = fingerprint.getSimHash();
+		boolean near = fingerprint.getWordsNumber() >= MIN_WORDS;
+		lock.lock();
+		try {
+			if (exactHashes.put(fingerprint.getExactHash(), 0) >= 0) {
+				return DuplicateType.EXACT;
+			}
+			if (!near) {
+				return DuplicateType.UNIQUE;
+			}
+			for (int i = 0; i < blockShifts.length; ++i) {
+				long j = heads[i].get(getBlock(simHash, i));
+				while (j >= 0) {
+					if (ContentFingerprint.distance(simHash, simHashes[(int) j]) <= maxDistance) {
+						return DuplicateType.NEAR;
+					}
+					j = next[i][(int) j];
+				}
+			}
+
+			if (count == simHashes.length) {
+				simHashes = Arrays.copyOf(simHashes, count * 2);
+				for (int i = 0; i < next.length; ++i) {
+					next[i] = Arrays.copyOf(next[i], count * 2);
+				}
+			}
+			simHashes[count] = simHash;
+			for (int i = 0; i < blockShifts.length; ++i) {
+				long previous = heads[i].put(getBlock(simHash, i), count);
+				next[i][count] = (int) previous;
+			}
+			++count;
+			return DuplicateType.UNIQUE;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of pages which SimHashes are kept
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long getBlock(long simHash, int i) {
+		return (simHash >>> blockShifts[i]) & blockMasks[i];
+	}
+}
@@ -0,0 +1,23 @@
+package org.spektom.spider;
+
+/**
+ * How page contents relate to pages that were retrieved before, see
+ * {@link DuplicateIndex}
+ */
+public enum DuplicateType {
+
+	/**
+	 * Contents weren't seen before
+	 */
+	UNIQUE,
+
+	/**
+	 * Same contents were retrieved from another URL
+	 */
+	EXACT,
+
+	/**
+	 * Text of the page is almost the same as text of another page
+	 */
+	NEAR
+}
@@ -0,0 +1,63 @@
+package org.spektom.spider;
+
+/**
+ * What is known about a page from its last retrieval
+ */
+public class FetchMetadata {
+
+	private long lastModified;
+	private String etag;
+	private long contentHash;
+	private long fetchTime;
+	private String[] outlinks;
+
+	/**
+	 * @param lastModified Value of Last-Modified header in milliseconds, or 0
+	 * @param etag Value of ETag header, or <code>null</code>
+	 * @param contentHash Fingerprint of the page contents
+	 * @param fetchTime Time when the page was retrieved in milliseconds
+	 * @param outlinks Links that were followed from the page
+	 */
+	public FetchMetadata(long lastModified, String etag, long contentHash, long fetchTime, String[] outlinks) {
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.contentHash = contentHash;
+		this.fetchTime = fetchTime;
+		this.outlinks = outlinks;
+	}
+
+	/**
+	 * @return value of Last-Modified header in milliseconds, or 0 if there was none
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return value of ETag header, or <code>null</code> if there was none
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return fingerprint of the page contents
+	 */
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return time when the page was retrieved in milliseconds
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	/**
+	 * @return links that were followed from the page
+	 */
+	public String[] getOutlinks() {
+		return outlinks;
+	}
+}
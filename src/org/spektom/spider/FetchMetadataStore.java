@@ -0,0 +1,270 @@
+package org.spektom.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps {@link FetchMetadata} of retrieved pages in an append-only file, so that the
+ * next crawl can send conditional requests. Only offsets of the records, keyed by
+ * 64-bit URL fingerprints, are kept in memory. Links of a record are stored as the
+ * length of the prefix shared with the previous link, followed by the rest. Strings are
+ * stored as UTF-8 bytes preceded by their length, so they're not limited to 64 KB like
+ * with {@link DataOutputStream#writeUTF(String)}.
+ * <p>
+ * Updated records are appended, and the file is compacted on close when more than
+ * half of it is taken by outdated records. The compacted file is synced to disk
+ * before it atomically replaces the old one. Appended records are not synced until
+ * the store is closed, so a crash may lose records of the last pages, which only
+ * makes the next crawl retrieve them without conditions. A record cut by a crash is
+ * discarded when the file is opened.
+ */
+public class FetchMetadataStore {
+
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private OffsetsTable offsets;
+	private long deadBytes;
+	private Lock lock;
+
+	/**
+	 * Opens the store, creating the file if it doesn't exist
+	 * @param file
+	 * @throws IOException
+	 */
+	public FetchMetadataStore(File file) throws IOException {
+		this.file = file;
+		offsets = new OffsetsTable();
+		lock = new ReentrantLock();
+		load();
+		randomAccessFile = new RandomAccessFile(file, "rw");
+	}
+
+	/**
+	 * @param url
+	 * @return metadata of the page, or <code>null</code> if it was never retrieved
+	 * @throws IOException
+	 */
+	public FetchMetadata get(String url) throws IOException {
+		long fingerprint = URLFingerprint.fingerprint(url);
+		byte[] record;
+		lock.lock();
+		try {
+			long offset = offsets.get(fingerprint);
+			if (offset < 0) {
+				return null;
+			}
+			randomAccessFile.seek(offset);
+			record = new byte[randomAccessFile.readInt()];
+			randomAccessFile.readFully(record);
+		} finally {
+			lock.unlock();
+		}
+		return read(new DataInputStream(new ByteArrayInputStream(record)));
+	}
+
+	/**
+	 * Stores metadata of the page, replacing the previous one
+	 * @param url
+	 * @param metadata
+	 * @throws IOException
+	 */
+	public void put(String url, FetchMetadata metadata) throws IOException {
+		long fingerprint = URLFingerprint.fingerprint(url);
+		byte[] record = toRecord(fingerprint, metadata);
+		lock.lock();
+		try {
+			long previous = offsets.get(fingerprint);
+			if (previous >= 0) {
+				randomAccessFile.seek(previous);
+				deadBytes += 4 + randomAccessFile.readInt();
+			}
+			long offset = randomAccessFile.length();
+			randomAccessFile.seek(offset);
+			randomAccessFile.write(record);
+			offsets.put(fingerprint, offset);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of pages in the store
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return offsets.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Compacts the file if needed, and closes it
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (deadBytes * 2 > randomAccessFile.length()) {
+				compact();
+			} else {
+				randomAccessFile.getChannel().force(false);
+			}
+			randomAccessFile.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the file leaving only the latest records
+	 */
+	private void compact() throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmpFile);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		OffsetsTable newOffsets = new OffsetsTable();
+		try {
+			long position = 0;
+			for (int i = 0; i < offsets.keys.length; ++i) {
+				if (offsets.keys[i] != OffsetsTable.EMPTY) {
+					randomAccessFile.seek(offsets.values[i]);
+					byte[] record = new byte[randomAccessFile.readInt()];
+					randomAccessFile.readFully(record);
+					out.writeInt(record.length);
+					out.write(record);
+					newOffsets.put(offsets.keys[i], position);
+					position += 4 + record.length;
+				}
+			}
+			out.flush();
+			fileOut.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		randomAccessFile.close();
+		// Either the old or the compacted file is there after a crash:
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		offsets = newOffsets;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		deadBytes = 0;
+	}
+
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				long fingerprint = in.readLong();
+				in.skipNBytes(length - 8);
+				long previous = offsets.put(fingerprint, position);
+				if (previous >= 0) {
+					deadBytes += 4 + length;
+				}
+				position += 4 + length;
+			}
+		} catch (EOFException e) {
+			// End of file, or the last record is incomplete
+		} finally {
+			in.close();
+		}
+		if (position < file.length()) {
+			RandomAccessFile r = new RandomAccessFile(file, "rw");
+			try {
+				r.setLength(position);
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	private static byte[] toRecord(long fingerprint, FetchMetadata metadata) throws IOException {
+		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(byteOut);
+		// Placeholder for the length:
+		out.writeInt(0);
+		out.writeLong(fingerprint);
+		out.writeLong(metadata.getLastModified());
+		writeString(out, metadata.getETag() != null ? metadata.getETag() : "");
+		out.writeLong(metadata.getContentHash());
+		out.writeLong(metadata.getFetchTime());
+
+		String[] outlinks = metadata.getOutlinks();
+		out.writeInt(outlinks.length);
+		String last = "";
+		for (int i = 0; i < outlinks.length; ++i) {
+			String link = outlinks[i];
+			int shared = 0;
+			int length = Math.min(Math.min(last.length(), link.length()), 0xffff);
+			while (shared < length && last.charAt(shared) == link.charAt(shared)) {
+				++shared;
+			}
+			// Rest of the link can't start in the middle of a surrogate pair, it's encoded apart:
+			if (shared > 0 && Character.isHighSurrogate(link.charAt(shared - 1))) {
+				--shared;
+			}
+			out.writeShort(shared);
+			writeString(out, link.substring(shared));
+			last = link;
+		}
+		out.close();
+
+		byte[] record = byteOut.toByteArray();
+		int length = record.length - 4;
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		return record;
+	}
+
+	private static FetchMetadata read(DataInputStream in) throws IOException {
+		// Fingerprint:
+		in.readLong();
+		long lastModified = in.readLong();
+		String etag = readString(in);
+		long contentHash = in.readLong();
+		long fetchTime = in.readLong();
+
+		String[] outlinks = new String[in.readInt()];
+		String last = "";
+		for (int i = 0; i < outlinks.length; ++i) {
+			int shared = in.readUnsignedShort();
+			outlinks[i] = last.substring(0, shared) + readString(in);
+			last = outlinks[i];
+		}
+		return new FetchMetadata(lastModified, etag.length() > 0 ? etag : null, contentHash, fetchTime, outlinks);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
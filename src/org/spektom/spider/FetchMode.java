@@ -0,0 +1,25 @@
+package org.spektom.spider;
+
+/**
+ * Defines how {@link Spider} retrieves Web pages
+ */
+public enum FetchMode {
+
+	/**
+	 * Every worker thread blocks on its connection for the whole download
+	 */
+	BLOCKING,
+
+	/**
+	 * Requests are sent using non-blocking I/O, so that many downloads are in
+	 * flight at once while only a few threads process received pages
+	 */
+	ASYNC,
+
+	/**
+	 * Every download runs as a separate task in its own virtual thread, which doesn't
+	 * occupy an OS thread while blocked. Platform threads are used on Java runtimes
+	 * without virtual threads support
+	 */
+	VIRTUAL
+}
@@ -0,0 +1,106 @@
+package org.spektom.spider;
+
+import java.net.URL;
+
+/**
+ * Retrieved page, as it's passed to {@link IBatchSpiderHandler}
+ */
+public class FetchedPage {
+
+	private URL url;
+	private long lastModified;
+	private byte[] content;
+	private String contentEncoding;
+	private byte[] encodedContent;
+	// Bytes of the contents taken from the budget, given back once the page is handled:
+	private ByteBudget budget;
+	private Object budgetOwner;
+	private long budgetBytes;
+	// Journal that records the page as processed once it's handled:
+	private CrawlJournal journal;
+
+	/**
+	 * @param url
+	 * @param lastModified
+	 * @param content Page contents
+	 * @param contentEncoding Encoding the page was transferred with, or <code>null</code>
+	 * @param encodedContent Contents as they were transferred, or <code>null</code>
+	 */
+	public FetchedPage(URL url, long lastModified, byte[] content, String contentEncoding, byte[] encodedContent) {
+		this.url = url;
+		this.lastModified = lastModified;
+		this.content = content;
+		this.contentEncoding = contentEncoding;
+		this.encodedContent = encodedContent;
+	}
+
+	/**
+	 * @return URL of the page
+	 */
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * @return value of Last-Modified header in milliseconds, or 0
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return page contents
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @return encoding the page was transferred with, or <code>null</code> if it
+	 * wasn't compressed
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * @return contents as they were transferred, or <code>null</code> if they weren't
+	 * kept, see {@link IEncodedContentHandler}
+	 */
+	public byte[] getEncodedContent() {
+		return encodedContent;
+	}
+
+	/**
+	 * Makes the page hold bytes of its contents taken from the budget, until
+	 * {@link #release()}
+	 */
+	void holdBudget(ByteBudget budget, Object owner, long bytes) {
+		this.budget = budget;
+		budgetOwner = owner;
+		budgetBytes = bytes;
+	}
+
+	/**
+	 * Makes {@link #release()} record the page in the journal as processed, so that
+	 * a page which isn't stored yet is retrieved again when the crawl is resumed
+	 */
+	void recordWhenReleased(CrawlJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Gives bytes of the contents back to the budget, and records the page in the
+	 * journal, once the handler is done with the page
+	 */
+	void release() {
+		if (budget != null) {
+			budget.release(budgetOwner, budgetBytes);
+			budget = null;
+		}
+		if (journal != null) {
+			journal.done(url);
+			journal = null;
+		}
+	}
+}
@@ -111,4 +111,23 @@ public class FileMatcher {
 		Pattern p = Pattern.compile(globToPerl5(pattern.toCharArray()));
 		return p.matcher(string).matches();
 	}
+
+	/**
+	 * Converts Glob pattern into regular expression, so that it can be compiled once
+	 * and matched many times, see {@link #matches(String, String)} for Glob syntax.
+	 * @param pattern Glob-style pattern
+	 * @return regular expression
+	 */
+	public static String toRegex(String pattern) {
+		return globToPerl5(pattern.toCharArray());
+	}
+
+	/**
+	 * Checks whether character has special meaning in Glob pattern
+	 * @param ch
+	 * @return <code>true</code> if the character is special
+	 */
+	public static boolean isMetaCharacter(char ch) {
+		return isGlobMetaCharacter(ch) || ch == '\\';
+	}
 }
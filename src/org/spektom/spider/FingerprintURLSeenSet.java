@@ -0,0 +1,165 @@
+package org.spektom.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps 64-bit fingerprints of URLs in open-addressed tables of primitive longs.
+ * Every slot takes 8 bytes, and tables are kept at most half full, so the set costs
+ * 16 to 32 bytes per URL. Tables can be allocated outside of the Java heap.
+ * <p>
+ * The set is split into segments by the fingerprint's high bits, every segment has
+ * its own lock, so that concurrent callers rarely contend.
+ */
+public class FingerprintURLSeenSet implements IURLSeenSet {
+
+	private static final int SEGMENT_BITS = 6;
+	// Direct buffers are limited to 2 GB:
+	private static final int MAX_CAPACITY = 1 << 27;
+	// Zero marks empty slot, so it's replaced with another value:
+	private static final long EMPTY = 0;
+	private static final long ZERO_REPLACEMENT = 1;
+
+	private Segment[] segments;
+	private boolean offHeap;
+
+	public FingerprintURLSeenSet() {
+		this(1 << 20, false);
+	}
+
+	/**
+	 * @param expectedSize Expected number of URLs, tables grow when it's exceeded
+	 * @param offHeap Whether to allocate tables in direct memory
+	 */
+	public FingerprintURLSeenSet(long expectedSize, boolean offHeap) {
+		this.offHeap = offHeap;
+		segments = new Segment[1 << SEGMENT_BITS];
+		long segmentSize = Math.max(16, (expectedSize >> SEGMENT_BITS) * 2);
+		int capacity = Integer.highestOneBit((int) Math.min(segmentSize, MAX_CAPACITY) - 1) << 1;
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i] = new Segment(capacity);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if tables are allocated outside of the Java heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	public boolean add(String url) {
+		long fingerprint = getFingerprint(url);
+		return getSegment(fingerprint).add(fingerprint);
+	}
+
+	public boolean contains(String url) {
+		long fingerprint = getFingerprint(url);
+		return getSegment(fingerprint).contains(fingerprint);
+	}
+
+	public long size() {
+		long size = 0;
+		for (int i = 0; i < segments.length; ++i) {
+			size += segments[i].count;
+		}
+		return size;
+	}
+
+	private static long getFingerprint(String url) {
+		long fingerprint = URLFingerprint.fingerprint(url);
+		return fingerprint == EMPTY ? ZERO_REPLACEMENT : fingerprint;
+	}
+
+	private Segment getSegment(long fingerprint) {
+		return segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))];
+	}
+
+	private LongBuffer allocate(int capacity) {
+		if (offHeap) {
+			return ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		}
+		return LongBuffer.allocate(capacity);
+	}
+
+	class Segment {
+
+		private Lock lock;
+		private LongBuffer table;
+		private int mask;
+		private volatile int count;
+
+		Segment(int capacity) {
+			lock = new ReentrantLock();
+			table = allocate(capacity);
+			mask = capacity - 1;
+		}
+
+		boolean add(long fingerprint) {
+			lock.lock();
+			try {
+				// Keep load factor below 0.5, so that probe sequences stay short:
+				if ((count + 1) * 2 > mask + 1) {
+					if (mask + 1 < MAX_CAPACITY) {
+						resize();
+					} else if (count + 1 >= mask + 1) {
+						throw new IllegalStateException("URL fingerprints table is full");
+					}
+				}
+				if (insert(table, mask, fingerprint)) {
+					++count;
+					return true;
+				}
+				return false;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean contains(long fingerprint) {
+			lock.lock();
+			try {
+				int i = (int) fingerprint & mask;
+				long value;
+				while ((value = table.get(i)) != EMPTY) {
+					if (value == fingerprint) {
+						return true;
+					}
+					i = (i + 1) & mask;
+				}
+				return false;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void resize() {
+			int newMask = (mask << 1) | 1;
+			LongBuffer newTable = allocate(newMask + 1);
+			for (int i = 0; i <= mask; ++i) {
+				long value = table.get(i);
+				if (value != EMPTY) {
+					insert(newTable, newMask, value);
+				}
+			}
+			table = newTable;
+			mask = newMask;
+		}
+
+		private boolean insert(LongBuffer table, int mask, long fingerprint) {
+			// High bits select the segment, low bits select the slot:
+			int i = (int) fingerprint & mask;
+			long value;
+			while ((value = table.get(i)) != EMPTY) {
+				if (value == fingerprint) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			table.put(i, fingerprint);
+			return true;
+		}
+	}
+}
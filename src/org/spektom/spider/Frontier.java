@@ -0,0 +1,743 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Queue of URLs waiting for retrieval, split into per-host queues. Hosts that have
+ * pending URLs, and are below the limit of concurrent downloads, are served in round
+ * robin order, so that a big site doesn't starve all others.
+ * <p>
+ * URLs are taken best-first by their scores (see {@link QueuedURL#getScore()}).
+ * Instead of a heap, every host queue and the ready hosts queue are split into
+ * {@value #BUCKETS} FIFO buckets, one per power of two of the score: bucket 0 holds
+ * scores of 1 and above, bucket 1 scores from 1/2 to 1, and so on. Ready host is put
+ * into the bucket of its best URL at the time it becomes ready, and consumers take
+ * hosts from the first non-empty bucket.
+ * <p>
+ * All structures are lock-free. Every host that becomes ready wakes exactly one
+ * waiting consumer. Every URL taken from the frontier must be reported back using
+ * {@link #done(URL)} once it is processed; when no URLs are pending and none are
+ * being processed, the frontier closes itself and releases all waiting consumers.
+ * <p>
+ * Number of URLs kept in memory can be limited, see {@link #setMaxMemoryURLs(int)}.
+ * URLs above the limit are spilled to a {@link DiskURLQueue}, and moved back in
+ * batches once half of the in-memory URLs are taken.
+ * <p>
+ * Hosts may have crawl delay, see {@link #setCrawlDelay(URL, long)}. Once URL of such
+ * host is taken, the host is put back to the ready queue only when the delay expires.
+ * <p>
+ * Queue of a host is removed once it has no waiting URLs and none are being
+ * processed, so that hosts seen during a long crawl don't pile up. Queues of hosts
+ * with their own crawl delay or connections limit are kept, so that the settings
+ * aren't lost.
+ */
+public class Frontier {
+
+	static final int BUCKETS = 32;
+
+	private ConcurrentMap<String, HostQueue> hosts;
+	// Number of URLs ever added per host, if the number is limited:
+	private ConcurrentMap<String, AtomicInteger> hostURLs;
+	// Ready hosts by the score bucket of their best URL:
+	private List<Queue<HostQueue>> readyHosts;
+	// Bits of buckets of readyHosts that were ever used, so that only they are scanned:
+	private AtomicInteger readyBuckets;
+	// Number of entries in readyHosts, consumers wait on it:
+	private Semaphore readyPermits;
+	// Number of URLs waiting in memory:
+	private AtomicInteger size;
+	// Number of pending URLs plus number of URLs being processed:
+	private AtomicInteger outstanding;
+	private AtomicBoolean closed;
+	private volatile boolean closeWhenDone;
+	private int maxHostConnections;
+	private int maxHostURLs;
+	private int maxMemoryURLs;
+	private File spillDirectory;
+	private volatile DiskURLQueue spillQueue;
+	private Lock spillLock;
+	private ScheduledExecutorService delayTimer;
+
+	public Frontier() {
+		hosts = new ConcurrentHashMap<String, HostQueue>();
+		hostURLs = new ConcurrentHashMap<String, AtomicInteger>();
+		readyHosts = new ArrayList<Queue<HostQueue>>(BUCKETS);
+		for (int i = 0; i < BUCKETS; ++i) {
+			readyHosts.add(new ConcurrentLinkedQueue<HostQueue>());
+		}
+		readyBuckets = new AtomicInteger();
+		readyPermits = new Semaphore(0);
+		size = new AtomicInteger();
+		outstanding = new AtomicInteger();
+		closed = new AtomicBoolean();
+		closeWhenDone = true;
+		maxHostConnections = Integer.MAX_VALUE;
+		maxMemoryURLs = Integer.MAX_VALUE;
+		spillLock = new ReentrantLock();
+		// Thread is started only when the first delay is scheduled:
+		delayTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Spider Frontier Timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns maximal number of URLs of a single host that can be processed concurrently
+	 * @return maxHostConnections
+	 */
+	public int getMaxHostConnections() {
+		return maxHostConnections;
+	}
+
+	/**
+	 * Sets maximal number of URLs of a single host that can be processed concurrently
+	 * @param maxHostConnections
+	 */
+	public void setMaxHostConnections(int maxHostConnections) {
+		this.maxHostConnections = maxHostConnections;
+	}
+
+	/**
+	 * Returns whether the frontier closes itself once no URLs are pending or being
+	 * processed
+	 * @return closeWhenDone
+	 */
+	public boolean isCloseWhenDone() {
+		return closeWhenDone;
+	}
+
+	/**
+	 * Sets whether the frontier closes itself once no URLs are pending or being
+	 * processed (default: true). Otherwise consumers wait for new URLs until
+	 * {@link #close()} is called, when URLs may come from elsewhere.
+	 * @param closeWhenDone
+	 */
+	public void setCloseWhenDone(boolean closeWhenDone) {
+		this.closeWhenDone = closeWhenDone;
+	}
+
+	/**
+	 * Returns maximal number of URLs of a single host that are ever added
+	 * @return maxHostURLs, or 0 if unlimited
+	 */
+	public int getMaxHostURLs() {
+		return maxHostURLs;
+	}
+
+	/**
+	 * Sets maximal number of URLs of a single host that are ever added, the rest are
+	 * refused (default: unlimited)
+	 * @param maxHostURLs Limit, or 0 for unlimited
+	 */
+	public void setMaxHostURLs(int maxHostURLs) {
+		this.maxHostURLs = Math.max(0, maxHostURLs);
+	}
+
+	/**
+	 * Returns maximal number of waiting URLs kept in memory
+	 * @return maxMemoryURLs
+	 */
+	public int getMaxMemoryURLs() {
+		return maxMemoryURLs;
+	}
+
+	/**
+	 * Sets maximal number of waiting URLs kept in memory, the rest are spilled to disk
+	 * (default: unlimited)
+	 * @param maxMemoryURLs
+	 */
+	public void setMaxMemoryURLs(int maxMemoryURLs) {
+		this.maxMemoryURLs = Math.max(1, maxMemoryURLs);
+	}
+
+	/**
+	 * Returns directory where spilled URLs are stored
+	 * @return spillDirectory
+	 */
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets directory where spilled URLs are stored (default: temporary files directory)
+	 * @param spillDirectory
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Sets minimal delay between taking successive URLs of the host
+	 * @param url Any URL of the host
+	 * @param crawlDelay Delay in milliseconds, or 0 for no delay
+	 */
+	public void setCrawlDelay(URL url, long crawlDelay) {
+		getHostQueue(url).crawlDelay = crawlDelay;
+	}
+
+	/**
+	 * Sets maximal number of URLs of the host that can be processed concurrently,
+	 * instead of the limit common to all hosts
+	 * @param url Any URL of the host
+	 * @param maxConnections Limit of the host, or 0 for the common limit
+	 */
+	public void setMaxHostConnections(URL url, int maxConnections) {
+		HostQueue hostQueue = getHostQueue(url);
+		if (hostQueue.maxConnections != maxConnections) {
+			hostQueue.maxConnections = maxConnections;
+			// The host may be ready now:
+			schedule(hostQueue);
+		}
+	}
+
+	/**
+	 * Adds URL at depth 0 with the highest score
+	 * @param url
+	 * @return <code>false</code> if the host has reached its limit of URLs
+	 */
+	public boolean add(URL url) {
+		return add(new QueuedURL(url, 0, null, 1.0));
+	}
+
+	/**
+	 * Adds URL to the queue of its host, or spills it to disk if there are too many
+	 * URLs in memory
+	 * @param queuedURL
+	 * @return <code>false</code> if the host has reached its limit of URLs, see
+	 * {@link #setMaxHostURLs(int)}
+	 */
+	public boolean add(QueuedURL queuedURL) {
+		if (maxHostURLs > 0 && getHostURLs(queuedURL.getURL()).incrementAndGet() > maxHostURLs) {
+			return false;
+		}
+		enqueue(queuedURL);
+		return true;
+	}
+
+	/**
+	 * Adds URL that was accepted before, like pending URL of a resumed crawl. It counts
+	 * against the limit of its host, but it's never refused.
+	 * @param queuedURL
+	 */
+	void restore(QueuedURL queuedURL) {
+		if (maxHostURLs > 0) {
+			getHostURLs(queuedURL.getURL()).incrementAndGet();
+		}
+		enqueue(queuedURL);
+	}
+
+	private void enqueue(QueuedURL queuedURL) {
+		outstanding.incrementAndGet();
+
+		// Once spilling has started, new URLs go to disk until it's drained, so
+		// that FIFO order is kept:
+		DiskURLQueue spillQueue = this.spillQueue;
+		if (size.get() >= maxMemoryURLs || (spillQueue != null && spillQueue.size() > 0)) {
+			try {
+				getSpillQueue().add(encode(queuedURL));
+				// Consumers may have drained memory meanwhile:
+				refill();
+				return;
+			} catch (IOException e) {
+				// Keep it in memory then
+				e.printStackTrace();
+			}
+		}
+		addToMemory(queuedURL);
+	}
+
+	/**
+	 * Takes next URL without waiting
+	 * @return URL, or <code>null</code> if no host is ready
+	 */
+	public QueuedURL poll() {
+		refill();
+		while (readyPermits.tryAcquire()) {
+			if (closed.get()) {
+				readyPermits.release();
+				return null;
+			}
+			QueuedURL url = pollReadyHost();
+			if (url != null) {
+				return url;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes next URL, waiting until some host is ready
+	 * @return URL, or <code>null</code> if the frontier is closed
+	 * @throws InterruptedException
+	 */
+	public QueuedURL take() throws InterruptedException {
+		while (true) {
+			if (closeWhenDone && outstanding.get() == 0) {
+				close();
+			}
+			refill();
+			readyPermits.acquire();
+			if (closed.get()) {
+				// Leave the permit for other waiting consumers:
+				readyPermits.release();
+				return null;
+			}
+			QueuedURL url = pollReadyHost();
+			if (url != null) {
+				return url;
+			}
+		}
+	}
+
+	/**
+	 * Takes next URL, waiting until some host is ready or timeout expires
+	 * @param timeout
+	 * @param unit
+	 * @return URL, or <code>null</code> if the frontier is closed or timeout has expired
+	 * @throws InterruptedException
+	 */
+	public QueuedURL take(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			refill();
+			if (!readyPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return null;
+			}
+			if (closed.get()) {
+				readyPermits.release();
+				return null;
+			}
+			QueuedURL url = pollReadyHost();
+			if (url != null) {
+				return url;
+			}
+		}
+	}
+
+	/**
+	 * Reports that URL taken from this frontier is processed, so that other URLs of
+	 * the same host may be taken
+	 * @param url
+	 */
+	public void done(URL url) {
+		HostQueue hostQueue = hosts.get(getHostKey(url));
+		hostQueue.inFlight.decrementAndGet();
+		schedule(hostQueue);
+		removeIfIdle(hostQueue);
+
+		if (outstanding.decrementAndGet() == 0 && closeWhenDone) {
+			close();
+		}
+	}
+
+	/**
+	 * @return number of URLs waiting in the frontier, including spilled ones
+	 */
+	public long size() {
+		DiskURLQueue spillQueue = this.spillQueue;
+		return size.get() + (spillQueue != null ? spillQueue.size() : 0);
+	}
+
+	/**
+	 * @return <code>true</code> if no URLs are pending or being processed
+	 */
+	public boolean isIdle() {
+		return outstanding.get() == 0;
+	}
+
+	/**
+	 * @return <code>true</code> if there are no URLs waiting in the frontier
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Releases all consumers waiting for URLs. Consumers will get no URLs after the
+	 * frontier is closed.
+	 */
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			readyPermits.release(Integer.MAX_VALUE / 2);
+			if (spillQueue != null) {
+				spillQueue.close();
+			}
+			delayTimer.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the frontier is closed
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	private static String getHostKey(URL url) {
+		return url.getHost();
+	}
+
+	/**
+	 * @return index of the bucket for URLs with the score
+	 */
+	static int getBucket(double score) {
+		if (score >= 1.0) {
+			return 0;
+		}
+		if (!(score > 0.0)) {
+			return BUCKETS - 1;
+		}
+		return Math.min(BUCKETS - 1, -Math.getExponent(score));
+	}
+
+	private void addToMemory(final QueuedURL queuedURL) {
+		size.incrementAndGet();
+		// Added atomically with respect to removal of the idle host queue:
+		HostQueue hostQueue = hosts.compute(getHostKey(queuedURL.getURL()), new BiFunction<String, HostQueue, HostQueue>() {
+			public HostQueue apply(String key, HostQueue hostQueue) {
+				if (hostQueue == null) {
+					hostQueue = new HostQueue(key);
+				}
+				hostQueue.getBucket(getBucket(queuedURL.getScore())).add(queuedURL);
+				return hostQueue;
+			}
+		});
+		schedule(hostQueue);
+	}
+
+	/**
+	 * Spilled URL is a line of URL, depth, score and parent URL separated by tabs,
+	 * so that prefixes of successive URLs are still shared
+	 */
+	private static String encode(QueuedURL queuedURL) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(queuedURL.getURL()).append('\t').append(queuedURL.getDepth()).append('\t').append(queuedURL.getScore());
+		if (queuedURL.getParent() != null) {
+			buf.append('\t').append(queuedURL.getParent());
+		}
+		return buf.toString();
+	}
+
+	private static QueuedURL decode(String line) throws MalformedURLException {
+		int depthStart = line.indexOf('\t') + 1;
+		int scoreStart = line.indexOf('\t', depthStart) + 1;
+		int parentStart = line.indexOf('\t', scoreStart) + 1;
+		URL parent = parentStart > 0 ? new URL(line.substring(parentStart)) : null;
+		String score = parentStart > 0 ? line.substring(scoreStart, parentStart - 1) : line.substring(scoreStart);
+		return new QueuedURL(new URL(line.substring(0, depthStart - 1)), Integer.parseInt(line.substring(depthStart, scoreStart - 1)), parent, Double.parseDouble(score));
+	}
+
+	private DiskURLQueue getSpillQueue() {
+		if (spillQueue == null) {
+			spillLock.lock();
+			try {
+				if (spillQueue == null) {
+					spillQueue = new DiskURLQueue(spillDirectory);
+				}
+			} finally {
+				spillLock.unlock();
+			}
+		}
+		return spillQueue;
+	}
+
+	/**
+	 * Moves spilled URLs back to memory, once less than half of the allowed number
+	 * of URLs is left there
+	 */
+	private void refill() {
+		DiskURLQueue spillQueue = this.spillQueue;
+		if (spillQueue == null || spillQueue.size() == 0 || size.get() > maxMemoryURLs / 2) {
+			return;
+		}
+		spillLock.lock();
+		try {
+			List<String> batch = new ArrayList<String>();
+			int free;
+			while ((free = maxMemoryURLs - size.get()) > 0 && spillQueue.size() > 0) {
+				batch.clear();
+				if (spillQueue.poll(batch, Math.min(free, 4096)) == 0) {
+					break;
+				}
+				for (int i = 0; i < batch.size(); ++i) {
+					try {
+						QueuedURL queuedURL = decode(batch.get(i));
+						addToMemory(queuedURL);
+					} catch (MalformedURLException e) {
+						// cannot happen, URL was valid when it was spilled
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		} finally {
+			spillLock.unlock();
+		}
+	}
+
+	private HostQueue getHostQueue(URL url) {
+		String key = getHostKey(url);
+		HostQueue hostQueue = hosts.get(key);
+		if (hostQueue == null) {
+			HostQueue newHostQueue = new HostQueue(key);
+			hostQueue = hosts.putIfAbsent(key, newHostQueue);
+			if (hostQueue == null) {
+				hostQueue = newHostQueue;
+			}
+		}
+		return hostQueue;
+	}
+
+	private AtomicInteger getHostURLs(URL url) {
+		String key = getHostKey(url);
+		AtomicInteger counter = hostURLs.get(key);
+		if (counter == null) {
+			AtomicInteger newCounter = new AtomicInteger();
+			counter = hostURLs.putIfAbsent(key, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Removes queue of the host if it's idle, unless URL was added to it meanwhile
+	 */
+	private void removeIfIdle(final HostQueue hostQueue) {
+		if (hostQueue.isIdle()) {
+			hosts.computeIfPresent(hostQueue.host, new BiFunction<String, HostQueue, HostQueue>() {
+				public HostQueue apply(String key, HostQueue current) {
+					return current == hostQueue && hostQueue.isIdle() ? null : current;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return number of hosts which queues are kept
+	 */
+	int getHostsNumber() {
+		return hosts.size();
+	}
+
+	/**
+	 * Takes the best URL from the host at the head of the best ready hosts bucket.
+	 * Caller must hold a permit for that entry.
+	 */
+	private QueuedURL pollReadyHost() {
+		HostQueue hostQueue = pollReadyHosts();
+		if (hostQueue == null) {
+			return null;
+		}
+		// Host with crawl delay must not be scheduled again until the delay expires:
+		boolean delayed = hostQueue.crawlDelay > 0;
+		if (delayed) {
+			hostQueue.delayed = true;
+		}
+		hostQueue.scheduled.set(false);
+
+		// Otherwise host will be scheduled again when one of its URLs is done:
+		QueuedURL url = null;
+		if (hostQueue.acquireSlot(getMaxConnections(hostQueue))) {
+			url = hostQueue.poll();
+			if (url == null) {
+				hostQueue.inFlight.decrementAndGet();
+			} else {
+				size.decrementAndGet();
+				refill();
+			}
+		}
+		if (delayed) {
+			if (url != null && delay(hostQueue)) {
+				return url;
+			}
+			hostQueue.delayed = false;
+		}
+		// Put the host back to the end of the ready queue, if it has more URLs:
+		schedule(hostQueue);
+		if (url == null) {
+			removeIfIdle(hostQueue);
+		}
+		return url;
+	}
+
+	/**
+	 * Takes host from the first non-empty bucket. Permit guarantees that there's an
+	 * entry, but it may be added to a bucket that was already scanned, so the scan
+	 * is repeated until it's found.
+	 * @return host, or <code>null</code> if the frontier is closed
+	 */
+	private HostQueue pollReadyHosts() {
+		while (true) {
+			for (int bits = readyBuckets.get(); bits != 0; bits &= bits - 1) {
+				HostQueue hostQueue = readyHosts.get(Integer.numberOfTrailingZeros(bits)).poll();
+				if (hostQueue != null) {
+					return hostQueue;
+				}
+			}
+			if (closed.get()) {
+				return null;
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Schedules the host once its crawl delay expires
+	 * @return <code>false</code> if the frontier is closed
+	 */
+	private boolean delay(final HostQueue hostQueue) {
+		try {
+			delayTimer.schedule(new Runnable() {
+				public void run() {
+					hostQueue.delayed = false;
+					schedule(hostQueue);
+					removeIfIdle(hostQueue);
+				}
+			}, hostQueue.crawlDelay, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	private void schedule(HostQueue hostQueue) {
+		if (!hostQueue.isEmpty() && !hostQueue.delayed && hostQueue.inFlight.get() < getMaxConnections(hostQueue) && hostQueue.scheduled.compareAndSet(false, true)) {
+			// New URLs may go to a better bucket after this, the host stays where it is
+			// until it's taken:
+			int bucket = hostQueue.getFirstBucket();
+			if (bucket < 0) {
+				bucket = BUCKETS - 1;
+			}
+			setBit(readyBuckets, bucket);
+			readyHosts.get(bucket).add(hostQueue);
+			if (!closed.get()) {
+				readyPermits.release();
+			}
+		}
+	}
+
+	private static void setBit(AtomicInteger bits, int bit) {
+		int current;
+		while (((current = bits.get()) & (1 << bit)) == 0 && !bits.compareAndSet(current, current | (1 << bit))) {
+		}
+	}
+
+	private int getMaxConnections(HostQueue hostQueue) {
+		int maxConnections = hostQueue.maxConnections;
+		return maxConnections > 0 ? maxConnections : maxHostConnections;
+	}
+
+	static class HostQueue {
+
+		final String host;
+		// Buckets by score, created when the first URL is put into them:
+		AtomicReferenceArray<Queue<QueuedURL>> buckets;
+		// Bits of buckets that were created:
+		AtomicInteger usedBuckets;
+		AtomicInteger inFlight;
+		// Whether the host is in ready hosts queue:
+		AtomicBoolean scheduled;
+		volatile long crawlDelay;
+		// Limit of concurrently processed URLs set for this host, or 0:
+		volatile int maxConnections;
+		// Whether the host waits for its crawl delay to expire:
+		volatile boolean delayed;
+
+		HostQueue(String host) {
+			this.host = host;
+			buckets = new AtomicReferenceArray<Queue<QueuedURL>>(BUCKETS);
+			usedBuckets = new AtomicInteger();
+			inFlight = new AtomicInteger();
+			scheduled = new AtomicBoolean();
+		}
+
+		Queue<QueuedURL> getBucket(int i) {
+			Queue<QueuedURL> bucket = buckets.get(i);
+			if (bucket == null) {
+				buckets.compareAndSet(i, null, new ConcurrentLinkedQueue<QueuedURL>());
+				bucket = buckets.get(i);
+				setBit(usedBuckets, i);
+			}
+			return bucket;
+		}
+
+		/**
+		 * @return index of the first non-empty bucket, or -1 if all are empty
+		 */
+		int getFirstBucket() {
+			for (int bits = usedBuckets.get(); bits != 0; bits &= bits - 1) {
+				int i = Integer.numberOfTrailingZeros(bits);
+				if (!buckets.get(i).isEmpty()) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		boolean isEmpty() {
+			return getFirstBucket() < 0;
+		}
+
+		/**
+		 * @return <code>true</code> if the host has no waiting URLs, none are being
+		 * processed, and it has no settings of its own
+		 */
+		boolean isIdle() {
+			if (crawlDelay > 0 || maxConnections > 0) {
+				return false;
+			}
+			// URL is counted in flight before it's taken, so emptiness is checked first:
+			return isEmpty() && inFlight.get() == 0 && !scheduled.get() && !delayed;
+		}
+
+		/**
+		 * @return URL from the first non-empty bucket, or <code>null</code>
+		 */
+		QueuedURL poll() {
+			for (int bits = usedBuckets.get(); bits != 0; bits &= bits - 1) {
+				QueuedURL url = buckets.get(Integer.numberOfTrailingZeros(bits)).poll();
+				if (url != null) {
+					return url;
+				}
+			}
+			return null;
+		}
+
+		boolean acquireSlot(int limit) {
+			while (true) {
+				int current = inFlight.get();
+				if (current >= limit) {
+					return false;
+				}
+				if (inFlight.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+	}
+}
@@ -1,34 +1,304 @@
 package org.spektom.spider;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * Finds links and robots META tag on HTML page. Page contents can be written in
+ * chunks as they are received, every chunk is parsed right away, and links found in it
+ * are passed to {@link ILinkListener} if one is set. Links found in the page head are
+ * held until the head ends, because robots META tag may still forbid following them.
+ * Chunks are accumulated in a
+ * single buffer, which is sized by the expected length when it's known. Compressed
+ * contents are decompressed chunk by chunk on the way to the buffer. Links are
+ * resolved and brought to canonical form by {@link URLCanonicalizer}, without creating
+ * {@link URL} for each of them.
+ * <p>
+ * Contents can be limited by length and by time, and the buffer can take its bytes
+ * from a {@link ByteBudget} shared by all downloads. Expected length is checked
+ * before anything is read, and limits are checked again as chunks arrive. When a
+ * limit is reached, nothing more is read, and unless truncated contents are kept,
+ * the page is not finished.
+ */
 public class HTMLPageProcessor {
 
+	// Only these attributes matter for finding links and robots META tag:
+	private static final String[] ATTRIBUTES = { "href", "src", "name", "content" };
+	// Tags that may appear in the page head, any other tag starts the body:
+	private static final String[] HEAD_TAGS = { "html", "head", "meta", "link", "title", "base", "script", "style", "noscript", "template" };
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int READ_BUFFER_SIZE = 16384;
+
 	private URLConnection urlConnection;
-	private List<URL> links;
+	private URL url;
+	// Base for resolving links, created from url on the first link:
+	private CanonicalURL base;
+	private URLCanonicalizer canonicalizer;
+	private List<CanonicalURL> links;
 	private boolean index;
 	private boolean follow;
+	private boolean inHead;
+	// Number of links passed to the link listener, or dropped:
+	private int passedLinks;
 	private byte[] contents;
+	private byte[] buffer;
+	private int length;
+	// Position after the last parsed tag:
+	private int parsed;
+	// Length to be reached before the next parsing attempt:
+	private int parseAt;
+	private ILinkListener linkListener;
+	private HTMLTokenizer tokenizer;
+	private TagHandler tagHandler;
+	private ContentDecoder decoder;
+	private String contentEncoding;
+	private boolean keepEncoded;
+	private ByteArrayOutputStream encodedContents;
+	private long encodedLength;
+	private long parseTime;
+	private long maxLength;
+	private long deadline;
+	private boolean hasDeadline;
+	private ByteBudget budget;
+	// Bytes acquired from the budget:
+	private long reserved;
+	private Runnable budgetWaiter;
+	private boolean waitingForBudget;
+	private boolean keepTruncated;
+	private volatile AbortReason abortReason;
 
 	/**
 	 * Constructs links HTML parser
 	 * @param urlConnection Connection to the URL
 	 */
 	public HTMLPageProcessor(URLConnection urlConnection) {
+		this((URL) null);
 		this.urlConnection = urlConnection;
-		links = new LinkedList<URL>();
+	}
+
+	/**
+	 * Constructs links HTML parser for the page which contents are already retrieved
+	 * @param url URL of the page, relative links are resolved against it
+	 */
+	public HTMLPageProcessor(URL url) {
+		this.url = url;
+		links = new ArrayList<CanonicalURL>();
+		canonicalizer = new URLCanonicalizer();
 		index = true;
 		follow = true;
+		inHead = true;
+		tokenizer = new HTMLTokenizer(null, ATTRIBUTES);
+		tagHandler = new TagHandler();
+	}
+
+	/**
+	 * Sets listener that gets links as soon as they are found, they are still collected
+	 * for {@link #getLinks()}. Links found in the page head are passed once the head
+	 * ends, and if robots META tag forbids following them, they are not passed at all.
+	 * @param linkListener
+	 */
+	public void setLinkListener(ILinkListener linkListener) {
+		this.linkListener = linkListener;
+	}
+
+	/**
+	 * @return listener that gets links as soon as they are found, or <code>null</code>
+	 */
+	public ILinkListener getLinkListener() {
+		return linkListener;
+	}
+
+	/**
+	 * Sets canonicalizer that links are resolved with
+	 * @param canonicalizer
+	 */
+	public void setURLCanonicalizer(URLCanonicalizer canonicalizer) {
+		this.canonicalizer = canonicalizer;
+	}
+
+	/**
+	 * Sets encoding of the contents that will be written, it must be called before
+	 * anything is written
+	 * @param contentEncoding Value of Content-Encoding header, or <code>null</code>
+	 * @throws IOException if the encoding is not supported
+	 * @see ContentDecoder#isSupported(String)
+	 */
+	public void setContentEncoding(String contentEncoding) throws IOException {
+		if (ContentDecoder.isIdentity(contentEncoding)) {
+			return;
+		}
+		decoder = new ContentDecoder(contentEncoding, this);
+		this.contentEncoding = contentEncoding.trim().toLowerCase();
+	}
+
+	/**
+	 * @return encoding the contents were transferred with, or <code>null</code> if they
+	 * weren't compressed
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Sets whether compressed contents must be kept as they were transferred, in
+	 * addition to decompressed ones
+	 * @param keepEncoded
+	 */
+	public void setKeepEncoded(boolean keepEncoded) {
+		this.keepEncoded = keepEncoded;
+	}
+
+	/**
+	 * @return contents as they were transferred, or <code>null</code> if they weren't
+	 * compressed or weren't kept
+	 * @see #setKeepEncoded(boolean)
+	 */
+	public byte[] getEncodedContents() {
+		return encodedContents != null ? encodedContents.toByteArray() : null;
+	}
+
+	/**
+	 * @return number of bytes that were transferred, before decompression
+	 */
+	public long getEncodedLength() {
+		return encodedLength;
+	}
+
+	/**
+	 * Sets max. length of the contents after decompression
+	 * @param maxLength Limit, or 0 for unlimited
+	 */
+	public void setMaxLength(long maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Sets time by which the contents must be received, it's checked as chunks arrive
+	 * @param deadline Time in terms of {@link System#nanoTime()}
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+		hasDeadline = true;
+	}
+
+	/**
+	 * @return nanoseconds left until the deadline, or {@link Long#MAX_VALUE} if there's
+	 * no deadline
+	 */
+	long getTimeLeft() {
+		return hasDeadline ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Sets budget the contents buffer takes its bytes from, they are given back by
+	 * {@link #release()}
+	 * @param budget
+	 */
+	public void setBudget(ByteBudget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * @return budget the contents buffer takes its bytes from, or <code>null</code>
+	 */
+	public ByteBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Makes written chunks not wait for the budget: when it has no bytes for a chunk,
+	 * the chunk is left unconsumed, and the waiter is called once bytes are released
+	 * @param budgetWaiter Callback that must not block
+	 * @see ByteBudget#tryAcquire(Object, long, Runnable)
+	 */
+	public void setBudgetWaiter(Runnable budgetWaiter) {
+		this.budgetWaiter = budgetWaiter;
+	}
+
+	/**
+	 * @return <code>true</code> if the last written chunk wasn't consumed, because the
+	 * budget has no bytes for it
+	 */
+	public boolean isWaitingForBudget() {
+		return waitingForBudget;
+	}
+
+	/**
+	 * Sets whether contents received before a limit was reached are parsed and kept,
+	 * rather than discarded
+	 * @param keepTruncated
+	 */
+	public void setKeepTruncated(boolean keepTruncated) {
+		this.keepTruncated = keepTruncated;
+	}
+
+	/**
+	 * @return <code>true</code> if contents received before a limit was reached are kept
+	 */
+	public boolean isKeepTruncated() {
+		return keepTruncated;
+	}
+
+	/**
+	 * @return reason the contents were cut off, or <code>null</code> if they were
+	 * received completely
+	 */
+	public AbortReason getAbortReason() {
+		return abortReason;
+	}
+
+	/**
+	 * @return <code>true</code> if the contents were cut off
+	 */
+	public boolean isAborted() {
+		return abortReason != null;
+	}
+
+	/**
+	 * Stops receiving the contents, following chunks are ignored
+	 * @param reason
+	 */
+	void abort(AbortReason reason) {
+		if (abortReason == null) {
+			abortReason = reason;
+			// No more tags will come, links of the page head are all known now:
+			passLinks();
+		}
+	}
+
+	/**
+	 * Passes bytes of the contents buffer taken from the budget to the page made of
+	 * the contents, which gives them back instead of {@link #release()}
+	 */
+	void transferBudget(FetchedPage page) {
+		if (budget != null && reserved > 0) {
+			page.holdBudget(budget, this, reserved);
+			reserved = 0;
+		}
+	}
+
+	/**
+	 * Gives bytes of the contents buffer back to the budget, and releases the
+	 * decompressor. It must be called once the page is not needed, on every path.
+	 */
+	public void release() {
+		// Bytes passed to a page are released by the page, and this may still be the
+		// download that exceeds the budget:
+		if (budget != null && reserved > 0) {
+			budget.release(this, reserved);
+		}
+		reserved = 0;
+		if (decoder != null) {
+			decoder.end();
+		}
 	}
 
 	/**
@@ -50,10 +320,11 @@ public class HTMLPageProcessor {
 	}
 
 	/**
-	 * Returns collection of link URLs that where found on this page
+	 * Returns collection of link URLs that where found on this page, in canonical form.
+	 * Links that are not HTTP URLs are omitted.
 	 * @return links
 	 */
-	public Collection<URL> getLinks() {
+	public Collection<CanonicalURL> getLinks() {
 		return links;
 	}
 
@@ -66,32 +337,294 @@ public class HTMLPageProcessor {
 	}
 
 	/**
-	 * Run parsing
+	 * @return time spent parsing the page in nanoseconds
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Run parsing, while the page is being read from the connection
 	 * @throws IOException
 	 */
 	public void process() throws IOException {
 		InputStream inputStream = urlConnection.getInputStream();
+		// Connection URL reflects redirects, which are followed while opening the stream:
+		url = urlConnection.getURL();
 
-		byte[] buffer = new byte[2048];
-		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-		int bytesRead = inputStream.read(buffer);
-		while (bytesRead >= 0) {
-			byteOut.write(buffer, 0, bytesRead);
-			bytesRead = inputStream.read(buffer);
+		process(inputStream, urlConnection.getContentLengthLong());
+	}
+
+	/**
+	 * Run parsing, while the page is being read from the stream
+	 * @param inputStream Stream of the page contents, it's not closed
+	 * @param expectedLength Expected contents length, or -1 if it's unknown
+	 * @throws IOException
+	 */
+	public void process(InputStream inputStream, long expectedLength) throws IOException {
+		setExpectedLength(expectedLength);
+		if (decoder != null) {
+			// Decompressed length is unknown, so compressed chunks are read into a
+			// separate buffer:
+			byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+			int bytesRead;
+			while (abortReason == null && (bytesRead = inputStream.read(readBuffer)) >= 0) {
+				write(ByteBuffer.wrap(readBuffer, 0, bytesRead));
+			}
+		} else {
+			while (abortReason == null) {
+				if (buffer != null && length == buffer.length) {
+					// Buffer sized by the expected length is full, check whether there's more
+					// before growing it:
+					int b = inputStream.read();
+					if (b < 0) {
+						break;
+					}
+					if (maxLength > 0 && length >= maxLength) {
+						abort(AbortReason.SIZE);
+						break;
+					}
+					if (!ensureCapacity(1)) {
+						break;
+					}
+					buffer[length++] = (byte) b;
+				}
+				if (!ensureCapacity(1)) {
+					break;
+				}
+				int bytesRead = inputStream.read(buffer, length, buffer.length - length);
+				if (bytesRead < 0) {
+					break;
+				}
+				length += bytesRead;
+				if (maxLength > 0 && length > maxLength) {
+					length = (int) maxLength;
+					abort(AbortReason.SIZE);
+				}
+				parse(false);
+				checkDeadline();
+			}
+		}
+		if (abortReason == null || keepTruncated) {
+			finish();
 		}
-		contents = byteOut.toByteArray();
+	}
+
+	/**
+	 * Run parsing of already retrieved page contents
+	 * @param contents
+	 * @throws IOException
+	 */
+	public void process(byte[] contents) throws IOException {
+		this.contents = contents;
 
-		new HTMLParser().parse(new ByteArrayInputStream(contents), new HTMLParserCallback());
+		long start = System.nanoTime();
+		tokenizer.tokenize(contents, tagHandler);
+		parseTime += System.nanoTime() - start;
 	}
 
-	class HTMLParserCallback implements IHTMLParserCallback {
-		public void handleTag(String tag, Map<String, String> attributes) {
-			if ("meta".equals(tag)) {
-				String name = attributes.get("name");
-				if (name != null && "robots".equals(name)) {
-					String content = attributes.get("content");
+	/**
+	 * Sizes the buffer for the page contents before they are written
+	 * @param expectedLength Expected contents length, or -1 if it's unknown
+	 */
+	public void setExpectedLength(long expectedLength) {
+		if (maxLength > 0 && expectedLength > maxLength) {
+			if (!keepTruncated) {
+				abort(AbortReason.SIZE);
+				return;
+			}
+			if (decoder == null) {
+				expectedLength = maxLength;
+			}
+		}
+		if (decoder != null) {
+			// This is the compressed length
+			if (keepEncoded && expectedLength > 0 && expectedLength < Integer.MAX_VALUE - 8) {
+				encodedContents = new ByteArrayOutputStream((int) expectedLength);
+			}
+			return;
+		}
+		if (expectedLength > length && expectedLength < Integer.MAX_VALUE - 8) {
+			ensureCapacity((int) expectedLength - length);
+		}
+	}
+
+	/**
+	 * Appends next chunk of the page contents, and parses it. If the processor waits
+	 * for the budget afterwards, the chunk is not consumed completely, and the same
+	 * chunk must be written again once the waiter is called.
+	 * @param chunk
+	 * @throws IOException if compressed contents are corrupted
+	 */
+	public void write(ByteBuffer chunk) throws IOException {
+		if (abortReason != null || checkDeadline()) {
+			return;
+		}
+		waitingForBudget = false;
+		if (decoder == null) {
+			writeDecoded(chunk);
+			return;
+		}
+		ByteBuffer encoded = chunk.duplicate();
+		decoder.write(chunk);
+		if (waitingForBudget) {
+			// The rest of the chunk will be written again:
+			encoded.limit(chunk.position());
+		}
+		int remaining = encoded.remaining();
+		encodedLength += remaining;
+		if (keepEncoded) {
+			if (encodedContents == null) {
+				encodedContents = new ByteArrayOutputStream(Math.max(remaining, INITIAL_BUFFER_SIZE));
+			}
+			if (encoded.hasArray()) {
+				encodedContents.write(encoded.array(), encoded.arrayOffset() + encoded.position(), remaining);
+			} else {
+				byte[] copy = new byte[remaining];
+				encoded.get(copy);
+				encodedContents.write(copy);
+			}
+		}
+	}
+
+	/**
+	 * Appends next chunk of decompressed page contents, and parses it. The chunk is
+	 * not consumed if the processor waits for the budget.
+	 */
+	void writeDecoded(ByteBuffer chunk) {
+		if (abortReason != null) {
+			return;
+		}
+		int remaining = chunk.remaining();
+		boolean tooLong = maxLength > 0 && length + remaining > maxLength;
+		if (tooLong) {
+			remaining = (int) (maxLength - length);
+		}
+		if (!ensureCapacity(remaining)) {
+			return;
+		}
+		chunk.get(buffer, length, remaining);
+		length += remaining;
+		parse(false);
+		if (tooLong) {
+			abort(AbortReason.SIZE);
+		}
+	}
+
+	/**
+	 * Parses the rest of the page after all its contents are written
+	 * @throws IOException if compressed contents are truncated
+	 */
+	public void finish() throws IOException {
+		if (decoder != null) {
+			if (abortReason == null) {
+				decoder.finish();
+			}
+		} else {
+			encodedLength = length;
+		}
+		if (buffer == null) {
+			buffer = new byte[0];
+		}
+		parse(true);
+		passLinks();
+		contents = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+		buffer = null;
+	}
+
+	private void parse(boolean last) {
+		if (!last && length < parseAt) {
+			return;
+		}
+		long start = System.nanoTime();
+		parsed = tokenizer.tokenize(buffer, parsed, length - parsed, tagHandler);
+		parseTime += System.nanoTime() - start;
+		// Incomplete tag is parsed again from its start, so wait until at least as many
+		// bytes as it already takes arrive, to keep parsing linear:
+		parseAt = length + (length - parsed);
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline has passed, and the contents are
+	 * cut off
+	 */
+	private boolean checkDeadline() {
+		if (hasDeadline && System.nanoTime() - deadline > 0) {
+			abort(AbortReason.TIME);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Grows the buffer, so that at least given number of bytes fit after the contents
+	 * @return <code>false</code> if the budget can't give bytes for the buffer, and the
+	 * contents are cut off, or the processor waits for the budget
+	 */
+	private boolean ensureCapacity(int capacity) {
+		int newLength;
+		if (buffer == null) {
+			newLength = Math.max(capacity, INITIAL_BUFFER_SIZE);
+		} else if (buffer.length - length < capacity) {
+			newLength = Math.max(length + capacity, buffer.length * 2);
+		} else {
+			return true;
+		}
+		if (maxLength > 0 && newLength > maxLength) {
+			// Only one byte past the limit is needed, to see that there's more:
+			newLength = (int) Math.max(maxLength + 1, length + capacity);
+		}
+		if (budget != null) {
+			int bytes = newLength - (buffer != null ? buffer.length : 0);
+			if (budgetWaiter != null) {
+				if (!budget.tryAcquire(this, bytes, budgetWaiter)) {
+					waitingForBudget = true;
+					return false;
+				}
+			} else if (!budget.acquire(this, bytes, getTimeLeft())) {
+				abort(AbortReason.BUDGET);
+				return false;
+			}
+			reserved += bytes;
+		}
+		buffer = buffer == null ? new byte[newLength] : Arrays.copyOf(buffer, newLength);
+		return true;
+	}
+
+	/**
+	 * Passes links that weren't passed yet to the link listener, unless robots META
+	 * tag forbids following them
+	 */
+	private void passLinks() {
+		inHead = false;
+		if (follow && linkListener != null) {
+			for (int i = passedLinks; i < links.size(); ++i) {
+				linkListener.linkFound(links.get(i));
+			}
+		}
+		passedLinks = links.size();
+	}
+
+	private static boolean isHeadTag(HTMLTag tag) {
+		for (int i = 0; i < HEAD_TAGS.length; ++i) {
+			if (tag.is(HEAD_TAGS[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	class TagHandler implements IHTMLTagHandler {
+		public void handleTag(HTMLTag tag) {
+			if (inHead && !isHeadTag(tag)) {
+				passLinks();
+			}
+			if (tag.is("meta")) {
+				ByteSequence name = tag.getAttribute("name");
+				if (name != null && name.equalsIgnoreCase("robots")) {
+					ByteSequence content = tag.getAttribute("content");
 					if (content != null) {
-						String[] contentElements = content.split("[\\s,]+");
+						String[] contentElements = content.toString().split("[\\s,]+");
 						for (int i = 0; i < contentElements.length; ++i) {
 							if ("noindex".equalsIgnoreCase(contentElements[i])) {
 								index = false;
@@ -102,19 +635,20 @@ public class HTMLPageProcessor {
 					}
 				}
 			} else if (follow) {
-				String href = attributes.get("href");
-				if (href == null && "frame".equals(tag)) {
-					href = attributes.get("src");
+				ByteSequence href = tag.getAttribute("href");
+				if (href == null && tag.is("frame")) {
+					href = tag.getAttribute("src");
 				}
-				if (href != null) {
-					int i = href.indexOf('#');
-					if (i != -1) {
-						href = href.substring(0, i);
+				if (href != null && url != null) {
+					if (base == null) {
+						base = canonicalizer.canonicalize(url.toString());
 					}
-					try {
-						URL url = new URL(urlConnection.getURL(), href);
-						links.add(url);
-					} catch (MalformedURLException e) {
+					CanonicalURL link = canonicalizer.canonicalize(base, href);
+					if (link != null) {
+						links.add(link);
+						if (!inHead) {
+							passLinks();
+						}
 					}
 				}
 			}
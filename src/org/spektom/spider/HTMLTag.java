@@ -0,0 +1,112 @@
+package org.spektom.spider;
+
+/**
+ * Tag found by {@link HTMLTokenizer}. The same instance is reused for all tags of a
+ * document, so neither the tag nor the sequences it returns may be kept after
+ * {@link IHTMLTagHandler#handleTag(HTMLTag)} returns.
+ */
+public class HTMLTag {
+
+	private byte[] data;
+	private ByteSequence name;
+	private int attributesNumber;
+	private ByteSequence[] attributeNames;
+	private ByteSequence[] attributeValues;
+	private boolean[] hasValue;
+
+	HTMLTag() {
+		name = new ByteSequence();
+		attributeNames = new ByteSequence[0];
+		attributeValues = new ByteSequence[0];
+		hasValue = new boolean[0];
+	}
+
+	/**
+	 * @return name of the tag, as written in the document
+	 */
+	public ByteSequence getName() {
+		return name;
+	}
+
+	/**
+	 * Checks tag name ignoring case
+	 * @param name
+	 * @return <code>true</code> if this tag has given name
+	 */
+	public boolean is(String name) {
+		return this.name.equalsIgnoreCase(name);
+	}
+
+	/**
+	 * @return number of attributes reported for this tag
+	 */
+	public int getAttributesNumber() {
+		return attributesNumber;
+	}
+
+	/**
+	 * @param index
+	 * @return name of the attribute, as written in the document
+	 */
+	public ByteSequence getAttributeName(int index) {
+		return attributeNames[index];
+	}
+
+	/**
+	 * @param index
+	 * @return value of the attribute, or <code>null</code> if it has no value
+	 */
+	public ByteSequence getAttributeValue(int index) {
+		return hasValue[index] ? attributeValues[index] : null;
+	}
+
+	/**
+	 * Finds attribute value by its name ignoring case
+	 * @param name
+	 * @return value of the attribute, or <code>null</code> if there's no such attribute
+	 * or it has no value
+	 */
+	public ByteSequence getAttribute(String name) {
+		for (int i = 0; i < attributesNumber; ++i) {
+			if (attributeNames[i].equalsIgnoreCase(name)) {
+				return getAttributeValue(i);
+			}
+		}
+		return null;
+	}
+
+	void start(byte[] data, int nameStart, int nameEnd) {
+		this.data = data;
+		name.set(data, nameStart, nameEnd);
+		attributesNumber = 0;
+	}
+
+	void addAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if (attributesNumber == attributeNames.length) {
+			grow();
+		}
+		attributeNames[attributesNumber].set(data, nameStart, nameEnd);
+		hasValue[attributesNumber] = valueStart >= 0;
+		if (valueStart >= 0) {
+			attributeValues[attributesNumber].set(data, valueStart, valueEnd);
+		}
+		++attributesNumber;
+	}
+
+	private void grow() {
+		int capacity = Math.max(4, attributeNames.length * 2);
+		ByteSequence[] newNames = new ByteSequence[capacity];
+		ByteSequence[] newValues = new ByteSequence[capacity];
+		System.arraycopy(attributeNames, 0, newNames, 0, attributeNames.length);
+		System.arraycopy(attributeValues, 0, newValues, 0, attributeValues.length);
+		for (int i = attributeNames.length; i < capacity; ++i) {
+			newNames[i] = new ByteSequence();
+			newValues[i] = new ByteSequence();
+		}
+		attributeNames = newNames;
+		attributeValues = newValues;
+		boolean[] newHasValue = new boolean[capacity];
+		System.arraycopy(hasValue, 0, newHasValue, 0, hasValue.length);
+		hasValue = newHasValue;
+	}
+}
@@ -0,0 +1,224 @@
+package org.spektom.spider;
+
+/**
+ * Finds tags and their attributes in HTML document by scanning its bytes directly.
+ * Tags are reported through a single reused {@link HTMLTag} view, so no memory is
+ * allocated per tag. Tags and attributes which the caller isn't interested in are
+ * skipped without being reported.
+ * <p>
+ * Closing tags, comments, and declarations like &lt;!DOCTYPE&gt; are skipped. Tag and
+ * attribute names are matched ignoring case, and attribute values are reported as is,
+ * without decoding character references.
+ */
+public class HTMLTokenizer {
+
+	private String[] tags;
+	private String[] attributes;
+	private HTMLTag tag;
+
+	/**
+	 * Constructs tokenizer reporting all tags with all their attributes
+	 */
+	public HTMLTokenizer() {
+		this(null, null);
+	}
+
+	/**
+	 * @param tags Names of tags to report, or <code>null</code> for all tags
+	 * @param attributes Names of attributes to report, or <code>null</code> for all attributes
+	 */
+	public HTMLTokenizer(String[] tags, String[] attributes) {
+		this.tags = tags;
+		this.attributes = attributes;
+		tag = new HTMLTag();
+	}
+
+	/**
+	 * Finds tags in the document
+	 * @param data Document contents
+	 * @param handler
+	 */
+	public void tokenize(byte[] data, IHTMLTagHandler handler) {
+		tokenize(data, 0, data.length, handler);
+	}
+
+	/**
+	 * Finds tags in part of the document. Tags that aren't complete within given range
+	 * are not reported.
+	 * @param data Document contents
+	 * @param offset Index of the first byte
+	 * @param length Number of bytes
+	 * @param handler
+	 * @return index after the last complete tag or other markup, from where tokenizing
+	 * of the next part may continue
+	 */
+	public int tokenize(byte[] data, int offset, int length, IHTMLTagHandler handler) {
+		int end = offset + length;
+		int i = offset;
+		int consumed = offset;
+
+		while (true) {
+			while (i < end && data[i] != '<') {
+				++i;
+			}
+			consumed = i;
+			if (++i >= end) {
+				return consumed;
+			}
+			while (i < end && isWhitespace(data[i])) {
+				++i;
+			}
+			if (i >= end) {
+				return consumed;
+			}
+
+			byte b = data[i];
+			if (b == '!' && i + 2 < end && data[i + 1] == '-' && data[i + 2] == '-') {
+				// Skip comment:
+				i = indexOf(data, i + 3, end, "-->");
+				if (i < 0) {
+					return consumed;
+				}
+				i += 3;
+				continue;
+			}
+			if (b == '/' || b == '!' || b == '?') {
+				// Skip closing tag or declaration:
+				i = indexOf(data, i + 1, end, ">");
+				if (i < 0) {
+					return consumed;
+				}
+				++i;
+				continue;
+			}
+			if (!isLetter(b)) {
+				// Not a tag
+				continue;
+			}
+
+			// Read the tag name:
+			int nameStart = i;
+			while (i < end && !isWhitespace(data[i]) && data[i] != '>' && data[i] != '/' && data[i] != '<') {
+				++i;
+			}
+			boolean wanted = isWanted(tags, data, nameStart, i);
+			if (wanted) {
+				tag.start(data, nameStart, i);
+			}
+
+			// Read attributes:
+			boolean complete = false;
+			while (i < end) {
+				b = data[i];
+				if (isWhitespace(b) || b == '/') {
+					++i;
+					continue;
+				}
+				if (b == '>') {
+					++i;
+					complete = true;
+					break;
+				}
+				if (b == '<') {
+					// Unclosed tag, the next one starts here
+					complete = true;
+					break;
+				}
+
+				int attrNameStart = i;
+				while (i < end && !isWhitespace(data[i]) && data[i] != '=' && data[i] != '>' && data[i] != '/' && data[i] != '<') {
+					++i;
+				}
+				int attrNameEnd = i;
+				while (i < end && isWhitespace(data[i])) {
+					++i;
+				}
+
+				int valueStart = -1;
+				int valueEnd = -1;
+				if (i < end && data[i] == '=') {
+					++i;
+					while (i < end && isWhitespace(data[i])) {
+						++i;
+					}
+					if (i >= end) {
+						break;
+					}
+					byte quote = data[i];
+					if (quote == '"' || quote == '\'') {
+						// Read attribute value (until next quote character):
+						valueStart = ++i;
+						while (i < end && data[i] != quote) {
+							++i;
+						}
+						if (i >= end) {
+							break;
+						}
+						valueEnd = i++;
+					} else {
+						// Read attribute value (until we meet whitespace or end of tag):
+						valueStart = i;
+						while (i < end && !isWhitespace(data[i]) && data[i] != '>') {
+							++i;
+						}
+						valueEnd = i;
+					}
+				}
+
+				if (wanted && isWanted(attributes, data, attrNameStart, attrNameEnd)) {
+					tag.addAttribute(attrNameStart, attrNameEnd, valueStart, valueEnd);
+				}
+			}
+			if (!complete) {
+				return consumed;
+			}
+			if (wanted) {
+				handler.handleTag(tag);
+			}
+		}
+	}
+
+	private static boolean isWanted(String[] names, byte[] data, int start, int end) {
+		if (names == null) {
+			return true;
+		}
+		for (int i = 0; i < names.length; ++i) {
+			if (equalsIgnoreCase(names[i], data, start, end)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean equalsIgnoreCase(String str, byte[] data, int start, int end) {
+		if (str.length() != end - start) {
+			return false;
+		}
+		for (int i = start; i < end; ++i) {
+			if (ByteSequence.toLowerCase(data[i] & 0xff) != ByteSequence.toLowerCase(str.charAt(i - start))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] data, int start, int end, String str) {
+		OUTER: for (int i = start; i <= end - str.length(); ++i) {
+			for (int j = 0; j < str.length(); ++j) {
+				if (data[i + j] != str.charAt(j)) {
+					continue OUTER;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f';
+	}
+
+	private static boolean isLetter(byte b) {
+		return Character.isLetter(b & 0xff);
+	}
+}
@@ -0,0 +1,56 @@
+package org.spektom.spider;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns hosts to cluster nodes using consistent hashing. Every node owns many
+ * points on a ring of 64-bit hashes, and host belongs to the node owning the first
+ * point after the host hash. Points are spread evenly, so that nodes get about the
+ * same number of hosts, and adding a node moves hosts only to the new node.
+ */
+public class HostPartitioner {
+
+	private static final int POINTS_PER_NODE = 128;
+
+	private long[] points;
+	private int[] owners;
+
+	/**
+	 * @param nodes Names of the nodes, which must be the same on all nodes
+	 */
+	public HostPartitioner(List<String> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("No cluster nodes");
+		}
+		// Point hash in the high bits, and owner in the low ones, so that sorting keeps
+		// them together:
+		long[] entries = new long[nodes.size() * POINTS_PER_NODE];
+		for (int i = 0; i < nodes.size(); ++i) {
+			for (int j = 0; j < POINTS_PER_NODE; ++j) {
+				long point = URLFingerprint.fingerprint(nodes.get(i) + "#" + j);
+				entries[i * POINTS_PER_NODE + j] = (point & ~0xffffL) | i;
+			}
+		}
+		Arrays.sort(entries);
+		points = new long[entries.length];
+		owners = new int[entries.length];
+		for (int i = 0; i < entries.length; ++i) {
+			points[i] = entries[i] & ~0xffffL;
+			owners[i] = (int) (entries[i] & 0xffff);
+		}
+	}
+
+	/**
+	 * @param host Host name in lower case
+	 * @return index of the node that owns the host
+	 */
+	public int getOwner(String host) {
+		long hash = URLFingerprint.fingerprint(host);
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i < points.length ? i : 0];
+	}
+}
@@ -0,0 +1,536 @@
+package org.spektom.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends HTTP/1.1 requests over persistent connections. Every host has its own pool
+ * of idle connections, which is bounded in size, and connections that stay idle
+ * longer than the idle timeout are closed. Number of connections in use is bounded by
+ * the number of concurrent downloads from a host, see
+ * {@link Frontier#setMaxHostConnections(int)}. Pool of a host is removed once it has
+ * neither idle connections nor requests in progress, so that hosts which were visited
+ * once don't stay in memory.
+ * <p>
+ * Proxy is chosen by the default {@link ProxySelector}, so http.proxyHost,
+ * http.proxyPort, http.nonProxyHosts and socksProxyHost system properties apply like
+ * they do to {@link java.net.URLConnection}. Requests are sent to HTTP proxy with
+ * absolute URI in the request line, over persistent connections to the proxy that are
+ * pooled per target host. Only the first proxy the selector returns is used.
+ * <p>
+ * A connection is returned to the pool only when {@link PooledResponse#close()} is
+ * called, and the response body was read to its end or could be drained cheaply;
+ * otherwise the connection is closed.
+ */
+public class HttpConnectionPool {
+
+	private ConcurrentMap<String, HostPool> hosts;
+	private int maxIdleConnections;
+	private long idleTimeout;
+	private int timeout;
+	private AtomicLong requests;
+	private AtomicLong connectionsOpened;
+	private ScheduledExecutorService sweeper;
+	private Lock sweeperLock;
+	private CrawlMetrics metrics;
+	private DNSCache dnsCache;
+
+	public HttpConnectionPool() {
+		hosts = new ConcurrentHashMap<String, HostPool>();
+		maxIdleConnections = 8;
+		idleTimeout = 15000;
+		timeout = 5000;
+		requests = new AtomicLong();
+		connectionsOpened = new AtomicLong();
+		sweeperLock = new ReentrantLock();
+	}
+
+	/**
+	 * Returns maximal number of idle connections kept per host
+	 * @return maxIdleConnections
+	 */
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+
+	/**
+	 * Sets maximal number of idle connections kept per host (default: 8)
+	 * @param maxIdleConnections
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	/**
+	 * Returns time in milliseconds after which idle connection is closed
+	 * @return idleTimeout
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets time in milliseconds after which idle connection is closed (default: 15000)
+	 * @param idleTimeout
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets connect/read timeout in milliseconds
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets cache host names of new connections are resolved through. Without it host
+	 * names are resolved by the system, with JVM caching policy.
+	 * @param dnsCache
+	 */
+	public void setDNSCache(DNSCache dnsCache) {
+		this.dnsCache = dnsCache;
+	}
+
+	/**
+	 * Sets metrics that get DNS, connect and first byte latencies
+	 * @param metrics
+	 */
+	public void setMetrics(CrawlMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sends GET request, reusing idle connection to the host if there is one. If the
+	 * server has closed reused connection meanwhile, the request is sent again over a
+	 * new connection.
+	 * @param url
+	 * @param headers Request headers
+	 * @return response, which must be closed
+	 * @throws IOException
+	 */
+	public PooledResponse get(URL url, Map<String, String> headers) throws IOException {
+		requests.incrementAndGet();
+		Proxy proxy = getProxy(url);
+		byte[] request = getRequest(url, headers, proxy.type() == Proxy.Type.HTTP);
+		HostPool hostPool = acquireHostPool(url, proxy);
+
+		// Connection of the response is given back by PooledResponse:
+		boolean responded = false;
+		try {
+			HttpConnection connection = hostPool.acquire();
+			boolean reused = connection != null;
+			while (true) {
+				if (connection == null) {
+					connection = open(url, proxy, hostPool);
+				}
+				try {
+					long start = System.nanoTime();
+					connection.out.write(request);
+					connection.out.flush();
+					PooledResponse response = PooledResponse.read(url, connection);
+					if (metrics != null) {
+						metrics.record(CrawlStage.FIRST_BYTE, System.nanoTime() - start);
+					}
+					responded = true;
+					return response;
+				} catch (SocketTimeoutException e) {
+					connection.close();
+					throw e;
+				} catch (IOException e) {
+					connection.close();
+					if (!reused) {
+						throw e;
+					}
+					reused = false;
+					connection = null;
+				}
+			}
+		} finally {
+			if (!responded) {
+				requestDone(hostPool);
+			}
+		}
+	}
+
+	/**
+	 * @return number of requests sent
+	 */
+	public long getRequestsNumber() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of connections opened
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/**
+	 * @return share of requests that were sent over a reused connection
+	 */
+	public double getReuseRatio() {
+		long requests = this.requests.get();
+		return requests == 0 ? 0 : Math.max(0, requests - connectionsOpened.get()) / (double) requests;
+	}
+
+	/**
+	 * Closes all idle connections. The pool can still be used afterwards.
+	 */
+	public void close() {
+		sweeperLock.lock();
+		try {
+			if (sweeper != null) {
+				sweeper.shutdownNow();
+				sweeper = null;
+			}
+		} finally {
+			sweeperLock.unlock();
+		}
+		Iterator<HostPool> i = hosts.values().iterator();
+		while (i.hasNext()) {
+			HostPool hostPool = i.next();
+			hostPool.closeIdle(Long.MAX_VALUE);
+			removeIfIdle(hostPool);
+		}
+	}
+
+	/**
+	 * Puts connection back to its host pool once the response is read, or closes it if
+	 * the pool is full
+	 */
+	void release(HttpConnection connection) {
+		connection.hostPool.release(connection);
+		requestDone(connection.hostPool);
+		startSweeper();
+	}
+
+	/**
+	 * Closes connection which can't be reused once the response is read
+	 */
+	void discard(HttpConnection connection) {
+		connection.close();
+		requestDone(connection.hostPool);
+	}
+
+	private HttpConnection open(URL url, Proxy proxy, HostPool hostPool) throws IOException {
+		long start = System.nanoTime();
+		InetSocketAddress address;
+		if (proxy.type() == Proxy.Type.HTTP) {
+			// Proxy connects to the host itself:
+			InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+			address = proxyAddress.isUnresolved() ? new InetSocketAddress(proxyAddress.getHostString(), proxyAddress.getPort()) : proxyAddress;
+		} else {
+			address = dnsCache != null ? new InetSocketAddress(dnsCache.resolve(url.getHost()), getPort(url)) : new InetSocketAddress(url.getHost(), getPort(url));
+		}
+		long resolved = System.nanoTime();
+		Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+		try {
+			socket.connect(address, timeout);
+			if (metrics != null) {
+				metrics.record(CrawlStage.DNS, resolved - start);
+				metrics.record(CrawlStage.CONNECT, System.nanoTime() - resolved);
+			}
+			socket.setSoTimeout(timeout);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		connectionsOpened.incrementAndGet();
+		return new HttpConnection(socket, hostPool);
+	}
+
+	/**
+	 * Returns pool of the host, and counts a request in progress in it, so that it
+	 * isn't removed meanwhile. Connections through a proxy are pooled apart from direct
+	 * ones.
+	 */
+	private HostPool acquireHostPool(URL url, Proxy proxy) {
+		String key = url.getHost() + ":" + getPort(url);
+		if (proxy.type() != Proxy.Type.DIRECT) {
+			key += " " + proxy;
+		}
+		return hosts.compute(key, new BiFunction<String, HostPool, HostPool>() {
+			public HostPool apply(String key, HostPool current) {
+				HostPool hostPool = current != null ? current : new HostPool(key);
+				hostPool.inProgress.incrementAndGet();
+				return hostPool;
+			}
+		});
+	}
+
+	private void requestDone(HostPool hostPool) {
+		hostPool.inProgress.decrementAndGet();
+		removeIfIdle(hostPool);
+	}
+
+	/**
+	 * Removes pool of the host if it has no idle connections and no requests in progress.
+	 * Requests are only counted in {@link #acquireHostPool(URL, Proxy)} while the map entry is
+	 * locked, so no connection can be added to the pool once it's found idle here.
+	 */
+	private void removeIfIdle(final HostPool hostPool) {
+		if (hostPool.isIdle()) {
+			hosts.computeIfPresent(hostPool.key, new BiFunction<String, HostPool, HostPool>() {
+				public HostPool apply(String key, HostPool current) {
+					return current == hostPool && hostPool.isIdle() ? null : current;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return number of hosts which pools are kept
+	 */
+	int getHostsNumber() {
+		return hosts.size();
+	}
+
+	private void startSweeper() {
+		if (sweeper != null) {
+			return;
+		}
+		sweeperLock.lock();
+		try {
+			if (sweeper == null) {
+				sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Spider Connection Sweeper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				long period = Math.max(idleTimeout / 2, 100);
+				sweeper.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						long now = System.currentTimeMillis();
+						Iterator<HostPool> i = hosts.values().iterator();
+						while (i.hasNext()) {
+							HostPool hostPool = i.next();
+							hostPool.closeIdle(now - idleTimeout);
+							removeIfIdle(hostPool);
+						}
+					}
+				}, period, period, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			sweeperLock.unlock();
+		}
+	}
+
+	private static int getPort(URL url) {
+		return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+	}
+
+	/**
+	 * @return proxy the default selector chooses for the URL, or {@link Proxy#NO_PROXY}
+	 */
+	private static Proxy getProxy(URL url) throws IOException {
+		ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null) {
+			return Proxy.NO_PROXY;
+		}
+		List<Proxy> proxies;
+		try {
+			proxies = selector.select(toURI(url));
+		} catch (URISyntaxException e) {
+			throw new IOException("Illegal URL: " + url);
+		}
+		return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+	}
+
+	/**
+	 * @param absolute Whether the request line has absolute URI, as requests to HTTP proxy do
+	 */
+	private static byte[] getRequest(URL url, Map<String, String> headers, boolean absolute) throws IOException {
+		StringBuilder authority = new StringBuilder(url.getHost());
+		if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+			authority.append(':').append(url.getPort());
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append("GET ");
+		if (absolute) {
+			buf.append(url.getProtocol()).append("://").append(authority);
+		}
+		buf.append(getRequestTarget(url)).append(" HTTP/1.1\r\n");
+		buf.append("Host: ").append(authority).append("\r\n");
+		boolean hasAccept = false;
+		Iterator<Map.Entry<String, String>> i = headers.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, String> header = i.next();
+			hasAccept |= "Accept".equalsIgnoreCase(header.getKey());
+			buf.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		if (!hasAccept) {
+			buf.append("Accept: */*\r\n");
+		}
+		buf.append("\r\n");
+		return buf.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Converts URL to URI, quoting illegal characters which {@link URL} tolerates, like
+	 * {@link java.net.URLConnection} does
+	 */
+	static URI toURI(URL url) throws URISyntaxException {
+		try {
+			return url.toURI();
+		} catch (URISyntaxException e) {
+			return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), null);
+		}
+	}
+
+	private static String getRequestTarget(URL url) throws IOException {
+		URI uri;
+		try {
+			uri = toURI(url);
+		} catch (URISyntaxException e) {
+			throw new IOException("Illegal URL: " + url);
+		}
+		String target = uri.getRawPath();
+		if (target == null || target.length() == 0) {
+			target = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			target += "?" + uri.getRawQuery();
+		}
+		return target;
+	}
+
+	static class HostPool {
+
+		private String key;
+		private Deque<HttpConnection> idle;
+		private Lock lock;
+		// Requests which use connections of the pool, from acquiring till the response is read:
+		private AtomicInteger inProgress;
+
+		HostPool(String key) {
+			this.key = key;
+			idle = new ArrayDeque<HttpConnection>();
+			lock = new ReentrantLock();
+			inProgress = new AtomicInteger();
+		}
+
+		/**
+		 * @return <code>true</code> if there are no idle connections and no requests in progress
+		 */
+		boolean isIdle() {
+			if (inProgress.get() > 0) {
+				return false;
+			}
+			lock.lock();
+			try {
+				return idle.isEmpty();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return idle connection, or <code>null</code> if there is none
+		 */
+		HttpConnection acquire() {
+			lock.lock();
+			try {
+				// The most recently used connection is the least likely to be closed by server:
+				return idle.pollLast();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void release(HttpConnection connection) {
+			connection.lastUsed = System.currentTimeMillis();
+			lock.lock();
+			try {
+				if (idle.size() < connection.pool().maxIdleConnections) {
+					idle.addLast(connection);
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			connection.close();
+		}
+
+		/**
+		 * Closes connections that are idle since given time
+		 */
+		void closeIdle(long since) {
+			while (true) {
+				HttpConnection connection;
+				lock.lock();
+				try {
+					connection = idle.peekFirst();
+					if (connection == null || connection.lastUsed > since) {
+						return;
+					}
+					idle.removeFirst();
+				} finally {
+					lock.unlock();
+				}
+				connection.close();
+			}
+		}
+	}
+
+	class HttpConnection {
+
+		Socket socket;
+		InputStream in;
+		OutputStream out;
+		HostPool hostPool;
+		long lastUsed;
+
+		HttpConnection(Socket socket, HostPool hostPool) throws IOException {
+			this.socket = socket;
+			this.hostPool = hostPool;
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		HttpConnectionPool pool() {
+			return HttpConnectionPool.this;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package org.spektom.spider;
+
+import java.util.List;
+
+/**
+ * Handler that gets retrieved pages in batches, so that it can amortize per-call costs
+ * like locking or syncing. Batches are collected by {@link WriteBehindStage}, and
+ * contain whatever pages were queued at the time, so their sizes vary.
+ */
+public interface IBatchSpiderHandler extends ISpiderHandler {
+
+	/**
+	 * @param pages Pages in the order they were queued
+	 */
+	public void handleBatch(List<FetchedPage> pages);
+}
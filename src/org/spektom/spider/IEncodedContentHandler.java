@@ -0,0 +1,18 @@
+package org.spektom.spider;
+
+import java.net.URL;
+
+/**
+ * Handler that stores compressed pages as they were transferred. Pages that were not
+ * compressed are still passed to {@link ISpiderHandler#handleContent(URL, long, byte[])}.
+ */
+public interface IEncodedContentHandler extends ISpiderHandler {
+
+	/**
+	 * @param url
+	 * @param lastModified
+	 * @param contentEncoding Encoding the page was transferred with, e.g. "gzip"
+	 * @param content Compressed page contents
+	 */
+	public void handleEncodedContent(URL url, long lastModified, String contentEncoding, byte[] content);
+}
@@ -0,0 +1,10 @@
+package org.spektom.spider;
+
+public interface IHTMLTagHandler {
+
+	/**
+	 * Called for every wanted tag found by {@link HTMLTokenizer}
+	 * @param tag Reused view of the tag, valid only until this method returns
+	 */
+	public void handleTag(HTMLTag tag);
+}
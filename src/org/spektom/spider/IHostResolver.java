@@ -0,0 +1,17 @@
+package org.spektom.spider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names for {@link DNSCache}
+ */
+public interface IHostResolver {
+
+	/**
+	 * @param host
+	 * @return addresses of the host, at least one
+	 * @throws UnknownHostException if the host can't be resolved
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+}
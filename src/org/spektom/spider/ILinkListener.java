@@ -0,0 +1,10 @@
+package org.spektom.spider;
+
+public interface ILinkListener {
+
+	/**
+	 * Called for every link as soon as it's found on the page
+	 * @param url
+	 */
+	public void linkFound(CanonicalURL url);
+}
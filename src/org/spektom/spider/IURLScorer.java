@@ -0,0 +1,24 @@
+package org.spektom.spider;
+
+/**
+ * Scores URLs when they are queued, so that the frontier takes URLs with higher
+ * scores first. Implementations must be safe for use by concurrent callers.
+ */
+public interface IURLScorer {
+
+	/**
+	 * @param url URL being queued
+	 * @param depth Number of links followed from the start URL
+	 * @param parent Page where the link was found, or <code>null</code> for the start URL
+	 * @param linksNumber Number of links found on the parent page, or 0 if it isn't known
+	 * yet
+	 * @return score, 1 for the start URL and less for URLs of lower priority
+	 */
+	public double score(CanonicalURL url, int depth, QueuedURL parent, int linksNumber);
+
+	/**
+	 * @return <code>true</code> if scores depend on the number of links on the parent
+	 * page, so that links can't be queued before the whole page is parsed
+	 */
+	public boolean needsLinksNumber();
+}
@@ -0,0 +1,26 @@
+package org.spektom.spider;
+
+/**
+ * Set of URLs that were already put into the queue. Implementations must be safe
+ * for use by concurrent callers.
+ */
+public interface IURLSeenSet {
+
+	/**
+	 * Adds URL to the set
+	 * @param url
+	 * @return <code>true</code> if the URL wasn't seen before
+	 */
+	public boolean add(String url);
+
+	/**
+	 * @param url
+	 * @return <code>true</code> if the URL was seen before
+	 */
+	public boolean contains(String url);
+
+	/**
+	 * @return number of URLs in the set
+	 */
+	public long size();
+}
@@ -0,0 +1,112 @@
+package org.spektom.spider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets: every power of two
+ * is split into 32 buckets, so that reported percentiles are within about 3% of the
+ * real values, for any magnitude. Recording takes a few atomic increments and never
+ * allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos Latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(getBucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+		}
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of recorded values in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return maximal recorded value in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile Percentile between 0 and 100
+	 * @return value in nanoseconds that is not exceeded by given percent of recorded
+	 * values, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(getHighestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int getBucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + (shift << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value that falls into the bucket
+	 */
+	static long getHighestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+		long lowest = (long) (SUB_BUCKETS + ((bucket - SUB_BUCKETS) & (SUB_BUCKETS - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
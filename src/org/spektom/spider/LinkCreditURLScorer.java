@@ -0,0 +1,21 @@
+package org.spektom.spider;
+
+/**
+ * Splits score of the page evenly among its links, like OPIC does with the page
+ * cash, so that links of pages with few links are preferred over links of link
+ * farms and long listings. Unlike OPIC, URL gets credit only from the page it
+ * was first found on, since URLs that are already queued are never scored again.
+ */
+public class LinkCreditURLScorer implements IURLScorer {
+
+	public double score(CanonicalURL url, int depth, QueuedURL parent, int linksNumber) {
+		if (parent == null) {
+			return 1.0;
+		}
+		return parent.getScore() / Math.max(1, linksNumber);
+	}
+
+	public boolean needsLinksNumber() {
+		return true;
+	}
+}
@@ -0,0 +1,94 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends snapshot of crawl metrics to a file periodically, one JSON object per line
+ */
+public class MetricsReporter {
+
+	private CrawlMetrics metrics;
+	private File file;
+	private long interval;
+	private ScheduledExecutorService executor;
+	private OutputStream out;
+	private Lock lock;
+
+	/**
+	 * @param metrics
+	 * @param file File the snapshots are appended to
+	 * @param interval Time between snapshots in milliseconds
+	 */
+	public MetricsReporter(CrawlMetrics metrics, File file, long interval) {
+		this.metrics = metrics;
+		this.file = file;
+		this.interval = interval;
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * Opens the file, and starts writing snapshots
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		out = new FileOutputStream(file, true);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Spider Metrics Reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops writing snapshots, writes the final one, and closes the file
+	 */
+	public void close() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdownNow();
+		executor = null;
+		report();
+		lock.lock();
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			out = null;
+			lock.unlock();
+		}
+	}
+
+	private void report() {
+		byte[] line = (metrics.getSnapshot() + "\n").getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			if (out != null) {
+				out.write(line);
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
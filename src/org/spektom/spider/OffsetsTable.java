@@ -0,0 +1,68 @@
+package org.spektom.spider;
+
+/**
+ * Open-addressed table of record offsets, keyed by 64-bit fingerprints
+ */
+class OffsetsTable {
+
+	// Zero marks empty slot, so it's replaced with another value:
+	static final long EMPTY = 0;
+	static final long ZERO_REPLACEMENT = 1;
+
+	long[] keys = new long[1024];
+	long[] values = new long[1024];
+	private int count;
+
+	long get(long key) {
+		key = key == EMPTY ? ZERO_REPLACEMENT : key;
+		int mask = keys.length - 1;
+		for (int i = (int) key & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return previous value, or -1
+	 */
+	long put(long key, long value) {
+		key = key == EMPTY ? ZERO_REPLACEMENT : key;
+		// Keep load factor below 0.5, so that probe sequences stay short:
+		if ((count + 1) * 2 > keys.length) {
+			resize();
+		}
+		int mask = keys.length - 1;
+		int i = (int) key & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				long previous = values[i];
+				values[i] = value;
+				return previous;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		++count;
+		return -1;
+	}
+
+	int size() {
+		return count;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldValues.length * 2];
+		count = 0;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package org.spektom.spider;
+
+import java.util.Arrays;
+
+/**
+ * Multiplies score given by another scorer by weights of Glob patterns the URL
+ * matches (see {@link FileMatcher#matches(String, String)}), so that URLs of
+ * interesting sections are retrieved earlier, and URLs of others later
+ */
+public class PatternURLScorer implements IURLScorer {
+
+	private IURLScorer scorer;
+	private volatile Weight[] weights;
+
+	/**
+	 * @param scorer Scorer which scores are weighted
+	 */
+	public PatternURLScorer(IURLScorer scorer) {
+		this.scorer = scorer;
+		weights = new Weight[0];
+	}
+
+	/**
+	 * Multiplies scores of URLs matching the pattern by the weight
+	 * @param pattern Glob pattern
+	 * @param weight Weight, above 1 for URLs that should be retrieved earlier
+	 */
+	public synchronized void addWeight(String pattern, double weight) {
+		Weight[] weights = Arrays.copyOf(this.weights, this.weights.length + 1);
+		weights[weights.length - 1] = new Weight(pattern, weight);
+		this.weights = weights;
+	}
+
+	public double score(CanonicalURL url, int depth, QueuedURL parent, int linksNumber) {
+		double score = scorer.score(url, depth, parent, linksNumber);
+		Weight[] weights = this.weights;
+		if (weights.length > 0) {
+			String urlStr = url.toString();
+			for (int i = 0; i < weights.length; ++i) {
+				if (FileMatcher.matches(weights[i].pattern, urlStr)) {
+					score *= weights[i].weight;
+				}
+			}
+		}
+		return score;
+	}
+
+	public boolean needsLinksNumber() {
+		return scorer.needsLinksNumber();
+	}
+
+	static class Weight {
+
+		final String pattern;
+		final double weight;
+
+		Weight(String pattern, double weight) {
+			this.pattern = pattern;
+			this.weight = weight;
+		}
+	}
+}
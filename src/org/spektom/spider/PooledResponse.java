@@ -0,0 +1,370 @@
+package org.spektom.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.spektom.spider.HttpConnectionPool.HttpConnection;
+
+/**
+ * Response received over a pooled connection. It must be closed on every exit path:
+ * unread rest of a short body is drained then, and the connection goes back to the
+ * pool, unless the server asked to close it.
+ */
+public class PooledResponse implements Closeable {
+
+	// Bodies longer than this are not worth draining, the connection is closed instead:
+	static final int MAX_DRAIN = 64 * 1024;
+	private static final int MAX_LINE = 64 * 1024;
+
+	private URL url;
+	private HttpConnection connection;
+	private int status;
+	private Map<String, String> headers;
+	private boolean keepAlive;
+	private BodyInputStream body;
+	private boolean closed;
+
+	private PooledResponse(URL url, HttpConnection connection) {
+		this.url = url;
+		this.connection = connection;
+		headers = new HashMap<String, String>();
+	}
+
+	/**
+	 * Reads status line and headers of the response
+	 */
+	static PooledResponse read(URL url, HttpConnection connection) throws IOException {
+		PooledResponse response = new PooledResponse(url, connection);
+		InputStream in = connection.in;
+		String statusLine;
+		do {
+			statusLine = readLine(in);
+			if (statusLine == null) {
+				throw new EOFException("Connection closed by server: " + url);
+			}
+			response.parseStatusLine(statusLine);
+			response.headers.clear();
+			response.readHeaders(in);
+			// Interim responses are followed by the final one:
+		} while (response.status >= 100 && response.status < 200);
+
+		String connectionHeader = response.getHeader("Connection");
+		if (statusLine.startsWith("HTTP/1.0")) {
+			response.keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+		} else {
+			response.keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+		}
+
+		if (response.status == 204 || response.status == 304) {
+			response.body = new FixedLengthInputStream(in, 0);
+		} else if (isChunked(response.getHeader("Transfer-Encoding"))) {
+			response.body = new ChunkedInputStream(in);
+		} else if (response.getContentLength() >= 0 && response.getHeader("Transfer-Encoding") == null) {
+			// Content-Length doesn't apply when any transfer coding is used:
+			response.body = new FixedLengthInputStream(in, response.getContentLength());
+		} else {
+			// Body ends when the server closes the connection:
+			response.body = new FixedLengthInputStream(in, Long.MAX_VALUE);
+			response.keepAlive = false;
+		}
+		return response;
+	}
+
+	/**
+	 * Checks whether the body is framed by chunked transfer coding, which must be the
+	 * last of the codings applied, like in "gzip, chunked". Other codings are not
+	 * decoded, servers don't apply them since they're not requested with TE header.
+	 * @param transferEncoding Value of Transfer-Encoding header
+	 * @return <code>true</code> if the body is chunked
+	 */
+	static boolean isChunked(String transferEncoding) {
+		if (transferEncoding == null) {
+			return false;
+		}
+		return "chunked".equalsIgnoreCase(transferEncoding.substring(transferEncoding.lastIndexOf(',') + 1).trim());
+	}
+
+	/**
+	 * @return URL which was requested
+	 */
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * @return HTTP status code
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @param name Case-insensitive header name
+	 * @return header value, or <code>null</code> if there's no such header
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * @return value of Content-Type header, or <code>null</code>
+	 */
+	public String getContentType() {
+		return getHeader("Content-Type");
+	}
+
+	/**
+	 * @return value of Content-Length header, or -1 if it's unknown
+	 */
+	public long getContentLength() {
+		String contentLength = getHeader("Content-Length");
+		if (contentLength != null) {
+			try {
+				return Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return value of Last-Modified header in milliseconds, or 0 if there's none
+	 */
+	public long getLastModified() {
+		return parseDate(getHeader("Last-Modified"));
+	}
+
+	/**
+	 * @return stream of the response body, which ends where the body ends
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Releases the connection back to the pool, or closes it
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (keepAlive && body.drain(MAX_DRAIN)) {
+			connection.pool().release(connection);
+		} else {
+			connection.pool().discard(connection);
+		}
+	}
+
+	/**
+	 * Closes the connection without reading the rest of the body, when the body is
+	 * not wanted however short it is
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		connection.pool().discard(connection);
+	}
+
+	/**
+	 * Parses HTTP date
+	 * @param date
+	 * @return date in milliseconds, or 0 if it's missing or can't be parsed
+	 */
+	static long parseDate(String date) {
+		if (date != null) {
+			try {
+				return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+			}
+		}
+		return 0;
+	}
+
+	private void parseStatusLine(String statusLine) throws IOException {
+		if (!statusLine.startsWith("HTTP/")) {
+			throw new IOException("Invalid HTTP response from " + url + ": " + statusLine);
+		}
+		int start = statusLine.indexOf(' ');
+		int end = start != -1 ? statusLine.indexOf(' ', start + 1) : -1;
+		try {
+			status = Integer.parseInt(end != -1 ? statusLine.substring(start + 1, end) : statusLine.substring(start + 1));
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid HTTP response from " + url + ": " + statusLine);
+		}
+	}
+
+	private void readHeaders(InputStream in) throws IOException {
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int i = line.indexOf(':');
+			if (i > 0) {
+				headers.put(line.substring(0, i).trim().toLowerCase(), line.substring(i + 1).trim());
+			}
+		}
+		if (line == null) {
+			throw new EOFException("Unexpected end of headers: " + url);
+		}
+	}
+
+	/**
+	 * @return line without terminating CRLF, or <code>null</code> at the end of stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				return line.size() > 0 ? line.toString(StandardCharsets.ISO_8859_1) : null;
+			}
+			if (line.size() >= MAX_LINE) {
+				throw new IOException("HTTP header line is too long");
+			}
+			line.write(b);
+		}
+		int length = line.size();
+		byte[] bytes = line.toByteArray();
+		if (length > 0 && bytes[length - 1] == '\r') {
+			--length;
+		}
+		return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Body stream, that knows whether the body was read to its end
+	 */
+	abstract static class BodyInputStream extends InputStream {
+
+		protected InputStream in;
+		protected boolean finished;
+
+		BodyInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		/**
+		 * Skips the rest of the body, unless it's longer than given limit
+		 * @return <code>true</code> if the body was read to its end
+		 */
+		boolean drain(int limit) {
+			try {
+				byte[] buf = new byte[4096];
+				int drained = 0;
+				while (!finished && drained <= limit) {
+					int bytesRead = read(buf, 0, buf.length);
+					if (bytesRead < 0) {
+						break;
+					}
+					drained += bytesRead;
+				}
+				return finished;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		public void close() {
+			// Connection is released by the response
+		}
+	}
+
+	static class FixedLengthInputStream extends BodyInputStream {
+
+		private long remaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+			finished = length == 0;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				return -1;
+			}
+			int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+			if (bytesRead < 0) {
+				if (remaining != Long.MAX_VALUE) {
+					throw new EOFException("Unexpected end of response body");
+				}
+				finished = true;
+				return -1;
+			}
+			remaining -= bytesRead;
+			finished = remaining == 0;
+			return bytesRead;
+		}
+
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	static class ChunkedInputStream extends BodyInputStream {
+
+		private long chunkRemaining;
+
+		ChunkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				return -1;
+			}
+			if (chunkRemaining == 0) {
+				String sizeLine = readLine(in);
+				if (sizeLine == null) {
+					throw new EOFException("Unexpected end of chunked response body");
+				}
+				int i = sizeLine.indexOf(';');
+				long chunkSize;
+				try {
+					// Sizes that overflow long aren't parsed:
+					chunkSize = Long.parseLong((i != -1 ? sizeLine.substring(0, i) : sizeLine).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + sizeLine);
+				}
+				if (chunkSize < 0) {
+					throw new IOException("Invalid chunk size: " + sizeLine);
+				}
+				chunkRemaining = chunkSize;
+				if (chunkRemaining == 0) {
+					// Skip trailers:
+					String line;
+					while ((line = readLine(in)) != null && line.length() > 0) {
+					}
+					finished = true;
+					return -1;
+				}
+			}
+			int bytesRead = in.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (bytesRead < 0) {
+				throw new EOFException("Unexpected end of chunked response body");
+			}
+			chunkRemaining -= bytesRead;
+			if (chunkRemaining == 0) {
+				// CRLF after the chunk data:
+				readLine(in);
+			}
+			return bytesRead;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.spektom.spider;
+
+import java.net.URL;
+
+/**
+ * URL waiting in the {@link Frontier}, with the way it was discovered and its score,
+ * which defines the order URLs are taken in
+ */
+public class QueuedURL {
+
+	private URL url;
+	private int depth;
+	private URL parent;
+	private double score;
+	// Whether the page waits for the write-behind handler after it's processed:
+	private volatile boolean handledLater;
+
+	/**
+	 * @param url
+	 * @param depth Number of links followed from the start URL
+	 * @param parent URL of the page where the link was found, or <code>null</code>
+	 * @param score Score, URLs with higher scores are taken first
+	 */
+	public QueuedURL(URL url, int depth, URL parent, double score) {
+		this.url = url;
+		this.depth = depth;
+		this.parent = parent;
+		this.score = score;
+	}
+
+	/**
+	 * @return URL
+	 */
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * @return number of links followed from the start URL, 0 for the start URL itself
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return URL of the page where the link was found, or <code>null</code> for the
+	 * start URL
+	 */
+	public URL getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return score, URLs with higher scores are taken first
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	boolean isHandledLater() {
+		return handledLater;
+	}
+
+	void setHandledLater(boolean handledLater) {
+		this.handledLater = handledLater;
+	}
+
+	public String toString() {
+		return url.toString();
+	}
+}
@@ -0,0 +1,215 @@
+package org.spektom.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps robots.txt rules of recently visited sites. Rules are retrieved using
+ * non-blocking HTTP client, and every site has its own future, so that only callers
+ * interested in that site wait for its robots.txt. Rules expire after configured time,
+ * and least recently used sites are evicted once there are too many of them.
+ * Files are read up to {@link #MAX_LENGTH} bytes, the rest is ignored.
+ */
+public class RobotsCache {
+
+	/**
+	 * Number of bytes of robots.txt that are parsed, the least RFC 9309 requires
+	 */
+	public static final int MAX_LENGTH = 500 * 1024;
+
+	private HttpClient httpClient;
+	private int timeout;
+	private String userAgent;
+	private long ttl;
+	private Map<String, Entry> entries;
+	// Lock is held only while looking up the map, never during retrieval:
+	private Lock lock;
+
+	public RobotsCache() {
+		this(24 * 60 * 60 * 1000L, 10000);
+	}
+
+	/**
+	 * @param ttl Time in milliseconds after which rules are retrieved again
+	 * @param maxSites Maximal number of sites which rules are kept
+	 */
+	public RobotsCache(long ttl, final int maxSites) {
+		this.ttl = ttl;
+		timeout = 5000;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSites;
+			}
+		};
+		lock = new ReentrantLock();
+		// Request timeout covers connecting as well, so the client needs no own timeout:
+		httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+	}
+
+	/**
+	 * Sets connect/read timeout in milliseconds
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets string sent in User-Agent header, it also selects robots.txt group
+	 * @param userAgent
+	 */
+	public void setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
+	}
+
+	/**
+	 * Returns rules of the site, retrieving robots.txt unless the rules are cached.
+	 * If robots.txt can't be retrieved, everything is allowed.
+	 * @param url Any URL of the site
+	 * @return future that never completes exceptionally
+	 */
+	public CompletableFuture<RobotsRules> getRules(URL url) {
+		String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+		long now = System.currentTimeMillis();
+		Entry entry;
+		boolean load = false;
+
+		lock.lock();
+		try {
+			entry = entries.get(key);
+			if (entry == null || entry.expires < now) {
+				entry = new Entry(now + ttl);
+				entries.put(key, entry);
+				load = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (load) {
+			load(url, entry.rules);
+		}
+		return entry.rules;
+	}
+
+	/**
+	 * @return number of sites which rules are cached
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void load(URL url, final CompletableFuture<RobotsRules> rules) {
+		try {
+			// File robot.txt must be placed on the site root, see: http://www.robotstxt.org/wc/exclusion.html#robotstxt
+			URI robotsURI = new URI(url.getProtocol(), null, url.getHost(), url.getPort(), "/robots.txt", null, null);
+			HttpRequest.Builder builder = HttpRequest.newBuilder(robotsURI).timeout(Duration.ofMillis(timeout)).GET();
+			if (userAgent != null) {
+				builder.header("User-Agent", userAgent);
+			}
+			httpClient.sendAsync(builder.build(), new BodyHandler<String>() {
+				public BodySubscriber<String> apply(ResponseInfo responseInfo) {
+					return new TruncatingSubscriber(MAX_LENGTH);
+				}
+			}).whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+				public void accept(HttpResponse<String> response, Throwable error) {
+					if (error == null && response.statusCode() >= 200 && response.statusCode() < 300) {
+						try {
+							rules.complete(RobotsRules.parse(response.body(), userAgent));
+							return;
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+					rules.complete(RobotsRules.ALLOW_ALL);
+				}
+			});
+		} catch (Exception e) {
+			// Illegal URL, or the client refused to send the request
+			rules.complete(RobotsRules.ALLOW_ALL);
+		}
+	}
+
+	/**
+	 * Reads body as UTF-8 text up to given length, and stops receiving it there
+	 */
+	static class TruncatingSubscriber implements BodySubscriber<String> {
+
+		private int maxLength;
+		private ByteArrayOutputStream body;
+		private CompletableFuture<String> result;
+		private Flow.Subscription subscription;
+
+		TruncatingSubscriber(int maxLength) {
+			this.maxLength = maxLength;
+			body = new ByteArrayOutputStream();
+			result = new CompletableFuture<String>();
+		}
+
+		public CompletionStage<String> getBody() {
+			return result;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		public void onNext(List<ByteBuffer> chunks) {
+			for (int i = 0; i < chunks.size() && !result.isDone(); ++i) {
+				ByteBuffer chunk = chunks.get(i);
+				int length = Math.min(chunk.remaining(), maxLength - body.size());
+				byte[] bytes = new byte[length];
+				chunk.get(bytes);
+				body.write(bytes, 0, length);
+				if (body.size() == maxLength) {
+					subscription.cancel();
+					onComplete();
+				}
+			}
+		}
+
+		public void onError(Throwable error) {
+			result.completeExceptionally(error);
+		}
+
+		public void onComplete() {
+			result.complete(new String(body.toByteArray(), StandardCharsets.UTF_8));
+		}
+	}
+
+	static class Entry {
+
+		final CompletableFuture<RobotsRules> rules;
+		final long expires;
+
+		Entry(long expires) {
+			this.expires = expires;
+			rules = new CompletableFuture<RobotsRules>();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package org.spektom.spider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rules of robots.txt file that apply to this robot, see:
+ * http://www.robotstxt.org/wc/norobots.html#format and RFC 9309.
+ * <p>
+ * Allow and Disallow rules are compiled into a trie, where '*' matches any sequence
+ * of characters and '$' at the end of the rule anchors it to the end of the path.
+ * The longest matching rule wins, and Allow wins over Disallow of the same length.
+ * Paths are matched by walking all trie branches a path may be in at once, so that
+ * matching takes at most path length times number of trie nodes steps, however many
+ * wildcards the rules have.
+ */
+public class RobotsRules {
+
+	/**
+	 * Rules of a site that has no robots.txt
+	 */
+	public static final RobotsRules ALLOW_ALL = new RobotsRules();
+
+	private Node root;
+	private int nodes;
+	private long crawlDelay;
+
+	private RobotsRules() {
+		root = new Node();
+		nodes = 1;
+	}
+
+	/**
+	 * Parses robots.txt file. Rules of groups that name this robot are used if there
+	 * are such groups, otherwise rules of '*' groups are used.
+	 * @param text Contents of the file
+	 * @param userAgent User-Agent header sent by this robot, or <code>null</code>
+	 * @return rules
+	 */
+	public static RobotsRules parse(String text, String userAgent) {
+		String robotName = getRobotName(userAgent);
+
+		List<Group> groups = new ArrayList<Group>();
+		Group group = null;
+		boolean inAgents = false;
+
+		String[] lines = text.split("\r\n|\r|\n");
+		for (int i = 0; i < lines.length; ++i) {
+			String line = lines[i];
+			int comment = line.indexOf('#');
+			if (comment != -1) {
+				line = line.substring(0, comment);
+			}
+			int colon = line.indexOf(':');
+			if (colon == -1) {
+				continue;
+			}
+			String field = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			String value = line.substring(colon + 1).trim();
+
+			if ("user-agent".equals(field)) {
+				// Consecutive User-agent lines start a single group:
+				if (!inAgents) {
+					group = new Group();
+					groups.add(group);
+					inAgents = true;
+				}
+				group.agents.add(value.toLowerCase(Locale.ENGLISH));
+				continue;
+			}
+			inAgents = false;
+			if (group == null) {
+				continue;
+			}
+			if ("allow".equals(field) || "disallow".equals(field)) {
+				// Empty Disallow means everything is allowed:
+				if (value.length() > 0) {
+					group.rules.add(field.charAt(0) == 'a' ? "+" + value : "-" + value);
+				}
+			} else if ("crawl-delay".equals(field)) {
+				try {
+					group.crawlDelay = (long) (Double.parseDouble(value) * 1000);
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+
+		RobotsRules rules = new RobotsRules();
+		boolean specific = false;
+		for (int i = 0; i < groups.size() && robotName != null; ++i) {
+			if (groups.get(i).matches(robotName)) {
+				rules.add(groups.get(i));
+				specific = true;
+			}
+		}
+		if (!specific) {
+			for (int i = 0; i < groups.size(); ++i) {
+				if (groups.get(i).agents.contains("*")) {
+					rules.add(groups.get(i));
+				}
+			}
+		}
+		rules.number();
+		return rules;
+	}
+
+	/**
+	 * @param path Path of URL, including the query
+	 * @return <code>true</code> if this robot may retrieve the path
+	 */
+	public boolean isAllowed(String path) {
+		if (path.length() == 0) {
+			path = "/";
+		}
+		int score = match(path);
+		// Odd score means the longest rule is Allow:
+		return score < 0 || (score & 1) == 1;
+	}
+
+	/**
+	 * @return delay between successive requests to the site in milliseconds, or 0 if
+	 * not specified
+	 */
+	public long getCrawlDelay() {
+		return crawlDelay;
+	}
+
+	private void add(Group group) {
+		for (int i = 0; i < group.rules.size(); ++i) {
+			String rule = group.rules.get(i);
+			add(rule.substring(1), rule.charAt(0) == '+');
+		}
+		crawlDelay = Math.max(crawlDelay, group.crawlDelay);
+	}
+
+	private void add(String pattern, boolean allow) {
+		int score = pattern.length() * 2 + (allow ? 1 : 0);
+		boolean anchored = pattern.endsWith("$");
+		int end = anchored ? pattern.length() - 1 : pattern.length();
+		if (!anchored) {
+			// Trailing wildcards don't change anything:
+			while (end > 0 && pattern.charAt(end - 1) == '*') {
+				--end;
+			}
+		}
+		Node node = root;
+		for (int i = 0; i < end; ++i) {
+			char ch = pattern.charAt(i);
+			if (ch == '*') {
+				if (i > 0 && pattern.charAt(i - 1) == '*') {
+					// Consecutive wildcards match the same as one
+					continue;
+				}
+				if (node.star == null) {
+					node.star = new Node();
+				}
+				node = node.star;
+			} else {
+				node = node.getOrAddChild(ch);
+			}
+		}
+		if (anchored) {
+			node.anchoredScore = Math.max(node.anchoredScore, score);
+		} else {
+			node.score = Math.max(node.score, score);
+		}
+	}
+
+	/**
+	 * Numbers trie nodes, so that matching can mark the nodes it has visited
+	 */
+	private void number() {
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		nodes = 0;
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			node.id = nodes++;
+			if (node.star != null) {
+				stack.add(node.star);
+			}
+			for (int i = 0; i < node.getChildrenNumber(); ++i) {
+				stack.add(node.getChildAt(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the highest score of rules matching the path, or -1
+	 */
+	private int match(String path) {
+		// Position + 1 at which the node was last added to the list of active nodes:
+		int[] added = new int[nodes];
+		// Nodes following a wildcard stay active until the end of the path:
+		boolean[] wildcard = new boolean[nodes];
+		List<Node> wildcards = new ArrayList<Node>();
+		List<Node> active = new ArrayList<Node>();
+		List<Node> next = new ArrayList<Node>();
+
+		activate(root, active, 1, added, wildcard, wildcards);
+		int best = -1;
+		for (int i = 0;; ++i) {
+			for (int j = 0; j < active.size(); ++j) {
+				Node node = active.get(j);
+				best = Math.max(best, i == path.length() ? Math.max(node.score, node.anchoredScore) : node.score);
+			}
+			if (i == path.length() || active.isEmpty()) {
+				return best;
+			}
+			char ch = path.charAt(i);
+			for (int j = 0; j < active.size(); ++j) {
+				Node child = active.get(j).getChild(ch);
+				if (child != null) {
+					activate(child, next, i + 2, added, wildcard, wildcards);
+				}
+			}
+			for (int j = 0; j < wildcards.size(); ++j) {
+				activate(wildcards.get(j), next, i + 2, added, wildcard, wildcards);
+			}
+			List<Node> list = active;
+			active = next;
+			next = list;
+			next.clear();
+		}
+	}
+
+	/**
+	 * Adds the node to the list of nodes active at given position, along with the
+	 * node following its wildcard, which matches the empty string as well
+	 */
+	private static void activate(Node node, List<Node> list, int position, int[] added, boolean[] wildcard, List<Node> wildcards) {
+		while (node != null && added[node.id] != position) {
+			added[node.id] = position;
+			list.add(node);
+			node = node.star;
+			if (node != null && !wildcard[node.id]) {
+				wildcard[node.id] = true;
+				wildcards.add(node);
+			}
+		}
+	}
+
+	/**
+	 * Extracts product token from the User-Agent header, e.g. "mybot" from
+	 * "MyBot/1.0 (+http://www.example.com/bot.html)"
+	 */
+	private static String getRobotName(String userAgent) {
+		if (userAgent == null) {
+			return null;
+		}
+		String name = userAgent.trim();
+		for (int i = 0; i < name.length(); ++i) {
+			char ch = name.charAt(i);
+			if (ch == '/' || ch == ' ' || ch == '(') {
+				name = name.substring(0, i);
+				break;
+			}
+		}
+		return name.length() > 0 ? name.toLowerCase(Locale.ENGLISH) : null;
+	}
+
+	static class Group {
+
+		List<String> agents = new ArrayList<String>();
+		// Every rule is prefixed with '+' for Allow, or '-' for Disallow:
+		List<String> rules = new ArrayList<String>();
+		long crawlDelay;
+
+		boolean matches(String robotName) {
+			for (int i = 0; i < agents.size(); ++i) {
+				String agent = agents.get(i);
+				if (!"*".equals(agent) && (robotName.equals(agent) || robotName.startsWith(agent))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	static class Node extends TrieNode<Node> {
+
+		Node star;
+		int id;
+		// Score of a rule ending here is twice its length, plus one for Allow:
+		int score = -1;
+		int anchoredScore = -1;
+
+		protected Node newNode() {
+			return new Node();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package org.spektom.spider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads pages stored by {@link SegmentStorageHandler}. Segments are memory-mapped, so
+ * that pages can be looked up by URL through the index, or scanned sequentially,
+ * without copying their contents. Records that are missing from the index because
+ * the crawl was interrupted are found by scanning the segment past the last indexed
+ * record.
+ */
+public class SegmentReader implements Iterable<SegmentRecord>, Closeable {
+
+	// Location is segment number in the upper bits, and offset in the lower bits:
+	private static final int OFFSET_BITS = 40;
+
+	private List<MappedByteBuffer> segments;
+	private int[] segmentNumbers;
+	// URL fingerprint to location of the latest record:
+	private OffsetsTable locations;
+
+	/**
+	 * Maps all segments in the directory, and loads their indexes
+	 * @param directory
+	 * @throws IOException
+	 */
+	public SegmentReader(File directory) throws IOException {
+		File[] files = listSegments(directory);
+		segments = new ArrayList<MappedByteBuffer>(files.length);
+		segmentNumbers = new int[files.length];
+		locations = new OffsetsTable();
+
+		for (int i = 0; i < files.length; ++i) {
+			FileChannel channel = FileChannel.open(files[i].toPath(), StandardOpenOption.READ);
+			try {
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				channel.close();
+			}
+			segmentNumbers[i] = getSegmentNumber(files[i]);
+			loadIndex(directory, i);
+		}
+	}
+
+	/**
+	 * Returns the latest record of the page. Contents of a duplicate record are taken
+	 * from the record it refers to.
+	 * @param url
+	 * @return record, or <code>null</code> if the page is not stored
+	 * @throws IOException if the segment is corrupted
+	 */
+	public SegmentRecord get(String url) throws IOException {
+		long location = locations.get(URLFingerprint.fingerprint(url));
+		if (location < 0) {
+			return null;
+		}
+		SegmentRecord record = read(location);
+		return record != null && url.equals(record.getURL()) ? record : null;
+	}
+
+	/**
+	 * @return number of pages that can be looked up
+	 */
+	public int size() {
+		return locations.size();
+	}
+
+	/**
+	 * Iterates over all records in the order they were written
+	 */
+	public Iterator<SegmentRecord> iterator() {
+		return new Iterator<SegmentRecord>() {
+			private int segment;
+			private int offset;
+			private SegmentRecord next;
+
+			public boolean hasNext() {
+				while (next == null && segment < segments.size()) {
+					try {
+						next = SegmentRecord.parse(segments.get(segment), offset);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					if (next == null) {
+						// End of segment, or incomplete record
+						++segment;
+						offset = 0;
+					} else {
+						offset = next.getEnd();
+						resolve(next);
+					}
+				}
+				return next != null;
+			}
+
+			public SegmentRecord next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				SegmentRecord record = next;
+				next = null;
+				return record;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Releases the mappings. Records that were read must not be used after that.
+	 */
+	public void close() {
+		// Mappings are released when they are garbage collected
+		segments.clear();
+		locations = new OffsetsTable();
+	}
+
+	static long getLocation(int segmentNumber, long offset) {
+		return ((long) segmentNumber << OFFSET_BITS) | offset;
+	}
+
+	static File getSegmentFile(File directory, int segmentNumber) {
+		return new File(directory, String.format("%s%05d%s", SegmentStorageHandler.SEGMENT_PREFIX, segmentNumber, SegmentStorageHandler.SEGMENT_SUFFIX));
+	}
+
+	static File getIndexFile(File directory, int segmentNumber) {
+		return new File(directory, String.format("%s%05d%s", SegmentStorageHandler.SEGMENT_PREFIX, segmentNumber, SegmentStorageHandler.INDEX_SUFFIX));
+	}
+
+	static int getSegmentNumber(File segmentFile) {
+		String name = segmentFile.getName();
+		return Integer.parseInt(name.substring(SegmentStorageHandler.SEGMENT_PREFIX.length(), name.length() - SegmentStorageHandler.SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * @return segment files in the directory, ordered by their numbers
+	 */
+	static File[] listSegments(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return name.startsWith(SegmentStorageHandler.SEGMENT_PREFIX) && name.endsWith(SegmentStorageHandler.SEGMENT_SUFFIX)
+					&& name.substring(SegmentStorageHandler.SEGMENT_PREFIX.length(), name.length() - SegmentStorageHandler.SEGMENT_SUFFIX.length()).matches("\\d+");
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Integer.compare(getSegmentNumber(f1), getSegmentNumber(f2));
+			}
+		});
+		return files;
+	}
+
+	private SegmentRecord read(long location) throws IOException {
+		int segmentNumber = (int) (location >>> OFFSET_BITS);
+		int i = Arrays.binarySearch(segmentNumbers, segmentNumber);
+		if (i < 0) {
+			return null;
+		}
+		SegmentRecord record = SegmentRecord.parse(segments.get(i), (int) (location & ((1L << OFFSET_BITS) - 1)));
+		if (record != null) {
+			resolve(record);
+		}
+		return record;
+	}
+
+	/**
+	 * Takes contents of a duplicate record from the record it refers to
+	 */
+	private void resolve(SegmentRecord record) {
+		if (!record.isDuplicate()) {
+			return;
+		}
+		try {
+			SegmentRecord original = read(record.getRefersTo());
+			if (original != null) {
+				record.setContent(original.getContent());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void loadIndex(File directory, int i) throws IOException {
+		int segmentNumber = segmentNumbers[i];
+		long lastOffset = -1;
+		File indexFile = getIndexFile(directory, segmentNumber);
+		if (indexFile.exists()) {
+			FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(SegmentStorageHandler.INDEX_ENTRY_SIZE * 1024);
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					while (buffer.remaining() >= SegmentStorageHandler.INDEX_ENTRY_SIZE) {
+						long urlFingerprint = buffer.getLong();
+						buffer.getLong();
+						long offset = buffer.getLong();
+						locations.put(urlFingerprint, getLocation(segmentNumber, offset));
+						lastOffset = offset;
+					}
+					buffer.compact();
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+		// Index is written after the records, so it may miss the last ones:
+		ByteBuffer segment = segments.get(i);
+		int offset = 0;
+		if (lastOffset >= 0) {
+			SegmentRecord last = SegmentRecord.parse(segment, (int) lastOffset);
+			if (last == null) {
+				return;
+			}
+			offset = last.getEnd();
+		}
+		try {
+			SegmentRecord record;
+			while ((record = SegmentRecord.parse(segment, offset)) != null) {
+				locations.put(URLFingerprint.fingerprint(record.getURL()), getLocation(segmentNumber, offset));
+				offset = record.getEnd();
+			}
+		} catch (IOException e) {
+			// Garbage after the last complete record
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.spektom.spider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Page stored in a segment by {@link SegmentStorageHandler}. Contents are a view of
+ * the memory-mapped segment, they are not copied.
+ */
+public class SegmentRecord {
+
+	static final String VERSION = "WARC/1.0";
+	static final String DIGEST_PREFIX = "fp64:";
+	static final String FETCH_TIME = "Spider-Fetch-Time";
+	static final String LAST_MODIFIED = "Spider-Last-Modified";
+	static final String REFERS_TO = "Spider-Refers-To";
+
+	private String url;
+	private long fetchTime;
+	private long lastModified;
+	private long contentHash;
+	private long refersTo;
+	private ByteBuffer content;
+	// Offset of the next record in the segment:
+	private int end;
+
+	private SegmentRecord() {
+		refersTo = -1;
+	}
+
+	/**
+	 * @return URL of the page
+	 */
+	public String getURL() {
+		return url;
+	}
+
+	/**
+	 * @return time when the page was retrieved in milliseconds
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	/**
+	 * @return value of Last-Modified header in milliseconds, or 0
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return hash of the page contents
+	 */
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return <code>true</code> if the contents are stored in another record
+	 */
+	public boolean isDuplicate() {
+		return refersTo >= 0;
+	}
+
+	/**
+	 * @return read-only view of the page contents
+	 */
+	public ByteBuffer getContent() {
+		return content.duplicate();
+	}
+
+	/**
+	 * @return copy of the page contents
+	 */
+	public byte[] getContentBytes() {
+		byte[] bytes = new byte[content.remaining()];
+		content.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return location of the record that holds the contents, or -1
+	 */
+	long getRefersTo() {
+		return refersTo;
+	}
+
+	void setContent(ByteBuffer content) {
+		this.content = content;
+	}
+
+	/**
+	 * @return offset of the next record in the segment
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Parses record at the offset of the segment
+	 * @param segment Mapped segment
+	 * @param offset
+	 * @return record, or <code>null</code> if the record is incomplete
+	 * @throws IOException if there's no valid record at the offset
+	 */
+	static SegmentRecord parse(ByteBuffer segment, int offset) throws IOException {
+		int limit = segment.limit();
+		int headerEnd = -1;
+		for (int i = offset; i + 3 < limit; ++i) {
+			if (segment.get(i) == '\r' && segment.get(i + 1) == '\n' && segment.get(i + 2) == '\r' && segment.get(i + 3) == '\n') {
+				headerEnd = i;
+				break;
+			}
+		}
+		if (headerEnd < 0) {
+			return null;
+		}
+		byte[] headerBytes = new byte[headerEnd - offset];
+		segment.duplicate().position(offset).get(headerBytes);
+		String[] lines = new String(headerBytes, StandardCharsets.UTF_8).split("\r\n");
+		if (!VERSION.equals(lines[0])) {
+			throw new IOException("Invalid record at offset " + offset);
+		}
+
+		SegmentRecord record = new SegmentRecord();
+		int contentLength = -1;
+		try {
+			for (int i = 1; i < lines.length; ++i) {
+				int j = lines[i].indexOf(':');
+				if (j < 0) {
+					continue;
+				}
+				String name = lines[i].substring(0, j);
+				String value = lines[i].substring(j + 1).trim();
+				if (name.equals("WARC-Target-URI")) {
+					record.url = value;
+				} else if (name.equals("WARC-Payload-Digest") && value.startsWith(DIGEST_PREFIX)) {
+					record.contentHash = Long.parseUnsignedLong(value.substring(DIGEST_PREFIX.length()), 16);
+				} else if (name.equals(FETCH_TIME)) {
+					record.fetchTime = Long.parseLong(value);
+				} else if (name.equals(LAST_MODIFIED)) {
+					record.lastModified = Long.parseLong(value);
+				} else if (name.equals(REFERS_TO)) {
+					record.refersTo = Long.parseLong(value);
+				} else if (name.equals("Content-Length")) {
+					contentLength = Integer.parseInt(value);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid record at offset " + offset);
+		}
+		if (contentLength < 0 || record.url == null) {
+			throw new IOException("Invalid record at offset " + offset);
+		}
+
+		int contentStart = headerEnd + 4;
+		record.end = contentStart + contentLength + 4;
+		if (record.end > limit || record.end < 0) {
+			return null;
+		}
+		record.content = segment.duplicate().position(contentStart).limit(contentStart + contentLength).slice().asReadOnlyBuffer();
+		return record;
+	}
+}
@@ -0,0 +1,315 @@
+package org.spektom.spider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores pages as records appended to large rolling segment files, instead of a file
+ * per page. Records follow WARC layout: text headers, an empty line and the body.
+ * Every segment has an index file next to it, with URL fingerprint, content hash and
+ * offset of each record, so that pages can be looked up without scanning segments,
+ * see {@link SegmentReader}.
+ * <p>
+ * Data is forced to disk once per configured number of records, and when a segment is
+ * finished. With deduplication enabled, a page with the same contents as an already
+ * stored one is written as a revisit record that refers to the original. A batch of
+ * pages is appended under a single lock acquisition.
+ */
+public class SegmentStorageHandler implements IBatchSpiderHandler, Closeable {
+
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".warc";
+	static final String INDEX_SUFFIX = ".idx";
+	// URL fingerprint, content hash and record offset:
+	static final int INDEX_ENTRY_SIZE = 24;
+
+	private static final byte[] RECORD_END = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private File directory;
+	private long maxSegmentSize;
+	private int syncInterval;
+	private boolean deduplicate;
+	private int segmentNumber;
+	private FileChannel segment;
+	private FileChannel index;
+	private ByteBuffer indexBuffer;
+	private long position;
+	private int unsynced;
+	// Content hash to location of the record that has the contents:
+	private OffsetsTable contents;
+	private Lock lock;
+
+	/**
+	 * Opens storage in the directory. Segments that are already there are kept, and new
+	 * records are written to a new segment.
+	 * @param directory
+	 * @throws IOException
+	 */
+	public SegmentStorageHandler(File directory) throws IOException {
+		this.directory = directory;
+		maxSegmentSize = 1L << 30;
+		syncInterval = 1000;
+		contents = new OffsetsTable();
+		indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+		lock = new ReentrantLock();
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create directory: " + directory);
+		}
+		File[] segments = SegmentReader.listSegments(directory);
+		for (int i = 0; i < segments.length; ++i) {
+			int number = SegmentReader.getSegmentNumber(segments[i]);
+			loadContents(number);
+			segmentNumber = number + 1;
+		}
+		openSegment();
+	}
+
+	/**
+	 * Returns maximal size of a segment file in bytes
+	 * @return maxSegmentSize
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * Sets maximal size of a segment file in bytes (default: 1 GB). Segments are
+	 * memory-mapped when they are read, so it can't exceed 2 GB.
+	 * @param maxSegmentSize
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		if (maxSegmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segment size can't exceed 2 GB");
+		}
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Returns number of records written between forcing data to disk
+	 * @return syncInterval
+	 */
+	public int getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Sets number of records written between forcing data to disk (default: 1000)
+	 * @param syncInterval
+	 */
+	public void setSyncInterval(int syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Returns whether identical contents are stored once
+	 * @return deduplicate
+	 */
+	public boolean isDeduplicate() {
+		return deduplicate;
+	}
+
+	/**
+	 * Sets whether identical contents are stored once (default: false). Contents are
+	 * compared by 64-bit hash.
+	 * @param deduplicate
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	public void handleContent(URL url, long lastModified, byte[] content) {
+		try {
+			write(url.toString(), lastModified, content);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void handleBatch(List<FetchedPage> pages) {
+		// Hashes are computed before taking the lock:
+		String[] urls = new String[pages.size()];
+		long[] contentHashes = new long[pages.size()];
+		for (int i = 0; i < urls.length; ++i) {
+			byte[] content = pages.get(i).getContent();
+			urls[i] = pages.get(i).getURL().toString();
+			contentHashes[i] = URLFingerprint.fingerprint(content, 0, content.length);
+		}
+		lock.lock();
+		try {
+			for (int i = 0; i < urls.length; ++i) {
+				FetchedPage page = pages.get(i);
+				try {
+					append(urls[i], page.getLastModified(), page.getContent(), contentHashes[i]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends record of the page
+	 * @param url
+	 * @param lastModified
+	 * @param content
+	 * @throws IOException
+	 */
+	public void write(String url, long lastModified, byte[] content) throws IOException {
+		long contentHash = URLFingerprint.fingerprint(content, 0, content.length);
+		lock.lock();
+		try {
+			append(url, lastModified, content, contentHash);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends record while the lock is held
+	 */
+	private void append(String url, long lastModified, byte[] content, long contentHash) throws IOException {
+		long fetchTime = System.currentTimeMillis();
+		long urlFingerprint = URLFingerprint.fingerprint(url);
+
+		long original = deduplicate ? contents.get(contentHash) : -1;
+		byte[] header = getHeader(url, fetchTime, lastModified, contentHash, original, original < 0 ? content.length : 0);
+		long recordSize = header.length + (original < 0 ? content.length : 0) + RECORD_END.length;
+		if (position > 0 && position + recordSize > maxSegmentSize) {
+			closeSegment();
+			++segmentNumber;
+			openSegment();
+		}
+
+		long offset = position;
+		ByteBuffer[] buffers;
+		if (original < 0) {
+			buffers = new ByteBuffer[] { ByteBuffer.wrap(header), ByteBuffer.wrap(content), ByteBuffer.wrap(RECORD_END) };
+		} else {
+			buffers = new ByteBuffer[] { ByteBuffer.wrap(header), ByteBuffer.wrap(RECORD_END) };
+		}
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			segment.write(buffers);
+		}
+		position += recordSize;
+
+		if (original < 0 && deduplicate) {
+			contents.put(contentHash, SegmentReader.getLocation(segmentNumber, offset));
+		}
+		if (indexBuffer.remaining() < INDEX_ENTRY_SIZE) {
+			flushIndex();
+		}
+		indexBuffer.putLong(urlFingerprint).putLong(contentHash).putLong(offset);
+
+		if (++unsynced >= syncInterval) {
+			sync();
+		}
+	}
+
+	/**
+	 * Forces all written records to disk, and closes the storage
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closeSegment();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private byte[] getHeader(String url, long fetchTime, long lastModified, long contentHash, long original, int contentLength) {
+		StringBuilder buf = new StringBuilder(256);
+		buf.append(SegmentRecord.VERSION).append("\r\n");
+		buf.append("WARC-Type: ").append(original < 0 ? "resource" : "revisit").append("\r\n");
+		buf.append("WARC-Target-URI: ").append(url).append("\r\n");
+		buf.append("WARC-Date: ").append(Instant.ofEpochMilli(fetchTime).truncatedTo(ChronoUnit.SECONDS)).append("\r\n");
+		buf.append("WARC-Payload-Digest: ").append(SegmentRecord.DIGEST_PREFIX).append(Long.toHexString(contentHash)).append("\r\n");
+		buf.append(SegmentRecord.FETCH_TIME).append(": ").append(fetchTime).append("\r\n");
+		if (lastModified != 0) {
+			buf.append(SegmentRecord.LAST_MODIFIED).append(": ").append(lastModified).append("\r\n");
+		}
+		if (original >= 0) {
+			buf.append(SegmentRecord.REFERS_TO).append(": ").append(original).append("\r\n");
+		} else {
+			buf.append("Content-Type: text/html\r\n");
+		}
+		buf.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+		return buf.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void openSegment() throws IOException {
+		segment = FileChannel.open(SegmentReader.getSegmentFile(directory, segmentNumber).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		index = FileChannel.open(SegmentReader.getIndexFile(directory, segmentNumber).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		position = 0;
+	}
+
+	private void closeSegment() throws IOException {
+		try {
+			sync();
+		} finally {
+			segment.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * Forces records to disk before their index entries, so that index never points to
+	 * a record that is lost
+	 */
+	private void sync() throws IOException {
+		segment.force(false);
+		flushIndex();
+		index.force(false);
+		unsynced = 0;
+	}
+
+	private void flushIndex() throws IOException {
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining()) {
+			index.write(indexBuffer);
+		}
+		indexBuffer.clear();
+	}
+
+	/**
+	 * Adds contents stored in existing segment, for deduplication against them
+	 */
+	private void loadContents(int number) throws IOException {
+		File indexFile = SegmentReader.getIndexFile(directory, number);
+		if (!indexFile.exists()) {
+			return;
+		}
+		FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				while (buffer.remaining() >= INDEX_ENTRY_SIZE) {
+					buffer.getLong();
+					long contentHash = buffer.getLong();
+					long offset = buffer.getLong();
+					if (contents.get(contentHash) < 0) {
+						contents.put(contentHash, SegmentReader.getLocation(number, offset));
+					}
+				}
+				buffer.compact();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -1,29 +1,57 @@
 package org.spektom.spider;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.ArrayList;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class Spider implements Runnable {
 
+	// Sites may ask for unreasonable delays, these are shortened:
+	private static final long MAX_CRAWL_DELAY = 60000;
+	// The same limit as default value of "http.maxRedirects" system property:
+	static final int MAX_REDIRECTS = 20;
+
 	private URL startURL;
-	private LinkedList<URL> urlQueue;
-	private Set<String> processedURLs;
-	private Map<String, String[]> disallowedEntries;
+	private Frontier frontier;
+	private IURLSeenSet processedURLs;
+	private RobotsCache robotsCache;
+	private DNSCache dnsCache;
+	private ClusterNode cluster;
+	private CrawlJournal journal;
+	private boolean resume;
+	private boolean prefetch;
 	private ISpiderHandler handler;
 	private int timeout;
 	private boolean followOtherDomains;
@@ -31,7 +59,40 @@ public class Spider implements Runnable {
 	private boolean followRobots;
 	private String userAgent;
 	private String pattern;
+	private URLFilter urlFilter;
+	private URLCanonicalizer canonicalizer;
+	private IURLScorer urlScorer;
+	private int maxDepth;
+	private DuplicateIndex duplicateIndex;
+	private boolean followDuplicates;
+	private boolean storeDuplicates;
 	private boolean verbose;
+	private FetchMode fetchMode;
+	private int maxConnections;
+	private ISpiderHandler defaultHandler;
+	private FetchMetadataStore metadataStore;
+	private HttpConnectionPool connectionPool;
+	private boolean compression;
+	private long maxContentLength;
+	private long maxDownloadTime;
+	private boolean processTruncated;
+	private long maxBufferedContents;
+	private ByteBudget contentBudget;
+	private TransferStats transferStats;
+	private int handlerThreads;
+	private int handlerQueueSize;
+	private IBatchSpiderHandler batchHandler;
+	private WriteBehindStage writeBehind;
+	private CrawlMetrics metrics;
+	private File metricsFile;
+	private long metricsInterval;
+	private CompletableFuture<CrawlSummary> completion;
+	private boolean adaptiveConcurrency;
+	private ConcurrencyController concurrencyController;
+	private volatile boolean paused;
+	private volatile boolean stopped;
+	private Lock pauseLock;
+	private Condition resumed;
 
 	public Spider() {
 		this(null);
@@ -39,12 +100,32 @@ public class Spider implements Runnable {
 
 	public Spider(URL startURL) {
 		this.startURL = startURL;
-		urlQueue = new LinkedList<URL>();
-		processedURLs = new HashSet<String>();
-		disallowedEntries = new HashMap<String, String[]>();
+		frontier = new Frontier();
+		processedURLs = new StringURLSeenSet();
+		canonicalizer = new URLCanonicalizer();
+		urlScorer = new DepthURLScorer();
+		maxDepth = -1;
+		urlFilter = new URLFilter();
+		robotsCache = new RobotsCache();
+		dnsCache = new DNSCache();
+		prefetch = true;
 		timeout = 5000; // default timeout is 5 seconds
 		threadsNumber = 5;
 		followRobots = true;
+		fetchMode = FetchMode.BLOCKING;
+		maxConnections = 1000;
+		defaultHandler = new DefaultSpiderHandler();
+		connectionPool = new HttpConnectionPool();
+		compression = true;
+		maxContentLength = 10 * 1024 * 1024;
+		transferStats = new TransferStats();
+		handlerThreads = -1;
+		handlerQueueSize = 256;
+		metrics = new CrawlMetrics();
+		metricsInterval = 10000;
+		completion = new CompletableFuture<CrawlSummary>();
+		pauseLock = new ReentrantLock();
+		resumed = pauseLock.newCondition();
 	}
 
 	/**
@@ -159,11 +240,17 @@ public class Spider implements Runnable {
 	}
 
 	/**
-	 * Sets pattern that only URL matches it will be retrieved
+	 * Sets pattern that only URL matches it will be retrieved. Replaces URL filter with
+	 * the one that has this single Glob pattern, see {@link #setURLFilter(URLFilter)}
+	 * for using multiple patterns.
 	 * @param pattern
 	 */
 	public void setPattern(String pattern) {
 		this.pattern = pattern;
+		urlFilter = new URLFilter();
+		if (pattern != null) {
+			urlFilter.include(pattern);
+		}
 	}
 
 	/**
@@ -174,6 +261,23 @@ public class Spider implements Runnable {
 		return pattern;
 	}
 
+	/**
+	 * Returns filter that decides which URLs will be retrieved
+	 * @return urlFilter
+	 */
+	public URLFilter getURLFilter() {
+		return urlFilter;
+	}
+
+	/**
+	 * Sets filter that decides which URLs will be retrieved. URLs are filtered before
+	 * they are put into the queue.
+	 * @param urlFilter
+	 */
+	public void setURLFilter(URLFilter urlFilter) {
+		this.urlFilter = urlFilter;
+	}
+
 	/**
 	 * If set to true verbose information will be printed to user
 	 * @param verbose
@@ -189,232 +293,1705 @@ public class Spider implements Runnable {
 	public boolean isVerbose() {
 		return verbose;
 	}
-	
 
 	/**
-	 * Add this URL to the queue of URLs to be processed
-	 * @param url
+	 * Returns the way Web pages are retrieved
+	 * @return fetch mode
 	 */
-	private void queueURL(URL url) {
-		if (!followOtherDomains && !url.getHost().equals(getStartURL().getHost())) {
-			if (verbose) {
-				System.out.format("Refusing to put URL %s into queue - this URL is from other domain\n", url.toString());
-			}
-			return;
-		}
-		String urlStr = url.toString();
+	public FetchMode getFetchMode() {
+		return fetchMode;
+	}
 
-		synchronized (urlQueue) {
-			if (!processedURLs.contains(urlStr)) {
-				if (verbose) {
-					System.out.format("Putting URL %s into queue\n", urlStr);
-				}
-				urlQueue.add(url);
-				processedURLs.add(urlStr);
+	/**
+	 * Sets the way Web pages are retrieved. In {@link FetchMode#ASYNC} mode number of
+	 * threads only limits concurrent page processing, while number of concurrent
+	 * downloads is limited by {@link #setMaxConnections(int)}, which also applies to
+	 * {@link FetchMode#VIRTUAL} mode
+	 * @param fetchMode
+	 */
+	public void setFetchMode(FetchMode fetchMode) {
+		this.fetchMode = fetchMode;
+	}
 
-				urlQueue.notifyAll();
-			}
-		}
+	/**
+	 * Returns maximal number of requests in flight in {@link FetchMode#ASYNC} and
+	 * {@link FetchMode#VIRTUAL} modes
+	 * @return maxConnections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
 	}
 
 	/**
-	 * Checks whether this URL is disallowed in file 'robots.txt' placed on the site root
-	 * @param url
-	 * @return <code>true</code> if this URL is disallowed for processing by this robot, <code>false</code> otherwise
+	 * Sets maximal number of requests in flight in {@link FetchMode#ASYNC} and
+	 * {@link FetchMode#VIRTUAL} modes
+	 * @param maxConnections
 	 */
-	private boolean isAllowed(URL url) {
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
 
-		String[] disallowedEntries;
+	/**
+	 * Returns maximal number of concurrent downloads from a single host
+	 * @return maxHostConnections
+	 */
+	public int getMaxHostConnections() {
+		return frontier.getMaxHostConnections();
+	}
 
-		synchronized (this.disallowedEntries) {
-			if (!this.disallowedEntries.containsKey(url.getHost())) {
-				try {
-					// File robot.txt must be placed on the site root, see: http://www.robotstxt.org/wc/exclusion.html#robotstxt 
-					URL robotsURL = new URL(url.getProtocol(), url.getHost(), url.getPort(), "/robots.txt");
-					URLConnection urlConnection = robotsURL.openConnection();
-					urlConnection.setConnectTimeout(timeout);
-					BufferedReader r = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-
-					boolean userAgentMatches = true;
-					List<String> disallowed = new ArrayList<String>();
-
-					String line;
-					while ((line = r.readLine()) != null) {
-
-						// See: http://www.robotstxt.org/wc/norobots.html#format
-						if (line.startsWith("User-agent:")) {
-							// Check whether the restriction is valid only for specific robot:
-							if (!"*".equals(line.substring(11).trim())) {
-								userAgentMatches = false;
-							}
-						} else if (line.startsWith("Disallow:") && userAgentMatches) {
-							disallowed.add(line.substring(9).trim());
-						}
-					}
-					r.close();
+	/**
+	 * Sets maximal number of concurrent downloads from a single host (default: unlimited)
+	 * @param maxHostConnections
+	 */
+	public void setMaxHostConnections(int maxHostConnections) {
+		frontier.setMaxHostConnections(maxHostConnections);
+	}
 
-					this.disallowedEntries.put(url.getHost(), disallowed.toArray(new String[disallowed.size()]));
-				} catch (MalformedURLException e) {
-					// cannot happen, since we are checking the URL before adding it to the queue
-				} catch (IOException e) {
-					this.disallowedEntries.put(url.getHost(), new String[] {});
-				}
-			}
+	/**
+	 * Returns store of retrieved pages metadata, used for incremental re-crawl
+	 * @return metadataStore
+	 */
+	public FetchMetadataStore getMetadataStore() {
+		return metadataStore;
+	}
 
-			disallowedEntries = this.disallowedEntries.get(url.getHost());
-		}
+	/**
+	 * Enables incremental re-crawl. Pages that have metadata in the store are
+	 * retrieved using conditional requests; unchanged pages are neither parsed nor
+	 * passed to the handler, but links found on them during the previous crawl are
+	 * followed. The store is updated with every retrieved page.
+	 * @param metadataStore Store of retrieved pages metadata, or <code>null</code>
+	 */
+	public void setMetadataStore(FetchMetadataStore metadataStore) {
+		this.metadataStore = metadataStore;
+	}
 
-		String path = url.getPath();
+	/**
+	 * Returns cache of robots.txt rules
+	 * @return robotsCache
+	 */
+	public RobotsCache getRobotsCache() {
+		return robotsCache;
+	}
 
-		for (int i = 0; i < disallowedEntries.length; ++i) {
-			// URL path must not start with one of entries in "Disallow:", see: http://www.robotstxt.org/wc/norobots.html#format
-			if (path.startsWith(disallowedEntries[i])) {
-				return false;
-			}
-		}
+	/**
+	 * Sets cache of robots.txt rules, which expiration time and size can be configured
+	 * @param robotsCache
+	 */
+	public void setRobotsCache(RobotsCache robotsCache) {
+		this.robotsCache = robotsCache;
+	}
 
-		return true;
+	/**
+	 * Returns canonicalizer that links are resolved with before they are queued
+	 * @return canonicalizer
+	 */
+	public URLCanonicalizer getURLCanonicalizer() {
+		return canonicalizer;
 	}
 
 	/**
-	 * Starts retreival of Web pages
-	 * @see Runnable#run()
+	 * Sets canonicalizer that links are resolved with before they are queued. Seen URLs
+	 * set and URL filter get URLs in canonical form, so that different spellings of the
+	 * same URL are retrieved once.
+	 * @param canonicalizer
 	 */
-	public void run() {
-		queueURL(getStartURL());
+	public void setURLCanonicalizer(URLCanonicalizer canonicalizer) {
+		this.canonicalizer = canonicalizer;
+	}
 
-		Semaphore waitForQueueSemaphore = new Semaphore(threadsNumber);
+	/**
+	 * Returns index that retrieved pages are checked against for duplicate contents
+	 * @return duplicateIndex, or <code>null</code> if duplicates are not detected
+	 */
+	public DuplicateIndex getDuplicateIndex() {
+		return duplicateIndex;
+	}
 
-		if (verbose) {
-			System.out.format("Starting %d working threads\n", threadsNumber);
-		}
+	/**
+	 * Sets index that retrieved pages are checked against for duplicate contents
+	 * (default: none). Pages which contents are the same as, or almost the same as,
+	 * contents of a page retrieved before are counted in metrics, and unless configured
+	 * otherwise, their links are not followed and they are not passed to the handler.
+	 * @param duplicateIndex
+	 */
+	public void setDuplicateIndex(DuplicateIndex duplicateIndex) {
+		this.duplicateIndex = duplicateIndex;
+	}
 
-		Worker[] workers = new Worker[threadsNumber];
-		for (int i = 0; i < threadsNumber; ++i) {
-			workers[i] = new Worker(waitForQueueSemaphore);
-			new Thread(workers[i], "Spider Worker #" + i).start();
-		}
+	/**
+	 * Returns whether links of duplicate pages are followed
+	 * @return followDuplicates
+	 */
+	public boolean isFollowDuplicates() {
+		return followDuplicates;
+	}
 
-		do {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-			}
+	/**
+	 * Sets whether links of duplicate pages are followed (default: false). If they are
+	 * not, links are queued once the whole page is retrieved, rather than as soon as
+	 * they are found.
+	 * @param followDuplicates
+	 */
+	public void setFollowDuplicates(boolean followDuplicates) {
+		this.followDuplicates = followDuplicates;
+	}
 
-			// Check whether all workers are waiting for the queue,
-			// that usually means, that there are no links any more:
-			if (waitForQueueSemaphore.availablePermits() == 0) {
-				if (verbose) {
-					System.out.println("Stopping working threads");
-				}
-				for (int i = 0; i < threadsNumber; ++i) {
-					workers[i].stop();
-				}
-				// Free them:
-				synchronized (urlQueue) {
-					urlQueue.notifyAll();
-				}
-				break;
-			}
-		} while (true);
+	/**
+	 * Returns whether duplicate pages are passed to the handler
+	 * @return storeDuplicates
+	 */
+	public boolean isStoreDuplicates() {
+		return storeDuplicates;
 	}
 
-	class Worker implements Runnable {
+	/**
+	 * Sets whether duplicate pages are passed to the handler (default: false)
+	 * @param storeDuplicates
+	 */
+	public void setStoreDuplicates(boolean storeDuplicates) {
+		this.storeDuplicates = storeDuplicates;
+	}
 
-		private boolean isStopped;
-		private Semaphore waitForQueueSemaphore;
+	/**
+	 * Returns cache of resolved host names
+	 * @return dnsCache
+	 */
+	public DNSCache getDNSCache() {
+		return dnsCache;
+	}
 
-		public Worker(Semaphore waitForQueueSemaphore) {
-			this.waitForQueueSemaphore = waitForQueueSemaphore;
-		}
+	/**
+	 * Sets cache of resolved host names, which TTLs, size and resolver can be
+	 * configured. It's used by connections of {@link FetchMode#BLOCKING} and
+	 * {@link FetchMode#VIRTUAL} modes; in {@link FetchMode#ASYNC} mode HTTP client
+	 * resolves host names itself, through JVM cache that prefetching fills as well.
+	 * @param dnsCache
+	 */
+	public void setDNSCache(DNSCache dnsCache) {
+		this.dnsCache = dnsCache;
+	}
 
-		public void stop() {
-			isStopped = true;
-		}
+	/**
+	 * Returns whether hosts are resolved and their robots.txt retrieved while their URLs
+	 * are queued
+	 * @return prefetch
+	 */
+	public boolean isPrefetch() {
+		return prefetch;
+	}
 
-		public void run() {
-			ISpiderHandler handler = getHandler();
-			if (handler == null) {
-				handler = new DefaultSpiderHandler();
-			}
+	/**
+	 * Sets whether hosts are resolved and their robots.txt retrieved while their URLs
+	 * are queued (default: true), so that retrieval of the URLs doesn't wait for that
+	 * @param prefetch
+	 */
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
 
-			while (!isStopped) {
-				URL url;
-				synchronized (urlQueue) {
-					if (urlQueue.isEmpty()) {
-						try {
-							waitForQueueSemaphore.acquire();
-							urlQueue.wait();
-						} catch (InterruptedException e) {
-						} finally {
-							waitForQueueSemaphore.release();
-						}
-						continue;
-					}
-					url = urlQueue.removeFirst();
-				}
+	/**
+	 * Returns pool of persistent connections used in {@link FetchMode#BLOCKING} and
+	 * {@link FetchMode#VIRTUAL} modes
+	 * @return connectionPool
+	 */
+	public HttpConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
 
-				if (pattern != null && !FileMatcher.matches(pattern, url.toString())) {
-					if (verbose) {
-						System.out.format("Refusing to load URL %s - it doesn't match pattern '%s'\n", url.toString(), pattern);
-					}
-					continue;
-				}
+	/**
+	 * Sets pool of persistent connections used in {@link FetchMode#BLOCKING} and
+	 * {@link FetchMode#VIRTUAL} modes, which idle connections limits can be configured
+	 * @param connectionPool
+	 */
+	public void setConnectionPool(HttpConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
 
-				// We only work with HTTP protocol:
-				if (!"http".equals(url.getProtocol())) {
-					if (verbose) {
-						System.out.format("Refusing to load URL %s - protocol is not HTTP\n", url.toString());
-					}
-					continue;
-				}
+	/**
+	 * Returns whether pages are requested with compressed transfer
+	 * @return compression
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
 
-				// Check whether this URL is allowed for processing by this robot
-				if (followRobots && !isAllowed(url)) {
-					if (verbose) {
-						System.out.format("Refusing to load URL %s - not allowed in robots.txt\n", url.toString());
-					}
-					continue;
-				}
-				try {
-					URLConnection urlConnection = url.openConnection();
-					urlConnection.setConnectTimeout(timeout);
+	/**
+	 * Sets whether pages are requested with compressed transfer (default: true). Gzip
+	 * and deflate encodings are accepted, and pages are decompressed while they are
+	 * received. Handler that implements {@link IEncodedContentHandler} gets compressed
+	 * pages as they were transferred.
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
 
-					if (userAgent != null) {
-						urlConnection.addRequestProperty("User-Agent", userAgent);
-					}
+	/**
+	 * Returns number of threads that pass retrieved pages to the handler
+	 * @return handlerThreads
+	 */
+	public int getHandlerThreads() {
+		return handlerThreads >= 0 ? handlerThreads : threadsNumber;
+	}
 
-					urlConnection.getHeaderFields();
-					// We process only HTML pages:
-					String contentType = urlConnection.getContentType();
-					if (contentType == null || !contentType.startsWith("text/html")) {
-						if (verbose) {
-							System.out.format("Stopping processing URL %s - unknown content type (%s)\n", url.toString(), contentType);
-						}
-						continue;
-					}
+	/**
+	 * Sets number of threads that pass retrieved pages to the handler (default: the
+	 * same as {@link #getThreadsNumber()}).
+	 * Pages are queued for these threads, so that slow handler doesn't stall
+	 * retrieval, and handler that implements {@link IBatchSpiderHandler} gets them in
+	 * batches. With 0 threads the handler is called in the thread that has retrieved
+	 * the page.
+	 * @param handlerThreads
+	 */
+	public void setHandlerThreads(int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
 
-					HTMLPageProcessor htmlPageProcessor = new HTMLPageProcessor(urlConnection);
-					htmlPageProcessor.process();
+	/**
+	 * Returns maximal number of retrieved pages waiting for the handler
+	 * @return handlerQueueSize
+	 */
+	public int getHandlerQueueSize() {
+		return handlerQueueSize;
+	}
 
-					if (followRobots && htmlPageProcessor.shouldFollow()) {
-						Collection<URL> links = htmlPageProcessor.getLinks();
-						Iterator<URL> i = links.iterator();
-						while (i.hasNext()) {
-							queueURL(i.next());
-						}
-					}
+	/**
+	 * Sets maximal number of retrieved pages waiting for the handler (default: 256).
+	 * Once there are so many, retrieval waits for the handler.
+	 * @param handlerQueueSize
+	 */
+	public void setHandlerQueueSize(int handlerQueueSize) {
+		this.handlerQueueSize = handlerQueueSize;
+	}
 
-					if (followRobots && htmlPageProcessor.shouldIndex()) {
-						handler.handleContent(url, urlConnection.getLastModified(), htmlPageProcessor.getContents());
-					}
-				} catch (FileNotFoundException e) {
-					if (verbose) {
-						System.out.println("Resource doesn't exist: " + url);
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * Returns numbers of transferred and decompressed bytes per host
+	 * @return transferStats
+	 */
+	public TransferStats getTransferStats() {
+		return transferStats;
+	}
+
+	/**
+	 * Returns whether number of concurrent downloads is adjusted to server responses
+	 * @return adaptiveConcurrency
+	 */
+	public boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency;
+	}
+
+	/**
+	 * Sets whether number of concurrent downloads is adjusted to server responses
+	 * (default: false). Total number of downloads and number of downloads from every
+	 * host grow while servers respond quickly, and shrink on timeouts, 429 and 503
+	 * responses, and on slowdown of a host, see {@link ConcurrencyController}. Number
+	 * of threads, or {@link #getMaxConnections()} in {@link FetchMode#ASYNC} and
+	 * {@link FetchMode#VIRTUAL} modes, and {@link #getMaxHostConnections()} are the
+	 * upper limits.
+	 * @param adaptiveConcurrency
+	 */
+	public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+		this.adaptiveConcurrency = adaptiveConcurrency;
+	}
+
+	/**
+	 * Returns counters and stage latencies of the crawl. While the crawl runs they are
+	 * also available through JMX.
+	 * @return metrics
+	 */
+	public CrawlMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns file where snapshots of metrics are appended to
+	 * @return metricsFile
+	 */
+	public File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Sets file where snapshots of metrics are appended to during the crawl, one JSON
+	 * object per line (default: none)
+	 * @param metricsFile
+	 */
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	/**
+	 * Returns time between snapshots of metrics in milliseconds
+	 * @return metricsInterval
+	 */
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * Sets time between snapshots of metrics in milliseconds (default: 10000)
+	 * @param metricsInterval
+	 */
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
+	}
+
+	/**
+	 * Returns maximal number of queued URLs kept in memory
+	 * @return maxMemoryURLs
+	 */
+	public int getMaxMemoryURLs() {
+		return frontier.getMaxMemoryURLs();
+	}
+
+	/**
+	 * Sets maximal number of queued URLs kept in memory, the rest are spilled to disk
+	 * (default: unlimited)
+	 * @param maxMemoryURLs
+	 */
+	public void setMaxMemoryURLs(int maxMemoryURLs) {
+		frontier.setMaxMemoryURLs(maxMemoryURLs);
+	}
+
+	/**
+	 * Returns node of the cluster this spider is part of
+	 * @return cluster node, or <code>null</code> if the spider runs alone
+	 */
+	public ClusterNode getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Makes this spider part of a cluster, where it retrieves only hosts that belong to
+	 * its node, and forwards links to other hosts to their nodes (default: none)
+	 * @param cluster Node of this spider
+	 */
+	public void setCluster(ClusterNode cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Returns journal where queued and processed URLs are recorded
+	 * @return journal, or <code>null</code> if the crawl can't be resumed
+	 */
+	public CrawlJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets journal where queued and processed URLs are recorded, so that the crawl can
+	 * be resumed after it was killed (default: none)
+	 * @param journal
+	 */
+	public void setJournal(CrawlJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Returns whether the crawl is resumed from the journal
+	 * @return resume
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * Sets whether the crawl is resumed from the journal, instead of starting anew and
+	 * deleting it (default: false)
+	 * @param resume
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Returns scorer that defines the order queued URLs are retrieved in
+	 * @return urlScorer
+	 */
+	public IURLScorer getURLScorer() {
+		return urlScorer;
+	}
+
+	/**
+	 * Sets scorer that defines the order queued URLs are retrieved in (default:
+	 * {@link DepthURLScorer}, breadth-first)
+	 * @param urlScorer
+	 */
+	public void setURLScorer(IURLScorer urlScorer) {
+		this.urlScorer = urlScorer;
+	}
+
+	/**
+	 * Returns maximal number of links followed from the start URL
+	 * @return maxDepth, or -1 if unlimited
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Sets maximal number of links followed from the start URL, deeper links are not
+	 * queued (default: unlimited)
+	 * @param maxDepth Limit, or -1 for unlimited
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Returns maximal number of URLs of a single host that are queued
+	 * @return maxHostPages, or 0 if unlimited
+	 */
+	public int getMaxHostPages() {
+		return frontier.getMaxHostURLs();
+	}
+
+	/**
+	 * Sets maximal number of URLs of a single host that are queued, the rest are
+	 * refused (default: unlimited)
+	 * @param maxHostPages Limit, or 0 for unlimited
+	 */
+	public void setMaxHostPages(int maxHostPages) {
+		frontier.setMaxHostURLs(maxHostPages);
+	}
+
+	/**
+	 * Returns maximal length of page contents after decompression
+	 * @return maxContentLength, or 0 if unlimited
+	 */
+	public long getMaxContentLength() {
+		return maxContentLength;
+	}
+
+	/**
+	 * Sets maximal length of page contents after decompression. Responses which
+	 * Content-Length is greater are not read at all, others are cut off when the limit
+	 * is reached (default: 10 MB).
+	 * @param maxContentLength Limit, or 0 for unlimited
+	 */
+	public void setMaxContentLength(long maxContentLength) {
+		this.maxContentLength = maxContentLength;
+	}
+
+	/**
+	 * Returns maximal time of receiving page contents
+	 * @return maxDownloadTime in milliseconds, or 0 if unlimited
+	 */
+	public long getMaxDownloadTime() {
+		return maxDownloadTime;
+	}
+
+	/**
+	 * Sets maximal time of receiving page contents after response headers, responses
+	 * are cut off when it passes (default: unlimited)
+	 * @param maxDownloadTime Limit in milliseconds, or 0 for unlimited
+	 */
+	public void setMaxDownloadTime(long maxDownloadTime) {
+		this.maxDownloadTime = maxDownloadTime;
+	}
+
+	/**
+	 * Returns whether pages which responses were cut off are processed
+	 * @return processTruncated
+	 */
+	public boolean isProcessTruncated() {
+		return processTruncated;
+	}
+
+	/**
+	 * Sets whether contents received before the response was cut off are parsed and
+	 * passed to the handler, rather than discarded (default: false)
+	 * @param processTruncated
+	 */
+	public void setProcessTruncated(boolean processTruncated) {
+		this.processTruncated = processTruncated;
+	}
+
+	/**
+	 * Returns maximal number of bytes of page contents held by all downloads, and pages
+	 * waiting for the handler, at once
+	 * @return maxBufferedContents, or 0 if unlimited
+	 */
+	public long getMaxBufferedContents() {
+		return maxBufferedContents;
+	}
+
+	/**
+	 * Sets maximal number of bytes of page contents held by all downloads, and pages
+	 * waiting for the handler, at once. Downloads wait until others free the bytes,
+	 * but no longer than the timeout, and then are cut off (default: unlimited).
+	 * @param maxBufferedContents Limit, or 0 for unlimited
+	 * @see ByteBudget
+	 */
+	public void setMaxBufferedContents(long maxBufferedContents) {
+		this.maxBufferedContents = maxBufferedContents;
+	}
+
+	/**
+	 * Returns directory where queued URLs are spilled to
+	 * @return spillDirectory
+	 */
+	public File getSpillDirectory() {
+		return frontier.getSpillDirectory();
+	}
+
+	/**
+	 * Sets directory where queued URLs are spilled to (default: temporary files directory)
+	 * @param spillDirectory
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		frontier.setSpillDirectory(spillDirectory);
+	}
+
+	/**
+	 * Returns set of URLs that were already put into the queue
+	 * @return seen URLs set
+	 */
+	public IURLSeenSet getSeenSet() {
+		return processedURLs;
+	}
+
+	/**
+	 * Sets set of URLs that were already put into the queue. By default URLs are kept
+	 * as strings, see {@link FingerprintURLSeenSet} and {@link BloomURLSeenSet} for
+	 * compact alternatives.
+	 * @param seenSet
+	 */
+	public void setSeenSet(IURLSeenSet seenSet) {
+		this.processedURLs = seenSet;
+	}
+
+
+	/**
+	 * Starts retrieval in a new thread
+	 * @return future that completes with the crawl totals once all queued URLs are
+	 * retrieved, or the crawl is stopped
+	 */
+	public CompletableFuture<CrawlSummary> start() {
+		new Thread(this, "Spider").start();
+		return completion;
+	}
+
+	/**
+	 * Stops starting new downloads until {@link #resume()} is called. Downloads that are
+	 * in progress are completed.
+	 */
+	public void pause() {
+		paused = true;
+	}
+
+	/**
+	 * Resumes retrieval after {@link #pause()}
+	 */
+	public void resume() {
+		pauseLock.lock();
+		try {
+			paused = false;
+			resumed.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if retrieval is paused
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Stops the crawl gracefully: URLs that are still queued are not retrieved, while
+	 * downloads in progress are completed, and retrieved pages are passed to the handler
+	 * before the crawl finishes. Returns without waiting, see
+	 * {@link #awaitTermination(long, TimeUnit)}.
+	 */
+	public void stop() {
+		stopped = true;
+		frontier.close();
+		// Release paused threads, so that they can exit:
+		pauseLock.lock();
+		try {
+			resumed.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the crawl finishes
+	 * @param timeout
+	 * @param unit
+	 * @return <code>true</code> if the crawl has finished, <code>false</code> if the
+	 * timeout has expired
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		try {
+			completion.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			// The crawl has failed, but it's finished anyway
+		}
+		return true;
+	}
+
+	/**
+	 * Waits while retrieval is paused
+	 * @return <code>false</code> if the crawl was stopped meanwhile
+	 */
+	private boolean awaitResumed() {
+		if (paused && !stopped) {
+			pauseLock.lock();
+			try {
+				while (paused && !stopped) {
+					resumed.awaitUninterruptibly();
+				}
+			} finally {
+				pauseLock.unlock();
+			}
+		}
+		return !stopped;
+	}
+
+	/**
+	 * Add this URL to the queue of URLs to be processed
+	 * @param url
+	 */
+	void queueURL(URL url) {
+		CanonicalURL canonicalURL = canonicalizer.canonicalize(url.toString());
+		if (canonicalURL == null) {
+			if (verbose) {
+				System.out.format("Refusing to put URL %s into queue - protocol is not HTTP\n", url.toString());
+			}
+			return;
+		}
+		queueURL(canonicalURL, null, 0);
+	}
+
+	/**
+	 * Add this URL to the queue of URLs to be processed. Only URLs that pass the checks
+	 * are converted to {@link URL}.
+	 * @param url
+	 * @param parent Page where the link was found, or <code>null</code> for the start URL
+	 * @param linksNumber Number of links found on the parent page, or 0 if it isn't known yet
+	 */
+	void queueURL(CanonicalURL url, QueuedURL parent, int linksNumber) {
+		int depth = parent != null ? parent.getDepth() + 1 : 0;
+		if (maxDepth >= 0 && depth > maxDepth) {
+			if (verbose) {
+				System.out.format("Refusing to put URL %s into queue - it's deeper than %d links\n", url.toString(), maxDepth);
+			}
+			return;
+		}
+		if (!followOtherDomains && !url.hasHost(getStartURL().getHost())) {
+			if (verbose) {
+				System.out.format("Refusing to put URL %s into queue - this URL is from other domain\n", url.toString());
+			}
+			return;
+		}
+		String urlStr = url.toString();
+
+		if (!urlFilter.accepts(urlStr)) {
+			if (verbose) {
+				System.out.format("Refusing to put URL %s into queue - it doesn't pass URL filter\n", urlStr);
+			}
+			return;
+		}
+
+		// Seen set of the host is kept by the node that owns it:
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) {
+			String host = url.getHost();
+			if (!cluster.isLocal(host)) {
+				cluster.forward(host, urlStr, depth, parent != null ? parent.getURL().toString() : null, urlScorer.score(url, depth, parent, linksNumber));
+				return;
+			}
+		}
+
+		if (processedURLs.add(urlStr)) {
+			if (verbose) {
+				System.out.format("Putting URL %s into queue\n", urlStr);
+			}
+			URL queuedURL;
+			try {
+				queuedURL = url.toURL();
+			} catch (MalformedURLException e) {
+				// cannot happen, the URL is HTTP
+				return;
+			}
+			addToFrontier(new QueuedURL(queuedURL, depth, parent != null ? parent.getURL() : null, urlScorer.score(url, depth, parent, linksNumber)));
+		}
+	}
+
+	/**
+	 * Add URL forwarded by another cluster node, which has already checked it, to the
+	 * queue of URLs to be processed
+	 * @param urlStr Canonical URL
+	 * @param depth
+	 * @param parent URL of the page where the link was found, or <code>null</code>
+	 * @param score
+	 */
+	void queueForwardedURL(String urlStr, int depth, String parent, double score) {
+		if (processedURLs.add(urlStr)) {
+			if (verbose) {
+				System.out.format("Putting forwarded URL %s into queue\n", urlStr);
+			}
+			try {
+				addToFrontier(new QueuedURL(new URL(urlStr), depth, parent != null ? new URL(parent) : null, score));
+			} catch (MalformedURLException e) {
+				System.err.println("Illegal forwarded URL: " + urlStr);
+			}
+		}
+	}
+
+	private void addToFrontier(QueuedURL queuedURL) {
+		if (!frontier.add(queuedURL)) {
+			if (verbose) {
+				System.out.format("Refusing to put URL %s into queue - too many URLs of its host\n", queuedURL.toString());
+			}
+			return;
+		}
+		if (journal != null) {
+			journal.enqueued(queuedURL);
+		}
+		if (prefetch) {
+			prefetch(queuedURL.getURL());
+		}
+	}
+
+	/**
+	 * Starts resolving host of the queued URL and retrieving its robots.txt, unless it's
+	 * already done
+	 * @param url
+	 */
+	private void prefetch(URL url) {
+		if (dnsCache.prefetch(url.getHost()) && followRobots && isHTTP(url)) {
+			robotsCache.getRules(url);
+		}
+	}
+
+	/**
+	 * Reports that URL taken from the frontier is processed. URLs that were skipped
+	 * because the crawl is stopped are not recorded in the journal, so that they are
+	 * retrieved when the crawl is resumed. Page that waits for the write-behind handler
+	 * is recorded once the handler is done with it, see {@link FetchedPage#release()}.
+	 * @param page
+	 */
+	private void urlDone(QueuedURL page) {
+		// Recorded after links of the page, and before the crawl may complete:
+		if (journal != null && !stopped && !page.isHandledLater()) {
+			journal.done(page.getURL());
+		}
+		frontier.done(page.getURL());
+	}
+
+	/**
+	 * Restores seen URLs and the frontier from the journal if the crawl is resumed, or
+	 * deletes the journal otherwise, and starts recording
+	 */
+	private void openJournal() {
+		try {
+			if (resume) {
+				long start = System.currentTimeMillis();
+				List<QueuedURL> pending = journal.replay(processedURLs);
+				for (int i = 0; i < pending.size(); ++i) {
+					// Pending URLs were accepted before, so the limit per host doesn't apply:
+					frontier.restore(pending.get(i));
+					if (prefetch) {
+						prefetch(pending.get(i).getURL());
+					}
+				}
+				if (verbose) {
+					System.out.format("Resumed crawl from %s in %d ms: %d seen URLs, %d pending\n", journal.getDirectory(), System.currentTimeMillis() - start, processedURLs.size(), pending.size());
+				}
+			} else {
+				journal.clear();
+			}
+			journal.open();
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't use crawl journal", e);
+		}
+	}
+
+	/**
+	 * @return queue of URLs to be processed
+	 */
+	Frontier getFrontier() {
+		return frontier;
+	}
+
+	/**
+	 * Checks whether this URL is disallowed in file 'robots.txt' placed on the site root,
+	 * and passes crawl delay requested there to the frontier
+	 * @param url
+	 * @param rules Rules of the URL site
+	 * @return <code>true</code> if this URL is allowed for processing by this robot, <code>false</code> otherwise
+	 */
+	boolean isAllowed(URL url, RobotsRules rules) {
+		if (rules == null) {
+			return true;
+		}
+		if (rules.getCrawlDelay() > 0) {
+			frontier.setCrawlDelay(url, Math.min(rules.getCrawlDelay(), MAX_CRAWL_DELAY));
+		}
+		if (!rules.isAllowed(url.getFile())) {
+			if (verbose) {
+				System.out.format("Refusing to load URL %s - not allowed in robots.txt\n", url.toString());
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether URL taken from the queue uses supported protocol
+	 * @param url
+	 * @return <code>true</code> if the URL is HTTP
+	 */
+	boolean isHTTP(URL url) {
+		// We only work with HTTP protocol:
+		if (!"http".equals(url.getProtocol())) {
+			if (verbose) {
+				System.out.format("Refusing to load URL %s - protocol is not HTTP\n", url.toString());
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether URL taken from the queue should be retrieved, waiting for
+	 * robots.txt of its site if it isn't retrieved yet
+	 * @param url
+	 * @return <code>true</code> if the URL passes protocol and robots.txt checks
+	 */
+	boolean shouldFetch(URL url) {
+		if (!isHTTP(url)) {
+			return false;
+		}
+		if (!followRobots) {
+			return true;
+		}
+		// Check whether this URL is allowed for processing by this robot
+		long start = System.nanoTime();
+		RobotsRules rules = robotsCache.getRules(url).join();
+		metrics.record(CrawlStage.ROBOTS, System.nanoTime() - start);
+		return isAllowed(url, rules);
+	}
+
+	/**
+	 * Checks whether retrieved resource is an HTML page
+	 * @param url
+	 * @param contentType Value of Content-Type header
+	 * @return <code>true</code> if the resource should be processed
+	 */
+	boolean isHTML(URL url, String contentType) {
+		// We process only HTML pages:
+		if (contentType == null || !contentType.startsWith("text/html")) {
+			if (verbose) {
+				System.out.format("Stopping processing URL %s - unknown content type (%s)\n", url.toString(), contentType);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether retrieved resource can be decompressed
+	 * @param url
+	 * @param contentEncoding Value of Content-Encoding header
+	 * @return <code>true</code> if the resource should be processed
+	 */
+	boolean isDecodable(URL url, String contentEncoding) {
+		if (!ContentDecoder.isIdentity(contentEncoding) && !ContentDecoder.isSupported(contentEncoding)) {
+			if (verbose) {
+				System.out.format("Stopping processing URL %s - unsupported content encoding (%s)\n", url.toString(), contentEncoding);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns value of Accept-Encoding header sent with page requests
+	 * @return header value, or <code>null</code> if compression is disabled
+	 */
+	String getAcceptEncoding() {
+		return compression ? "gzip, deflate" : null;
+	}
+
+	/**
+	 * Prepares the processor for the page: makes it put links into the queue as soon
+	 * as they are found, while the page is still being retrieved, and decompress the
+	 * page if needed
+	 * @param htmlPageProcessor
+	 * @param page Queued URL of the page
+	 * @param contentEncoding Value of Content-Encoding header
+	 * @throws IOException if the encoding is not supported
+	 */
+	void prepare(HTMLPageProcessor htmlPageProcessor, final QueuedURL page, String contentEncoding) throws IOException {
+		// Links of a duplicate page are not known to be followed until the page is checked,
+		// and links can't be scored by their number until all of them are found:
+		if (followRobots && (duplicateIndex == null || followDuplicates) && !urlScorer.needsLinksNumber()) {
+			htmlPageProcessor.setLinkListener(new ILinkListener() {
+				public void linkFound(CanonicalURL url) {
+					queueURL(url, page, 0);
+				}
+			});
+		}
+		htmlPageProcessor.setURLCanonicalizer(canonicalizer);
+		htmlPageProcessor.setContentEncoding(contentEncoding);
+		htmlPageProcessor.setKeepEncoded(handler instanceof IEncodedContentHandler);
+		htmlPageProcessor.setMaxLength(maxContentLength);
+		if (maxDownloadTime > 0) {
+			htmlPageProcessor.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDownloadTime));
+		}
+		htmlPageProcessor.setBudget(contentBudget);
+		htmlPageProcessor.setKeepTruncated(processTruncated);
+	}
+
+	/**
+	 * Returns metadata of the page from the previous crawl
+	 * @param url
+	 * @return metadata, or <code>null</code> if re-crawl is not incremental or the page
+	 * wasn't retrieved before
+	 */
+	FetchMetadata getFetchMetadata(URL url) {
+		if (metadataStore == null) {
+			return null;
+		}
+		try {
+			return metadataStore.get(url.toString());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Reports response to the concurrency controller, if concurrency is adaptive
+	 * @param url URL the request was sent to
+	 * @param latency Time to first byte in nanoseconds
+	 * @param overload <code>true</code> if the request has failed or the server asked to
+	 * slow down
+	 */
+	void responseReceived(URL url, long latency, boolean overload) {
+		ConcurrencyController concurrencyController = this.concurrencyController;
+		if (concurrencyController != null) {
+			concurrencyController.update(url.getHost(), latency, overload);
+			frontier.setMaxHostConnections(url, concurrencyController.getHostLimit(url.getHost()));
+		}
+	}
+
+	/**
+	 * @param status HTTP status code
+	 * @return <code>true</code> if the server asks to slow down
+	 */
+	static boolean isOverloaded(int status) {
+		return status == 429 || status == 503;
+	}
+
+	/**
+	 * Queues links found on the page during the previous crawl, when the server reports
+	 * that the page wasn't modified since then
+	 * @param page
+	 */
+	void pageNotModified(QueuedURL page) {
+		URL url = page.getURL();
+		if (verbose) {
+			System.out.format("Skipping URL %s - not modified\n", url.toString());
+		}
+		FetchMetadata metadata = getFetchMetadata(url);
+		if (metadata == null || !followRobots) {
+			return;
+		}
+		String[] outlinks = metadata.getOutlinks();
+		for (int i = 0; i < outlinks.length; ++i) {
+			CanonicalURL link = canonicalizer.canonicalize(outlinks[i]);
+			if (link != null) {
+				queueURL(link, page, outlinks.length);
+			}
+		}
+	}
+
+	/**
+	 * Counts the page which response was cut off, and processes contents received
+	 * before that, if it's allowed. Validators of a truncated page are not kept, so
+	 * that it's retrieved again by the next incremental crawl.
+	 * @param page
+	 * @param htmlPageProcessor
+	 */
+	void pageAborted(QueuedURL page, HTMLPageProcessor htmlPageProcessor) {
+		metrics.responseAborted(htmlPageProcessor.getAbortReason());
+		if (verbose) {
+			System.out.format("Response of %s is cut off by %s limit\n", page.getURL(), htmlPageProcessor.getAbortReason().name().toLowerCase());
+		}
+		if (processTruncated) {
+			pageProcessed(page, 0, null, htmlPageProcessor);
+		}
+	}
+
+	/**
+	 * Queues links found on the processed page, and passes its contents to the handler
+	 * @param queuedURL
+	 * @param lastModified
+	 * @param etag Value of ETag header, or <code>null</code>
+	 * @param htmlPageProcessor
+	 */
+	void pageProcessed(QueuedURL queuedURL, long lastModified, String etag, HTMLPageProcessor htmlPageProcessor) {
+		URL url = queuedURL.getURL();
+		transferStats.add(url.getHost(), htmlPageProcessor.getEncodedLength(), htmlPageProcessor.getContents().length);
+		metrics.pageReceived(htmlPageProcessor.getEncodedLength());
+		DuplicateType duplicate = checkDuplicate(url, htmlPageProcessor);
+
+		boolean follow = followRobots && htmlPageProcessor.shouldFollow() && (duplicate == DuplicateType.UNIQUE || followDuplicates);
+		// Streamed links are already queued:
+		if (follow && htmlPageProcessor.getLinkListener() == null) {
+			Collection<CanonicalURL> links = htmlPageProcessor.getLinks();
+			Iterator<CanonicalURL> i = links.iterator();
+			while (i.hasNext()) {
+				queueURL(i.next(), queuedURL, links.size());
+			}
+		}
+
+		if (metadataStore != null && !updateFetchMetadata(url, lastModified, etag, htmlPageProcessor, follow)) {
+			if (verbose) {
+				System.out.format("Skipping URL %s - contents didn't change\n", url.toString());
+			}
+			return;
+		}
+
+		if (followRobots && htmlPageProcessor.shouldIndex() && (duplicate == DuplicateType.UNIQUE || storeDuplicates)) {
+			FetchedPage page = new FetchedPage(url, lastModified, htmlPageProcessor.getContents(), htmlPageProcessor.getContentEncoding(), htmlPageProcessor.getEncodedContents());
+			if (writeBehind != null) {
+				// Contents still count against the budget while the page waits for the handler:
+				htmlPageProcessor.transferBudget(page);
+				if (journal != null) {
+					// The page isn't stored until the handler is done with it:
+					queuedURL.setHandledLater(true);
+					page.recordWhenReleased(journal);
+				}
+				writeBehind.submit(page);
+			} else {
+				long start = System.nanoTime();
+				batchHandler.handleBatch(Collections.singletonList(page));
+				metrics.record(CrawlStage.HANDLER, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether contents of the page duplicate contents of a page retrieved before
+	 * @return {@link DuplicateType#UNIQUE} if duplicates are not detected
+	 */
+	private DuplicateType checkDuplicate(URL url, HTMLPageProcessor htmlPageProcessor) {
+		if (duplicateIndex == null) {
+			return DuplicateType.UNIQUE;
+		}
+		long start = System.nanoTime();
+		byte[] contents = htmlPageProcessor.getContents();
+		DuplicateType duplicate = duplicateIndex.add(ContentFingerprint.compute(contents, 0, contents.length));
+		metrics.record(CrawlStage.FINGERPRINT, System.nanoTime() - start);
+		if (duplicate != DuplicateType.UNIQUE) {
+			metrics.duplicateFound(duplicate);
+			if (verbose) {
+				System.out.format("Contents of URL %s are %s duplicate of another page\n", url.toString(), duplicate == DuplicateType.EXACT ? "exact" : "near");
+			}
+		}
+		return duplicate;
+	}
+
+	/**
+	 * Stores metadata of the retrieved page
+	 * @return <code>false</code> if contents of the page are the same as during the
+	 * previous crawl
+	 */
+	private boolean updateFetchMetadata(URL url, long lastModified, String etag, HTMLPageProcessor htmlPageProcessor, boolean follow) {
+		byte[] contents = htmlPageProcessor.getContents();
+		long contentHash = URLFingerprint.fingerprint(new ByteSequence(contents, 0, contents.length));
+		FetchMetadata previous = getFetchMetadata(url);
+
+		String[] outlinks = new String[0];
+		if (follow) {
+			Collection<CanonicalURL> links = htmlPageProcessor.getLinks();
+			outlinks = new String[links.size()];
+			Iterator<CanonicalURL> i = links.iterator();
+			for (int j = 0; j < outlinks.length; ++j) {
+				outlinks[j] = i.next().toString();
+			}
+		}
+		try {
+			metadataStore.put(url.toString(), new FetchMetadata(lastModified, etag, contentHash, System.currentTimeMillis(), outlinks));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return previous == null || previous.getContentHash() != contentHash;
+	}
+
+	/**
+	 * Retrieves the page using blocking pooled connection, and processes it. Response
+	 * is closed on every path, so that its connection can be reused.
+	 * @param page
+	 */
+	void fetch(QueuedURL page) {
+		URL url = page.getURL();
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		if (userAgent != null) {
+			headers.put("User-Agent", userAgent);
+		}
+		if (getAcceptEncoding() != null) {
+			headers.put("Accept-Encoding", getAcceptEncoding());
+		}
+		FetchMetadata metadata = getFetchMetadata(url);
+		if (metadata != null) {
+			if (metadata.getLastModified() != 0) {
+				headers.put("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(metadata.getLastModified()).atZone(ZoneOffset.UTC)));
+			}
+			if (metadata.getETag() != null) {
+				headers.put("If-None-Match", metadata.getETag());
+			}
+		}
+
+		URL location = url;
+		metrics.fetchStarted();
+		try {
+			for (int redirects = 0;; ++redirects) {
+				metrics.requestSent(location.getHost());
+				long sent = System.nanoTime();
+				PooledResponse response;
+				try {
+					response = connectionPool.get(location, headers);
+				} catch (IOException e) {
+					responseReceived(location, 0, true);
+					throw e;
+				}
+				try {
+					int status = response.getStatus();
+					responseReceived(location, System.nanoTime() - sent, isOverloaded(status));
+					URL redirectURL = redirects < MAX_REDIRECTS ? getRedirectURL(location, status, response.getHeader("Location")) : null;
+					if (redirectURL != null) {
+						location = redirectURL;
+						continue;
+					}
+					if (status == 304 && metadata != null) {
+						pageNotModified(page);
+						return;
+					}
+					if (status >= 400) {
+						metrics.requestFailed(location.getHost());
+					}
+					if (status == 404 || status == 410) {
+						if (verbose) {
+							System.out.println("Resource doesn't exist: " + url);
+						}
+						return;
+					}
+					if (status >= 400) {
+						System.err.format("Server returned HTTP response code: %d for URL: %s\n", status, location);
+						return;
+					}
+					String contentEncoding = response.getHeader("Content-Encoding");
+					if (!isHTML(location, response.getContentType()) || !isDecodable(location, contentEncoding)) {
+						return;
+					}
+
+					// Relative links are resolved against the final location:
+					HTMLPageProcessor htmlPageProcessor = new HTMLPageProcessor(location);
+					prepare(htmlPageProcessor, page, contentEncoding);
+					try {
+						long start = System.nanoTime();
+						htmlPageProcessor.process(response.getBody(), response.getContentLength());
+						metrics.record(CrawlStage.DOWNLOAD, System.nanoTime() - start - htmlPageProcessor.getParseTime());
+						metrics.record(CrawlStage.PARSE, htmlPageProcessor.getParseTime());
+
+						if (htmlPageProcessor.isAborted()) {
+							// The rest of the body may be endless, so it's not drained:
+							response.abort();
+							pageAborted(page, htmlPageProcessor);
+						} else {
+							pageProcessed(page, response.getLastModified(), response.getHeader("ETag"), htmlPageProcessor);
+						}
+					} finally {
+						htmlPageProcessor.release();
+					}
+					return;
+				} finally {
+					response.close();
+				}
+			}
+		} catch (IOException e) {
+			metrics.requestFailed(location.getHost());
+			e.printStackTrace();
+		} finally {
+			metrics.fetchFinished();
+		}
+	}
+
+	/**
+	 * Returns URL the request must be redirected to. Like {@link java.net.HttpURLConnection},
+	 * redirects are only followed within the same protocol.
+	 */
+	static URL getRedirectURL(URL location, int status, String header) {
+		if (status != 301 && status != 302 && status != 303 && status != 307 && status != 308) {
+			return null;
+		}
+		if (header == null) {
+			return null;
+		}
+		try {
+			URL redirectURL = new URL(location, header);
+			if (redirectURL.getProtocol().equals(location.getProtocol())) {
+				return redirectURL;
+			}
+		} catch (MalformedURLException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Starts retreival of Web pages
+	 * @see Runnable#run()
+	 */
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		try {
+			crawl();
+		} catch (RuntimeException e) {
+			completion.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			completion.completeExceptionally(e);
+			throw e;
+		}
+		completion.complete(new CrawlSummary(metrics, System.currentTimeMillis() - startTime, stopped));
+	}
+
+	private void crawl() {
+		robotsCache.setTimeout(timeout);
+		robotsCache.setUserAgent(userAgent);
+		connectionPool.setTimeout(timeout);
+		connectionPool.setMetrics(metrics);
+		connectionPool.setDNSCache(dnsCache);
+		contentBudget = maxBufferedContents > 0 ? new ByteBudget(maxBufferedContents, timeout) : null;
+		if (journal != null) {
+			openJournal();
+		}
+		if (cluster != null) {
+			// URLs may come from other nodes even when all local URLs are processed:
+			frontier.setCloseWhenDone(false);
+			try {
+				cluster.start(this);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't start cluster node", e);
+			}
+		}
+		if (adaptiveConcurrency) {
+			int maxLimit = fetchMode == FetchMode.BLOCKING ? threadsNumber : maxConnections;
+			concurrencyController = new ConcurrencyController(maxLimit, frontier.getMaxHostConnections());
+			metrics.setConcurrencyLimitGauge(new LongSupplier() {
+				public long getAsLong() {
+					return concurrencyController.getLimit();
+				}
+			});
+		}
+		batchHandler = SpiderHandlerAdapter.adapt(handler != null ? handler : defaultHandler);
+		if (getHandlerThreads() > 0) {
+			writeBehind = new WriteBehindStage(batchHandler, getHandlerThreads(), handlerQueueSize);
+			writeBehind.setMetrics(metrics);
+			writeBehind.start();
+		}
+		metrics.setQueueDepthGauge(new LongSupplier() {
+			public long getAsLong() {
+				return frontier.size();
+			}
+		});
+		metrics.setHandlerQueueDepthGauge(new LongSupplier() {
+			public long getAsLong() {
+				WriteBehindStage stage = writeBehind;
+				return stage != null ? stage.getQueueSize() : 0;
+			}
+		});
+		ObjectName metricsName = registerMetrics();
+		MetricsReporter metricsReporter = null;
+		if (metricsFile != null) {
+			metricsReporter = new MetricsReporter(metrics, metricsFile, metricsInterval);
+			try {
+				metricsReporter.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+				metricsReporter = null;
+			}
+		}
+		queueURL(getStartURL());
+		if (cluster != null) {
+			cluster.setReady();
+		}
+
+		try {
+			if (fetchMode == FetchMode.ASYNC) {
+				new AsyncFetcher().run();
+			} else if (fetchMode == FetchMode.VIRTUAL) {
+				new TaskScheduler().run();
+			} else {
+				runWorkers();
+			}
+			if (verbose) {
+				printSummary();
+			}
+			connectionPool.close();
+		} finally {
+			if (cluster != null) {
+				cluster.close();
+			}
+			if (writeBehind != null) {
+				// Handle pages that are still queued, before the journal records them:
+				writeBehind.close();
+				if (verbose) {
+					System.out.format("Handled pages: %d, batches: %d, retrieval stalls on full queue: %d\n", writeBehind.getPagesNumber(), writeBehind.getBatchesNumber(), writeBehind.getStallsNumber());
+				}
+				writeBehind = null;
+			}
+			if (journal != null) {
+				journal.close();
+			}
+			if (metricsReporter != null) {
+				metricsReporter.close();
+			}
+			unregisterMetrics(metricsName);
+		}
+	}
+
+	/**
+	 * Makes metrics of this spider available through JMX
+	 * @return name the metrics are registered under, or <code>null</code>
+	 */
+	private ObjectName registerMetrics() {
+		try {
+			ObjectName name = new ObjectName("org.spektom.spider:type=CrawlMetrics,id=" + System.identityHashCode(this));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+			return name;
+		} catch (JMException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void unregisterMetrics(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Retrieves pages using {@link #getThreadsNumber()} blocking worker threads. The
+	 * frontier closes itself once no URLs are queued or being retrieved, which stops
+	 * the workers.
+	 */
+	private void runWorkers() {
+		if (verbose) {
+			System.out.format("Starting %d working threads\n", threadsNumber);
+		}
+
+		Thread[] workers = new Thread[threadsNumber];
+		for (int i = 0; i < threadsNumber; ++i) {
+			workers[i] = new Thread(new Worker(), "Spider Worker #" + i);
+			workers[i].start();
+		}
+		for (int i = 0; i < threadsNumber; ++i) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					workers[i].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (verbose) {
+			System.out.println("Working threads stopped");
+		}
+	}
+
+	/**
+	 * Prints statistics of the finished crawl, common to all fetch modes
+	 */
+	private void printSummary() {
+		if (fetchMode != FetchMode.ASYNC) {
+			// Asynchronous fetcher doesn't use the connection pool:
+			System.out.format("Requests: %d, connections opened: %d, reused: %.1f%%\n", connectionPool.getRequestsNumber(), connectionPool.getConnectionsOpened(), connectionPool.getReuseRatio() * 100);
+		}
+		System.out.format("Host name lookups: %d, cached: %d, dropped prefetches: %d\n", dnsCache.getLookupsNumber(), dnsCache.getHitsNumber(), dnsCache.getDroppedPrefetchesNumber());
+		if (duplicateIndex != null) {
+			System.out.format("Duplicate pages: %d exact, %d near (%.1f%%)\n", metrics.getExactDuplicates(), metrics.getNearDuplicates(), metrics.getDuplicateRatio() * 100);
+		}
+		if (concurrencyController != null) {
+			System.out.format("Concurrent downloads limit: %d\n", concurrencyController.getLimit());
+		}
+		printAbortedResponses();
+		if (journal != null) {
+			System.out.format("Journal records: %d, syncs: %d, snapshots: %d\n", journal.getRecordsNumber(), journal.getSyncsNumber(), journal.getSnapshotsNumber());
+		}
+		if (cluster != null) {
+			System.out.format("Cluster node %d of %d: forwarded URLs: %d, received: %d\n", cluster.getIndex(), cluster.getNodesNumber(), cluster.getSentNumber(), cluster.getReceivedNumber());
+		}
+		transferStats.print(System.out);
+	}
+
+	private void printAbortedResponses() {
+		if (metrics.getAbortedResponses() > 0) {
+			System.out.format("Aborted responses: %d by size, %d by time, %d by budget\n", metrics.getAbortedResponses(AbortReason.SIZE), metrics.getAbortedResponses(AbortReason.TIME), metrics.getAbortedResponses(AbortReason.BUDGET));
+		}
+		if (contentBudget != null) {
+			System.out.format("Buffered contents budget: %d bytes, waits: %d\n", contentBudget.getCapacity(), contentBudget.getWaits());
+		}
+	}
+
+	class Worker implements Runnable {
+
+		public void run() {
+			while (true) {
+				QueuedURL page;
+				try {
+					page = frontier.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (page == null) {
+					// Frontier is closed
+					break;
+				}
+
+				URL url = page.getURL();
+				try {
+					if (awaitResumed() && shouldFetch(url)) {
+						if (concurrencyController != null) {
+							concurrencyController.acquire(url.getHost());
+						}
+						try {
+							fetch(page);
+						} catch (RuntimeException e) {
+							// Bug or broken response, the worker goes on with other pages
+							e.printStackTrace();
+						} finally {
+							if (concurrencyController != null) {
+								concurrencyController.release(url.getHost());
+							}
+						}
+					}
+				} finally {
+					urlDone(page);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes URLs from the frontier in a single thread, and hands them over for
+	 * retrieval without waiting for completion. Stops when the frontier is empty, and
+	 * there are no pages in flight that could bring new links.
+	 */
+	abstract class Dispatcher implements Runnable {
+
+		private Semaphore connectionsSemaphore;
+
+		public Dispatcher() {
+			connectionsSemaphore = new Semaphore(maxConnections);
+		}
+
+		/**
+		 * Starts retrieval of the URL, {@link #requestDone(QueuedURL)} must be called once
+		 * it's finished
+		 * @param page
+		 */
+		protected abstract void dispatch(QueuedURL page);
+
+		protected void started() {
+		}
+
+		protected void stopped() {
+		}
+
+		public void run() {
+			started();
+			try {
+				while (true) {
+					QueuedURL page;
+					try {
+						page = frontier.take();
+					} catch (InterruptedException e) {
+						continue;
+					}
+					if (page == null) {
+						// No links in the frontier, and no pages that can bring new ones,
+						// or the crawl was stopped
+						break;
+					}
+					URL url = page.getURL();
+					if (!awaitResumed()) {
+						frontier.done(url);
+						continue;
+					}
+
+					boolean dispatched = false;
+					connectionsSemaphore.acquireUninterruptibly();
+					if (concurrencyController != null) {
+						concurrencyController.acquire(url.getHost());
+					}
+					try {
+						dispatch(page);
+						dispatched = true;
+					} finally {
+						if (!dispatched) {
+							requestDone(page);
+						}
+					}
+				}
+				// Wait for downloads that are still in progress after stop:
+				connectionsSemaphore.acquireUninterruptibly(maxConnections);
+				connectionsSemaphore.release(maxConnections);
+			} finally {
+				stopped();
+			}
+		}
+
+		protected void requestDone(QueuedURL page) {
+			if (concurrencyController != null) {
+				concurrencyController.release(page.getURL().getHost());
+			}
+			connectionsSemaphore.release();
+			urlDone(page);
+		}
+	}
+
+	/**
+	 * Retrieves pages using non-blocking HTTP client, while responses are processed
+	 * by a pool of {@link #getThreadsNumber()} threads.
+	 */
+	class AsyncFetcher extends Dispatcher {
+
+		private ExecutorService executor;
+		private HttpClient httpClient;
+		private AtomicLong responses = new AtomicLong();
+		private AtomicLong http2Responses = new AtomicLong();
+
+		protected void started() {
+			if (verbose) {
+				System.out.format("Starting asynchronous fetcher with %d processing threads\n", threadsNumber);
+			}
+			executor = Executors.newFixedThreadPool(threadsNumber, new ThreadFactory() {
+				private int count;
+
+				public synchronized Thread newThread(Runnable r) {
+					return new Thread(r, "Spider Processor #" + count++);
+				}
+			});
+			httpClient = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofMillis(timeout))
+				// Multiplexes requests to servers that support HTTP/2, others get HTTP/1.1:
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.executor(executor)
+				.build();
+		}
+
+		protected void dispatch(final QueuedURL page) {
+			final URL url = page.getURL();
+			if (!isHTTP(url)) {
+				requestDone(page);
+				return;
+			}
+			if (!followRobots) {
+				send(page);
+				return;
+			}
+			// Don't block the dispatcher while robots.txt is retrieved:
+			final long start = System.nanoTime();
+			robotsCache.getRules(url).whenCompleteAsync(new BiConsumer<RobotsRules, Throwable>() {
+				public void accept(RobotsRules rules, Throwable error) {
+					metrics.record(CrawlStage.ROBOTS, System.nanoTime() - start);
+					if (!stopped && isAllowed(url, rules)) {
+						send(page);
+					} else {
+						requestDone(page);
+					}
+				}
+			}, executor);
+		}
+
+		private void send(final QueuedURL page) {
+			metrics.fetchStarted();
+			new AsyncRequest(Spider.this, httpClient, page, executor) {
+				protected void responseReceived(HttpResponse<?> response) {
+					responses.incrementAndGet();
+					if (response.version() == HttpClient.Version.HTTP_2) {
+						http2Responses.incrementAndGet();
+					}
+				}
+
+				protected void completed() {
+					metrics.fetchFinished();
+					requestDone(page);
+				}
+			}.send();
+		}
+
+		protected void stopped() {
+			if (verbose) {
+				System.out.println("Stopping asynchronous fetcher");
+				System.out.format("Responses: %d, over HTTP/2: %d\n", responses.get(), http2Responses.get());
+			}
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs every retrieval as a separate task in its own thread. When the Java runtime
+	 * supports virtual threads they are used, so that blocking downloads don't hold
+	 * OS threads.
+	 */
+	class TaskScheduler extends Dispatcher {
+
+		private ThreadFactory threadFactory;
+
+		protected void started() {
+			if (verbose) {
+				System.out.format("Starting task scheduler using %s threads\n", VirtualThreads.isSupported() ? "virtual" : "platform");
+			}
+			threadFactory = VirtualThreads.newThreadFactory("Spider Task #");
+		}
+
+		protected void dispatch(final QueuedURL page) {
+			threadFactory.newThread(new Runnable() {
+				public void run() {
+					try {
+						if (shouldFetch(page.getURL())) {
+							fetch(page);
+						}
+					} finally {
+						requestDone(page);
+					}
+				}
+			}).start();
+		}
+
+		protected void stopped() {
+			if (verbose) {
+				System.out.println("Stopping task scheduler");
 			}
 		}
 	}
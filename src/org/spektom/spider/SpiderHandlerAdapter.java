@@ -0,0 +1,45 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Lets a handler that takes pages one by one be used as {@link IBatchSpiderHandler}
+ */
+public class SpiderHandlerAdapter implements IBatchSpiderHandler {
+
+	private ISpiderHandler handler;
+
+	/**
+	 * @param handler
+	 */
+	public SpiderHandlerAdapter(ISpiderHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @param handler
+	 * @return the handler itself if it handles batches, otherwise the adapter
+	 */
+	public static IBatchSpiderHandler adapt(ISpiderHandler handler) {
+		if (handler instanceof IBatchSpiderHandler) {
+			return (IBatchSpiderHandler) handler;
+		}
+		return new SpiderHandlerAdapter(handler);
+	}
+
+	public void handleBatch(List<FetchedPage> pages) {
+		for (int i = 0; i < pages.size(); ++i) {
+			FetchedPage page = pages.get(i);
+			if (page.getEncodedContent() != null && handler instanceof IEncodedContentHandler) {
+				((IEncodedContentHandler) handler).handleEncodedContent(page.getURL(), page.getLastModified(), page.getContentEncoding(), page.getEncodedContent());
+			} else {
+				handler.handleContent(page.getURL(), page.getLastModified(), page.getContent());
+			}
+		}
+	}
+
+	public void handleContent(URL url, long lastModified, byte[] content) {
+		handler.handleContent(url, lastModified, content);
+	}
+}
@@ -1,7 +1,12 @@
 package org.spektom.spider;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
 
 public class SpiderTool {
 
@@ -26,8 +31,57 @@ public class SpiderTool {
 			buf.append("-f <true|false>         Follow other domains (default: false)\n");
 			buf.append("-c <timeout>            Connect/read timeout in milliseconds (default: 5000)\n");	
 			buf.append("-u <string>             String that will be sent in User-Agent header (default: none)\n");
-			buf.append("-p <pattern>            Follow only URLs that match pattern\n");
+			buf.append("-p <pattern>            Follow only URLs that match pattern, may be repeated\n");
+			buf.append("-x <pattern>            Don't follow URLs that match pattern, may be repeated\n");
+			buf.append("-l <file>               Load URL filter rules from file, one rule per line:\n");
+			buf.append("                        [+|-]<pattern> or [+|-]regex:<expression>\n");
+			buf.append("-y <name,...|none>      Query and path parameters removed from URLs before they are queued\n");
+			buf.append("                        (default: jsessionid, phpsessid, aspsessionid and utm_* tracking parameters)\n");
 			buf.append("-v <true|false>         Verbose output (default: false)\n");
+			buf.append("-m <blocking|async|virtual>\n");
+			buf.append("                        Fetch mode: worker threads, non-blocking I/O or virtual thread per download (default: blocking)\n");
+			buf.append("-k <number>             Max. requests in flight in async and virtual fetch modes (default: 1000)\n");
+			buf.append("-h <number>             Max. concurrent downloads from a single host (default: unlimited)\n");
+			buf.append("-d <strings|fingerprints|offheap|bloom[:rate]>\n");
+			buf.append("                        How seen URLs are stored: as strings, 64-bit fingerprints on or off the heap,\n");
+			buf.append("                        or Bloom filter with given false positive rate (default: strings, rate: 0.0001)\n");
+			buf.append("-e <number>             Expected number of URLs, used for sizing seen URLs set (default: 1000000)\n");
+			buf.append("-i <file>               Incremental re-crawl: keep retrieved pages metadata in file, and skip\n");
+			buf.append("                        pages that weren't modified since the previous crawl\n");
+			buf.append("-b <number>             Max. queued URLs kept in memory, the rest are spilled to disk (default: unlimited)\n");
+			buf.append("-s <directory>          Directory where queued URLs are spilled to (default: system temporary directory)\n");
+			buf.append("-z <true|false>         Request compressed transfer (gzip, deflate) (default: true)\n");
+			buf.append("-o <directory>          Append pages to segment files in directory, instead of a file per page\n");
+			buf.append("-n <true|false>         Store identical pages once in segment files (default: false)\n");
+			buf.append("-w <number>             Number of threads that pass retrieved pages to the handler, 0 means\n");
+			buf.append("                        the handler is called by retrieving threads (default: same as -t)\n");
+			buf.append("-q <number>             Max. retrieved pages waiting for the handler (default: 256)\n");
+			buf.append("-j <file>               Append crawl metrics to file every 10 seconds, one JSON object per line\n");
+			buf.append("-g <true|false>         Resolve hosts and retrieve robots.txt while their URLs are queued (default: true)\n");
+			buf.append("-D <number>             Detect duplicate pages, whose text SimHashes differ in at most <number> bits\n");
+			buf.append("                        (0-15, usually 3); their links aren't followed and they aren't stored (default: off)\n");
+			buf.append("-L <number>             Max. number of links followed from the start URL (default: unlimited)\n");
+			buf.append("-H <number>             Max. number of queued URLs of a single host (default: unlimited)\n");
+			buf.append("-S <depth|credit>       Order of retrieval: breadth-first, or by score the linking page splits among\n");
+			buf.append("                        its links (default: depth)\n");
+			buf.append("-W <weight>:<pattern>   Multiply score of URLs that match pattern by weight, may be repeated\n");
+			buf.append("-C <host:port,...>      Run as a node of a cluster of spiders on these addresses, which retrieve\n");
+			buf.append("                        hosts of their own partitions, and forward links to each other\n");
+			buf.append("-N <number>             Index of this node in the -C list (default: 0)\n");
+			buf.append("-J <directory>          Record queued and processed URLs in journal in directory, so that\n");
+			buf.append("                        a killed crawl can be resumed\n");
+			buf.append("-R <true|false>         Resume crawl from the journal in -J directory (default: false)\n");
+			buf.append("-M <size>               Max. length of page contents, longer responses are cut off; size is in bytes,\n");
+			buf.append("                        or with k, m or g suffix, 0 means unlimited (default: 10m)\n");
+			buf.append("-T <number>             Max. time of receiving page contents in milliseconds, slower responses are\n");
+			buf.append("                        cut off (default: unlimited)\n");
+			buf.append("-P <true|false>         Process contents received before a response was cut off, instead of\n");
+			buf.append("                        discarding them (default: false)\n");
+			buf.append("-B <size>               Max. bytes of page contents held by all downloads and pages waiting for the\n");
+			buf.append("                        handler at once, downloads wait for them up to -c timeout, and are cut off\n");
+			buf.append("                        then (default: unlimited)\n");
+			buf.append("-a <true|false>         Adapt number of concurrent downloads to server responses, -t (-k in async\n");
+			buf.append("                        and virtual modes) and -h are the upper limits (default: false)\n");
 			return buf.toString();
 		}
 	}
@@ -50,6 +104,86 @@ public class SpiderTool {
 		}
 	}
 	
+	private long parseSize(String str) throws WrongUsageException {
+		long multiplier = 1;
+		String number = str;
+		if (str.length() > 1) {
+			char suffix = Character.toLowerCase(str.charAt(str.length() - 1));
+			if (suffix == 'k') {
+				multiplier = 1024;
+			} else if (suffix == 'm') {
+				multiplier = 1024 * 1024;
+			} else if (suffix == 'g') {
+				multiplier = 1024 * 1024 * 1024;
+			}
+			if (multiplier > 1) {
+				number = str.substring(0, str.length() - 1);
+			}
+		}
+		try {
+			long size = Long.parseLong(number);
+			if (size < 0) {
+				throw new WrongUsageException("Illegal size: " + str);
+			}
+			return size * multiplier;
+		} catch (NumberFormatException e) {
+			throw new WrongUsageException("Illegal size: " + str);
+		}
+	}
+
+	private FetchMode parseFetchMode(String str) throws WrongUsageException {
+		try {
+			return FetchMode.valueOf(str.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new WrongUsageException("Illegal fetch mode: " + str);
+		}
+	}
+
+	private IURLSeenSet parseSeenSet(String str, long expectedSize) throws WrongUsageException {
+		if ("strings".equals(str)) {
+			return new StringURLSeenSet();
+		}
+		if ("fingerprints".equals(str)) {
+			return new FingerprintURLSeenSet(expectedSize, false);
+		}
+		if ("offheap".equals(str)) {
+			return new FingerprintURLSeenSet(expectedSize, true);
+		}
+		if ("bloom".equals(str)) {
+			return new BloomURLSeenSet(expectedSize, 0.0001);
+		}
+		if (str.startsWith("bloom:")) {
+			try {
+				return new BloomURLSeenSet(expectedSize, Double.parseDouble(str.substring(6)));
+			} catch (IllegalArgumentException e) {
+				throw new WrongUsageException("Illegal false positive rate: " + str.substring(6));
+			}
+		}
+		throw new WrongUsageException("Illegal seen URLs set: " + str);
+	}
+
+	private IURLScorer parseURLScorer(String str) throws WrongUsageException {
+		if ("depth".equals(str)) {
+			return new DepthURLScorer();
+		}
+		if ("credit".equals(str)) {
+			return new LinkCreditURLScorer();
+		}
+		throw new WrongUsageException("Illegal URL scorer: " + str);
+	}
+
+	private void addWeight(PatternURLScorer scorer, String str) throws WrongUsageException {
+		int separator = str.indexOf(':');
+		if (separator < 0) {
+			throw new WrongUsageException("Illegal URL weight: " + str);
+		}
+		try {
+			scorer.addWeight(str.substring(separator + 1), Double.parseDouble(str.substring(0, separator)));
+		} catch (NumberFormatException e) {
+			throw new WrongUsageException("Illegal URL weight: " + str);
+		}
+	}
+
 	public void runTool(String[] args) throws WrongUsageException {
 		if (args.length < 1) {
 			throw new WrongUsageException();
@@ -62,6 +196,17 @@ public class SpiderTool {
 			throw new WrongUsageException("Wrong URL: " + args[args.length - 1]);
 		}
 
+		String seenSet = null;
+		URLFilter urlFilter = new URLFilter();
+		File metadataFile = null;
+		File storageDirectory = null;
+		boolean deduplicate = false;
+		int expectedSize = 1000000;
+		IURLScorer urlScorer = new DepthURLScorer();
+		List<String> weights = new ArrayList<String>();
+		String clusterNodes = null;
+		int clusterIndex = 0;
+
 		for (int i = 0; i < args.length - 1; ++i) {
 			if ("-r".equals(args[i]) && i < args.length - 2) {
 				spider.setFollowRobots(parseBoolean(args[i + 1]));
@@ -79,16 +224,183 @@ public class SpiderTool {
 				spider.setUserAgent(args[i + 1]);
 				++i;
 			} else if ("-p".equals(args[i]) && i < args.length - 2) {
-				spider.setPattern(args[i + 1]);
+				urlFilter.include(args[i + 1]);
+				++i;
+			} else if ("-x".equals(args[i]) && i < args.length - 2) {
+				urlFilter.exclude(args[i + 1]);
+				++i;
+			} else if ("-l".equals(args[i]) && i < args.length - 2) {
+				try {
+					urlFilter.load(new File(args[i + 1]));
+				} catch (IOException e) {
+					throw new WrongUsageException("Can't read URL filter rules: " + e.getMessage());
+				} catch (PatternSyntaxException e) {
+					throw new WrongUsageException("Illegal regular expression: " + e.getPattern());
+				}
+				++i;
+			} else if ("-y".equals(args[i]) && i < args.length - 2) {
+				spider.getURLCanonicalizer().setStrippedParams("none".equals(args[i + 1]) ? new String[0] : args[i + 1].split(","));
 				++i;
 			} else if ("-v".equals(args[i]) && i < args.length - 2) {
 				spider.setVerbose(parseBoolean(args[i + 1]));
 				++i;
+			} else if ("-m".equals(args[i]) && i < args.length - 2) {
+				spider.setFetchMode(parseFetchMode(args[i + 1]));
+				++i;
+			} else if ("-k".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxConnections(parseInt(args[i + 1]));
+				++i;
+			} else if ("-h".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxHostConnections(parseInt(args[i + 1]));
+				++i;
+			} else if ("-d".equals(args[i]) && i < args.length - 2) {
+				seenSet = args[i + 1];
+				++i;
+			} else if ("-e".equals(args[i]) && i < args.length - 2) {
+				expectedSize = parseInt(args[i + 1]);
+				++i;
+			} else if ("-i".equals(args[i]) && i < args.length - 2) {
+				metadataFile = new File(args[i + 1]);
+				++i;
+			} else if ("-b".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxMemoryURLs(parseInt(args[i + 1]));
+				++i;
+			} else if ("-s".equals(args[i]) && i < args.length - 2) {
+				spider.setSpillDirectory(new File(args[i + 1]));
+				++i;
+			} else if ("-z".equals(args[i]) && i < args.length - 2) {
+				spider.setCompression(parseBoolean(args[i + 1]));
+				++i;
+			} else if ("-o".equals(args[i]) && i < args.length - 2) {
+				storageDirectory = new File(args[i + 1]);
+				++i;
+			} else if ("-n".equals(args[i]) && i < args.length - 2) {
+				deduplicate = parseBoolean(args[i + 1]);
+				++i;
+			} else if ("-w".equals(args[i]) && i < args.length - 2) {
+				spider.setHandlerThreads(parseInt(args[i + 1]));
+				++i;
+			} else if ("-q".equals(args[i]) && i < args.length - 2) {
+				spider.setHandlerQueueSize(parseInt(args[i + 1]));
+				++i;
+			} else if ("-g".equals(args[i]) && i < args.length - 2) {
+				spider.setPrefetch(parseBoolean(args[i + 1]));
+				++i;
+			} else if ("-D".equals(args[i]) && i < args.length - 2) {
+				try {
+					spider.setDuplicateIndex(new DuplicateIndex(parseInt(args[i + 1])));
+				} catch (IllegalArgumentException e) {
+					throw new WrongUsageException(e.getMessage());
+				}
+				++i;
+			} else if ("-L".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxDepth(parseInt(args[i + 1]));
+				++i;
+			} else if ("-H".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxHostPages(parseInt(args[i + 1]));
+				++i;
+			} else if ("-S".equals(args[i]) && i < args.length - 2) {
+				urlScorer = parseURLScorer(args[i + 1]);
+				++i;
+			} else if ("-W".equals(args[i]) && i < args.length - 2) {
+				weights.add(args[i + 1]);
+				++i;
+			} else if ("-C".equals(args[i]) && i < args.length - 2) {
+				clusterNodes = args[i + 1];
+				++i;
+			} else if ("-N".equals(args[i]) && i < args.length - 2) {
+				clusterIndex = parseInt(args[i + 1]);
+				++i;
+			} else if ("-J".equals(args[i]) && i < args.length - 2) {
+				spider.setJournal(new CrawlJournal(new File(args[i + 1])));
+				++i;
+			} else if ("-R".equals(args[i]) && i < args.length - 2) {
+				spider.setResume(parseBoolean(args[i + 1]));
+				++i;
+			} else if ("-M".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxContentLength(parseSize(args[i + 1]));
+				++i;
+			} else if ("-T".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxDownloadTime(parseInt(args[i + 1]));
+				++i;
+			} else if ("-P".equals(args[i]) && i < args.length - 2) {
+				spider.setProcessTruncated(parseBoolean(args[i + 1]));
+				++i;
+			} else if ("-B".equals(args[i]) && i < args.length - 2) {
+				spider.setMaxBufferedContents(parseSize(args[i + 1]));
+				++i;
+			} else if ("-a".equals(args[i]) && i < args.length - 2) {
+				spider.setAdaptiveConcurrency(parseBoolean(args[i + 1]));
+				++i;
+			} else if ("-j".equals(args[i]) && i < args.length - 2) {
+				spider.setMetricsFile(new File(args[i + 1]));
+				++i;
 			} else {
 				throw new WrongUsageException("Illegal option: " + args[i]);
 			}
 		}
-		spider.run();
+		spider.setURLFilter(urlFilter);
+		if (weights.isEmpty()) {
+			spider.setURLScorer(urlScorer);
+		} else {
+			PatternURLScorer patternScorer = new PatternURLScorer(urlScorer);
+			for (int i = 0; i < weights.size(); ++i) {
+				addWeight(patternScorer, weights.get(i));
+			}
+			spider.setURLScorer(patternScorer);
+		}
+		if (seenSet != null) {
+			spider.setSeenSet(parseSeenSet(seenSet, expectedSize));
+		}
+		if (spider.isResume() && spider.getJournal() == null) {
+			throw new WrongUsageException("Resuming requires journal directory (-J)");
+		}
+		if (clusterNodes != null) {
+			try {
+				spider.setCluster(new ClusterNode(ClusterNode.parseNodes(clusterNodes), clusterIndex));
+			} catch (IllegalArgumentException e) {
+				throw new WrongUsageException(e.getMessage());
+			}
+		}
+		if (storageDirectory == null) {
+			run(spider, metadataFile);
+			return;
+		}
+		SegmentStorageHandler storage;
+		try {
+			storage = new SegmentStorageHandler(storageDirectory);
+		} catch (IOException e) {
+			throw new WrongUsageException("Can't use storage directory: " + e.getMessage());
+		}
+		storage.setDeduplicate(deduplicate);
+		spider.setHandler(storage);
+		try {
+			run(spider, metadataFile);
+		} finally {
+			try {
+				storage.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void run(Spider spider, File metadataFile) throws WrongUsageException {
+		if (metadataFile == null) {
+			spider.run();
+			return;
+		}
+		try {
+			FetchMetadataStore metadataStore = new FetchMetadataStore(metadataFile);
+			spider.setMetadataStore(metadataStore);
+			try {
+				spider.run();
+			} finally {
+				metadataStore.close();
+			}
+		} catch (IOException e) {
+			throw new WrongUsageException("Can't use metadata file: " + e.getMessage());
+		}
 	}
 	
 	public static void main(String[] args) {
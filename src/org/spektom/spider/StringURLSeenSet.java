@@ -0,0 +1,29 @@
+package org.spektom.spider;
+
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every URL as a string. Exact, but costs well over 100 bytes per URL.
+ */
+public class StringURLSeenSet implements IURLSeenSet {
+
+	private Set<String> urls;
+
+	public StringURLSeenSet() {
+		urls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	public boolean add(String url) {
+		return urls.add(url);
+	}
+
+	public boolean contains(String url) {
+		return urls.contains(url);
+	}
+
+	public long size() {
+		return urls.size();
+	}
+}
@@ -0,0 +1,86 @@
+package org.spektom.spider;
+
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts bytes of retrieved pages per host, both as they were transferred and after
+ * decompression, so that savings of compressed transfer can be seen
+ */
+public class TransferStats {
+
+	private ConcurrentMap<String, Counters> hosts;
+
+	public TransferStats() {
+		hosts = new ConcurrentHashMap<String, Counters>();
+	}
+
+	/**
+	 * @param host
+	 * @param wireBytes Number of body bytes that were transferred
+	 * @param decodedBytes Number of body bytes after decompression
+	 */
+	public void add(String host, long wireBytes, long decodedBytes) {
+		Counters counters = hosts.get(host);
+		if (counters == null) {
+			Counters newCounters = new Counters();
+			counters = hosts.putIfAbsent(host, newCounters);
+			if (counters == null) {
+				counters = newCounters;
+			}
+		}
+		counters.wireBytes.addAndGet(wireBytes);
+		counters.decodedBytes.addAndGet(decodedBytes);
+	}
+
+	/**
+	 * @param host
+	 * @return number of body bytes transferred from the host
+	 */
+	public long getWireBytes(String host) {
+		Counters counters = hosts.get(host);
+		return counters != null ? counters.wireBytes.get() : 0;
+	}
+
+	/**
+	 * @param host
+	 * @return number of body bytes from the host after decompression
+	 */
+	public long getDecodedBytes(String host) {
+		Counters counters = hosts.get(host);
+		return counters != null ? counters.decodedBytes.get() : 0;
+	}
+
+	/**
+	 * Prints counters of every host, and the totals
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		long totalWire = 0;
+		long totalDecoded = 0;
+		Iterator<Map.Entry<String, Counters>> i = new TreeMap<String, Counters>(hosts).entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, Counters> entry = i.next();
+			long wire = entry.getValue().wireBytes.get();
+			long decoded = entry.getValue().decodedBytes.get();
+			print(out, entry.getKey(), wire, decoded);
+			totalWire += wire;
+			totalDecoded += decoded;
+		}
+		print(out, "Total", totalWire, totalDecoded);
+	}
+
+	private static void print(PrintStream out, String name, long wire, long decoded) {
+		out.format("%s: transferred %d bytes, decoded %d bytes, saved %.1f%%\n", name, wire, decoded, decoded > 0 ? (decoded - wire) * 100.0 / decoded : 0.0);
+	}
+
+	static class Counters {
+		final AtomicLong wireBytes = new AtomicLong();
+		final AtomicLong decodedBytes = new AtomicLong();
+	}
+}
@@ -0,0 +1,53 @@
+package org.spektom.spider;
+
+import java.util.Arrays;
+
+/**
+ * Node of a trie of characters. Subclasses keep data of strings that end at the node.
+ * @param <N> type of the subclass, which children are
+ */
+abstract class TrieNode<N extends TrieNode<N>> {
+
+	// Sorted, so that children are found using binary search:
+	private char[] keys = new char[0];
+	private Object[] children = new Object[0];
+
+	/**
+	 * @return new node of the same type, which is added as a child
+	 */
+	protected abstract N newNode();
+
+	int getChildrenNumber() {
+		return children.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	N getChildAt(int i) {
+		return (N) children[i];
+	}
+
+	N getChild(char ch) {
+		int i = Arrays.binarySearch(keys, ch);
+		return i >= 0 ? getChildAt(i) : null;
+	}
+
+	N getOrAddChild(char ch) {
+		int i = Arrays.binarySearch(keys, ch);
+		if (i >= 0) {
+			return getChildAt(i);
+		}
+		i = -i - 1;
+		char[] newKeys = new char[keys.length + 1];
+		Object[] newChildren = new Object[children.length + 1];
+		System.arraycopy(keys, 0, newKeys, 0, i);
+		System.arraycopy(children, 0, newChildren, 0, i);
+		System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+		System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+		N child = newNode();
+		newKeys[i] = ch;
+		newChildren[i] = child;
+		keys = newKeys;
+		children = newChildren;
+		return child;
+	}
+}
@@ -0,0 +1,593 @@
+package org.spektom.spider;
+
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resolves links and brings HTTP URLs to canonical form, so that different spellings
+ * of the same URL are queued once:
+ * <ul>
+ * <li>scheme and host are lower-cased, and default port is removed</li>
+ * <li>percent-encoding is normalized: escapes of unreserved characters are decoded,
+ * hex digits are upper-cased, and characters that are not allowed in URL are escaped</li>
+ * <li>"." and ".." path segments are resolved, and fragment is removed</li>
+ * <li>query parameters and path parameters (like ";jsessionid=...") that are
+ * configured to be stripped are removed, and query parameters are sorted by name</li>
+ * </ul>
+ * Characters of the link up to 0xFF are taken as bytes, the way
+ * {@link ByteSequence} presents them, so non-ASCII characters of UTF-8 pages are
+ * escaped correctly. Every thread reuses its own buffers, so only the resulting
+ * {@link CanonicalURL} is allocated.
+ */
+public class URLCanonicalizer {
+
+	// Only names that are session IDs on every site, others like "sid" may select contents:
+	private static final String[] DEFAULT_STRIPPED_PARAMS = { "jsessionid", "phpsessid", "aspsessionid", "utm_source", "utm_medium", "utm_campaign", "utm_term", "utm_content" };
+	private static final String HEX_DIGITS = "0123456789ABCDEF";
+	// ASCII characters that are copied as they are:
+	private static final boolean[] SAFE = new boolean[128];
+	static {
+		for (int ch = '!'; ch < 127; ++ch) {
+			SAFE[ch] = "%\"<>\\^`{|}".indexOf(ch) < 0;
+		}
+	}
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private volatile String[] strippedParams;
+	private volatile boolean sortParams;
+
+	public URLCanonicalizer() {
+		strippedParams = DEFAULT_STRIPPED_PARAMS;
+		sortParams = true;
+	}
+
+	/**
+	 * @return names of parameters that are removed from URLs
+	 */
+	public String[] getStrippedParams() {
+		return strippedParams.clone();
+	}
+
+	/**
+	 * Sets names of query and path parameters that are removed from URLs, names are
+	 * compared ignoring case (default: jsessionid, phpsessid, aspsessionid and utm_*
+	 * tracking parameters). Other session parameters like "sid" or "sessionid" must be
+	 * added explicitly, since some sites use them for contents.
+	 * @param names
+	 */
+	public void setStrippedParams(String... names) {
+		String[] strippedParams = new String[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			strippedParams[i] = names[i].trim().toLowerCase();
+		}
+		this.strippedParams = strippedParams;
+	}
+
+	/**
+	 * @return whether query parameters are sorted by name
+	 */
+	public boolean isSortParams() {
+		return sortParams;
+	}
+
+	/**
+	 * Sets whether query parameters are sorted by name (default: true). Parameters with
+	 * the same name keep their order.
+	 * @param sortParams
+	 */
+	public void setSortParams(boolean sortParams) {
+		this.sortParams = sortParams;
+	}
+
+	/**
+	 * Brings absolute URL to canonical form
+	 * @param url
+	 * @return canonical URL, or <code>null</code> if it's not a valid HTTP URL
+	 */
+	public CanonicalURL canonicalize(CharSequence url) {
+		return canonicalize(null, url);
+	}
+
+	/**
+	 * Resolves link against the base URL, and brings the result to canonical form
+	 * @param base URL of the page the link is found on, may be <code>null</code> if the
+	 * link is absolute
+	 * @param link
+	 * @return canonical URL, or <code>null</code> if the link is not a valid HTTP URL
+	 */
+	public CanonicalURL canonicalize(CanonicalURL base, CharSequence link) {
+		Buffers buffers = BUFFERS.get();
+		StringBuilder out = buffers.out;
+		StringBuilder path = buffers.path;
+		out.setLength(0);
+		path.setLength(0);
+		String[] strippedParams = this.strippedParams;
+
+		int start = 0;
+		int end = link.length();
+		while (start < end && link.charAt(start) <= ' ') {
+			++start;
+		}
+		while (end > start && link.charAt(end - 1) <= ' ') {
+			--end;
+		}
+		for (int i = start; i < end; ++i) {
+			if (link.charAt(i) == '#') {
+				end = i;
+				break;
+			}
+		}
+
+		int colon = getSchemeEnd(link, start, end);
+		if (colon >= 0) {
+			if (!isHTTP(link, start, colon)) {
+				return null;
+			}
+			if (base != null && !isSlashes(link, colon + 1, end) && base.getSchemeEnd() == colon - start && regionMatches(base.toString(), 0, link, start, colon - start)) {
+				// "http:page.html" is relative to the base with the same scheme
+				out.append(base.toString(), 0, base.getSchemeEnd());
+			} else if (isSlashes(link, colon + 1, end)) {
+				for (int i = start; i < colon; ++i) {
+					out.append((char) ByteSequence.toLowerCase(link.charAt(i)));
+				}
+			} else {
+				return null;
+			}
+			start = colon + 1;
+		} else if (base != null) {
+			out.append(base.toString(), 0, base.getSchemeEnd());
+		} else {
+			return null;
+		}
+		int schemeEnd = out.length();
+		out.append("://");
+
+		int pathEnd = start;
+		while (pathEnd < end && link.charAt(pathEnd) != '?') {
+			++pathEnd;
+		}
+		int hostStart;
+		int hostEnd;
+		boolean baseQuery = false;
+		if (isSlashes(link, start, end)) {
+			int authorityEnd = start + 2;
+			while (authorityEnd < pathEnd && link.charAt(authorityEnd) != '/' && link.charAt(authorityEnd) != '\\') {
+				++authorityEnd;
+			}
+			if (!appendAuthority(out, link, start + 2, authorityEnd, schemeEnd, buffers)) {
+				return null;
+			}
+			hostStart = buffers.hostStart;
+			hostEnd = buffers.hostEnd;
+			appendEscaped(path, link, authorityEnd, pathEnd, true);
+		} else {
+			// Authority is the same as the base has, and so are the offsets:
+			String spec = base.toString();
+			out.append(spec, base.getAuthorityStart(), base.getPathStart());
+			hostStart = base.getHostStart();
+			hostEnd = base.getHostEnd();
+			int basePathEnd = base.getQueryStart() >= 0 ? base.getQueryStart() : spec.length();
+			if (start == pathEnd) {
+				path.append(spec, base.getPathStart(), basePathEnd);
+				baseQuery = pathEnd == end;
+			} else {
+				char ch = link.charAt(start);
+				if (ch != '/' && ch != '\\') {
+					path.append(spec, base.getPathStart(), spec.lastIndexOf('/', basePathEnd - 1) + 1);
+				}
+				appendEscaped(path, link, start, pathEnd, true);
+			}
+		}
+		if (path.length() == 0) {
+			path.append('/');
+		}
+		int pathStart = out.length();
+		removeDotSegments(path, out, strippedParams);
+
+		int queryStart = -1;
+		if (baseQuery) {
+			if (base.getQueryStart() >= 0) {
+				queryStart = out.length();
+				out.append(base.toString(), base.getQueryStart(), base.toString().length());
+			}
+		} else if (pathEnd < end) {
+			StringBuilder query = buffers.query;
+			query.setLength(0);
+			appendEscaped(query, link, pathEnd + 1, end, false);
+			queryStart = appendQuery(out, query, strippedParams, buffers);
+		}
+		return new CanonicalURL(out.toString(), schemeEnd, hostStart, hostEnd, pathStart, queryStart);
+	}
+
+	/**
+	 * @return index of ':' that ends the scheme, or -1 if the link has no scheme
+	 */
+	private static int getSchemeEnd(CharSequence link, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			char ch = link.charAt(i);
+			if (ch == ':') {
+				return i > start ? i : -1;
+			}
+			boolean letter = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+			if (!letter && (i == start || !((ch >= '0' && ch <= '9') || ch == '+' || ch == '-' || ch == '.'))) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isHTTP(CharSequence link, int start, int end) {
+		int length = end - start;
+		if (length != 4 && length != 5) {
+			return false;
+		}
+		return regionMatches("https", 0, link, start, length);
+	}
+
+	private static boolean isSlashes(CharSequence link, int start, int end) {
+		return start + 1 < end && isSlash(link.charAt(start)) && isSlash(link.charAt(start + 1));
+	}
+
+	private static boolean isSlash(char ch) {
+		return ch == '/' || ch == '\\';
+	}
+
+	/**
+	 * Compares regions ignoring case of ASCII letters
+	 */
+	private static boolean regionMatches(String str, int offset, CharSequence other, int otherOffset, int length) {
+		for (int i = 0; i < length; ++i) {
+			if (ByteSequence.toLowerCase(str.charAt(offset + i)) != ByteSequence.toLowerCase(other.charAt(otherOffset + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends user info, lower-cased host and port unless it's the default one
+	 * @return <code>false</code> if the authority is invalid
+	 */
+	private static boolean appendAuthority(StringBuilder out, CharSequence link, int start, int end, int schemeEnd, Buffers buffers) {
+		for (int i = end - 1; i >= start; --i) {
+			if (link.charAt(i) == '@') {
+				appendEscaped(out, link, start, i + 1, false);
+				start = i + 1;
+				break;
+			}
+		}
+		int hostEnd = end;
+		if (start < end && link.charAt(start) == '[') {
+			hostEnd = start;
+			while (hostEnd < end && link.charAt(hostEnd) != ']') {
+				++hostEnd;
+			}
+			if (hostEnd == end) {
+				return false;
+			}
+			++hostEnd;
+		} else {
+			for (int i = start; i < end; ++i) {
+				if (link.charAt(i) == ':') {
+					hostEnd = i;
+					break;
+				}
+			}
+		}
+		if (hostEnd < end && link.charAt(hostEnd) != ':') {
+			return false;
+		}
+
+		buffers.hostStart = out.length();
+		if (!appendHost(out, link, start, hostEnd)) {
+			return false;
+		}
+		// Fully qualified name is the same host:
+		if (out.charAt(out.length() - 1) == '.') {
+			out.setLength(out.length() - 1);
+		}
+		if (out.length() == buffers.hostStart) {
+			return false;
+		}
+		buffers.hostEnd = out.length();
+
+		int port = -1;
+		for (int i = hostEnd + 1; i < end; ++i) {
+			char ch = link.charAt(i);
+			if (ch < '0' || ch > '9') {
+				return false;
+			}
+			port = (port < 0 ? 0 : port * 10) + (ch - '0');
+			if (port > 65535) {
+				return false;
+			}
+		}
+		int defaultPort = schemeEnd == 4 ? 80 : 443;
+		if (port >= 0 && port != defaultPort) {
+			out.append(':').append(port);
+		}
+		return true;
+	}
+
+	private static boolean appendHost(StringBuilder out, CharSequence link, int start, int end) {
+		int hostStart = out.length();
+		for (int i = start; i < end; ++i) {
+			char ch = link.charAt(i);
+			if (ch >= 0x80) {
+				out.setLength(hostStart);
+				return appendIDN(out, link, start, end);
+			}
+			ch = (char) ByteSequence.toLowerCase(ch);
+			if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') || ch == '-' || ch == '.' || ch == '_' || ch == '[' || ch == ']' || ch == ':') {
+				out.append(ch);
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends internationalized host name converted to ASCII
+	 */
+	private static boolean appendIDN(StringBuilder out, CharSequence link, int start, int end) {
+		String host;
+		try {
+			byte[] bytes = new byte[end - start];
+			for (int i = start; i < end && bytes != null; ++i) {
+				char ch = link.charAt(i);
+				if (ch > 0xff) {
+					// Characters are not bytes, so the link came from a string
+					bytes = null;
+				} else {
+					bytes[i - start] = (byte) ch;
+				}
+			}
+			host = IDN.toASCII(bytes != null ? new String(bytes, StandardCharsets.UTF_8) : link.subSequence(start, end).toString(), IDN.ALLOW_UNASSIGNED);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		for (int i = 0; i < host.length(); ++i) {
+			if (host.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return appendHost(out, host, 0, host.length());
+	}
+
+	/**
+	 * Appends characters normalizing their percent-encoding
+	 * @param path Whether the characters are path, where '\' is a separator
+	 */
+	private static void appendEscaped(StringBuilder out, CharSequence str, int start, int end, boolean path) {
+		for (int i = start; i < end; ++i) {
+			char ch = str.charAt(i);
+			if (ch < 128 && SAFE[ch]) {
+				out.append(ch);
+			} else if (ch == '%') {
+				int value = i + 2 < end ? getHexValue(str.charAt(i + 1)) << 4 | getHexValue(str.charAt(i + 2)) : -1;
+				if (value < 0) {
+					appendEscaped(out, '%');
+				} else if (isUnreserved(value)) {
+					out.append((char) value);
+					i += 2;
+				} else {
+					appendEscaped(out, value);
+					i += 2;
+				}
+			} else if (ch == '\t' || ch == '\n' || ch == '\r') {
+				// Browsers ignore these
+			} else if (ch == '\\' && path) {
+				out.append('/');
+			} else {
+				if (ch <= 0xff) {
+					appendEscaped(out, ch);
+				} else {
+					int codePoint = ch;
+					if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(str.charAt(i + 1))) {
+						codePoint = Character.toCodePoint(ch, str.charAt(++i));
+					}
+					appendUTF8(out, codePoint);
+				}
+			}
+		}
+	}
+
+	private static void appendUTF8(StringBuilder out, int codePoint) {
+		if (codePoint < 0x800) {
+			appendEscaped(out, 0xc0 | (codePoint >> 6));
+		} else {
+			if (codePoint < 0x10000) {
+				appendEscaped(out, 0xe0 | (codePoint >> 12));
+			} else {
+				appendEscaped(out, 0xf0 | (codePoint >> 18));
+				appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3f));
+			}
+			appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3f));
+		}
+		appendEscaped(out, 0x80 | (codePoint & 0x3f));
+	}
+
+	private static void appendEscaped(StringBuilder out, int value) {
+		out.append('%').append(HEX_DIGITS.charAt(value >> 4)).append(HEX_DIGITS.charAt(value & 0x0f));
+	}
+
+	/**
+	 * @return value of the hex digit, or a negative number if it isn't one
+	 */
+	private static int getHexValue(char ch) {
+		if (ch >= '0' && ch <= '9') {
+			return ch - '0';
+		}
+		ch = (char) ByteSequence.toLowerCase(ch);
+		if (ch >= 'a' && ch <= 'f') {
+			return ch - 'a' + 10;
+		}
+		return -256;
+	}
+
+	private static boolean isUnreserved(int ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '-' || ch == '.' || ch == '_' || ch == '~';
+	}
+
+	/**
+	 * Appends the path, which starts with '/', resolving "." and ".." segments and
+	 * removing stripped path parameters (RFC 3986, section 5.2.4)
+	 */
+	private static void removeDotSegments(StringBuilder path, StringBuilder out, String[] strippedParams) {
+		int outStart = out.length();
+		int length = path.length();
+		int i = 0;
+		while (i < length) {
+			int j = i + 1;
+			while (j < length && path.charAt(j) != '/') {
+				++j;
+			}
+			int segmentLength = j - i - 1;
+			if (segmentLength == 1 && path.charAt(i + 1) == '.') {
+				if (j == length) {
+					out.append('/');
+				}
+			} else if (segmentLength == 2 && path.charAt(i + 1) == '.' && path.charAt(i + 2) == '.') {
+				out.setLength(Math.max(out.lastIndexOf("/"), outStart));
+				if (j == length) {
+					out.append('/');
+				}
+			} else {
+				appendSegment(out, path, i, j, strippedParams);
+			}
+			i = j;
+		}
+		if (out.length() == outStart) {
+			out.append('/');
+		}
+	}
+
+	private static void appendSegment(StringBuilder out, StringBuilder path, int start, int end, String[] strippedParams) {
+		int param = indexOf(path, ';', start, end);
+		if (param < 0) {
+			out.append(path, start, end);
+			return;
+		}
+		out.append(path, start, param);
+		while (param < end) {
+			int next = indexOf(path, ';', param + 1, end);
+			if (next < 0) {
+				next = end;
+			}
+			if (!isStripped(path, param + 1, next, strippedParams)) {
+				out.append(path, param, next);
+			}
+			param = next;
+		}
+	}
+
+	/**
+	 * Appends query parameters that are not stripped, sorted if needed
+	 * @return index of '?', or -1 if no parameters are left
+	 */
+	private int appendQuery(StringBuilder out, StringBuilder query, String[] strippedParams, Buffers buffers) {
+		int[] params = buffers.params;
+		int count = 0;
+		int length = query.length();
+		int start = 0;
+		while (start <= length) {
+			int end = indexOf(query, '&', start, length);
+			if (end < 0) {
+				end = length;
+			}
+			if (end > start && !isStripped(query, start, end, strippedParams)) {
+				if (count * 2 == params.length) {
+					params = new int[params.length * 2];
+					System.arraycopy(buffers.params, 0, params, 0, count * 2);
+					buffers.params = params;
+				}
+				params[count * 2] = start;
+				params[count * 2 + 1] = end;
+				++count;
+			}
+			start = end + 1;
+		}
+		if (count == 0) {
+			return -1;
+		}
+		if (sortParams) {
+			// Insertion sort is stable, and there are few parameters:
+			for (int i = 1; i < count; ++i) {
+				int paramStart = params[i * 2];
+				int paramEnd = params[i * 2 + 1];
+				int j = i - 1;
+				while (j >= 0 && compareNames(query, params[j * 2], params[j * 2 + 1], paramStart, paramEnd) > 0) {
+					params[j * 2 + 2] = params[j * 2];
+					params[j * 2 + 3] = params[j * 2 + 1];
+					--j;
+				}
+				params[j * 2 + 2] = paramStart;
+				params[j * 2 + 3] = paramEnd;
+			}
+		}
+		int queryStart = out.length();
+		out.append('?');
+		for (int i = 0; i < count; ++i) {
+			if (i > 0) {
+				out.append('&');
+			}
+			out.append(query, params[i * 2], params[i * 2 + 1]);
+		}
+		return queryStart;
+	}
+
+	private static int compareNames(CharSequence str, int start1, int end1, int start2, int end2) {
+		while (true) {
+			int ch1 = start1 < end1 && str.charAt(start1) != '=' ? str.charAt(start1) : -1;
+			int ch2 = start2 < end2 && str.charAt(start2) != '=' ? str.charAt(start2) : -1;
+			if (ch1 != ch2 || ch1 < 0) {
+				return ch1 - ch2;
+			}
+			++start1;
+			++start2;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if name of "name=value" parameter is one of stripped ones
+	 */
+	private static boolean isStripped(CharSequence str, int start, int end, String[] strippedParams) {
+		int nameEnd = indexOf(str, '=', start, end);
+		if (nameEnd < 0) {
+			nameEnd = end;
+		}
+		for (int i = 0; i < strippedParams.length; ++i) {
+			String name = strippedParams[i];
+			if (name.length() == nameEnd - start && regionMatches(name, 0, str, start, name.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int indexOf(CharSequence str, char ch, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (str.charAt(i) == ch) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static class Buffers {
+		StringBuilder out = new StringBuilder(256);
+		StringBuilder path = new StringBuilder(256);
+		StringBuilder query = new StringBuilder(256);
+		// Start and end of every query parameter:
+		int[] params = new int[32];
+		// Offsets of the host set by appendAuthority():
+		int hostStart;
+		int hostEnd;
+	}
+}
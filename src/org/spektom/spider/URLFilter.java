@@ -0,0 +1,288 @@
+package org.spektom.spider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which URLs may be put into the queue, using any number of include and exclude
+ * rules. URL is accepted if it matches at least one include rule (or there are no
+ * include rules at all), and doesn't match any exclude rule. Rules are Glob patterns
+ * (see {@link FileMatcher#matches(String, String)}) or regular expressions.
+ * <p>
+ * Rules are compiled once, on the first check after they were changed. Globs that are
+ * plain strings, or strings followed by a single trailing '*', are put into a prefix
+ * trie, so that URL is matched against all of them in one pass. The rest are combined
+ * into a single regular expression.
+ * <p>
+ * Rules file contains one rule per line. Lines starting with '-' are exclude rules,
+ * optionally starting with '+' are include rules; "regex:" prefix denotes regular
+ * expression. Empty lines and lines starting with '#' are ignored, for example:
+ * <pre>
+ * +http://www.example.com/docs/*
+ * -*.pdf
+ * -regex:.*[?&amp;]sessionid=.*
+ * </pre>
+ */
+public class URLFilter {
+
+	private static final String REGEX_PREFIX = "regex:";
+
+	private List<String> includeGlobs;
+	private List<String> includeRegexes;
+	private List<String> excludeGlobs;
+	private List<String> excludeRegexes;
+	private volatile Compiled compiled;
+
+	public URLFilter() {
+		includeGlobs = new ArrayList<String>();
+		includeRegexes = new ArrayList<String>();
+		excludeGlobs = new ArrayList<String>();
+		excludeRegexes = new ArrayList<String>();
+	}
+
+	/**
+	 * Accept URLs matching Glob pattern
+	 * @param pattern
+	 */
+	public synchronized void include(String pattern) {
+		includeGlobs.add(pattern);
+		compiled = null;
+	}
+
+	/**
+	 * Refuse URLs matching Glob pattern
+	 * @param pattern
+	 */
+	public synchronized void exclude(String pattern) {
+		excludeGlobs.add(pattern);
+		compiled = null;
+	}
+
+	/**
+	 * Accept URLs matching regular expression
+	 * @param regex
+	 * @throws PatternSyntaxException if the expression is illegal
+	 */
+	public synchronized void includeRegex(String regex) {
+		Pattern.compile(regex);
+		includeRegexes.add(regex);
+		compiled = null;
+	}
+
+	/**
+	 * Refuse URLs matching regular expression
+	 * @param regex
+	 * @throws PatternSyntaxException if the expression is illegal
+	 */
+	public synchronized void excludeRegex(String regex) {
+		Pattern.compile(regex);
+		excludeRegexes.add(regex);
+		compiled = null;
+	}
+
+	/**
+	 * Adds rule in the rules file syntax
+	 * @param rule
+	 * @throws PatternSyntaxException if the rule contains illegal regular expression
+	 */
+	public void addRule(String rule) {
+		rule = rule.trim();
+		if (rule.length() == 0 || rule.startsWith("#")) {
+			return;
+		}
+		boolean exclude = rule.charAt(0) == '-';
+		if (exclude || rule.charAt(0) == '+') {
+			rule = rule.substring(1).trim();
+		}
+		if (rule.startsWith(REGEX_PREFIX)) {
+			String regex = rule.substring(REGEX_PREFIX.length());
+			if (exclude) {
+				excludeRegex(regex);
+			} else {
+				includeRegex(regex);
+			}
+		} else if (exclude) {
+			exclude(rule);
+		} else {
+			include(rule);
+		}
+	}
+
+	/**
+	 * Loads rules from file
+	 * @param file
+	 * @throws IOException
+	 * @throws PatternSyntaxException if the file contains illegal regular expression
+	 */
+	public void load(File file) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				addRule(line);
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if there are no rules, so that all URLs are accepted
+	 */
+	public synchronized boolean isEmpty() {
+		return includeGlobs.isEmpty() && includeRegexes.isEmpty() && excludeGlobs.isEmpty() && excludeRegexes.isEmpty();
+	}
+
+	/**
+	 * Checks whether URL passes the rules
+	 * @param url
+	 * @return <code>true</code> if the URL is accepted
+	 */
+	public boolean accepts(CharSequence url) {
+		Compiled compiled = this.compiled;
+		if (compiled == null) {
+			compiled = compile();
+		}
+		if (compiled.includes != null && !compiled.includes.matches(url)) {
+			return false;
+		}
+		return compiled.excludes == null || !compiled.excludes.matches(url);
+	}
+
+	private synchronized Compiled compile() {
+		if (compiled == null) {
+			compiled = new Compiled(RuleSet.compile(includeGlobs, includeRegexes), RuleSet.compile(excludeGlobs, excludeRegexes));
+		}
+		return compiled;
+	}
+
+	static class Compiled {
+
+		final RuleSet includes;
+		final RuleSet excludes;
+
+		Compiled(RuleSet includes, RuleSet excludes) {
+			this.includes = includes;
+			this.excludes = excludes;
+		}
+	}
+
+	/**
+	 * Matches string against a set of rules at once
+	 */
+	static class RuleSet {
+
+		private PrefixTrie trie;
+		private Pattern pattern;
+
+		/**
+		 * @return compiled rules, or <code>null</code> if there are no rules
+		 */
+		static RuleSet compile(List<String> globs, List<String> regexes) {
+			if (globs.isEmpty() && regexes.isEmpty()) {
+				return null;
+			}
+			RuleSet ruleSet = new RuleSet();
+			StringBuilder buf = new StringBuilder();
+			for (int i = 0; i < globs.size(); ++i) {
+				String glob = globs.get(i);
+				int literalLength = getLiteralLength(glob);
+				if (literalLength == glob.length()) {
+					ruleSet.getTrie().add(glob, false);
+				} else if (literalLength == glob.length() - 1 && glob.charAt(literalLength) == '*') {
+					ruleSet.getTrie().add(glob.substring(0, literalLength), true);
+				} else {
+					append(buf, FileMatcher.toRegex(glob));
+				}
+			}
+			for (int i = 0; i < regexes.size(); ++i) {
+				append(buf, regexes.get(i));
+			}
+			if (buf.length() > 0) {
+				ruleSet.pattern = Pattern.compile(buf.toString());
+			}
+			return ruleSet;
+		}
+
+		boolean matches(CharSequence str) {
+			if (trie != null && trie.matches(str)) {
+				return true;
+			}
+			return pattern != null && pattern.matcher(str).matches();
+		}
+
+		private PrefixTrie getTrie() {
+			if (trie == null) {
+				trie = new PrefixTrie();
+			}
+			return trie;
+		}
+
+		private static void append(StringBuilder buf, String regex) {
+			if (buf.length() > 0) {
+				buf.append('|');
+			}
+			buf.append("(?:").append(regex).append(')');
+		}
+
+		private static int getLiteralLength(String glob) {
+			for (int i = 0; i < glob.length(); ++i) {
+				if (FileMatcher.isMetaCharacter(glob.charAt(i))) {
+					return i;
+				}
+			}
+			return glob.length();
+		}
+	}
+
+	/**
+	 * Trie of strings, each either must match the whole string or its prefix
+	 */
+	static class PrefixTrie {
+
+		private Node root = new Node();
+
+		void add(String str, boolean prefix) {
+			Node node = root;
+			for (int i = 0; i < str.length(); ++i) {
+				node = node.getOrAddChild(str.charAt(i));
+			}
+			if (prefix) {
+				node.prefixEnd = true;
+			} else {
+				node.exactEnd = true;
+			}
+		}
+
+		boolean matches(CharSequence str) {
+			Node node = root;
+			int length = str.length();
+			for (int i = 0; i < length; ++i) {
+				if (node.prefixEnd) {
+					return true;
+				}
+				node = node.getChild(str.charAt(i));
+				if (node == null) {
+					return false;
+				}
+			}
+			return node.prefixEnd || node.exactEnd;
+		}
+
+		static class Node extends TrieNode<Node> {
+
+			boolean prefixEnd;
+			boolean exactEnd;
+
+			protected Node newNode() {
+				return new Node();
+			}
+		}
+	}
+}
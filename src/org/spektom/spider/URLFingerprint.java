@@ -0,0 +1,71 @@
+package org.spektom.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Computes 64-bit fingerprints of URLs. With 64 bits the probability of a
+ * collision stays negligible even for billions of URLs.
+ */
+public class URLFingerprint {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Computes fingerprint of the string without allocating memory
+	 * @param str
+	 * @return fingerprint
+	 */
+	public static long fingerprint(CharSequence str) {
+		long hash = FNV_OFFSET_BASIS;
+		int length = str.length();
+		for (int i = 0; i < length; ++i) {
+			char ch = str.charAt(i);
+			hash ^= ch & 0xff;
+			hash *= FNV_PRIME;
+			hash ^= ch >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return mix(hash ^ length);
+	}
+
+	/**
+	 * Computes fingerprint of the bytes, taking eight of them at a time, which makes it
+	 * suitable for page contents
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return fingerprint
+	 */
+	public static long fingerprint(byte[] data, int offset, int length) {
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		long hash = FNV_OFFSET_BASIS ^ length;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			hash ^= buffer.getLong(i) * 0x9e3779b97f4a7c15L;
+			hash = Long.rotateLeft(hash, 29) * FNV_PRIME;
+		}
+		for (; i < end; ++i) {
+			hash ^= data[i] & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Spreads bits of the value, so that every input bit affects every output bit
+	 * (finalization step of MurmurHash3)
+	 * @param value
+	 * @return mixed value
+	 */
+	public static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+}
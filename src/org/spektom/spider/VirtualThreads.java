@@ -0,0 +1,67 @@
+package org.spektom.spider;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates virtual threads when the Java runtime supports them (Java 21 and later),
+ * and falls back to daemon platform threads otherwise. Reflection is used, so that
+ * the code still compiles and runs on older runtimes.
+ */
+public class VirtualThreads {
+
+	private static final Method ofVirtualMethod;
+	private static final Method nameMethod;
+	private static final Method factoryMethod;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builderClass = ofVirtual.getReturnType();
+			name = builderClass.getMethod("name", String.class, long.class);
+			factory = builderClass.getMethod("factory");
+		} catch (NoSuchMethodException e) {
+			ofVirtual = null;
+		}
+		ofVirtualMethod = ofVirtual;
+		nameMethod = name;
+		factoryMethod = factory;
+	}
+
+	/**
+	 * @return <code>true</code> if the Java runtime supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return ofVirtualMethod != null;
+	}
+
+	/**
+	 * Creates thread factory, which threads are named using given prefix and a counter
+	 * @param namePrefix
+	 * @return virtual thread factory if supported, platform thread factory otherwise
+	 */
+	public static ThreadFactory newThreadFactory(final String namePrefix) {
+		if (isSupported()) {
+			try {
+				Object builder = ofVirtualMethod.invoke(null);
+				builder = nameMethod.invoke(builder, namePrefix, 0L);
+				return (ThreadFactory) factoryMethod.invoke(builder);
+			} catch (Exception e) {
+				// Fall back to platform threads
+			}
+		}
+		return new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,230 @@
+package org.spektom.spider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Passes retrieved pages to the handler in separate threads, so that a slow handler
+ * doesn't stall retrieval. Pages wait in a bounded queue, every handler thread takes
+ * all queued pages at once (up to the batch size), and fetch threads are slowed down
+ * only when the queue is full. Queued pages hold their bytes of the content budget
+ * until the handler is done with them.
+ */
+public class WriteBehindStage {
+
+	// Tells handler thread to exit:
+	private static final FetchedPage STOP = new FetchedPage(null, 0, null, null, null);
+
+	private IBatchSpiderHandler handler;
+	private BlockingQueue<FetchedPage> queue;
+	private int threadsNumber;
+	private int maxBatchSize;
+	private Thread[] threads;
+	private boolean closed;
+	// Submitters hold read lock, so that no page is queued after the threads exit:
+	private ReadWriteLock closeLock;
+	private AtomicLong pages;
+	private AtomicLong batches;
+	private AtomicLong stalls;
+	private CrawlMetrics metrics;
+
+	/**
+	 * @param handler
+	 * @param threadsNumber Number of handler threads
+	 * @param capacity Maximal number of queued pages
+	 */
+	public WriteBehindStage(IBatchSpiderHandler handler, int threadsNumber, int capacity) {
+		this.handler = handler;
+		this.threadsNumber = threadsNumber;
+		queue = new ArrayBlockingQueue<FetchedPage>(capacity);
+		maxBatchSize = 100;
+		closeLock = new ReentrantReadWriteLock();
+		pages = new AtomicLong();
+		batches = new AtomicLong();
+		stalls = new AtomicLong();
+	}
+
+	/**
+	 * Sets maximal number of pages passed to the handler at once (default: 100)
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Sets metrics that get handler latency
+	 * @param metrics
+	 */
+	public void setMetrics(CrawlMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts handler threads
+	 */
+	public void start() {
+		threads = new Thread[threadsNumber];
+		for (int i = 0; i < threadsNumber; ++i) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					handlePages();
+				}
+			}, "Spider Handler #" + i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Queues the page, waiting while the queue is full. After the stage is closed,
+	 * the page is handled in the calling thread.
+	 * @param page
+	 */
+	public void submit(FetchedPage page) {
+		closeLock.readLock().lock();
+		try {
+			if (!closed) {
+				if (!queue.offer(page)) {
+					stalls.incrementAndGet();
+					putUninterruptibly(page);
+				}
+				return;
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+		handle(Collections.singletonList(page));
+	}
+
+	/**
+	 * Waits until all queued pages are handled, and stops handler threads
+	 */
+	public void close() {
+		closeLock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		for (int i = 0; i < threadsNumber; ++i) {
+			putUninterruptibly(STOP);
+		}
+		for (int i = 0; i < threadsNumber; ++i) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					threads[i].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return number of handled pages
+	 */
+	public long getPagesNumber() {
+		return pages.get();
+	}
+
+	/**
+	 * @return number of batches passed to the handler
+	 */
+	public long getBatchesNumber() {
+		return batches.get();
+	}
+
+	/**
+	 * @return number of pages waiting for the handler
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of times a fetch thread had to wait for free space in the queue
+	 */
+	public long getStallsNumber() {
+		return stalls.get();
+	}
+
+	private void handlePages() {
+		List<FetchedPage> batch = new ArrayList<FetchedPage>(maxBatchSize);
+		while (true) {
+			FetchedPage page;
+			try {
+				page = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			batch.add(page);
+			queue.drainTo(batch, maxBatchSize - 1);
+
+			int stops = 0;
+			for (int i = batch.size() - 1; i >= 0; --i) {
+				if (batch.get(i) == STOP) {
+					batch.remove(i);
+					++stops;
+				}
+			}
+			if (batch.size() > 0) {
+				handle(batch);
+				batch.clear();
+			}
+			if (stops > 0) {
+				// Leave the rest for other threads:
+				for (int i = 1; i < stops; ++i) {
+					putUninterruptibly(STOP);
+				}
+				return;
+			}
+		}
+	}
+
+	private void handle(List<FetchedPage> batch) {
+		long start = System.nanoTime();
+		try {
+			handler.handleBatch(batch);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			for (int i = 0; i < batch.size(); ++i) {
+				batch.get(i).release();
+			}
+		}
+		if (metrics != null) {
+			metrics.record(CrawlStage.HANDLER, System.nanoTime() - start);
+		}
+		pages.addAndGet(batch.size());
+		batches.incrementAndGet();
+	}
+
+	private void putUninterruptibly(FetchedPage page) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(page);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Crawls a server that slows down as more requests are in flight, and refuses them
+ * with 503 above its capacity, with fixed and with adaptive concurrency. Adaptive
+ * crawl must overload the server much less, and retrieve more pages.
+ */
+public class AdaptiveConcurrencyTest extends SpiderTest {
+
+	private static final int PAGES = 200;
+	private static final int CAPACITY = 4;
+	private static final int THREADS = 24;
+
+	public AdaptiveConcurrencyTest() {
+		super("AdaptiveConcurrency.degradingServer");
+	}
+
+	public void run() throws Exception {
+		Result fixed = crawl(false);
+		Result adaptive = crawl(true);
+		System.out.format("Fixed: %d pages, %d refused; adaptive: %d pages, %d refused\n", fixed.pages, fixed.refused, adaptive.pages, adaptive.refused);
+		check(fixed.refused > PAGES / 4, "Server wasn't overloaded by %d threads, the test is broken", THREADS);
+		check(adaptive.refused * 4 < fixed.refused, "Adaptive crawl got %d refusals, fixed one %d", adaptive.refused, fixed.refused);
+		check(adaptive.pages > fixed.pages, "Adaptive crawl retrieved %d pages, fixed one %d", adaptive.pages, fixed.pages);
+	}
+
+	private Result crawl(boolean adaptiveConcurrency) throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final Result result = new Result();
+		TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				if (path.equals("/")) {
+					StringBuilder links = new StringBuilder("<html><body>");
+					for (int i = 0; i < PAGES; ++i) {
+						links.append("<a href=\"/p").append(i).append("\">page</a>");
+					}
+					send(exchange, 200, "text/html", links.append("</body></html>").toString());
+				} else if (path.startsWith("/p")) {
+					int n = inFlight.incrementAndGet();
+					try {
+						if (n > CAPACITY) {
+							synchronized (result) {
+								++result.refused;
+							}
+							send(exchange, 503, "text/plain", "");
+							return;
+						}
+						sleep(10 + 10 * n);
+						send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+					} finally {
+						inFlight.decrementAndGet();
+					}
+				} else {
+					send(exchange, 404, "text/plain", "");
+				}
+			}
+		};
+		server.start();
+		try {
+			Spider spider = new Spider(new URL(server.getURL("127.0.0.1", "/")));
+			spider.setThreadsNumber(THREADS);
+			spider.setAdaptiveConcurrency(adaptiveConcurrency);
+			spider.setHandler(new ISpiderHandler() {
+				public void handleContent(URL url, long lastModified, byte[] content) {
+					synchronized (result) {
+						++result.pages;
+					}
+				}
+			});
+			spider.run();
+			return result;
+		} finally {
+			server.stop();
+		}
+	}
+
+	static class Result {
+		int pages;
+		int refused;
+	}
+}
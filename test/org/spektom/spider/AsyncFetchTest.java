@@ -0,0 +1,79 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Crawls a slow local site in {@link FetchMode#ASYNC} mode with two processing threads,
+ * and checks that all pages are retrieved intact, and that many more requests than
+ * threads were in flight at once.
+ */
+public class AsyncFetchTest extends SpiderTest {
+
+	private static final int PAGES = 40;
+	private static final long DELAY = 200;
+	private static final int THREADS = 2;
+
+	public AsyncFetchTest() {
+		super("AsyncFetch.slowServer");
+	}
+
+	public void run() throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				if (path.equals("/")) {
+					StringBuilder links = new StringBuilder("<html><body>");
+					for (int i = 0; i < PAGES; ++i) {
+						links.append("<a href=\"/p").append(i).append("\">page</a>");
+					}
+					send(exchange, 200, "text/html", links.append("</body></html>").toString());
+				} else if (path.startsWith("/p")) {
+					int n = inFlight.incrementAndGet();
+					int max;
+					while ((max = maxInFlight.get()) < n && !maxInFlight.compareAndSet(max, n)) {
+					}
+					sleep(DELAY);
+					inFlight.decrementAndGet();
+					send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+				} else {
+					send(exchange, 404, "text/plain", "");
+				}
+			}
+		};
+		server.start();
+		try {
+			final Map<String, String> pages = new HashMap<String, String>();
+			Spider spider = new Spider(new URL(server.getURL("127.0.0.1", "/")));
+			spider.setFetchMode(FetchMode.ASYNC);
+			spider.setThreadsNumber(THREADS);
+			spider.setMaxConnections(100);
+			spider.setHandler(new ISpiderHandler() {
+				public void handleContent(URL url, long lastModified, byte[] content) {
+					synchronized (pages) {
+						pages.put(url.getPath(), new String(content));
+					}
+				}
+			});
+			long start = System.currentTimeMillis();
+			spider.run();
+			long time = System.currentTimeMillis() - start;
+
+			check(pages.size() == PAGES + 1, "Expected %d pages, got %d", PAGES + 1, pages.size());
+			for (int i = 0; i < PAGES; ++i) {
+				String content = pages.get("/p" + i);
+				check(content != null && content.contains("/p" + i), "Wrong contents of /p%d: %s", i, content);
+			}
+			check(maxInFlight.get() > THREADS * 4, "Only %d requests were in flight at once", maxInFlight.get());
+			// Two blocking threads would take PAGES * DELAY / THREADS:
+			check(time < PAGES * DELAY / THREADS, "Crawl took %d ms", time);
+		} finally {
+			server.stop();
+		}
+	}
+}
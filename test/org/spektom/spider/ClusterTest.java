@@ -0,0 +1,141 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Runs a cluster of two spiders in separate JVMs on localhost, which crawl a site
+ * spread over several loopback hosts with links between them. Every page must be
+ * retrieved exactly once, by the node that owns its host, and both nodes must exit
+ * once the crawl is complete.
+ */
+public class ClusterTest extends SpiderTest {
+
+	private static final int NODES = 2;
+	private static final int HOSTS_PER_NODE = 2;
+	private static final int PAGES = 10;
+	private static final long TIMEOUT = 60;
+
+	public ClusterTest() {
+		super("Cluster.localhost");
+	}
+
+	public void run() throws Exception {
+		List<String> nodes = new ArrayList<String>();
+		for (int i = 0; i < NODES; ++i) {
+			nodes.add("127.0.0.1:" + getFreePort());
+		}
+		final HostPartitioner partitioner = new HostPartitioner(nodes);
+		final List<String> hosts = pickHosts(partitioner);
+
+		final TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				int hostIndex = hosts.indexOf(host);
+				if (hostIndex < 0 || !path.startsWith("/p")) {
+					if (path.equals("/") && hostIndex == 0) {
+						send(exchange, 200, "text/html", "<html><body><a href=\"/p0\">start</a></body></html>");
+					} else {
+						send(exchange, 404, "text/plain", "");
+					}
+					return;
+				}
+				int page = Integer.parseInt(path.substring(2));
+				StringBuilder links = new StringBuilder("<html><body>");
+				if (page + 1 < PAGES) {
+					links.append("<a href=\"/p").append(page + 1).append("\">next</a>");
+				}
+				String nextHost = hosts.get((hostIndex + 1) % hosts.size());
+				links.append("<a href=\"").append(getURL(nextHost, path)).append("\">other host</a>");
+				send(exchange, 200, "text/html", links.append("</body></html>").toString());
+			}
+		};
+		server.start();
+
+		List<Process> processes = new ArrayList<Process>();
+		List<File> directories = new ArrayList<File>();
+		try {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int i = 0; i < NODES; ++i) {
+				File directory = Files.createTempDirectory("spider-node").toFile();
+				directories.add(directory);
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SpiderTool.class.getName(),
+					"-f", "true", "-u", "node" + i, "-C", String.join(",", nodes), "-N", String.valueOf(i), server.getURL(hosts.get(0), "/"));
+				builder.directory(directory);
+				builder.redirectErrorStream(true);
+				builder.redirectOutput(new File(directory, "output.txt"));
+				processes.add(builder.start());
+			}
+			for (int i = 0; i < NODES; ++i) {
+				Process process = processes.get(i);
+				check(process.waitFor(TIMEOUT, TimeUnit.SECONDS), "Node %d didn't exit in %d seconds, see %s", i, TIMEOUT, directories.get(i));
+				check(process.exitValue() == 0, "Node %d exited with %d, see %s", i, process.exitValue(), directories.get(i));
+			}
+
+			List<TestServer.Request> requests = server.getRequests();
+			for (int h = 0; h < hosts.size(); ++h) {
+				String host = hosts.get(h);
+				String owner = "node" + partitioner.getOwner(host);
+				for (int p = 0; p < PAGES; ++p) {
+					check(server.getRequestsNumber(host, "/p" + p) == 1, "%s/p%d was requested %d times", host, p, server.getRequestsNumber(host, "/p" + p));
+				}
+				for (int i = 0; i < requests.size(); ++i) {
+					TestServer.Request request = requests.get(i);
+					if (request.host.equals(host)) {
+						check(owner.equals(request.userAgent), "%s%s was requested by %s, its owner is %s", host, request.path, request.userAgent, owner);
+					}
+				}
+			}
+		} finally {
+			for (int i = 0; i < processes.size(); ++i) {
+				processes.get(i).destroyForcibly();
+			}
+			server.stop();
+		}
+		for (int i = 0; i < directories.size(); ++i) {
+			delete(directories.get(i));
+		}
+	}
+
+	/**
+	 * Picks loopback addresses, so that every node owns the same number of them
+	 */
+	private static List<String> pickHosts(HostPartitioner partitioner) {
+		List<String> hosts = new ArrayList<String>();
+		int[] owned = new int[NODES];
+		for (int i = 1; i < 255 && hosts.size() < NODES * HOSTS_PER_NODE; ++i) {
+			String host = "127.0.0." + i;
+			int owner = partitioner.getOwner(host);
+			if (owned[owner] < HOSTS_PER_NODE) {
+				++owned[owner];
+				hosts.add(host);
+			}
+		}
+		return hosts;
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+}
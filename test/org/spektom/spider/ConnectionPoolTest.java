@@ -0,0 +1,52 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.HashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Retrieves pages of several loopback hosts through the connection pool. Pools of the
+ * hosts must be kept while their connections are idle or in use, and removed once the
+ * idle connections are closed.
+ */
+public class ConnectionPoolTest extends SpiderTest {
+
+	private static final int HOSTS = 3;
+	private static final long IDLE_TIMEOUT = 200;
+
+	public ConnectionPoolTest() {
+		super("ConnectionPool.idleHosts");
+	}
+
+	public void run() throws Exception {
+		TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+			}
+		};
+		server.start();
+		HttpConnectionPool pool = new HttpConnectionPool();
+		pool.setIdleTimeout(IDLE_TIMEOUT);
+		try {
+			for (int i = 0; i < HOSTS; ++i) {
+				PooledResponse response = pool.get(new URL(server.getURL("127.0.0." + (i + 1), "/")), new HashMap<String, String>());
+				check(response.getStatus() == 200, "Host #%d returned %d", i, response.getStatus());
+				response.close();
+			}
+			check(pool.getHostsNumber() == HOSTS, "%d host pools are kept with idle connections, expected %d", pool.getHostsNumber(), HOSTS);
+
+			// Response that isn't read yet holds its host pool past the idle timeout:
+			PooledResponse response = pool.get(new URL(server.getURL("127.0.0.1", "/")), new HashMap<String, String>());
+			TestServer.sleep(IDLE_TIMEOUT * 4);
+			check(pool.getHostsNumber() == 1, "%d host pools are kept while a response is in progress, expected 1", pool.getHostsNumber());
+			response.close();
+			TestServer.sleep(IDLE_TIMEOUT * 4);
+			check(pool.getHostsNumber() == 0, "%d host pools are kept after idle connections were closed", pool.getHostsNumber());
+			check(pool.getConnectionsOpened() == HOSTS, "%d connections were opened, expected %d", pool.getConnectionsOpened(), HOSTS);
+		} finally {
+			pool.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package org.spektom.spider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks caching, expiration and prefetching of {@link DNSCache} using a resolver stub
+ * that counts its calls, and can be slowed down
+ */
+public class DNSCacheTest extends SpiderTest {
+
+	private static final long TTL = 300;
+	private static final long NEGATIVE_TTL = 100;
+
+	private ConcurrentHashMap<String, AtomicInteger> calls;
+	// Hosts starting with "slow" wait for this:
+	private CountDownLatch slowHosts;
+
+	public DNSCacheTest() {
+		super("DNSCache.stubResolver");
+	}
+
+	public void run() throws Exception {
+		calls = new ConcurrentHashMap<String, AtomicInteger>();
+		slowHosts = new CountDownLatch(1);
+		try {
+			checkCaching();
+			checkConcurrentLookups();
+			checkFailures();
+			checkEviction();
+			checkPrefetch();
+		} finally {
+			slowHosts.countDown();
+		}
+	}
+
+	private void checkCaching() throws Exception {
+		DNSCache cache = newCache(100);
+		InetAddress address = cache.resolve("a.example");
+		check(address.getHostName().equals("a.example"), "Wrong address: %s", address);
+		cache.resolve("A.EXAMPLE");
+		check(getCalls("a.example") == 1, "Cached host was resolved %d times", getCalls("a.example"));
+		check(cache.getLookupsNumber() == 2 && cache.getHitsNumber() == 1, "Lookups: %d, hits: %d", cache.getLookupsNumber(), cache.getHitsNumber());
+
+		Thread.sleep(TTL + 50);
+		cache.resolve("a.example");
+		check(getCalls("a.example") == 2, "Expired host wasn't resolved again");
+	}
+
+	private void checkConcurrentLookups() throws Exception {
+		final DNSCache cache = newCache(100);
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 16; ++i) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						started.await();
+						cache.resolve("b.example");
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		started.countDown();
+		for (int i = 0; i < threads.size(); ++i) {
+			threads.get(i).join();
+		}
+		check(failures.get() == 0, "%d concurrent lookups failed", failures.get());
+		check(getCalls("b.example") == 1, "Concurrent lookups resolved the host %d times", getCalls("b.example"));
+	}
+
+	private void checkFailures() throws Exception {
+		DNSCache cache = newCache(100);
+		for (int i = 0; i < 2; ++i) {
+			try {
+				cache.resolve("unknown.example");
+				check(false, "Unknown host was resolved");
+			} catch (UnknownHostException e) {
+			}
+		}
+		check(getCalls("unknown.example") == 1, "Failure wasn't cached");
+		Thread.sleep(NEGATIVE_TTL + 50);
+		try {
+			cache.resolve("unknown.example");
+		} catch (UnknownHostException e) {
+		}
+		check(getCalls("unknown.example") == 2, "Failure wasn't expired");
+	}
+
+	private void checkEviction() throws Exception {
+		DNSCache cache = newCache(3);
+		cache.resolve("c1.example");
+		cache.resolve("c2.example");
+		cache.resolve("c3.example");
+		// Recently used hosts are kept:
+		cache.resolve("c1.example");
+		cache.resolve("c4.example");
+		check(cache.size() == 3, "Cache has %d hosts", cache.size());
+		cache.resolve("c1.example");
+		cache.resolve("c2.example");
+		check(getCalls("c1.example") == 1, "Recently used host was evicted");
+		check(getCalls("c2.example") == 2, "Least recently used host wasn't evicted");
+	}
+
+	private void checkPrefetch() throws Exception {
+		DNSCache cache = newCache(100000);
+		check(cache.prefetch("d.example"), "Prefetch wasn't started");
+		check(!cache.prefetch("d.example"), "Prefetch was started twice");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (getCalls("d.example") == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		cache.resolve("d.example");
+		check(getCalls("d.example") == 1, "Prefetched host was resolved %d times", getCalls("d.example"));
+		check(cache.getHitsNumber() == 1, "Lookup of prefetched host wasn't a hit");
+
+		// Resolver threads are blocked by slow hosts, so the rest of the prefetches
+		// queue up, and those that don't fit are dropped:
+		int queued = 0;
+		for (int i = 0; i < 5000; ++i) {
+			if (cache.prefetch("slow" + i + ".example")) {
+				++queued;
+			}
+		}
+		check(queued < 5000 && cache.getDroppedPrefetchesNumber() == 5000 - queued, "Queued %d prefetches, dropped %d", queued, cache.getDroppedPrefetchesNumber());
+
+		// A queued host is resolved by the lookup itself, and a dropped one too:
+		slowHosts.countDown();
+		long start = System.currentTimeMillis();
+		cache.resolve("slow" + (queued - 1) + ".example");
+		cache.resolve("slow4999.example");
+		long time = System.currentTimeMillis() - start;
+		check(time < 1000, "Lookups waited for queued prefetches for %d ms", time);
+		check(getCalls("slow" + (queued - 1) + ".example") == 1, "Queued host was resolved twice");
+	}
+
+	private DNSCache newCache(int maxHosts) {
+		return new DNSCache(new IHostResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				AtomicInteger counter = calls.get(host);
+				if (counter == null) {
+					calls.putIfAbsent(host, new AtomicInteger());
+					counter = calls.get(host);
+				}
+				counter.incrementAndGet();
+				if (host.startsWith("slow")) {
+					try {
+						slowHosts.await();
+					} catch (InterruptedException e) {
+						throw new UnknownHostException(host);
+					}
+					// Every resolution takes a while, so the queue drains slowly:
+					TestServer.sleep(50);
+				}
+				if (host.startsWith("unknown")) {
+					throw new UnknownHostException(host);
+				}
+				return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+			}
+		}, TTL, NEGATIVE_TTL, maxHosts);
+	}
+
+	private int getCalls(String host) {
+		AtomicInteger counter = calls.get(host);
+		return counter != null ? counter.get() : 0;
+	}
+}
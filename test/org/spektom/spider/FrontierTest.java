@@ -0,0 +1,61 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that queues of hosts are removed once they're idle, and that crawl delay and
+ * limit of URLs per host still apply
+ */
+public class FrontierTest extends SpiderTest {
+
+	private static final int HOSTS = 1000;
+
+	public FrontierTest() {
+		super("Frontier.idleHosts");
+	}
+
+	public void run() throws Exception {
+		Frontier frontier = new Frontier();
+		frontier.setCloseWhenDone(false);
+		for (int i = 0; i < HOSTS; ++i) {
+			frontier.add(new URL("http://host" + i + ".example.com/page"));
+		}
+		check(frontier.getHostsNumber() == HOSTS, "%d hosts are queued", frontier.getHostsNumber());
+		for (int i = 0; i < HOSTS; ++i) {
+			QueuedURL url = frontier.poll();
+			check(url != null, "URL #%d wasn't taken", i);
+			frontier.done(url.getURL());
+		}
+		check(frontier.getHostsNumber() == 0, "%d idle hosts are kept", frontier.getHostsNumber());
+
+		// Host with crawl delay is kept, so that the delay still applies:
+		URL url = new URL("http://delayed.example.com/page0");
+		frontier.add(url);
+		frontier.poll();
+		frontier.setCrawlDelay(url, 300);
+		frontier.done(url);
+		check(frontier.getHostsNumber() == 1, "Host with crawl delay was removed");
+		for (int i = 1; i <= 2; ++i) {
+			frontier.add(new URL("http://delayed.example.com/page" + i));
+			long start = System.currentTimeMillis();
+			QueuedURL next = frontier.take(5, TimeUnit.SECONDS);
+			long delay = System.currentTimeMillis() - start;
+			// Delay applies from the first URL taken after it was set:
+			check(next != null && (i == 1 || delay >= 250), "URL #%d was taken after %d ms", i, delay);
+			frontier.done(next.getURL());
+		}
+		Thread.sleep(500);
+		check(frontier.getHostsNumber() == 1, "Host with crawl delay was removed");
+
+		// Limit of URLs per host outlives the queue of the host:
+		frontier.setMaxHostURLs(2);
+		for (int i = 0; i < 2; ++i) {
+			check(frontier.add(new URL("http://limited.example.com/page" + i)), "URL #%d was refused", i);
+			frontier.done(frontier.poll().getURL());
+		}
+		check(frontier.getHostsNumber() == 1, "%d hosts are kept, only the delayed one must be", frontier.getHostsNumber());
+		check(!frontier.add(new URL("http://limited.example.com/page2")), "URL above the limit was added");
+		frontier.close();
+	}
+}
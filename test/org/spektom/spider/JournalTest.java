@@ -0,0 +1,162 @@
+package org.spektom.spider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Kills a spider with a journal in a separate JVM, while its slow handler still has
+ * retrieved pages queued. Every page the journal records as processed must have been
+ * stored by the handler, and the resumed crawl must store the rest of the pages.
+ */
+public class JournalTest extends SpiderTest {
+
+	private static final int PAGES = 200;
+	private static final int KILL_AFTER = 20;
+	private static final long TIMEOUT = 60;
+
+	public JournalTest() {
+		super("Journal.killAndResume");
+	}
+
+	public void run() throws Exception {
+		final TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				if (path.equals("/")) {
+					StringBuilder links = new StringBuilder("<html><body>");
+					for (int i = 0; i < PAGES; ++i) {
+						links.append("<a href=\"/p").append(i).append("\">page</a>");
+					}
+					send(exchange, 200, "text/html", links.append("</body></html>").toString());
+				} else if (path.startsWith("/p")) {
+					send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+				} else {
+					send(exchange, 404, "text/plain", "");
+				}
+			}
+		};
+		server.start();
+
+		File directory = Files.createTempDirectory("spider-journal").toFile();
+		File stored = new File(directory, "stored.txt");
+		File journalDirectory = new File(directory, "journal");
+		String startURL = server.getURL("localhost", "/");
+		Process process = null;
+		try {
+			process = startNode(directory, startURL, false, 50);
+			long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+			while (readStored(stored).size() < KILL_AFTER && process.isAlive() && System.currentTimeMillis() < deadline) {
+				TestServer.sleep(10);
+			}
+			check(process.isAlive(), "Crawl has completed before it was killed, see %s", directory);
+			process.destroyForcibly();
+			process.waitFor();
+
+			Set<String> storedURLs = readStored(stored);
+			StringURLSeenSet seenSet = new StringURLSeenSet();
+			List<QueuedURL> pending = new CrawlJournal(journalDirectory).replay(seenSet);
+			Set<String> pendingURLs = new HashSet<String>();
+			for (int i = 0; i < pending.size(); ++i) {
+				pendingURLs.add(pending.get(i).getURL().toString());
+			}
+			int done = 0;
+			for (int i = 0; i < PAGES; ++i) {
+				String url = server.getURL("localhost", "/p" + i);
+				if (seenSet.contains(url) && !pendingURLs.contains(url)) {
+					check(storedURLs.contains(url), "%s is recorded as processed, but it wasn't stored", url);
+					++done;
+				}
+			}
+			check(!pending.isEmpty(), "No URLs are pending after the crawl was killed");
+			System.out.format("# Killed with %d pages stored, %d recorded as processed, %d pending\n", storedURLs.size(), done, pending.size());
+
+			process = startNode(directory, startURL, true, 0);
+			check(process.waitFor(TIMEOUT, TimeUnit.SECONDS), "Resumed crawl didn't exit in %d seconds, see %s", TIMEOUT, directory);
+			check(process.exitValue() == 0, "Resumed crawl exited with %d, see %s", process.exitValue(), directory);
+			storedURLs = readStored(stored);
+			for (int i = 0; i < PAGES; ++i) {
+				String url = server.getURL("localhost", "/p" + i);
+				check(storedURLs.contains(url), "%s wasn't stored by the resumed crawl", url);
+			}
+		} finally {
+			if (process != null) {
+				process.destroyForcibly();
+			}
+			server.stop();
+		}
+		delete(directory);
+	}
+
+	/**
+	 * Crawls the site in a separate JVM, with handler that appends every page URL to
+	 * the file of stored URLs
+	 * @param args start URL, journal directory, file of stored URLs, whether to resume,
+	 * and delay of the handler in milliseconds
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		final FileOutputStream stored = new FileOutputStream(args[2], true);
+		final long delay = Long.parseLong(args[4]);
+		Spider spider = new Spider(new URL(args[0]));
+		spider.setHandlerThreads(1);
+		spider.setJournal(new CrawlJournal(new File(args[1])));
+		spider.setResume(Boolean.parseBoolean(args[3]));
+		spider.setHandler(new ISpiderHandler() {
+			public void handleContent(URL url, long lastModified, byte[] content) {
+				TestServer.sleep(delay);
+				try {
+					// Not buffered, so that the URL survives the process being killed:
+					stored.write((url + "\n").getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		spider.run();
+		stored.close();
+	}
+
+	private static Process startNode(File directory, String startURL, boolean resume, long delay) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), JournalTest.class.getName(),
+			startURL, new File(directory, "journal").getPath(), new File(directory, "stored.txt").getPath(), String.valueOf(resume), String.valueOf(delay));
+		builder.directory(directory);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(directory, "output.txt")));
+		return builder.start();
+	}
+
+	private static Set<String> readStored(File stored) throws IOException {
+		Set<String> urls = new HashSet<String>();
+		if (stored.exists()) {
+			String content = new String(Files.readAllBytes(stored.toPath()), StandardCharsets.UTF_8);
+			// The last line may be incomplete:
+			String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+			for (int i = 0; i < lines.length; ++i) {
+				if (lines[i].length() > 0) {
+					urls.add(lines[i]);
+				}
+			}
+		}
+		return urls;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,52 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.HashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Retrieves a page of a host that doesn't exist through the connection pool, with
+ * http.proxyHost pointing to the test server. The server must get the request with
+ * absolute URI, like an HTTP proxy does, and the connection to it must be reused.
+ */
+public class ProxyTest extends SpiderTest {
+
+	private static final String HOST = "proxied.invalid";
+
+	public ProxyTest() {
+		super("ConnectionPool.httpProxy");
+	}
+
+	public void run() throws Exception {
+		final boolean[] absolute = new boolean[1];
+		TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				absolute[0] = exchange.getRequestURI().isAbsolute();
+				send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+			}
+		};
+		server.start();
+		System.setProperty("http.proxyHost", "127.0.0.1");
+		System.setProperty("http.proxyPort", String.valueOf(server.getPort()));
+		// Local addresses aren't proxied by default:
+		System.setProperty("http.nonProxyHosts", "");
+		HttpConnectionPool pool = new HttpConnectionPool();
+		try {
+			for (int i = 0; i < 2; ++i) {
+				PooledResponse response = pool.get(new URL("http://" + HOST + "/page" + i), new HashMap<String, String>());
+				check(response.getStatus() == 200, "Proxy returned %d", response.getStatus());
+				response.close();
+				check(server.getRequestsNumber(HOST, "/page" + i) == 1, "Proxy got %d requests for page #%d", server.getRequestsNumber(HOST, "/page" + i), i);
+				check(absolute[0], "Request line of page #%d doesn't have absolute URI", i);
+			}
+			check(pool.getConnectionsOpened() == 1, "%d connections to the proxy were opened, expected 1", pool.getConnectionsOpened());
+		} finally {
+			System.clearProperty("http.proxyHost");
+			System.clearProperty("http.proxyPort");
+			System.clearProperty("http.nonProxyHosts");
+			pool.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Checks that only the first {@link RobotsCache#MAX_LENGTH} bytes of robots.txt are
+ * parsed, and that rules of a site are retrieved once
+ */
+public class RobotsCacheTest extends SpiderTest {
+
+	public RobotsCacheTest() {
+		super("Robots.cache");
+	}
+
+	public void run() throws Exception {
+		TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				StringBuilder robots = new StringBuilder("User-agent: *\nDisallow: /first\n");
+				while (robots.length() < RobotsCache.MAX_LENGTH) {
+					robots.append("# padding padding padding padding padding padding padding\n");
+				}
+				robots.append("Disallow: /last\n");
+				send(exchange, 200, "text/plain", robots.toString());
+			}
+		};
+		server.start();
+		try {
+			RobotsCache cache = new RobotsCache();
+			URL url = new URL(server.getURL("127.0.0.1", "/page"));
+			RobotsRules rules = cache.getRules(url).get(10, TimeUnit.SECONDS);
+			check(!rules.isAllowed("/first"), "Rule at the start of robots.txt is ignored");
+			check(rules.isAllowed("/last"), "Rule past the size limit is used");
+
+			check(cache.getRules(url).get(10, TimeUnit.SECONDS) == rules, "Cached rules were retrieved again");
+			check(server.getRequestsNumber("127.0.0.1", "/robots.txt") == 1, "robots.txt was retrieved %d times", server.getRequestsNumber("127.0.0.1", "/robots.txt"));
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.spektom.spider;
+
+import java.net.URL;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Crawls two hosts, one of which delays its robots.txt. Pages of the other host must
+ * not wait for it, and the slow host's pages must still obey its rules.
+ */
+public class RobotsDelayTest extends SpiderTest {
+
+	private static final String FAST_HOST = "127.0.0.1";
+	private static final String SLOW_HOST = "localhost";
+	private static final int PAGES = 10;
+	private static final long ROBOTS_DELAY = 1500;
+
+	private FetchMode fetchMode;
+
+	public RobotsDelayTest(FetchMode fetchMode) {
+		super("Robots.delayedRobots." + fetchMode.name().toLowerCase());
+		this.fetchMode = fetchMode;
+	}
+
+	public void run() throws Exception {
+		final long[] robotsSent = new long[1];
+		final TestServer server = new TestServer() {
+			protected void handle(String host, String path, HttpExchange exchange) throws Exception {
+				if (path.equals("/robots.txt")) {
+					if (host.equals(SLOW_HOST)) {
+						sleep(ROBOTS_DELAY);
+						synchronized (robotsSent) {
+							robotsSent[0] = System.nanoTime();
+						}
+						send(exchange, 200, "text/plain", "User-agent: *\nDisallow: /private\n");
+					} else {
+						send(exchange, 404, "text/plain", "");
+					}
+				} else if (path.equals("/") && host.equals(FAST_HOST)) {
+					StringBuilder links = new StringBuilder("<html><body>");
+					for (int i = 0; i < PAGES; ++i) {
+						links.append("<a href=\"/a").append(i).append("\">a</a>");
+					}
+					links.append("<a href=\"").append(getURL(SLOW_HOST, "/private")).append("\">private</a>");
+					links.append("<a href=\"").append(getURL(SLOW_HOST, "/pub")).append("\">pub</a>");
+					send(exchange, 200, "text/html", links.append("</body></html>").toString());
+				} else {
+					send(exchange, 200, "text/html", "<html><body>" + path + "</body></html>");
+				}
+			}
+		};
+		server.start();
+		try {
+			Spider spider = new Spider(new URL(server.getURL(FAST_HOST, "/")));
+			spider.setFetchMode(fetchMode);
+			spider.setFollowOtherDomains(true);
+			spider.setHandler(new ISpiderHandler() {
+				public void handleContent(URL url, long lastModified, byte[] content) {
+				}
+			});
+			spider.run();
+
+			check(server.getRequestsNumber(SLOW_HOST, "/private") == 0, "Disallowed page was retrieved");
+			check(server.getRequestsNumber(SLOW_HOST, "/pub") == 1, "Allowed page of the slow host wasn't retrieved");
+			check(server.getRequestsNumber(SLOW_HOST, "/robots.txt") == 1, "robots.txt of the slow host was retrieved %d times", server.getRequestsNumber(SLOW_HOST, "/robots.txt"));
+			List<TestServer.Request> requests = server.getRequests();
+			int fastPages = 0;
+			for (int i = 0; i < requests.size(); ++i) {
+				TestServer.Request request = requests.get(i);
+				if (request.host.equals(FAST_HOST) && request.path.startsWith("/a")) {
+					++fastPages;
+					check(request.time - robotsSent[0] < 0, "%s waited for robots.txt of another host", request.path);
+				}
+			}
+			check(fastPages == PAGES, "Expected %d pages of the fast host, got %d", PAGES, fastPages);
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.spektom.spider;
+
+/**
+ * Checks matching of robots.txt rules, including rules with many wildcards, which
+ * must not take time exponential in their number
+ */
+public class RobotsRulesTest extends SpiderTest {
+
+	public RobotsRulesTest() {
+		super("Robots.rules");
+	}
+
+	public void run() throws Exception {
+		RobotsRules rules = RobotsRules.parse("User-agent: *\nDisallow: /\nAllow: /pub\n", null);
+		checkAllowed(rules, "/pub/page.html", true);
+		checkAllowed(rules, "/page.html", false);
+
+		rules = RobotsRules.parse("User-agent: *\nDisallow: /*.php$\nDisallow: /a*b*c\nAllow: /a*b*c/ok\n", null);
+		checkAllowed(rules, "/index.php", false);
+		checkAllowed(rules, "/index.php?x=1", true);
+		checkAllowed(rules, "/axxbyyc", false);
+		checkAllowed(rules, "/axxbyyc/ok", true);
+		checkAllowed(rules, "/acb", true);
+
+		// Allow wins over Disallow of the same length:
+		rules = RobotsRules.parse("User-agent: *\nDisallow: /page\nAllow: /page\n", null);
+		checkAllowed(rules, "/page", true);
+
+		// Group of this robot replaces '*' groups:
+		rules = RobotsRules.parse("User-agent: *\nDisallow: /\n\nUser-agent: mybot\nDisallow: /private\n", "MyBot/1.0");
+		checkAllowed(rules, "/page", true);
+		checkAllowed(rules, "/private/page", false);
+
+		StringBuilder pattern = new StringBuilder("/");
+		for (int i = 0; i < 50; ++i) {
+			pattern.append("a*");
+		}
+		rules = RobotsRules.parse("User-agent: *\nDisallow: " + pattern + "b\n", null);
+		StringBuilder path = new StringBuilder("/");
+		for (int i = 0; i < 5000; ++i) {
+			path.append('a');
+		}
+		long start = System.nanoTime();
+		checkAllowed(rules, path.toString(), true);
+		checkAllowed(rules, path + "b", false);
+		long time = (System.nanoTime() - start) / 1000000;
+		check(time < 1000, "Matching rule with 50 wildcards took %d ms", time);
+	}
+
+	private static void checkAllowed(RobotsRules rules, String path, boolean allowed) {
+		check(rules.isAllowed(path) == allowed, "%s must be %s", path, allowed ? "allowed" : "disallowed");
+	}
+}
@@ -0,0 +1,58 @@
+package org.spektom.spider;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Adds the same URLs to a seen set from several threads at once, and checks that
+ * every URL is reported as new at most once
+ */
+public class SeenSetTest extends SpiderTest {
+
+	private static final int URLS = 200000;
+	private static final int THREADS = 8;
+
+	private IURLSeenSet seenSet;
+	private boolean exact;
+
+	public SeenSetTest(String name, IURLSeenSet seenSet, boolean exact) {
+		super("SeenSet.concurrentAdds." + name);
+		this.seenSet = seenSet;
+		this.exact = exact;
+	}
+
+	public void run() throws Exception {
+		final AtomicIntegerArray added = new AtomicIntegerArray(URLS);
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						started.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < URLS; ++j) {
+						if (seenSet.add("http://host" + (j % 100) + ".example.com/page-" + j + ".html")) {
+							added.incrementAndGet(j);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		started.countDown();
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i].join();
+		}
+		int total = 0;
+		for (int i = 0; i < URLS; ++i) {
+			check(added.get(i) <= 1, "URL #%d was reported as new %d times", i, added.get(i));
+			total += added.get(i);
+		}
+		// Bloom filter may report some of the URLs as seen before they were added:
+		check(exact ? total == URLS : total > URLS * 0.95, "%d URLs of %d were reported as new", total, URLS);
+		check(seenSet.size() == total, "Set has %d URLs, %d were reported as new", seenSet.size(), total);
+	}
+}
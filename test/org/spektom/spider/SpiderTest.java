@@ -0,0 +1,38 @@
+package org.spektom.spider;
+
+/**
+ * Test run by {@link TestRunner}. Failed checks throw {@link AssertionError}, and so
+ * does any other exception thrown by {@link #run()}.
+ */
+public abstract class SpiderTest {
+
+	private String name;
+
+	/**
+	 * @param name Name the test is reported under
+	 */
+	public SpiderTest(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Runs the test
+	 * @throws Exception
+	 */
+	public abstract void run() throws Exception;
+
+	/**
+	 * @param condition
+	 * @param format Message of the failure, see {@link String#format(String, Object...)}
+	 * @param args
+	 */
+	protected static void check(boolean condition, String format, Object... args) {
+		if (!condition) {
+			throw new AssertionError(String.format(format, args));
+		}
+	}
+}
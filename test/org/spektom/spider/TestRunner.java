@@ -0,0 +1,66 @@
+package org.spektom.spider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs tests of the project, and exits with status 1 if any of them has failed.
+ * <p>
+ * Usage: <code>java TestRunner [regex]</code>, where only tests which names contain
+ * a match of the expression are run.
+ */
+public class TestRunner {
+
+	/**
+	 * @return all tests of the project
+	 */
+	public static List<SpiderTest> getTests() {
+		List<SpiderTest> tests = new ArrayList<SpiderTest>();
+		tests.add(new AsyncFetchTest());
+		tests.add(new RobotsRulesTest());
+		tests.add(new RobotsCacheTest());
+		tests.add(new RobotsDelayTest(FetchMode.BLOCKING));
+		tests.add(new RobotsDelayTest(FetchMode.ASYNC));
+		tests.add(new RobotsDelayTest(FetchMode.VIRTUAL));
+		tests.add(new AdaptiveConcurrencyTest());
+		tests.add(new DNSCacheTest());
+		tests.add(new ConnectionPoolTest());
+		tests.add(new ProxyTest());
+		tests.add(new ClusterTest());
+		tests.add(new JournalTest());
+		tests.add(new FrontierTest());
+		tests.add(new SeenSetTest("fingerprint", new FingerprintURLSeenSet(1000, false), true));
+		tests.add(new SeenSetTest("bloom", new BloomURLSeenSet(200000, 0.01), false));
+		return tests;
+	}
+
+	public static void main(String[] args) {
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : "");
+		List<SpiderTest> tests = getTests();
+		int run = 0;
+		List<String> failed = new ArrayList<String>();
+		for (int i = 0; i < tests.size(); ++i) {
+			SpiderTest test = tests.get(i);
+			if (!filter.matcher(test.getName()).find()) {
+				continue;
+			}
+			System.out.format("# Test: %s\n", test.getName());
+			long start = System.currentTimeMillis();
+			++run;
+			try {
+				test.run();
+				System.out.format("# Passed in %d ms\n", System.currentTimeMillis() - start);
+			} catch (Throwable e) {
+				e.printStackTrace(System.out);
+				System.out.format("# FAILED in %d ms\n", System.currentTimeMillis() - start);
+				failed.add(test.getName());
+			}
+		}
+		System.out.format("\nTests run: %d, failed: %d\n", run, failed.size());
+		for (int i = 0; i < failed.size(); ++i) {
+			System.out.format("  %s\n", failed.get(i));
+		}
+		System.exit(failed.isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,165 @@
+package org.spektom.spider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server for tests. It listens on all loopback addresses, so that
+ * "localhost", "127.0.0.1", "127.0.0.2" and so on are different hosts of the same
+ * server. Every request is handled in a thread of its own, so responses may be
+ * delayed, and all requests are logged.
+ */
+public abstract class TestServer {
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private List<Request> requests;
+
+	public TestServer() {
+		requests = new ArrayList<Request>();
+	}
+
+	/**
+	 * Starts listening on a free port
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(0), 100);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String host = exchange.getRequestHeaders().getFirst("Host");
+				if (host != null && host.indexOf(':') != -1) {
+					host = host.substring(0, host.indexOf(':'));
+				}
+				String path = exchange.getRequestURI().getRawPath();
+				Request request = new Request(System.nanoTime(), host, path, exchange.getRequestHeaders().getFirst("User-Agent"));
+				synchronized (requests) {
+					requests.add(request);
+				}
+				try {
+					TestServer.this.handle(host, path, exchange);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					e.printStackTrace();
+					send(exchange, 500, "text/plain", e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @param host
+	 * @param path
+	 * @return URL of the path on given host of this server
+	 */
+	public String getURL(String host, String path) {
+		return "http://" + host + ":" + getPort() + path;
+	}
+
+	/**
+	 * Responds to the request
+	 * @param host Host the request was sent to, without port
+	 * @param path Raw path of the request
+	 * @param exchange
+	 * @throws Exception
+	 */
+	protected abstract void handle(String host, String path, HttpExchange exchange) throws Exception;
+
+	/**
+	 * @return copy of the log of all received requests
+	 */
+	public List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	/**
+	 * @return number of requests for the path on given host
+	 */
+	public int getRequestsNumber(String host, String path) {
+		int number = 0;
+		List<Request> requests = getRequests();
+		for (int i = 0; i < requests.size(); ++i) {
+			Request request = requests.get(i);
+			if (request.host.equals(host) && request.path.equals(path)) {
+				++number;
+			}
+		}
+		return number;
+	}
+
+	/**
+	 * Sends the whole response
+	 */
+	public static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+		if (bytes.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	/**
+	 * Sleeps without being interrupted by the test
+	 */
+	public static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Logged request
+	 */
+	public static class Request {
+
+		public final long time;
+		public final String host;
+		public final String path;
+		public final String userAgent;
+
+		Request(long time, String host, String path, String userAgent) {
+			this.time = time;
+			this.host = host;
+			this.path = path;
+			this.userAgent = userAgent;
+		}
+	}
+}